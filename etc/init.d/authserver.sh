@@ -6,6 +6,28 @@ PATH_TO_JAR=/usr/share/timadorus-auth-server/auth-server.jar
 JAR_PARAMS=/usr/share/timadorus-auth-server/
 PID_PATH_NAME=/tmp/TimadorusAuthServer-pid
 LOG_FILE=authserver.log
+# The server drains requests for up to 'drainTimeoutMillis' on SIGTERM, so
+# allow somewhat longer before it is killed.
+STOP_TIMEOUT=30
+
+# Sends SIGTERM to the server and waits until it has shut down.
+stop_server() {
+    PID=$(cat $PID_PATH_NAME);
+    echo "$SERVICE_NAME stopping ..."
+    kill $PID;
+    WAITED=0
+    while kill -0 $PID 2> /dev/null; do
+        if [ $WAITED -ge $STOP_TIMEOUT ]; then
+            echo "$SERVICE_NAME did not shut down in time, killing it ..."
+            kill -9 $PID;
+            break
+        fi
+        sleep 1
+        WAITED=$((WAITED + 1))
+    done
+    echo "$SERVICE_NAME stopped ..."
+    rm $PID_PATH_NAME
+}
 
 case $1 in
     start)
@@ -21,22 +43,14 @@ case $1 in
     ;;
     stop)
         if [ -f $PID_PATH_NAME ]; then
-            PID=$(cat $PID_PATH_NAME);
-            echo "$SERVICE_NAME stopping ..."
-            kill $PID;
-            echo "$SERVICE_NAME stopped ..."
-            rm $PID_PATH_NAME
+            stop_server
         else
             echo "$SERVICE_NAME is not running ..."
         fi
     ;;
     restart)
         if [ -f $PID_PATH_NAME ]; then
-            PID=$(cat $PID_PATH_NAME);
-            echo "$SERVICE_NAME stopping ...";
-            kill $PID;
-            echo "$SERVICE_NAME stopped ...";
-            rm $PID_PATH_NAME
+            stop_server
             echo "$SERVICE_NAME starting ..."
             cd $WORKING_DIR
             nohup java -jar $PATH_TO_JAR $JAR_PARAMS /tmp 2>> $LOG_FILE >> $LOG_FILE &
@@ -48,11 +62,7 @@ case $1 in
     ;;
     force-restart)
         if [ -f $PID_PATH_NAME ]; then
-            PID=$(cat $PID_PATH_NAME);
-            echo "$SERVICE_NAME stopping ...";
-            kill $PID;
-            echo "$SERVICE_NAME stopped ...";
-            rm $PID_PATH_NAME
+            stop_server
         fi
         echo "$SERVICE_NAME starting ..."
         cd $WORKING_DIR
@@ -1,3 +1,9 @@
 #!/bin/bash
 
+# SIGTERM lets the server drain its requests before it exits.
 pkill -f auth-server.jar
+for i in $(seq 1 30); do
+  pgrep -f auth-server.jar > /dev/null || exit 0
+  sleep 1
+done
+pkill -9 -f auth-server.jar
@@ -2,6 +2,7 @@ package org.timadorus.auth.client;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.Type;
 import java.net.InetAddress;
@@ -12,9 +13,14 @@ import java.security.GeneralSecurityException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -26,6 +32,7 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
 import org.apache.commons.codec.binary.Base64;
+import org.timadorus.auth.util.HashRing;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
@@ -52,16 +59,62 @@ public class Authenticator {
    * The standard HTTP status code for a successful request.
    */
   private static final int HTTP_OK = 200;
-  
+
+  /**
+   * The HTTP status code with which the server confirms that the response
+   * the client holds is still current.
+   */
+  private static final int HTTP_NOT_MODIFIED = 304;
+
+  /**
+   * The HTTP status code with which a node of a ring redirects a user to
+   * the node that owns the user.
+   */
+  private static final int HTTP_TEMPORARY_REDIRECT = 307;
+
+  /**
+   * The HTTP status code of a node that is starting or shutting down.
+   */
+  private static final int HTTP_SERVICE_UNAVAILABLE = 503;
+
+  /**
+   * The header with which the client asks a node to serve the user because
+   * the node owning the user did not respond.
+   */
+  private static final String FAILOVER_HEADER = "X-Auth-Failover";
+
   /**
-   * The address of the auth server to authenticate with.
+   * The name of the HTTP header field carrying the entity-tag of a response.
    */
-  private InetAddress serverAddress;
+  private static final String ETAG_HEADER = "ETag";
 
   /**
-   * The port at which the auth service is running at the auth server.
+   * The name of the HTTP header field with which the client asks the server
+   * to send a resource only if it no longer matches the given entity-tag.
    */
-  private int port;
+  private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+
+  /**
+   * The name of the HTTP header field with which the client tells the server
+   * which compressed encodings of a response it can decode.
+   */
+  private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+
+  /**
+   * The query with which the client asks the server to omit the fields of a
+   * response that are only of interest to administrators.
+   */
+  private static final String COMPACT_QUERY = "compact=true";
+  
+  /**
+   * Determines whether the SSL socket factory has been installed.
+   */
+  private static boolean sslInitialized;
+  
+  /**
+   * The auth-servers, in the order in which they are tried.
+   */
+  private List<InetSocketAddress> servers;
   
   /**
    * The username with which to authenticate.
@@ -72,7 +125,43 @@ public class Authenticator {
    * The password with which to authenticate.
    */
   private String password;
+
+  /**
+   * The last responses that carried an entity-tag, by resource. They are
+   * revalidated with conditional requests, so that unchanged resources are
+   * not sent again.
+   */
+  private Map<String, CachedResponse> responses =
+      new ConcurrentHashMap<String, CachedResponse>();
     
+  /**
+   * A response kept for a conditional request of the same resource.
+   */
+  private static class CachedResponse {
+    /**
+     * The entity-tag of the response.
+     */
+    private final String tag;
+
+    /**
+     * The body of the response.
+     */
+    private final String body;
+
+    /**
+     * Initializes a new instance of the CachedResponse class.
+     *
+     * @param tag
+     *  The entity-tag of the response.
+     * @param body
+     *  The body of the response.
+     */
+    public CachedResponse(String tag, String body) {
+      this.tag = tag;
+      this.body = body;
+    }
+  }
+
   /**
    * Ugly boilerplate code.
    */
@@ -160,8 +249,54 @@ public class Authenticator {
     if (password == null) {
       throw new IllegalArgumentException("password");
     }
-    this.serverAddress = serverAddress;
-    this.port = port;
+    this.servers = Collections.singletonList(
+        new InetSocketAddress(serverAddress.getHostAddress(), port));
+    this.username = username;
+    this.password = password;
+    
+    initSecureSocketLayer();
+  }
+  
+  /**
+   * Initializes a new instance of the Authenticator class for a ring of
+   * auth-servers, among which users are distributed by consistent hashing
+   * on the username. Requests go to the server owning the user; if it does
+   * not respond, the next servers on the ring are tried in turn.
+   * 
+   * @param servers
+   *          The addresses of the auth-servers. The host names and ports must
+   *          match the 'ringNodes' setting of the servers, so that the
+   *          client and the servers agree on the owner of each user.
+   * @param username
+   *          The username with which to authenticate.
+   * @param password
+   *          The password with which to authenticate.
+   * @throws GeneralSecurityException 
+   *          An unexpected error occurred during SSL initialization.
+   * @throws IllegalArgumentException
+   *          The servers parameter is null or empty, or the username
+   *          parameter is null, or the password parameter is null.
+   */
+  public Authenticator(List<InetSocketAddress> servers, String username, String password)
+      throws GeneralSecurityException {
+    if (servers == null || servers.isEmpty()) {
+      throw new IllegalArgumentException("servers");
+    }
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (password == null) {
+      throw new IllegalArgumentException("password");
+    }
+    Map<String, InetSocketAddress> byName = new LinkedHashMap<String, InetSocketAddress>();
+    for (InetSocketAddress server : servers) {
+      byName.put(server.getHostString() + ":" + server.getPort(), server);
+    }
+    HashRing ring = new HashRing(byName.keySet(), HashRing.DEFAULT_VIRTUAL_NODES);
+    this.servers = new ArrayList<InetSocketAddress>();
+    for (String node : ring.getNodes(username, ring.size())) {
+      this.servers.add(byName.get(node));
+    }
     this.username = username;
     this.password = password;
     
@@ -170,15 +305,24 @@ public class Authenticator {
   
   /**
    * Performs SSL initialization so that HTTPS requests can be performed.
+   * The socket factory is installed only once, so that connections and SSL
+   * sessions can be reused by all instances, e.g. when many users log in
+   * from the same process.
    * 
    * @throws GeneralSecurityException 
    *  An unexpected error occurred during SSL initialization.
    */
   private void initSecureSocketLayer() throws GeneralSecurityException {
-    SSLContext sc = SSLContext.getInstance("SSL");
-    sc.init(null, myTrustManager, new java.security.SecureRandom());
-    HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-    HttpsURLConnection.setDefaultHostnameVerifier(new MyHostnameVerifier());
+    synchronized (Authenticator.class) {
+      if (sslInitialized) {
+        return;
+      }
+      SSLContext sc = SSLContext.getInstance("SSL");
+      sc.init(null, myTrustManager, new java.security.SecureRandom());
+      HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
+      HttpsURLConnection.setDefaultHostnameVerifier(new MyHostnameVerifier());
+      sslInitialized = true;
+    }
   }
   
   /**
@@ -198,10 +342,15 @@ public class Authenticator {
   }
   
   /**
-   * Performs an HTTP GET request for the specified resource.
+   * Performs an HTTP GET request for the specified resource. The servers
+   * are tried in turn until one of them responds. If a previous response
+   * for the resource carried an entity-tag, the request is conditional and
+   * the previous response is returned if the server confirms it.
    * 
    * @param resource
    *  The resource to request from the auth-server.
+   * @param query
+   *  The query of the request, or null.
    * @return
    *  The response received from the auth-server.
    * @throws IOException
@@ -212,25 +361,99 @@ public class Authenticator {
    * @throws AuthException
    *  The server rejected the request for the specified resource.
    */
-  private String makeRequest(String resource) throws IOException {
+  private String makeRequest(String resource, String query) throws IOException {
     if (resource == null) {
       throw new IllegalArgumentException("resource");
     }
-    String url = null;
-    try {
-      // This performs URL encoding, so a resource such as 'The great frog'
-      // becomes The%20great%frog so it can be safely passed as part of an
-      // HTTP GET request.
-      URI uri = new URI("https", null, serverAddress.getHostAddress(), port,
-                      resource, null, null);
-      url = uri.toURL().toString();
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+    CachedResponse cached = responses.get(resource);
+    IOException failure = null;
+    for (int i = 0; i < servers.size(); i++) {
+      InetSocketAddress server = servers.get(i);
+      URL url = null;
+      try {
+        // This performs URL encoding, so a resource such as 'The great frog'
+        // becomes The%20great%frog so it can be safely passed as part of an
+        // HTTP GET request.
+        URI uri = new URI("https", null, server.getHostString(), server.getPort(),
+                        resource, query, null);
+        url = uri.toURL();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      try {
+        // Once the owner of the user has failed, ask the other servers to
+        // serve the user rather than redirect back to the owner.
+        HttpsURLConnection con = connect(url, i > 0, cached);
+        if (con.getResponseCode() == HTTP_TEMPORARY_REDIRECT) {
+          // Another server of the ring owns the user.
+          con = connect(new URL(url, con.getHeaderField("Location")), i > 0, cached);
+        }
+        return readResponse(con, resource, cached);
+      } catch (IOException e) {
+        failure = e;
+      }
     }
-    URL obj = new URL(url);
-    HttpsURLConnection  con = (HttpsURLConnection) obj.openConnection();
+    throw failure;
+  }
+
+  /**
+   * Opens a connection for an HTTP GET request of the specified URL.
+   * 
+   * @param url
+   *  The URL to request.
+   * @param failover
+   *  true to ask the server to serve the user even if it does not own the
+   *  user; Otherwise false.
+   * @param cached
+   *  The previous response for the resource, whose entity-tag makes the
+   *  request conditional, or null.
+   * @return
+   *  The connection.
+   * @throws IOException
+   *  The connection could not be opened.
+   */
+  private HttpsURLConnection connect(URL url, boolean failover, CachedResponse cached)
+      throws IOException {
+    HttpsURLConnection con = (HttpsURLConnection) url.openConnection();
+    // Redirects are followed by makeRequest, which keeps the credentials.
+    con.setInstanceFollowRedirects(false);
     con.setRequestProperty(AUTH_HEADER, "Basic "
             + encodeCredentialsBasic(username, password));
+    if (failover) {
+      con.setRequestProperty(FAILOVER_HEADER, "true");
+    }
+    con.setRequestProperty(ACCEPT_ENCODING_HEADER, "gzip, deflate");
+    if (cached != null) {
+      con.setRequestProperty(IF_NONE_MATCH_HEADER, cached.tag);
+    }
+    return con;
+  }
+
+  /**
+   * Reads the body of the response to the specified request.
+   * 
+   * @param con
+   *  The connection of the request.
+   * @param resource
+   *  The requested resource.
+   * @param cached
+   *  The previous response for the resource, or null.
+   * @return
+   *  The body of the response, or the body of the previous response if the
+   *  resource has not been modified.
+   * @throws IOException
+   *  The server is unavailable, or an IO-related error occurred.
+   * @throws AuthException
+   *  The server rejected the request.
+   */
+  private String readResponse(HttpsURLConnection con, String resource,
+      CachedResponse cached) throws IOException {
+    if (con.getResponseCode() == HTTP_SERVICE_UNAVAILABLE) {
+      throw new IOException("The server is unavailable.");
+    }
+    if (con.getResponseCode() == HTTP_NOT_MODIFIED && cached != null) {
+      return cached.body;
+    }
     if (con.getResponseCode() != HTTP_OK) {
       throw new AuthException("Erroneous server response ("
           + con.getResponseCode() + ")");
@@ -238,12 +461,23 @@ public class Authenticator {
     // Read and return the response.
     BufferedReader in = null;
     try {
-      in = new BufferedReader(new InputStreamReader(con.getInputStream()));
+      InputStream body = con.getInputStream();
+      // Large responses are compressed if the server supports it.
+      if ("gzip".equalsIgnoreCase(con.getContentEncoding())) {
+        body = new GZIPInputStream(body);
+      } else if ("deflate".equalsIgnoreCase(con.getContentEncoding())) {
+        body = new InflaterInputStream(body);
+      }
+      in = new BufferedReader(new InputStreamReader(body));
       String line;
       StringBuffer response = new StringBuffer();
       while ((line = in.readLine()) != null) {
         response.append(line);
       }
+      String tag = con.getHeaderField(ETAG_HEADER);
+      if (tag != null) {
+        responses.put(resource, new CachedResponse(tag, response.toString()));
+      }
       return response.toString();
     } finally {
       if (in != null) {
@@ -265,7 +499,7 @@ public class Authenticator {
    */
   public List<String> listEntities() throws IOException {
     List<String> list = new LinkedList<String>();
-    String ret = makeRequest("/users/" + username);
+    String ret = makeRequest("/users/" + username, COMPACT_QUERY);
     if (ret == null) {
       return list;
     }
@@ -308,7 +542,7 @@ public class Authenticator {
     if (entity == null) {
       throw new IllegalArgumentException("entity");
     }
-    String ret = makeRequest("/users/" + username + "/" + entity);
+    String ret = makeRequest("/users/" + username + "/" + entity, COMPACT_QUERY);
     Gson gson = new Gson();
     Type stringStringMap = new TypeToken<Map<String, Object>>() { }
       .getType();
@@ -341,4 +575,36 @@ public class Authenticator {
                               + ret, e);
     }
   }
+
+  /**
+   * Gets the stats of the specified entity of the user. Repeated calls only
+   * transfer the stats again if they have changed on the server.
+   * 
+   * @param entity
+   *  The entity whose stats to get.
+   * @return
+   *  The stats of the entity, by name.
+   * @throws IOException 
+   *  The connection to the auth-server could not be established, or another
+   *  IO-related error occurred.
+   * @throws AuthException
+   *  The provided credentials were rejected by the server, or the specified
+   *  entity does not exist.
+   * @throws IllegalArgumentException
+   *  The entity parameter is null.
+   */
+  public Map<String, String> getStats(String entity) throws IOException {
+    if (entity == null) {
+      throw new IllegalArgumentException("entity");
+    }
+    String ret = makeRequest("/users/" + username + "/" + entity + "/stats", null);
+    Type stringStringMap = new TypeToken<Map<String, String>>() { }
+      .getType();
+    Map<String, String> map = new Gson().fromJson(ret, stringStringMap);
+    if (map == null) {
+      throw new AuthException("The server returned an invalid response: "
+                              + ret);
+    }
+    return map;
+  }
 }
@@ -0,0 +1,438 @@
+package org.timadorus.auth.loadgen;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.timadorus.auth.client.AuthException;
+import org.timadorus.auth.client.Authenticator;
+import org.timadorus.auth.util.Histogram;
+
+/**
+ * Drives a mix of logins and auth-token requests against an auth-server and
+ * records the latency of each request.
+ *
+ * A login lists the entities of a user, an auth-token request requests the
+ * token of one of the user's entities. Users are named 'prefix' followed by
+ * their index and own the entities 'e0' to 'e(n-1)'; all of them share the
+ * same password.
+ *
+ * If a target rate is set, each worker sends its requests at fixed intervals
+ * and the latency of a request is measured from the time it was due to be
+ * sent. A server that can't keep up therefore shows up in the latencies and
+ * not just in the throughput. Without a target rate, each worker sends its
+ * next request as soon as it received the response to the previous one.
+ *
+ * @author agent
+ */
+public class LoadGenerator {
+  /**
+   * Extracts the status code from the message of an AuthException.
+   */
+  private static final Pattern STATUS = Pattern.compile("\\((\\d{3})\\)");
+
+  /**
+   * The quantiles listed in the report.
+   */
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  /**
+   * The column headers of the quantiles.
+   */
+  private static final String[] QUANTILE_NAMES = {"p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)"};
+
+  /**
+   * The address of the auth-server.
+   */
+  private final InetAddress address;
+
+  /**
+   * The port of the auth-server.
+   */
+  private final int port;
+
+  /**
+   * The prefix of the names of the users.
+   */
+  private final String prefix;
+
+  /**
+   * The number of users.
+   */
+  private final int users;
+
+  /**
+   * The number of entities per user.
+   */
+  private final int entities;
+
+  /**
+   * The password of the users.
+   */
+  private final String password;
+
+  /**
+   * The latencies of the logins.
+   */
+  private final Histogram loginTime = new Histogram();
+
+  /**
+   * The latencies of the auth-token requests.
+   */
+  private final Histogram tokenTime = new Histogram();
+
+  /**
+   * The number of failed requests by cause.
+   */
+  private final ConcurrentMap<String, AtomicLong> errors =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  /**
+   * The number of completed requests, including failed ones.
+   */
+  private final AtomicLong completed = new AtomicLong();
+
+  /**
+   * The time from which on requests are recorded.
+   */
+  private volatile long measureStart;
+
+  /**
+   * The time at which the workers stop.
+   */
+  private volatile long stopTime;
+
+  /**
+   * The time at which the last worker stopped.
+   */
+  private volatile long measureEnd;
+
+  /**
+   * Initializes a new instance of the LoadGenerator class.
+   *
+   * @param address
+   *  The address of the auth-server.
+   * @param port
+   *  The port of the auth-server.
+   * @param prefix
+   *  The prefix of the names of the users.
+   * @param users
+   *  The number of users.
+   * @param entities
+   *  The number of entities per user.
+   * @param password
+   *  The password of the users.
+   * @throws IllegalArgumentException
+   *  The address parameter is null, or the prefix parameter is null, or the
+   *  users parameter is less than 1, or the entities parameter is less than
+   *  1, or the password parameter is null.
+   */
+  public LoadGenerator(InetAddress address, int port, String prefix, int users,
+    int entities, String password) {
+    if (address == null) {
+      throw new IllegalArgumentException("address");
+    }
+    if (prefix == null) {
+      throw new IllegalArgumentException("prefix");
+    }
+    if (users < 1) {
+      throw new IllegalArgumentException("users");
+    }
+    if (entities < 1) {
+      throw new IllegalArgumentException("entities");
+    }
+    if (password == null) {
+      throw new IllegalArgumentException("password");
+    }
+    this.address = address;
+    this.port = port;
+    this.prefix = prefix;
+    this.users = users;
+    this.entities = entities;
+    this.password = password;
+  }
+
+  /**
+   * Gets the name of the user with the specified index.
+   *
+   * @param prefix
+   *  The prefix of the names of the users.
+   * @param index
+   *  The index of the user.
+   * @return
+   *  The name of the user.
+   */
+  public static String getUsername(String prefix, int index) {
+    return prefix + index;
+  }
+
+  /**
+   * Gets the name of the entity with the specified index.
+   *
+   * @param index
+   *  The index of the entity.
+   * @return
+   *  The name of the entity.
+   */
+  public static String getEntityName(int index) {
+    return "e" + index;
+  }
+
+  /**
+   * Runs the workers and waits until they have stopped. Progress is written
+   * to the specified stream once a second.
+   *
+   * @param threads
+   *  The number of workers.
+   * @param rate
+   *  The total number of requests per second, or 0 to send requests as fast
+   *  as the workers can.
+   * @param tokenRatio
+   *  The fraction of requests that are auth-token requests; the remaining
+   *  ones are logins.
+   * @param warmupMillis
+   *  The time in milliseconds before requests are recorded.
+   * @param durationMillis
+   *  The time in milliseconds during which requests are recorded.
+   * @param out
+   *  The stream to write the progress to.
+   * @throws InterruptedException
+   *  The thread was interrupted while waiting for the workers.
+   * @throws IllegalArgumentException
+   *  The threads parameter is less than 1, or the rate parameter is negative,
+   *  or the tokenRatio parameter is not between 0 and 1, or the warmupMillis
+   *  parameter is negative, or the durationMillis parameter is less than 1,
+   *  or the out parameter is null.
+   */
+  public void run(int threads, double rate, final double tokenRatio, long warmupMillis,
+    long durationMillis, PrintStream out) throws InterruptedException {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads");
+    }
+    if (rate < 0) {
+      throw new IllegalArgumentException("rate");
+    }
+    if (tokenRatio < 0 || tokenRatio > 1) {
+      throw new IllegalArgumentException("tokenRatio");
+    }
+    if (warmupMillis < 0) {
+      throw new IllegalArgumentException("warmupMillis");
+    }
+    if (durationMillis < 1) {
+      throw new IllegalArgumentException("durationMillis");
+    }
+    if (out == null) {
+      throw new IllegalArgumentException("out");
+    }
+    long now = System.nanoTime();
+    measureStart = now + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+    stopTime = measureStart + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+    // Each worker sends every threads/rate seconds, shifted by its index so
+    // that the requests are spread evenly.
+    final long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(threads) / rate) : 0;
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      final long first = now + (interval * i) / threads;
+      final long seed = now + i;
+      workers[i] = new Thread("loadgen-" + i) {
+        @Override
+        public void run() {
+          work(first, interval, tokenRatio, new Random(seed));
+        }
+      };
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+    long last = 0;
+    long lastTime = now;
+    for (Thread t : workers) {
+      while (t.isAlive()) {
+        t.join(TimeUnit.SECONDS.toMillis(1));
+        long time = System.nanoTime();
+        if (time - lastTime >= TimeUnit.SECONDS.toNanos(1)) {
+          long c = completed.get();
+          out.println(String.format(Locale.ROOT, "%s %6.1fs %10.1f req/s %8d errors",
+              time - measureStart < 0 ? "warmup" : "run   ",
+              (time - measureStart) / 1e9, (c - last) * 1e9 / (time - lastTime),
+              getErrorCount()));
+          last = c;
+          lastTime = time;
+        }
+      }
+    }
+    measureEnd = System.nanoTime();
+  }
+
+  /**
+   * Sends requests until the stop time has been reached.
+   *
+   * @param first
+   *  The time at which the first request is due.
+   * @param interval
+   *  The time between two requests, or 0 to send them back to back.
+   * @param tokenRatio
+   *  The fraction of requests that are auth-token requests.
+   * @param random
+   *  The random numbers for picking users, entities and operations.
+   */
+  private void work(long first, long interval, double tokenRatio, Random random) {
+    long due = first;
+    while (true) {
+      long now = System.nanoTime();
+      if (interval > 0) {
+        long wait = due - now;
+        if (wait > 0) {
+          sleep(wait);
+        }
+      } else {
+        due = now;
+      }
+      if (due - stopTime >= 0) {
+        return;
+      }
+      boolean token = random.nextDouble() < tokenRatio;
+      String username = getUsername(prefix, random.nextInt(users));
+      try {
+        Authenticator auth = new Authenticator(address, port, username, password);
+        if (token) {
+          auth.getAuthToken(getEntityName(random.nextInt(entities)));
+        } else {
+          auth.listEntities();
+        }
+        if (due - measureStart >= 0) {
+          (token ? tokenTime : loginTime).recordSince(due);
+        }
+      } catch (Exception e) {
+        countError(due, e);
+      }
+      completed.incrementAndGet();
+      due += interval;
+    }
+  }
+
+  /**
+   * Sleeps for the specified time.
+   *
+   * @param nanos
+   *  The time to sleep, in nanoseconds.
+   */
+  private static void sleep(long nanos) {
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Counts a failed request.
+   *
+   * @param due
+   *  The time at which the request was due.
+   * @param e
+   *  The exception the request failed with.
+   */
+  private void countError(long due, Exception e) {
+    if (due - measureStart < 0) {
+      return;
+    }
+    String cause = e.getClass().getSimpleName();
+    if (e instanceof AuthException && e.getMessage() != null) {
+      Matcher m = STATUS.matcher(e.getMessage());
+      if (m.find()) {
+        cause = "HTTP " + m.group(1);
+      }
+    }
+    AtomicLong count = errors.get(cause);
+    if (count == null) {
+      errors.putIfAbsent(cause, new AtomicLong());
+      count = errors.get(cause);
+    }
+    count.incrementAndGet();
+  }
+
+  /**
+   * Gets the number of failed requests since the warm-up.
+   *
+   * @return
+   *  The number of failed requests.
+   */
+  public long getErrorCount() {
+    long n = 0;
+    for (AtomicLong count : errors.values()) {
+      n += count.get();
+    }
+    return n;
+  }
+
+  /**
+   * Gets the number of successful requests per second since the warm-up.
+   *
+   * @return
+   *  The throughput in requests per second.
+   */
+  public double getThroughput() {
+    long end = measureEnd != 0 ? measureEnd : System.nanoTime();
+    long elapsed = Math.min(end, stopTime) - measureStart;
+    return elapsed > 0 ? (loginTime.getCount() + tokenTime.getCount()) * 1e9 / elapsed : 0;
+  }
+
+  /**
+   * Writes the throughput, the latency percentiles and the errors to the
+   * specified stream.
+   *
+   * @param out
+   *  The stream to write the report to.
+   * @throws IllegalArgumentException
+   *  The out parameter is null.
+   */
+  public void report(PrintStream out) {
+    if (out == null) {
+      throw new IllegalArgumentException("out");
+    }
+    out.println();
+    out.println(String.format(Locale.ROOT, "Throughput: %.1f req/s", getThroughput()));
+    StringBuilder b = new StringBuilder(String.format(Locale.ROOT, "%-8s %10s", "", "count"));
+    for (String name : QUANTILE_NAMES) {
+      b.append(String.format(Locale.ROOT, " %9s", name));
+    }
+    b.append(String.format(Locale.ROOT, " %9s", "max(ms)"));
+    out.println(b);
+    printLatencies(out, "login", loginTime);
+    printLatencies(out, "token", tokenTime);
+    Map<String, AtomicLong> sorted = new TreeMap<String, AtomicLong>(errors);
+    for (Map.Entry<String, AtomicLong> e : sorted.entrySet()) {
+      out.println("Errors (" + e.getKey() + "): " + e.getValue().get());
+    }
+  }
+
+  /**
+   * Writes a line with the count and the latency percentiles of the
+   * specified histogram.
+   *
+   * @param out
+   *  The stream to write to.
+   * @param name
+   *  The name of the operation.
+   * @param h
+   *  The latencies of the operation.
+   */
+  private static void printLatencies(PrintStream out, String name, Histogram h) {
+    StringBuilder b = new StringBuilder(String.format(Locale.ROOT, "%-8s %10d", name,
+        h.getCount()));
+    for (double q : QUANTILES) {
+      b.append(String.format(Locale.ROOT, " %9.2f", h.getQuantile(q) / 1e6));
+    }
+    b.append(String.format(Locale.ROOT, " %9.2f", h.getMax() / 1e6));
+    out.println(b);
+  }
+}
@@ -0,0 +1,157 @@
+package org.timadorus.auth.loadgen;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.timadorus.auth.server.AuthServer;
+import org.timadorus.auth.server.Database;
+
+/**
+ * A tool for measuring the throughput and latency of an auth-server.
+ *
+ * With the -server option, an auth-server is started in the same process
+ * from the configuration file in the specified directory, usually set up
+ * with an embedded Derby database, and the synthetic users and entities are
+ * created in its database. Otherwise the users must already exist on the
+ * server at -host and -port, e.g. from an earlier run with -server against
+ * the same database.
+ *
+ * @author agent
+ */
+public final class Program {
+  /**
+   * The default service port of the auth-server.
+   */
+  private static final int DEFAULT_AUTH_SERVICE_PORT = 50001;
+
+  /**
+   * The number of users created per batch.
+   */
+  private static final int BATCH_SIZE = 1000;
+
+  /**
+   * The usage of the tool.
+   */
+  private static final String USAGE = "Usage: loadgen [-server <config-dir>] "
+      + "[-host <address>] [-port <port>]\n"
+      + "  [-users <n>] [-entities <n>] [-prefix <name>] [-password <password>]\n"
+      + "  [-threads <n>] [-rate <requests/s>] [-tokens <fraction>]\n"
+      + "  [-warmup <seconds>] [-duration <seconds>] [-min-throughput <requests/s>]";
+
+  /**
+   * Make CheckStyle happy.
+   */
+  private Program() {
+  }
+
+  /**
+   * The entry-point of the application.
+   *
+   * @param args
+   *  The command-line arguments.
+   * @throws Exception
+   *  An unexpected error occurred.
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, String> opts = new HashMap<String, String>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].startsWith("-") && i + 1 < args.length) {
+        opts.put(args[i], args[++i]);
+      } else {
+        System.err.println(USAGE);
+        System.exit(2);
+      }
+    }
+    String prefix = get(opts, "-prefix", "loadgen");
+    String password = get(opts, "-password", "loadgen");
+    int users = Integer.parseInt(get(opts, "-users", "1000"));
+    int entities = Integer.parseInt(get(opts, "-entities", "2"));
+    InetAddress address = InetAddress.getByName(get(opts, "-host", "127.0.0.1"));
+    int port = Integer.parseInt(get(opts, "-port", "" + DEFAULT_AUTH_SERVICE_PORT));
+    if (opts.containsKey("-server")) {
+      AuthServer server = org.timadorus.auth.server.Program.start(opts.get("-server"));
+      port = server.getPort();
+      provision(prefix, users, entities, password);
+    }
+    LoadGenerator generator = new LoadGenerator(address, port, prefix, users, entities,
+        password);
+    System.out.println("Sending requests to " + address.getHostAddress() + ":" + port
+        + "...");
+    generator.run(Integer.parseInt(get(opts, "-threads", "8")),
+        Double.parseDouble(get(opts, "-rate", "0")),
+        Double.parseDouble(get(opts, "-tokens", "0.5")),
+        Long.parseLong(get(opts, "-warmup", "10")) * 1000,
+        Long.parseLong(get(opts, "-duration", "30")) * 1000, System.out);
+    generator.report(System.out);
+    // An embedded server is shut down by its shutdown hook on exit.
+    double minThroughput = Double.parseDouble(get(opts, "-min-throughput", "0"));
+    if (generator.getThroughput() < minThroughput) {
+      System.out.println("Throughput is below the minimum of " + minThroughput + " req/s.");
+      System.exit(1);
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Creates the synthetic users and their entities, unless the last user
+   * already exists from an earlier run.
+   *
+   * @param prefix
+   *  The prefix of the names of the users.
+   * @param users
+   *  The number of users.
+   * @param entities
+   *  The number of entities per user.
+   * @param password
+   *  The password of the users.
+   * @throws Exception
+   *  The users could not be created.
+   */
+  private static void provision(String prefix, int users, int entities, String password)
+      throws Exception {
+    if (Database.userExists(LoadGenerator.getUsername(prefix, users - 1))) {
+      System.out.println("Using the existing " + users + " users.");
+      return;
+    }
+    System.out.println("Creating " + users + " users with " + entities
+        + " entities each...");
+    long start = System.currentTimeMillis();
+    for (int first = 0; first < users; first += BATCH_SIZE) {
+      int last = Math.min(users, first + BATCH_SIZE);
+      Map<String, String> batch = new LinkedHashMap<String, String>();
+      for (int i = first; i < last; i++) {
+        String username = LoadGenerator.getUsername(prefix, i);
+        if (!Database.userExists(username)) {
+          batch.put(username, password);
+        }
+      }
+      Database.createUsers(batch, false, 0);
+      for (String username : batch.keySet()) {
+        for (int e = 0; e < entities; e++) {
+          Database.createEntity(username, LoadGenerator.getEntityName(e), 0);
+        }
+      }
+    }
+    System.out.println("Created the users in "
+        + (System.currentTimeMillis() - start) + " ms.");
+  }
+
+  /**
+   * Gets the value of the specified option.
+   *
+   * @param opts
+   *  The options passed on the command-line.
+   * @param name
+   *  The name of the option.
+   * @param defaultValue
+   *  The value to return if the option was not passed.
+   * @return
+   *  The value of the option, or the default value.
+   */
+  private static String get(Map<String, String> opts, String name, String defaultValue) {
+    String value = opts.get(name);
+    return value != null ? value : defaultValue;
+  }
+}
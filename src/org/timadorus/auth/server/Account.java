@@ -0,0 +1,86 @@
+package org.timadorus.auth.server;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Represents a user of the auth-database along with the user's entities and
+ * their attributes, as they are exported and imported in bulk.
+ *
+ * @author agent
+ */
+public class Account {
+  /**
+   * The user.
+   */
+  private final User user;
+  /**
+   * The entities of the user.
+   */
+  private final List<Entity> entities;
+  /**
+   * The attributes of the entities, keyed by the name of the entity.
+   */
+  private final Map<String, Map<String, String>> attributes;
+
+  /**
+   * Initializes a new instance of the Account class.
+   *
+   * @param user
+   *  The user.
+   * @param entities
+   *  The entities of the user.
+   * @param attributes
+   *  The attributes of the entities, keyed by the name of the entity.
+   *  Entities without attributes may be missing from the map.
+   * @throws IllegalArgumentException
+   *  The user parameter is null, the entities parameter is null, or the
+   *  attributes parameter is null.
+   */
+  public Account(User user, List<Entity> entities,
+      Map<String, Map<String, String>> attributes) {
+    if (user == null) {
+      throw new IllegalArgumentException("user");
+    }
+    if (entities == null) {
+      throw new IllegalArgumentException("entities");
+    }
+    if (attributes == null) {
+      throw new IllegalArgumentException("attributes");
+    }
+    this.user = user;
+    this.entities = entities;
+    this.attributes = attributes;
+  }
+
+  /**
+   * Gets the user.
+   * @return
+   *  The user.
+   */
+  public User getUser() {
+    return user;
+  }
+
+  /**
+   * Gets the entities of the user.
+   * @return
+   *  The entities of the user.
+   */
+  public List<Entity> getEntities() {
+    return entities;
+  }
+
+  /**
+   * Gets the attributes of the specified entity of the user.
+   * @param entity
+   *  The name of the entity.
+   * @return
+   *  The attributes of the entity, which may be empty.
+   */
+  public Map<String, String> getAttributes(String entity) {
+    Map<String, String> attr = attributes.get(entity);
+    return attr != null ? attr : Collections.<String, String>emptyMap();
+  }
+}
@@ -0,0 +1,649 @@
+package org.timadorus.auth.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Exports the accounts of the auth-database, i.e. the users with their
+ * entities and attributes, to a compact binary archive and imports them
+ * from it, for backups and for moving accounts between environments.
+ *
+ * Like the files of the StoreJournal, an archive consists of frames that
+ * start with the length and the CRC-32 checksum of their record. A record
+ * starts with its type: a header with the format version, one record per
+ * account holding the user's password-hash, entities and attributes, and an
+ * end record with the number of accounts written since the header. The
+ * accounts are read from the store and imported into it page by page, and
+ * the frames pass through buffered channels, so that archives of any size
+ * are moved without holding them in memory.
+ *
+ * An interrupted export to a file is resumed by discarding the incomplete
+ * frame at its end and appending a new header followed by the accounts
+ * after the last complete one. An interrupted import is resumed by
+ * repeating it, as accounts whose user already exists are skipped.
+ *
+ * @author agent
+ */
+public final class AccountArchive {
+  /**
+   * The default number of accounts read or imported at once.
+   */
+  public static final int DEFAULT_PAGE_SIZE = 1000;
+
+  /**
+   * Logging facility.
+   */
+  private static final Logger LOG = Logger.getLogger(AccountArchive.class.getName());
+
+  /**
+   * The magic number identifying the header of an archive.
+   */
+  private static final int MAGIC = 0x54414141;
+
+  /**
+   * The version of the format written by this class.
+   */
+  private static final int VERSION = 1;
+
+  /**
+   * The type of the header record.
+   */
+  private static final byte TYPE_HEADER = 0;
+
+  /**
+   * The type of an account record.
+   */
+  private static final byte TYPE_ACCOUNT = 1;
+
+  /**
+   * The type of the end record.
+   */
+  private static final byte TYPE_END = 2;
+
+  /**
+   * The size of the frame header, i.e. the length and the checksum.
+   */
+  private static final int HEADER_SIZE = 8;
+
+  /**
+   * The maximum size of a single record.
+   */
+  private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * The size of the buffers between the frames and the channels.
+   */
+  private static final int BUFFER_SIZE = 65536;
+
+  /**
+   * Make CheckStyle happy.
+   */
+  private AccountArchive() {
+  }
+
+  /**
+   * Writes the accounts to the specified file. If the file holds an
+   * incomplete archive, e.g. because a previous export was interrupted, the
+   * export resumes after the last complete account of the file.
+   *
+   * @param file
+   *  The file to write to.
+   * @param pageSize
+   *  The number of accounts to read at once.
+   * @return
+   *  The number of accounts written, which is 0 if the file already holds a
+   *  complete archive.
+   * @throws IOException
+   *  The file could not be written, or holds something other than an
+   *  archive.
+   * @throws SQLException
+   *  The accounts could not be read.
+   * @throws IllegalArgumentException
+   *  The file parameter is null, or the pageSize parameter is not positive.
+   */
+  public static long export(File file, int pageSize) throws IOException, SQLException {
+    if (file == null) {
+      throw new IllegalArgumentException("file");
+    }
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize");
+    }
+    FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+    try {
+      FrameReader in = new FrameReader(channel);
+      String last = null;
+      boolean first = true;
+      boolean complete = false;
+      byte[] record;
+      while ((record = in.next()) != null) {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = data.readByte();
+        if (first) {
+          readHeader(data, type);
+          first = false;
+        } else if (type == TYPE_ACCOUNT) {
+          last = data.readUTF();
+        }
+        complete = type == TYPE_END;
+      }
+      if (in.getPosition() == 0 && channel.size() > 0) {
+        throw new IOException("'" + file + "' is not an account archive.");
+      }
+      if (complete) {
+        LOG.info("'" + file + "' already holds a complete archive.");
+        return 0;
+      }
+      if (channel.size() > in.getPosition()) {
+        LOG.warning("Discarding " + (channel.size() - in.getPosition()) + " bytes of an "
+            + "incomplete record at the end of '" + file + "'.");
+        channel.truncate(in.getPosition());
+      }
+      channel.position(in.getPosition());
+      if (last != null) {
+        LOG.info("Resuming the export to '" + file + "' after user '" + last + "'.");
+      }
+      long count = export(channel, last, pageSize);
+      channel.force(false);
+      return count;
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Writes the accounts to the specified channel as a complete archive, or
+   * as the continuation of an archive if a name to start after is given.
+   *
+   * @param channel
+   *  The channel to write to. The channel is not closed.
+   * @param after
+   *  The name of the user after which to start, or null to write all
+   *  accounts.
+   * @param pageSize
+   *  The number of accounts to read at once.
+   * @return
+   *  The number of accounts written.
+   * @throws IOException
+   *  The archive could not be written.
+   * @throws SQLException
+   *  The accounts could not be read.
+   * @throws IllegalArgumentException
+   *  The channel parameter is null, or the pageSize parameter is not
+   *  positive.
+   */
+  public static long export(WritableByteChannel channel, String after, int pageSize)
+      throws IOException, SQLException {
+    if (channel == null) {
+      throw new IllegalArgumentException("channel");
+    }
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize");
+    }
+    FrameWriter out = new FrameWriter(channel);
+    RecordBuilder r = new RecordBuilder();
+    DataOutputStream header = r.begin(TYPE_HEADER);
+    header.writeInt(MAGIC);
+    header.writeInt(VERSION);
+    out.write(r.toByteArray());
+    long count = 0;
+    String last = after;
+    while (true) {
+      List<Account> page = Database.listAccounts(last, pageSize);
+      for (Account account : page) {
+        writeAccount(r.begin(TYPE_ACCOUNT), account);
+        out.write(r.toByteArray());
+      }
+      count += page.size();
+      if (page.size() < pageSize) {
+        break;
+      }
+      last = page.get(page.size() - 1).getUser().getName();
+    }
+    r.begin(TYPE_END).writeLong(count);
+    out.write(r.toByteArray());
+    out.flush();
+    return count;
+  }
+
+  /**
+   * Imports the accounts of the specified archive file.
+   *
+   * @param file
+   *  The file to read.
+   * @param pageSize
+   *  The number of accounts to import at once.
+   * @return
+   *  The number of accounts that were created.
+   * @throws IOException
+   *  The file could not be read, or is corrupt or incomplete. The accounts
+   *  read before the error was detected have been imported.
+   * @throws SQLException
+   *  The accounts could not be imported.
+   * @throws IllegalArgumentException
+   *  The file parameter is null, or the pageSize parameter is not positive.
+   */
+  public static long importArchive(File file, int pageSize) throws IOException, SQLException {
+    if (file == null) {
+      throw new IllegalArgumentException("file");
+    }
+    FileInputStream fis = new FileInputStream(file);
+    try {
+      return importArchive(fis.getChannel(), pageSize);
+    } finally {
+      fis.close();
+    }
+  }
+
+  /**
+   * Imports the accounts of the archive read from the specified channel.
+   * Accounts whose user already exists are skipped.
+   *
+   * @param channel
+   *  The channel to read from. The channel is not closed.
+   * @param pageSize
+   *  The number of accounts to import at once.
+   * @return
+   *  The number of accounts that were created.
+   * @throws IOException
+   *  The archive could not be read, or is corrupt or incomplete. The
+   *  accounts read before the error was detected have been imported.
+   * @throws SQLException
+   *  The accounts could not be imported.
+   * @throws IllegalArgumentException
+   *  The channel parameter is null, or the pageSize parameter is not
+   *  positive.
+   */
+  public static long importArchive(ReadableByteChannel channel, int pageSize)
+      throws IOException, SQLException {
+    if (channel == null) {
+      throw new IllegalArgumentException("channel");
+    }
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize");
+    }
+    FrameReader in = new FrameReader(channel);
+    List<Account> page = new ArrayList<Account>(pageSize);
+    long read = 0;
+    long imported = 0;
+    // The number of accounts since the last header, or -1 before the first.
+    long segment = -1;
+    boolean complete = false;
+    byte[] record;
+    while ((record = in.next()) != null) {
+      DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+      byte type = data.readByte();
+      if (segment < 0 || type == TYPE_HEADER) {
+        readHeader(data, type);
+        segment = 0;
+      } else if (type == TYPE_ACCOUNT) {
+        page.add(readAccount(data));
+        segment++;
+        read++;
+        if (page.size() == pageSize) {
+          imported += Database.importAccounts(page).size();
+          page.clear();
+        }
+      } else if (type == TYPE_END) {
+        if (data.readLong() != segment) {
+          throw new IOException("The archive is missing accounts.");
+        }
+      } else {
+        throw new IOException("Unknown record type " + type + ".");
+      }
+      complete = type == TYPE_END;
+    }
+    if (!page.isEmpty()) {
+      imported += Database.importAccounts(page).size();
+    }
+    LOG.info("Imported " + imported + " of " + read + " accounts, skipping "
+        + (read - imported) + " existing users.");
+    if (in.isCorrupt()) {
+      throw new IOException("The archive is corrupt at offset " + in.getPosition() + ".");
+    }
+    if (!complete) {
+      throw new IOException("The archive is incomplete.");
+    }
+    return imported;
+  }
+
+  /**
+   * Reads the remainder of a header record and checks the format.
+   *
+   * @param data
+   *  The stream of the record, positioned after the type.
+   * @param type
+   *  The type of the record.
+   * @throws IOException
+   *  The record is not a header, or of an unsupported version.
+   */
+  private static void readHeader(DataInputStream data, byte type) throws IOException {
+    if (type != TYPE_HEADER || data.readInt() != MAGIC) {
+      throw new IOException("The data is not an account archive.");
+    }
+    int version = data.readInt();
+    if (version > VERSION) {
+      throw new IOException("Unsupported archive version " + version + ".");
+    }
+  }
+
+  /**
+   * Writes the specified account to the specified stream.
+   *
+   * @param out
+   *  The stream to write to.
+   * @param account
+   *  The account to write.
+   * @throws IOException
+   *  The account could not be written.
+   */
+  private static void writeAccount(DataOutputStream out, Account account) throws IOException {
+    User user = account.getUser();
+    out.writeUTF(user.getName());
+    out.writeUTF(user.getHash());
+    out.writeBoolean(user.isAdmin());
+    out.writeInt(user.getFlags());
+    out.writeInt(account.getEntities().size());
+    for (Entity e : account.getEntities()) {
+      out.writeUTF(e.getName());
+      out.writeInt(e.getFlags());
+      Map<String, String> attr = account.getAttributes(e.getName());
+      out.writeInt(attr.size());
+      for (Map.Entry<String, String> a : attr.entrySet()) {
+        out.writeUTF(a.getKey());
+        out.writeUTF(a.getValue());
+      }
+    }
+  }
+
+  /**
+   * Reads an account from the specified stream.
+   *
+   * @param in
+   *  The stream to read from.
+   * @return
+   *  The account.
+   * @throws IOException
+   *  The account could not be read.
+   */
+  private static Account readAccount(DataInputStream in) throws IOException {
+    User user = new User(in.readUTF(), in.readUTF(), in.readBoolean(), in.readInt());
+    int count = in.readInt();
+    List<Entity> entities = new ArrayList<Entity>(count);
+    Map<String, Map<String, String>> attributes = new HashMap<String, Map<String, String>>();
+    for (int i = 0; i < count; i++) {
+      Entity e = new Entity(in.readUTF(), in.readInt());
+      entities.add(e);
+      int size = in.readInt();
+      if (size > 0) {
+        Map<String, String> attr = new HashMap<String, String>();
+        for (int j = 0; j < size; j++) {
+          attr.put(in.readUTF(), in.readUTF());
+        }
+        attributes.put(e.getName(), attr);
+      }
+    }
+    return new Account(user, entities, attributes);
+  }
+
+  /**
+   * Builds the records, reusing its buffer.
+   */
+  private static final class RecordBuilder {
+    /**
+     * The buffer the record is written to.
+     */
+    private final ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+
+    /**
+     * The stream the record is written to.
+     */
+    private final DataOutputStream out = new DataOutputStream(buf);
+
+    /**
+     * Starts a new record of the specified type.
+     *
+     * @param type
+     *  The record type.
+     * @return
+     *  The stream to write the remainder of the record to.
+     * @throws IOException
+     *  The type could not be written.
+     */
+    private DataOutputStream begin(byte type) throws IOException {
+      buf.reset();
+      out.writeByte(type);
+      return out;
+    }
+
+    /**
+     * Returns the bytes of the record.
+     *
+     * @return
+     *  The bytes of the record.
+     */
+    private byte[] toByteArray() {
+      return buf.toByteArray();
+    }
+  }
+
+  /**
+   * Writes frames to a channel through a buffer.
+   */
+  private static final class FrameWriter {
+    /**
+     * The channel to write to.
+     */
+    private final WritableByteChannel channel;
+
+    /**
+     * The buffer holding the frames not yet written to the channel.
+     */
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * Initializes a new instance of the FrameWriter class.
+     *
+     * @param channel
+     *  The channel to write to.
+     */
+    private FrameWriter(WritableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Writes the specified record as a frame.
+     *
+     * @param record
+     *  The record to write.
+     * @throws IOException
+     *  The record is too large, or could not be written.
+     */
+    private void write(byte[] record) throws IOException {
+      if (record.length > MAX_RECORD_SIZE) {
+        throw new IOException("The record exceeds the maximum size.");
+      }
+      CRC32 crc = new CRC32();
+      crc.update(record);
+      if (buf.remaining() < HEADER_SIZE + record.length) {
+        flush();
+      }
+      if (buf.remaining() < HEADER_SIZE + record.length) {
+        // Larger than the buffer, so it is written directly.
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + record.length);
+        frame.putInt(record.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(record);
+        frame.flip();
+        drain(frame);
+        return;
+      }
+      buf.putInt(record.length);
+      buf.putInt((int) crc.getValue());
+      buf.put(record);
+    }
+
+    /**
+     * Writes the buffered frames to the channel.
+     *
+     * @throws IOException
+     *  The frames could not be written.
+     */
+    private void flush() throws IOException {
+      buf.flip();
+      drain(buf);
+      buf.clear();
+    }
+
+    /**
+     * Writes the remaining bytes of the specified buffer to the channel.
+     *
+     * @param b
+     *  The buffer to write.
+     * @throws IOException
+     *  The bytes could not be written.
+     */
+    private void drain(ByteBuffer b) throws IOException {
+      while (b.hasRemaining()) {
+        channel.write(b);
+      }
+    }
+  }
+
+  /**
+   * Reads frames from a channel through a buffer.
+   */
+  private static final class FrameReader {
+    /**
+     * The channel to read from.
+     */
+    private final ReadableByteChannel channel;
+
+    /**
+     * The buffer holding the bytes read from the channel but not consumed.
+     */
+    private ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * The number of bytes of the complete frames read.
+     */
+    private long position;
+
+    /**
+     * Determines whether reading stopped at an incomplete or corrupt frame.
+     */
+    private boolean corrupt;
+
+    /**
+     * Initializes a new instance of the FrameReader class.
+     *
+     * @param channel
+     *  The channel to read from.
+     */
+    private FrameReader(ReadableByteChannel channel) {
+      this.channel = channel;
+      buf.flip();
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @return
+     *  The record of the frame, or null at the end of the channel or at the
+     *  first incomplete or corrupt frame.
+     * @throws IOException
+     *  The channel could not be read.
+     */
+    private byte[] next() throws IOException {
+      if (!fill(HEADER_SIZE)) {
+        corrupt = buf.hasRemaining();
+        return null;
+      }
+      int length = buf.getInt(buf.position());
+      int checksum = buf.getInt(buf.position() + 4);
+      if (length < 0 || length > MAX_RECORD_SIZE || !fill(HEADER_SIZE + length)) {
+        corrupt = true;
+        return null;
+      }
+      buf.position(buf.position() + HEADER_SIZE);
+      byte[] record = new byte[length];
+      buf.get(record);
+      CRC32 crc = new CRC32();
+      crc.update(record);
+      if ((int) crc.getValue() != checksum) {
+        corrupt = true;
+        return null;
+      }
+      position += HEADER_SIZE + length;
+      return record;
+    }
+
+    /**
+     * Gets the number of bytes of the complete frames read.
+     *
+     * @return
+     *  The number of bytes of the complete frames read.
+     */
+    private long getPosition() {
+      return position;
+    }
+
+    /**
+     * Determines whether reading stopped at an incomplete or corrupt frame.
+     *
+     * @return
+     *  true if the last frame was incomplete or corrupt; Otherwise false.
+     */
+    private boolean isCorrupt() {
+      return corrupt;
+    }
+
+    /**
+     * Reads from the channel until the buffer holds the specified number of
+     * bytes.
+     *
+     * @param count
+     *  The number of bytes required.
+     * @return
+     *  true if the bytes are available; false if the channel ended before.
+     * @throws IOException
+     *  The channel could not be read.
+     */
+    private boolean fill(int count) throws IOException {
+      if (buf.remaining() >= count) {
+        return true;
+      }
+      if (count > buf.capacity()) {
+        ByteBuffer larger = ByteBuffer.allocate(count);
+        larger.put(buf);
+        buf = larger;
+      } else {
+        buf.compact();
+      }
+      while (buf.position() < count) {
+        if (channel.read(buf) < 0) {
+          buf.flip();
+          return false;
+        }
+      }
+      buf.flip();
+      return true;
+    }
+  }
+}
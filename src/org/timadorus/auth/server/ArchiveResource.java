@@ -0,0 +1,133 @@
+package org.timadorus.auth.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.sql.SQLException;
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.google.gson.Gson;
+
+/**
+ * The resource class which handles the '/archive' HTTP request and streams
+ * the accounts of the auth-database to and from administrators in the
+ * format of the AccountArchive class.
+ *
+ * @author agent
+ */
+@Path("/archive")
+public class ArchiveResource {
+  /**
+   * The security context of the HTTP request, as set up by the SecurityFilter.
+   */
+  @Context SecurityContext security;
+
+  /**
+   * The HTTP request, used to record the remote address in the audit log.
+   */
+  @Context HttpServletRequest httpServletRequest;
+
+  /**
+   * The method that is executed when the /archive resource is being
+   * requested via the HTTP GET method.
+   *
+   * @param after
+   *  An optional parameter denoting the name of the user after which to
+   *  start, in order to resume an interrupted download. The response then
+   *  continues the archive and can be appended to the complete frames
+   *  received so far.
+   * @return
+   *  The archive, written as it is read from the database.
+   * @throws SecurityException
+   *  The requestor is not an administrator.
+   */
+  @GET
+  @Produces("application/octet-stream")
+  public StreamingOutput exportAccounts(@QueryParam("after") final String after) {
+    assertAdmin();
+    audit(AuditEvent.ACCOUNTS_EXPORTED);
+    return new StreamingOutput() {
+      @Override
+      public void write(OutputStream output) throws IOException {
+        try {
+          AccountArchive.export(Channels.newChannel(output), after,
+              AccountArchive.DEFAULT_PAGE_SIZE);
+        } catch (SQLException e) {
+          // The response is cut short, so the archive lacks its end record.
+          throw new IOException("The accounts could not be read.", e);
+        }
+      }
+    };
+  }
+
+  /**
+   * The method that is executed when the /archive resource is being
+   * requested via the HTTP POST method. Users that already exist are
+   * skipped, so that an interrupted upload can simply be repeated.
+   *
+   * @param input
+   *  The archive.
+   * @return
+   *  A JSON-object containing the number of accounts that were created.
+   * @throws SecurityException
+   *  The requestor is not an administrator.
+   * @throws IllegalStateException
+   *  The archive is corrupt or incomplete.
+   * @throws SQLException
+   *  The accounts could not be imported.
+   */
+  @POST
+  @Consumes("application/octet-stream")
+  @Produces("application/json")
+  public String importAccounts(InputStream input) throws SQLException {
+    assertAdmin();
+    long count;
+    try {
+      count = AccountArchive.importArchive(Channels.newChannel(input),
+          AccountArchive.DEFAULT_PAGE_SIZE);
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    } finally {
+      audit(AuditEvent.ACCOUNTS_IMPORTED);
+    }
+    return new Gson().toJson(Collections.singletonMap("imported", count));
+  }
+
+  /**
+   * Asserts that the requestor is an administrator.
+   *
+   * @throws SecurityException
+   *  The requestor is not an administrator.
+   */
+  private void assertAdmin() {
+    if (!security.isUserInRole(AuthPrincipal.ROLE_ADMIN)) {
+      throw new SecurityException("Forbidden request");
+    }
+  }
+
+  /**
+   * Records the specified event in the audit log, with the requestor as the
+   * actor.
+   *
+   * @param event
+   *  The event to record.
+   */
+  private void audit(AuditEvent event) {
+    if (Audit.isEnabled()) {
+      Audit.log(event, security.getUserPrincipal().getName(), null,
+          httpServletRequest.getRemoteAddr());
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package org.timadorus.auth.server;
+
+/**
+ * Provides access to the audit log of the server. Events are discarded until
+ * an AuditLog has been set up with init.
+ *
+ * @author agent
+ */
+public final class Audit {
+  /**
+   * The audit log, or null if auditing is disabled.
+   */
+  private static volatile AuditLog log;
+
+  /**
+   * Make CheckStyle happy.
+   */
+  private Audit() {
+    // Make CheckStyle happy.
+  }
+
+  /**
+   * Sets the audit log events are written to.
+   *
+   * @param auditLog
+   *  The audit log, or null to disable auditing.
+   */
+  public static void init(AuditLog auditLog) {
+    log = auditLog;
+  }
+
+  /**
+   * Determines whether events are written to an audit log.
+   *
+   * @return
+   *  true if auditing is enabled; Otherwise false.
+   */
+  public static boolean isEnabled() {
+    return log != null;
+  }
+
+  /**
+   * Records the specified event.
+   *
+   * @param event
+   *  The event.
+   * @param actor
+   *  The user who caused the event, or null.
+   * @param subject
+   *  The user or entity affected by the event, or null. Entities are denoted
+   *  as 'user/entity'.
+   * @param address
+   *  The remote IP address of the request that caused the event, or null.
+   */
+  public static void log(AuditEvent event, String actor, String subject, String address) {
+    AuditLog l = log;
+    if (l != null) {
+      l.append(event, actor, subject, address);
+    }
+  }
+
+  /**
+   * Gets the number of events the audit log has dropped.
+   *
+   * @return
+   *  The number of dropped events, or 0 if auditing is disabled.
+   */
+  public static long getDropped() {
+    AuditLog l = log;
+    return l != null ? l.getDropped() : 0;
+  }
+
+  /**
+   * Writes all queued events to disk and closes the audit log.
+   */
+  public static void close() {
+    AuditLog l = log;
+    log = null;
+    if (l != null) {
+      l.close();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package org.timadorus.auth.server;
+
+/**
+ * The types of events recorded in the audit log.
+ *
+ * The codes are stored in the audit log files and must therefore never be
+ * changed or reused.
+ *
+ * @author agent
+ */
+public enum AuditEvent {
+  /**
+   * A request was authenticated.
+   */
+  LOGIN_SUCCESS(1),
+
+  /**
+   * A request carried invalid or no credentials.
+   */
+  LOGIN_FAILURE(2),
+
+  /**
+   * A request was rejected because of too many attempts.
+   */
+  LOGIN_THROTTLED(3),
+
+  /**
+   * An auth-token for an entity was issued.
+   */
+  TOKEN_ISSUED(4),
+
+  /**
+   * A user was created.
+   */
+  USER_CREATED(5),
+
+  /**
+   * A user was updated.
+   */
+  USER_UPDATED(6),
+
+  /**
+   * A user was deleted.
+   */
+  USER_DELETED(7),
+
+  /**
+   * An entity was created.
+   */
+  ENTITY_CREATED(8),
+
+  /**
+   * An entity was updated.
+   */
+  ENTITY_UPDATED(9),
+
+  /**
+   * An entity was deleted.
+   */
+  ENTITY_DELETED(10),
+
+  /**
+   * All users were deleted.
+   */
+  USERS_TRUNCATED(11),
+
+  /**
+   * The accounts were exported.
+   */
+  ACCOUNTS_EXPORTED(12),
+
+  /**
+   * Accounts were imported.
+   */
+  ACCOUNTS_IMPORTED(13);
+
+  /**
+   * The code of the event as stored in the audit log.
+   */
+  private final int code;
+
+  /**
+   * Initializes a new instance of the AuditEvent enumeration.
+   *
+   * @param code
+   *  The code of the event as stored in the audit log.
+   */
+  private AuditEvent(int code) {
+    this.code = code;
+  }
+
+  /**
+   * Gets the code of the event as stored in the audit log.
+   *
+   * @return
+   *  The code of the event.
+   */
+  public int getCode() {
+    return code;
+  }
+
+  /**
+   * Returns the event with the specified code.
+   *
+   * @param code
+   *  The code of the event.
+   * @return
+   *  The event with the specified code, or null if the code is unknown.
+   */
+  public static AuditEvent fromCode(int code) {
+    for (AuditEvent e : values()) {
+      if (e.code == code) {
+        return e;
+      }
+    }
+    return null;
+  }
+}
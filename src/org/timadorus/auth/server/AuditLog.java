@@ -0,0 +1,462 @@
+package org.timadorus.auth.server;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only log of authentication events and administrative changes.
+ *
+ * Events are encoded as fixed-width AuditRecords into a ring buffer by the
+ * request threads, without taking a lock, and copied into memory-mapped
+ * segment files by a background thread. A segment holds a fixed number of
+ * records; when it is full, the next segment is created and the oldest
+ * segments beyond the configured maximum are deleted.
+ *
+ * If the ring buffer is full because the disk can't keep up, events are
+ * dropped and counted rather than blocking the request threads.
+ *
+ * @author agent
+ */
+public class AuditLog {
+  /**
+   * Logging facility.
+   */
+  private static final Logger LOG = Logger.getLogger(AuditLog.class.getName());
+
+  /**
+   * The prefix of the segment file names.
+   */
+  private static final String PREFIX = "audit-";
+
+  /**
+   * The suffix of the segment file names.
+   */
+  private static final String SUFFIX = ".log";
+
+  /**
+   * The interval at which written records are forced to disk.
+   */
+  private static final long FORCE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * The time the writer sleeps when there are no records to write.
+   */
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * The directory holding the segment files.
+   */
+  private final File dir;
+
+  /**
+   * The number of records of a new segment.
+   */
+  private final int segmentRecords;
+
+  /**
+   * The maximum number of segments to keep.
+   */
+  private final int maxSegments;
+
+  /**
+   * The encoded records of the ring buffer.
+   */
+  private final byte[] ring;
+
+  /**
+   * The mask to map positions to slots of the ring buffer.
+   */
+  private final int mask;
+
+  /**
+   * The position of each slot plus one once its record has been published.
+   */
+  private final AtomicLongArray published;
+
+  /**
+   * The next position to be claimed by a producer.
+   */
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * The next position to be written by the writer thread.
+   */
+  private volatile long head;
+
+  /**
+   * The sequence number of the record at position 0.
+   */
+  private final long baseSequence;
+
+  /**
+   * The number of events that have been dropped.
+   */
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Set when the log is closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * The thread copying records into the segment files.
+   */
+  private final Thread writer;
+
+  /**
+   * The number of the current segment.
+   */
+  private int segment;
+
+  /**
+   * The channel of the current segment.
+   */
+  private FileChannel channel;
+
+  /**
+   * The mapped contents of the current segment.
+   */
+  private MappedByteBuffer map;
+
+  /**
+   * The number of records the current segment can hold.
+   */
+  private int capacity;
+
+  /**
+   * The index of the next record to write in the current segment.
+   */
+  private int position;
+
+  /**
+   * Initializes a new instance of the AuditLog class. Writing continues
+   * after the last record of the newest existing segment.
+   *
+   * @param dir
+   *  The directory holding the segment files. The directory is created if it
+   *  does not exist.
+   * @param segmentRecords
+   *  The number of records of a segment.
+   * @param maxSegments
+   *  The maximum number of segments to keep.
+   * @param bufferRecords
+   *  The number of records the ring buffer can hold, a power of two.
+   * @throws IOException
+   *  The directory or the segment could not be opened.
+   * @throws IllegalArgumentException
+   *  The dir parameter is null, or the segmentRecords or maxSegments
+   *  parameter is not positive, or the bufferRecords parameter is not a
+   *  power of two.
+   */
+  public AuditLog(File dir, int segmentRecords, int maxSegments, int bufferRecords)
+      throws IOException {
+    if (dir == null) {
+      throw new IllegalArgumentException("dir");
+    }
+    if (segmentRecords <= 0 || segmentRecords > Integer.MAX_VALUE / AuditRecord.SIZE) {
+      throw new IllegalArgumentException("segmentRecords");
+    }
+    if (maxSegments <= 0) {
+      throw new IllegalArgumentException("maxSegments");
+    }
+    if (bufferRecords <= 0 || Integer.bitCount(bufferRecords) != 1
+        || bufferRecords > Integer.MAX_VALUE / AuditRecord.SIZE) {
+      throw new IllegalArgumentException("bufferRecords");
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create directory '" + dir + "'.");
+    }
+    this.dir = dir;
+    this.segmentRecords = segmentRecords;
+    this.maxSegments = maxSegments;
+    ring = new byte[bufferRecords * AuditRecord.SIZE];
+    mask = bufferRecords - 1;
+    published = new AtomicLongArray(bufferRecords);
+    baseSequence = resume();
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        write();
+      }
+    }, "audit-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Appends an event to the log. The event is written asynchronously.
+   *
+   * @param event
+   *  The event.
+   * @param actor
+   *  The user who caused the event, or null.
+   * @param subject
+   *  The user or entity affected by the event, or null.
+   * @param address
+   *  The textual remote IP address of the request that caused the event, or
+   *  null.
+   * @return
+   *  true if the event was queued; false if it was dropped because the ring
+   *  buffer is full or the log is closed.
+   * @throws IllegalArgumentException
+   *  The event parameter is null.
+   */
+  public boolean append(AuditEvent event, String actor, String subject, String address) {
+    if (event == null) {
+      throw new IllegalArgumentException("event");
+    }
+    if (closed) {
+      dropped.incrementAndGet();
+      return false;
+    }
+    byte[] raw = AuditRecord.parseAddress(address);
+    long time = System.currentTimeMillis();
+    long t;
+    do {
+      t = tail.get();
+      if (t - head > mask) {
+        dropped.incrementAndGet();
+        return false;
+      }
+    } while (!tail.compareAndSet(t, t + 1));
+    int slot = (int) (t & mask);
+    int off = slot * AuditRecord.SIZE;
+    Arrays.fill(ring, off, off + AuditRecord.SIZE, (byte) 0);
+    AuditRecord.encode(ring, off, time, baseSequence + t, event, actor, subject, raw);
+    // Hand the slot over to the writer thread.
+    published.set(slot, t + 1);
+    return true;
+  }
+
+  /**
+   * Gets the number of events that have been dropped.
+   *
+   * @return
+   *  The number of dropped events.
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Writes all queued events to disk and closes the log.
+   */
+  public void close() {
+    closed = true;
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns the segment files of the specified directory.
+   *
+   * @param dir
+   *  The directory holding the segment files.
+   * @return
+   *  The segment files, oldest first.
+   */
+  static File[] listSegments(File dir) {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File d, String name) {
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX)
+            && name.length() == PREFIX.length() + 8 + SUFFIX.length();
+      }
+    });
+    if (files == null) {
+      return new File[0];
+    }
+    // The numbers are zero-padded, so the names sort in segment order.
+    Arrays.sort(files);
+    return files;
+  }
+
+  /**
+   * Opens the newest segment and positions it after its last record.
+   *
+   * @return
+   *  The sequence number of the next record.
+   * @throws IOException
+   *  The segment could not be opened.
+   */
+  private long resume() throws IOException {
+    File[] files = listSegments(dir);
+    if (files.length == 0) {
+      open(0);
+      return 1;
+    }
+    File last = files[files.length - 1];
+    open(Integer.parseInt(last.getName().substring(PREFIX.length(),
+        PREFIX.length() + 8)));
+    long sequence = 0;
+    map.position(0);
+    while (position < capacity) {
+      AuditRecord r = AuditRecord.decode(map);
+      if (r == null) {
+        break;
+      }
+      sequence = r.getSequence();
+      position++;
+    }
+    if (position == 0 && files.length > 1) {
+      // The newest segment is empty, continue the sequence of the one before.
+      sequence = lastSequence(files[files.length - 2]);
+    }
+    return sequence + 1;
+  }
+
+  /**
+   * Returns the sequence number of the last record of the specified segment.
+   *
+   * @param file
+   *  The segment file.
+   * @return
+   *  The sequence number of the last record, or 0 if the segment is empty.
+   * @throws IOException
+   *  The segment could not be read.
+   */
+  private static long lastSequence(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel ch = raf.getChannel();
+      MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+          ch.size() - ch.size() % AuditRecord.SIZE);
+      long sequence = 0;
+      while (buf.remaining() >= AuditRecord.SIZE) {
+        AuditRecord r = AuditRecord.decode(buf);
+        if (r == null) {
+          break;
+        }
+        sequence = r.getSequence();
+      }
+      return sequence;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Opens and maps the segment with the specified number, creating it if it
+   * does not exist.
+   *
+   * @param number
+   *  The number of the segment.
+   * @throws IOException
+   *  The segment could not be opened.
+   */
+  private void open(int number) throws IOException {
+    File file = new File(dir, String.format("%s%08d%s", PREFIX, number, SUFFIX));
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      if (raf.length() < AuditRecord.SIZE) {
+        raf.setLength((long) segmentRecords * AuditRecord.SIZE);
+      }
+      FileChannel ch = raf.getChannel();
+      // Segments written with a different size setting keep their size.
+      long records = Math.min(ch.size() / AuditRecord.SIZE,
+          Integer.MAX_VALUE / AuditRecord.SIZE);
+      map = ch.map(FileChannel.MapMode.READ_WRITE, 0, records * AuditRecord.SIZE);
+      channel = ch;
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+    segment = number;
+    capacity = map.capacity() / AuditRecord.SIZE;
+    position = 0;
+  }
+
+  /**
+   * Closes the current segment and opens the next one, deleting the oldest
+   * segments beyond the configured maximum.
+   *
+   * @throws IOException
+   *  The next segment could not be opened.
+   */
+  private void rotate() throws IOException {
+    map.force();
+    channel.close();
+    open(segment + 1);
+    File[] files = listSegments(dir);
+    for (int i = 0; i < files.length - maxSegments; i++) {
+      if (!files[i].delete()) {
+        LOG.warning("Could not delete audit log segment '" + files[i] + "'.");
+      }
+    }
+  }
+
+  /**
+   * The loop of the writer thread, which copies published records into the
+   * current segment until the log is closed and the ring buffer is empty.
+   */
+  private void write() {
+    long lastForce = System.nanoTime();
+    boolean dirty = false;
+    while (true) {
+      long h = head;
+      int slot = (int) (h & mask);
+      if (published.get(slot) == h + 1) {
+        dirty |= copy(slot);
+        // Release the slot to the producers.
+        head = h + 1;
+        continue;
+      }
+      if (closed && tail.get() == h) {
+        break;
+      }
+      if (dirty && System.nanoTime() - lastForce > FORCE_INTERVAL) {
+        map.force();
+        dirty = false;
+        lastForce = System.nanoTime();
+      }
+      LockSupport.parkNanos(IDLE_NANOS);
+    }
+    try {
+      map.force();
+      channel.close();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not close the audit log.", e);
+    }
+  }
+
+  /**
+   * Copies the record of the specified slot into the current segment.
+   *
+   * @param slot
+   *  The slot of the ring buffer.
+   * @return
+   *  true if the record was written; false if it was dropped.
+   */
+  private boolean copy(int slot) {
+    try {
+      if (position >= capacity) {
+        rotate();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Could not rotate the audit log.", e);
+      dropped.incrementAndGet();
+      return false;
+    }
+    int off = slot * AuditRecord.SIZE;
+    int pos = position * AuditRecord.SIZE;
+    map.position(pos);
+    map.put(ring, off, AuditRecord.CHECKSUM);
+    map.putInt(AuditRecord.checksum(ring, off));
+    position++;
+    return true;
+  }
+}
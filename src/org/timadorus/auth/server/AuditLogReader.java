@@ -0,0 +1,281 @@
+package org.timadorus.auth.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Scans the segment files of an AuditLog and returns the records matching a
+ * set of filters.
+ *
+ * The class can be run from the command-line:
+ *
+ * <pre>
+ * java -cp jar-server.jar org.timadorus.auth.server.AuditLogReader &lt;dir&gt;
+ *   [-user name] [-type TYPE] [-address ip] [-from time] [-to time]
+ * </pre>
+ *
+ * Times are given in UTC as 'yyyy-MM-dd' or 'yyyy-MM-ddTHH:mm:ss'.
+ *
+ * @author agent
+ */
+public class AuditLogReader {
+  /**
+   * The directory holding the segment files.
+   */
+  private final File dir;
+
+  /**
+   * The user that must be the actor or the owner of the subject, or null.
+   */
+  private String user;
+
+  /**
+   * The event that must match, or null.
+   */
+  private AuditEvent event;
+
+  /**
+   * The remote address that must match, or null.
+   */
+  private InetAddress address;
+
+  /**
+   * The earliest time of matching records in milliseconds since the epoch.
+   */
+  private long from = Long.MIN_VALUE;
+
+  /**
+   * The latest time of matching records in milliseconds since the epoch.
+   */
+  private long to = Long.MAX_VALUE;
+
+  /**
+   * Initializes a new instance of the AuditLogReader class.
+   *
+   * @param dir
+   *  The directory holding the segment files.
+   * @throws IllegalArgumentException
+   *  The dir parameter is null.
+   */
+  public AuditLogReader(File dir) {
+    if (dir == null) {
+      throw new IllegalArgumentException("dir");
+    }
+    this.dir = dir;
+  }
+
+  /**
+   * Only returns records whose actor is the specified user or whose subject
+   * is the specified user or one of his entities.
+   *
+   * @param name
+   *  The name of the user, or null to match all users.
+   */
+  public void setUser(String name) {
+    user = name;
+  }
+
+  /**
+   * Only returns records of the specified event.
+   *
+   * @param type
+   *  The event, or null to match all events.
+   */
+  public void setEvent(AuditEvent type) {
+    event = type;
+  }
+
+  /**
+   * Only returns records of requests from the specified remote address.
+   *
+   * @param ip
+   *  The remote address, or null to match all addresses.
+   */
+  public void setAddress(InetAddress ip) {
+    address = ip;
+  }
+
+  /**
+   * Only returns records within the specified time range.
+   *
+   * @param fromMillis
+   *  The earliest time in milliseconds since the epoch, inclusive.
+   * @param toMillis
+   *  The latest time in milliseconds since the epoch, inclusive.
+   */
+  public void setTimeRange(long fromMillis, long toMillis) {
+    from = fromMillis;
+    to = toMillis;
+  }
+
+  /**
+   * Returns the matching records.
+   *
+   * @return
+   *  The matching records, oldest first.
+   * @throws IOException
+   *  The segments could not be read.
+   */
+  public List<AuditRecord> find() throws IOException {
+    List<AuditRecord> list = new ArrayList<AuditRecord>();
+    scan(null, list);
+    return list;
+  }
+
+  /**
+   * Prints the matching records to the specified stream, one per line.
+   *
+   * @param out
+   *  The stream to print to.
+   * @return
+   *  The number of matching records.
+   * @throws IOException
+   *  The segments could not be read.
+   * @throws IllegalArgumentException
+   *  The out parameter is null.
+   */
+  public int scan(PrintStream out) throws IOException {
+    if (out == null) {
+      throw new IllegalArgumentException("out");
+    }
+    return scan(out, null);
+  }
+
+  /**
+   * Determines whether the specified record matches the filters.
+   *
+   * @param r
+   *  The record.
+   * @return
+   *  true if the record matches; Otherwise false.
+   */
+  private boolean matches(AuditRecord r) {
+    if (r.getTime() < from || r.getTime() > to) {
+      return false;
+    }
+    if (event != null && r.getEvent() != event) {
+      return false;
+    }
+    if (address != null && !address.equals(r.getAddress())) {
+      return false;
+    }
+    if (user != null && !user.equals(r.getActor()) && !user.equals(r.getSubject())
+        && !r.getSubject().startsWith(user + "/")) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Scans all segments in order and passes the matching records to the
+   * specified stream or list.
+   *
+   * @param out
+   *  The stream to print matching records to, or null.
+   * @param list
+   *  The list to add matching records to, or null.
+   * @return
+   *  The number of matching records.
+   * @throws IOException
+   *  The segments could not be read.
+   */
+  private int scan(PrintStream out, List<AuditRecord> list) throws IOException {
+    int count = 0;
+    for (File file : AuditLog.listSegments(dir)) {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        FileChannel ch = raf.getChannel();
+        MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+            ch.size() - ch.size() % AuditRecord.SIZE);
+        while (buf.remaining() >= AuditRecord.SIZE) {
+          AuditRecord r = AuditRecord.decode(buf);
+          // The rest of the segment hasn't been written yet.
+          if (r == null) {
+            break;
+          }
+          if (matches(r)) {
+            count++;
+            if (out != null) {
+              out.println(r);
+            }
+            if (list != null) {
+              list.add(r);
+            }
+          }
+        }
+      } finally {
+        raf.close();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Parses the specified UTC time.
+   *
+   * @param s
+   *  The time as 'yyyy-MM-dd' or 'yyyy-MM-ddTHH:mm:ss'.
+   * @return
+   *  The time in milliseconds since the epoch.
+   * @throws ParseException
+   *  The time is malformed.
+   */
+  private static long parseTime(String s) throws ParseException {
+    SimpleDateFormat format = new SimpleDateFormat(s.indexOf('T') > 0
+        ? "yyyy-MM-dd'T'HH:mm:ss" : "yyyy-MM-dd");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.parse(s).getTime();
+  }
+
+  /**
+   * Prints the matching records of an audit log directory.
+   *
+   * @param args
+   *  The command-line arguments.
+   * @throws Exception
+   *  The arguments are invalid, or the segments could not be read.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1 || args.length % 2 != 1) {
+      System.err.println("Usage: AuditLogReader <dir> [-user name] [-type TYPE] "
+          + "[-address ip] [-from time] [-to time]");
+      System.exit(1);
+    }
+    AuditLogReader reader = new AuditLogReader(new File(args[0]));
+    long from = Long.MIN_VALUE;
+    long to = Long.MAX_VALUE;
+    for (int i = 1; i < args.length; i += 2) {
+      String value = args[i + 1];
+      if ("-user".equals(args[i])) {
+        reader.setUser(value);
+      } else if ("-type".equals(args[i])) {
+        reader.setEvent(AuditEvent.valueOf(value.toUpperCase()));
+      } else if ("-address".equals(args[i])) {
+        byte[] raw = AuditRecord.parseAddress(value);
+        if (raw == null) {
+          throw new IllegalArgumentException("Invalid IP address '" + value + "'.");
+        }
+        reader.setAddress(InetAddress.getByAddress(raw));
+      } else if ("-from".equals(args[i])) {
+        from = parseTime(value);
+      } else if ("-to".equals(args[i])) {
+        to = parseTime(value);
+      } else {
+        throw new IllegalArgumentException("Unknown option '" + args[i] + "'.");
+      }
+    }
+    reader.setTimeRange(from, to);
+    int count = reader.scan(System.out);
+    System.err.println(count + " record(s).");
+  }
+}
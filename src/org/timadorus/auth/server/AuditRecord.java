@@ -0,0 +1,378 @@
+package org.timadorus.auth.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+/**
+ * Represents a record of the audit log.
+ *
+ * Records are stored with a fixed width of 128 bytes, so that segment files
+ * can be memory-mapped and scanned without parsing:
+ *
+ * <pre>
+ *   0  long    time in milliseconds since the epoch (0 = no record)
+ *   8  long    sequence number
+ *  16  byte    event code
+ *  17  byte    length of the actor
+ *  18  byte    length of the subject
+ *  19  byte    length of the address (0, 4 or 16)
+ *  20  byte[16] address
+ *  36  byte[40] actor, UTF-8, truncated
+ *  76  byte[48] subject, UTF-8, truncated
+ * 124  int     CRC-32 of bytes 0 to 123
+ * </pre>
+ *
+ * @author agent
+ */
+public class AuditRecord {
+  /**
+   * The size of a record in bytes.
+   */
+  public static final int SIZE = 128;
+
+  /**
+   * The offset of the event code.
+   */
+  static final int EVENT = 16;
+
+  /**
+   * The offset of the length of the actor.
+   */
+  static final int ACTOR_LENGTH = 17;
+
+  /**
+   * The offset of the length of the subject.
+   */
+  static final int SUBJECT_LENGTH = 18;
+
+  /**
+   * The offset of the length of the address.
+   */
+  static final int ADDRESS_LENGTH = 19;
+
+  /**
+   * The offset of the address.
+   */
+  static final int ADDRESS = 20;
+
+  /**
+   * The offset of the actor.
+   */
+  static final int ACTOR = 36;
+
+  /**
+   * The maximum number of bytes of the actor.
+   */
+  static final int MAX_ACTOR = 40;
+
+  /**
+   * The offset of the subject.
+   */
+  static final int SUBJECT = 76;
+
+  /**
+   * The maximum number of bytes of the subject.
+   */
+  static final int MAX_SUBJECT = 48;
+
+  /**
+   * The offset of the checksum.
+   */
+  static final int CHECKSUM = 124;
+
+  /**
+   * The encoding of the actor and subject.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The time of the event in milliseconds since the epoch.
+   */
+  private final long time;
+
+  /**
+   * The sequence number of the record.
+   */
+  private final long sequence;
+
+  /**
+   * The event.
+   */
+  private final AuditEvent event;
+
+  /**
+   * The user who caused the event, or an empty string.
+   */
+  private final String actor;
+
+  /**
+   * The user or entity affected by the event, or an empty string.
+   */
+  private final String subject;
+
+  /**
+   * The remote address of the request that caused the event, or null.
+   */
+  private final InetAddress address;
+
+  /**
+   * Initializes a new instance of the AuditRecord class.
+   *
+   * @param time
+   *  The time of the event in milliseconds since the epoch.
+   * @param sequence
+   *  The sequence number of the record.
+   * @param event
+   *  The event.
+   * @param actor
+   *  The user who caused the event, or an empty string.
+   * @param subject
+   *  The user or entity affected by the event, or an empty string.
+   * @param address
+   *  The remote address of the request that caused the event, or null.
+   */
+  public AuditRecord(long time, long sequence, AuditEvent event, String actor,
+      String subject, InetAddress address) {
+    this.time = time;
+    this.sequence = sequence;
+    this.event = event;
+    this.actor = actor;
+    this.subject = subject;
+    this.address = address;
+  }
+
+  /**
+   * Gets the time of the event.
+   *
+   * @return
+   *  The time of the event in milliseconds since the epoch.
+   */
+  public long getTime() {
+    return time;
+  }
+
+  /**
+   * Gets the sequence number of the record.
+   *
+   * @return
+   *  The sequence number of the record.
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Gets the event.
+   *
+   * @return
+   *  The event, or null if the record was written by a newer version.
+   */
+  public AuditEvent getEvent() {
+    return event;
+  }
+
+  /**
+   * Gets the user who caused the event.
+   *
+   * @return
+   *  The name of the user, possibly truncated, or an empty string.
+   */
+  public String getActor() {
+    return actor;
+  }
+
+  /**
+   * Gets the user or entity affected by the event. Entities are denoted as
+   * 'user/entity'.
+   *
+   * @return
+   *  The affected user or entity, possibly truncated, or an empty string.
+   */
+  public String getSubject() {
+    return subject;
+  }
+
+  /**
+   * Gets the remote address of the request that caused the event.
+   *
+   * @return
+   *  The remote address, or null.
+   */
+  public InetAddress getAddress() {
+    return address;
+  }
+
+  @Override
+  public String toString() {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(time)) + " #" + sequence + " " + event
+        + " actor=" + actor + " subject=" + subject + " address="
+        + (address != null ? address.getHostAddress() : "");
+  }
+
+  /**
+   * Encodes a record into the specified buffer, except for the checksum.
+   *
+   * @param buf
+   *  The buffer to encode the record into.
+   * @param off
+   *  The offset of the record in the buffer.
+   * @param time
+   *  The time of the event in milliseconds since the epoch.
+   * @param sequence
+   *  The sequence number of the record.
+   * @param event
+   *  The event.
+   * @param actor
+   *  The user who caused the event, or null.
+   * @param subject
+   *  The user or entity affected by the event, or null.
+   * @param address
+   *  The raw remote address, or null.
+   */
+  static void encode(byte[] buf, int off, long time, long sequence, AuditEvent event,
+      String actor, String subject, byte[] address) {
+    putLong(buf, off, time);
+    putLong(buf, off + 8, sequence);
+    buf[off + EVENT] = (byte) event.getCode();
+    buf[off + ACTOR_LENGTH] = (byte) putString(buf, off + ACTOR, MAX_ACTOR, actor);
+    buf[off + SUBJECT_LENGTH] = (byte) putString(buf, off + SUBJECT, MAX_SUBJECT, subject);
+    int length = address != null ? address.length : 0;
+    buf[off + ADDRESS_LENGTH] = (byte) length;
+    if (length > 0) {
+      System.arraycopy(address, 0, buf, off + ADDRESS, length);
+    }
+  }
+
+  /**
+   * Computes the checksum of the record at the specified offset.
+   *
+   * @param buf
+   *  The buffer containing the record.
+   * @param off
+   *  The offset of the record in the buffer.
+   * @return
+   *  The checksum of the record.
+   */
+  static int checksum(byte[] buf, int off) {
+    CRC32 crc = new CRC32();
+    crc.update(buf, off, CHECKSUM);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Decodes the record at the current position of the specified buffer.
+   * The position of the buffer is advanced past the record.
+   *
+   * @param buf
+   *  The buffer containing the record.
+   * @return
+   *  The decoded record, or null if the slot is empty or its checksum does
+   *  not match, e.g. because the process died while writing the record.
+   */
+  public static AuditRecord decode(ByteBuffer buf) {
+    byte[] b = new byte[SIZE];
+    buf.get(b);
+    ByteBuffer r = ByteBuffer.wrap(b);
+    long time = r.getLong(0);
+    if (time == 0 || r.getInt(CHECKSUM) != checksum(b, 0)) {
+      return null;
+    }
+    InetAddress address = null;
+    int length = b[ADDRESS_LENGTH];
+    if (length == 4 || length == 16) {
+      byte[] raw = new byte[length];
+      System.arraycopy(b, ADDRESS, raw, 0, length);
+      try {
+        address = InetAddress.getByAddress(raw);
+      } catch (UnknownHostException e) {
+        address = null;
+      }
+    }
+    return new AuditRecord(time, r.getLong(8), AuditEvent.fromCode(b[EVENT]),
+        new String(b, ACTOR, Math.min(b[ACTOR_LENGTH] & 0xFF, MAX_ACTOR), UTF8),
+        new String(b, SUBJECT, Math.min(b[SUBJECT_LENGTH] & 0xFF, MAX_SUBJECT), UTF8),
+        address);
+  }
+
+  /**
+   * Parses the specified textual IP address without resolving host names.
+   *
+   * @param address
+   *  The textual IP address, or null.
+   * @return
+   *  The raw IP address, or null if the string is not an IP address.
+   */
+  static byte[] parseAddress(String address) {
+    if (address == null || address.isEmpty()) {
+      return null;
+    }
+    for (int i = 0; i < address.length(); i++) {
+      char c = address.charAt(i);
+      if (Character.digit(c, 16) < 0 && c != '.' && c != ':') {
+        // Not a literal, InetAddress would perform a DNS lookup.
+        return null;
+      }
+    }
+    try {
+      return InetAddress.getByName(address).getAddress();
+    } catch (UnknownHostException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Writes the specified long value in big-endian byte order.
+   *
+   * @param buf
+   *  The buffer to write to.
+   * @param off
+   *  The offset to write at.
+   * @param value
+   *  The value to write.
+   */
+  private static void putLong(byte[] buf, int off, long value) {
+    for (int i = 7; i >= 0; i--) {
+      buf[off + i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+
+  /**
+   * Writes the specified string as UTF-8, truncated to the specified number
+   * of bytes without splitting a character.
+   *
+   * @param buf
+   *  The buffer to write to.
+   * @param off
+   *  The offset to write at.
+   * @param max
+   *  The maximum number of bytes to write.
+   * @param s
+   *  The string to write, or null.
+   * @return
+   *  The number of bytes written.
+   */
+  private static int putString(byte[] buf, int off, int max, String s) {
+    if (s == null) {
+      return 0;
+    }
+    byte[] b = s.getBytes(UTF8);
+    int length = Math.min(b.length, max);
+    if (length < b.length) {
+      // Don't cut a multi-byte sequence in half.
+      while (length > 0 && (b[length] & 0xC0) == 0x80) {
+        length--;
+      }
+    }
+    System.arraycopy(b, 0, buf, off, length);
+    return length;
+  }
+}
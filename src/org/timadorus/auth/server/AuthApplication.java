@@ -0,0 +1,32 @@
+package org.timadorus.auth.server;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.ws.rs.core.Application;
+
+/**
+ * Lists the resource and provider classes of the auth-server, so that Jersey
+ * does not have to scan the class-path for them at startup. New resources,
+ * exception mappers and other providers must be added here.
+ *
+ * @author agent
+ */
+public class AuthApplication extends Application {
+  @Override
+  public Set<Class<?>> getClasses() {
+    Set<Class<?>> classes = new HashSet<Class<?>>();
+    // Resources.
+    classes.add(UsersResource.class);
+    classes.add(MetricsResource.class);
+    classes.add(HealthResource.class);
+    classes.add(ArchiveResource.class);
+    classes.add(BatchResource.class);
+    // Providers.
+    classes.add(SecurityMapper.class);
+    classes.add(SQLMapper.class);
+    classes.add(IllegalStateMapper.class);
+    classes.add(MetricsDispatchAdapter.class);
+    return classes;
+  }
+}
@@ -0,0 +1,171 @@
+package org.timadorus.auth.server;
+
+import java.security.Principal;
+
+import javax.ws.rs.core.SecurityContext;
+
+/**
+ * Represents the verified identity of the user performing an HTTP request.
+ *
+ * Instances are created by the SecurityFilter once the user's credentials
+ * have been validated and carry the role of the user as it was stored in the
+ * users table at the time of authentication, so that resource classes don't
+ * have to query the database again for authorization decisions.
+ *
+ * @author agent
+ */
+public class AuthPrincipal implements Principal, SecurityContext {
+  /**
+   * The name of the role granted to administrators.
+   */
+  public static final String ROLE_ADMIN = "admin";
+
+  /**
+   * The unique id of the user.
+   */
+  private final int id;
+
+  /**
+   * The name of the user.
+   */
+  private final String name;
+
+  /**
+   * Determines whether the user is an administrator.
+   */
+  private final boolean admin;
+
+  /**
+   * The flags set on the user.
+   */
+  private final int flags;
+
+  /**
+   * Determines whether the request was made over a secure channel.
+   */
+  private final boolean secure;
+
+  /**
+   * Initializes a new instance of the AuthPrincipal class.
+   *
+   * @param user
+   *  The user whose credentials have been verified.
+   * @param secure
+   *  true if the request was made over a secure channel; Otherwise false.
+   * @throws IllegalArgumentException
+   *  The user parameter is null.
+   */
+  public AuthPrincipal(User user, boolean secure) {
+    this(checkUser(user).getId(), user.getName(), user.isAdmin(), user.getFlags(), secure);
+  }
+
+  /**
+   * Initializes a new instance of the AuthPrincipal class.
+   *
+   * @param id
+   *  The unique id of the user whose credentials have been verified.
+   * @param name
+   *  The name of the user.
+   * @param admin
+   *  true if the user is an administrator; Otherwise false.
+   * @param flags
+   *  The flags set on the user.
+   * @param secure
+   *  true if the request was made over a secure channel; Otherwise false.
+   * @throws IllegalArgumentException
+   *  The name parameter is null.
+   */
+  public AuthPrincipal(int id, String name, boolean admin, int flags, boolean secure) {
+    if (name == null) {
+      throw new IllegalArgumentException("name");
+    }
+    this.id = id;
+    this.name = name;
+    this.admin = admin;
+    this.flags = flags;
+    this.secure = secure;
+  }
+
+  /**
+   * Ensures the user passed to a constructor is not null.
+   *
+   * @param user
+   *  The user.
+   * @return
+   *  The user.
+   * @throws IllegalArgumentException
+   *  The user parameter is null.
+   */
+  private static User checkUser(User user) {
+    if (user == null) {
+      throw new IllegalArgumentException("user");
+    }
+    return user;
+  }
+
+  /**
+   * Gets the unique id of the user.
+   *
+   * @return
+   *  The unique id of the user.
+   */
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * Gets the name of the user.
+   *
+   * @return
+   *  The name of the user.
+   */
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Gets whether the user is an administrator.
+   *
+   * @return
+   *  true if the user is an administrator; Otherwise false.
+   */
+  public boolean isAdmin() {
+    return admin;
+  }
+
+  /**
+   * Gets the flags set on the user.
+   *
+   * @return
+   *  The flags set on the user.
+   */
+  public int getFlags() {
+    return flags;
+  }
+
+  @Override
+  public Principal getUserPrincipal() {
+    return this;
+  }
+
+  @Override
+  public boolean isUserInRole(String role) {
+    return admin && ROLE_ADMIN.equals(role);
+  }
+
+  @Override
+  public boolean isSecure() {
+    return secure;
+  }
+
+  @Override
+  public String getAuthenticationScheme() {
+    return SecurityContext.BASIC_AUTH;
+  }
+
+  @Override
+  public String toString() {
+    return name + (admin ? " (admin)" : "");
+  }
+}
@@ -22,6 +22,12 @@ import com.sun.jersey.spi.container.servlet.ServletContainer;
  *  Torben Könke
  */
 public class AuthServer {
+  /**
+   * The default time in milliseconds to wait for requests in flight when
+   * draining.
+   */
+  private static final long DEFAULT_DRAIN_TIMEOUT = 10000;
+
   /**
    * The port on which the server is accepting HTTP requests.
    */
@@ -67,6 +73,16 @@ public class AuthServer {
    */
   private SelectorThread threadSelector;
   
+  /**
+   * The servlet adapter, which keeps count of the requests in flight.
+   */
+  private AuthServletAdapter adapter;
+  
+  /**
+   * The time in milliseconds to wait for requests in flight when draining.
+   */
+  private long drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+  
   /**
    * Initializes a new instance of the AuthServer class.
    * 
@@ -126,15 +142,18 @@ public class AuthServer {
    *  The selector-thread could not be created.
    */
   private SSLSelectorThread createSelector() throws IOException {
-    ServletAdapter adapter = new ServletAdapter();
+    // Trace each request from the point Grizzly hands it to the adapter.
+    adapter = new AuthServletAdapter();
     Map<String, String> initParams =  new HashMap<String, String>();
-    // This _must_ be set up to point to the proper package.
-    initParams.put("com.sun.jersey.config.property.packages",
-                   getClass().getPackage().getName());    
+    // Register the resources explicitly instead of scanning the class-path.
+    initParams.put("javax.ws.rs.Application", AuthApplication.class.getName());
     for (Map.Entry<String, String> e : initParams.entrySet()) {
       adapter.addInitParameter(e.getKey(), e.getValue());
     }
     adapter.setServletInstance(new ServletContainer());
+    // Initialize Jersey when the server starts rather than on the first
+    // request.
+    adapter.setProperty(ServletAdapter.LOAD_ON_STARTUP, Boolean.TRUE);
     adapter.setContextPath("/");
     // Add the shared secret-key as an init parameter so that it can be
     // accessed from the Resource classes, serving the HTTP requests.
@@ -146,6 +165,9 @@ public class AuthServer {
     // Set up request filtering for convenient verification of credentials.
     adapter.addInitParameter(ResourceConfig.PROPERTY_CONTAINER_REQUEST_FILTERS,
                              SecurityFilter.class.getName());
+    // Compress large responses for clients that accept it.
+    adapter.addInitParameter(ResourceConfig.PROPERTY_CONTAINER_RESPONSE_FILTERS,
+                             CompressionFilter.class.getName());
 
     final SSLSelectorThread selectorThread = new SSLSelectorThread();
     try {
@@ -183,7 +205,8 @@ public class AuthServer {
   }
 
   /**
-   * Starts the auth-server.
+   * Starts the auth-server. Requests other than health checks are rejected
+   * until the server has been marked ready with HealthResource.setReady.
    * 
    * @throws IOException
    *  An error occurred while starting the auth-server.
@@ -193,12 +216,67 @@ public class AuthServer {
   }
 
   /**
-   * Stops the auth-server.
+   * Stops the auth-server immediately, cutting off requests in flight. Call
+   * drain first to let them complete.
    */
   public void stop() {
     threadSelector.stopEndpoint();
   }
 
+  /**
+   * Rejects new requests with '503 Service Unavailable' and waits up to the
+   * drain timeout for the requests in flight to complete.
+   * 
+   * @return
+   *  true if all requests have completed; Otherwise false.
+   */
+  public boolean drain() {
+    if (adapter == null) {
+      return true;
+    }
+    try {
+      return adapter.drain(drainTimeout);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Determines whether the server is draining, i.e. rejects new requests.
+   * 
+   * @return
+   *  true if the server is draining; Otherwise false.
+   */
+  public boolean isDraining() {
+    return adapter != null && adapter.isDraining();
+  }
+
+  /**
+   * Gets the time to wait for requests in flight when draining.
+   * 
+   * @return
+   *  The drain timeout, in milliseconds.
+   */
+  public long getDrainTimeout() {
+    return drainTimeout;
+  }
+
+  /**
+   * Sets the time to wait for requests in flight when draining.
+   * 
+   * @param drainTimeout
+   *  The drain timeout, in milliseconds.
+   * @throws IllegalArgumentException
+   *  The drainTimeout parameter is negative.
+   */
+  public void setDrainTimeout(long drainTimeout) {
+    if (drainTimeout < 0) {
+      throw new IllegalArgumentException("drainTimeout");
+    }
+    this.drainTimeout = drainTimeout;
+  }
+
   /**
    * Gets the port on which the HTTP server is running.
    * 
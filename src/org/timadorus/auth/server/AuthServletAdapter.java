@@ -0,0 +1,148 @@
+package org.timadorus.auth.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.timadorus.auth.util.Tracer;
+
+import com.sun.grizzly.http.servlet.ServletAdapter;
+import com.sun.grizzly.tcp.http11.GrizzlyRequest;
+import com.sun.grizzly.tcp.http11.GrizzlyResponse;
+
+/**
+ * The servlet adapter of the auth-server, which traces each request it
+ * passes on to the Jersey servlet and keeps count of the requests in flight.
+ *
+ * The TLS handshake and the parsing of the request are done by Grizzly before
+ * the adapter is invoked, so a trace covers the time from the invocation of
+ * the adapter to the response.
+ *
+ * Until the server is ready and once the adapter is draining, requests other
+ * than health checks are answered with '503 Service Unavailable' and their
+ * connections are closed, so that clients and load balancers turn to other
+ * nodes, e.g. while the requests in flight complete.
+ *
+ * @author agent
+ */
+public class AuthServletAdapter extends ServletAdapter {
+  /**
+   * The HTTP status code for 'Service Unavailable'.
+   */
+  private static final int HTTP_SERVICE_UNAVAILABLE = 503;
+
+  /**
+   * The path prefix of the health checks.
+   */
+  private static final String HEALTH_PATH = "/" + HealthResource.PATH;
+
+  /**
+   * The number of requests being processed.
+   */
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  /**
+   * Determines whether new requests are rejected.
+   */
+  private volatile boolean draining;
+
+  // ServletAdapter declares the response as a raw type, and an override
+  // can't add a type argument.
+  @SuppressWarnings("rawtypes")
+  @Override
+  public void service(GrizzlyRequest request, GrizzlyResponse response) {
+    if (!enter(request)) {
+      response.setStatus(HTTP_SERVICE_UNAVAILABLE);
+      response.setHeader("Connection", "close");
+      response.setHeader("Retry-After", "1");
+      return;
+    }
+    Tracer.begin();
+    try {
+      super.service(request, response);
+    } finally {
+      if (Tracer.isEnabled()) {
+        Tracer.finish(request.getMethod() + " " + request.getRequestURI(),
+            response.getStatus());
+      }
+      exit();
+    }
+  }
+
+  /**
+   * Stops accepting new requests and waits until the requests in flight have
+   * completed.
+   *
+   * @param timeoutMillis
+   *  The maximum time to wait, in milliseconds.
+   * @return
+   *  true if all requests have completed; Otherwise false.
+   * @throws InterruptedException
+   *  The thread was interrupted while waiting.
+   */
+  public synchronized boolean drain(long timeoutMillis) throws InterruptedException {
+    draining = true;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (inFlight.get() > 0) {
+      long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (wait <= 0) {
+        return false;
+      }
+      wait(wait);
+    }
+    return true;
+  }
+
+  /**
+   * Determines whether new requests are rejected.
+   *
+   * @return
+   *  true if the adapter is draining; Otherwise false.
+   */
+  public boolean isDraining() {
+    return draining;
+  }
+
+  /**
+   * Gets the number of requests being processed.
+   *
+   * @return
+   *  The number of requests in flight.
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Counts a new request, unless the adapter is draining or the server is
+   * not ready yet. Health checks are always admitted.
+   *
+   * @param request
+   *  The request.
+   * @return
+   *  true if the request may be processed; Otherwise false.
+   */
+  private boolean enter(GrizzlyRequest request) {
+    inFlight.incrementAndGet();
+    if (request.getRequestURI().startsWith(HEALTH_PATH)) {
+      return true;
+    }
+    // Check after counting, so that drain either sees the request or the
+    // request sees the flag.
+    if (draining || !HealthResource.isReady()) {
+      exit();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Counts a completed request and wakes up a thread waiting in drain.
+   */
+  private void exit() {
+    if (inFlight.decrementAndGet() == 0 && draining) {
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+  }
+}
@@ -0,0 +1,437 @@
+package org.timadorus.auth.server;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides access to the users, entities and attributes of the auth
+ * database, independent of the storage backend.
+ *
+ * Implementations must be thread-safe. The methods throw SQLException for
+ * errors of the storage backend, and IllegalStateException if an operation
+ * refers to a user or entity that does not exist, or would create a
+ * duplicate.
+ *
+ * @author agent
+ */
+public interface AuthStore {
+  /**
+   * Determines whether the store can be accessed.
+   *
+   * @return
+   *  true if the store can be accessed; Otherwise false.
+   */
+  boolean testConnection();
+
+  /**
+   * Determines whether the auth tables already exist.
+   *
+   * @return
+   *  true if the auth tables exist; Otherwise false.
+   * @throws SQLException
+   *  The connection to the database could not be established.
+   */
+  boolean tablesExist() throws SQLException;
+
+  /**
+   * Creates the auth tables.
+   *
+   * @return
+   *  true if the tables were created; Otherwise false.
+   * @throws SQLException
+   *  The connection to the database could not be established.
+   */
+  boolean createTables() throws SQLException;
+
+  /**
+   * Brings the schema of the auth tables up to date by applying all pending
+   * migrations.
+   *
+   * @return
+   *  The number of migrations that were applied.
+   * @throws SQLException
+   *  The connection to the database could not be established, or a
+   *  migration could not be applied.
+   */
+  int migrateSchema() throws SQLException;
+
+  /**
+   * Determines whether the specified user exists.
+   *
+   * @param username
+   *  The name of the user to look up.
+   * @return
+   *  true if the user exists; Otherwise false.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null.
+   */
+  boolean userExists(String username) throws SQLException;
+
+  /**
+   * Retrieves the data of the user with the specified username.
+   *
+   * @param username
+   *  The name of the user whose data to retrieve.
+   * @return
+   *  The user's data, or null if no such user exists.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null.
+   */
+  User getUser(String username) throws SQLException;
+
+  /**
+   * Retrieves the password-hash for the specified user.
+   *
+   * @param username
+   *  The name of the user whose password to retrieve.
+   * @return
+   *  The password-hash of the user, or null if no such user exists.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null.
+   */
+  String getPassword(String username) throws SQLException;
+
+  /**
+   * Creates a new user with the specified name and password.
+   *
+   * @param username
+   *  The name of the user to create.
+   * @param password
+   *  The password of the user to create.
+   * @param admin
+   *  true to create an administrator, or false to create a normal user.
+   * @param flags
+   *  The flags to set on the user.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null, or the password parameter is null.
+   * @throws IllegalStateException
+   *  A user with the specified name already exists.
+   */
+  void createUser(String username, String password, boolean admin, int flags)
+      throws SQLException;
+
+  /**
+   * Creates several users at once. This is considerably faster than calling
+   * createUser for each user, as the users are inserted in batches.
+   *
+   * @param users
+   *  A map of the names of the users to create to their passwords.
+   * @param admin
+   *  true to create administrators, or false to create normal users.
+   * @param flags
+   *  The flags to set on the users.
+   * @throws SQLException
+   *  A database-related error occurred, for example because one of the users
+   *  already exists. Users of batches that were inserted before the error
+   *  occurred are not removed.
+   * @throws IllegalArgumentException
+   *  The users parameter is null, or contains a null name or password.
+   */
+  void createUsers(Map<String, String> users, boolean admin, int flags)
+      throws SQLException;
+
+  /**
+   * Edits the user with the specified username.
+   *
+   * @param username
+   *  The username of the user to edit.
+   * @param password
+   *  The new password for the user, or null to keep the existing password.
+   * @param admin
+   *  true to make the user an administrator, false to make the user a
+   *  normal user, or null to keep the current setting.
+   * @param flags
+   *  The new flags to set on the user, or null to keep the existing flags.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null.
+   * @throws IllegalStateException
+   *  A user with the specified username does not exist.
+   */
+  void updateUser(String username, String password, Boolean admin, Integer flags)
+      throws SQLException;
+
+  /**
+   * Deletes the user with the specified username, including the user's
+   * entities and their attributes.
+   *
+   * @param username
+   *  The name of the user to delete.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null.
+   * @throws IllegalStateException
+   *  A user with the specified username does not exist.
+   */
+  void deleteUser(String username) throws SQLException;
+
+  /**
+   * Determines whether the specified user is an administrator.
+   *
+   * @param username
+   *  The name of the user.
+   * @return
+   *  true if the specified user is an administrator; Otherwise false.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null.
+   */
+  boolean isAdmin(String username) throws SQLException;
+
+  /**
+   * Returns a list of the names of all users.
+   *
+   * @param filter
+   *  A character pattern in which % matches any number of characters and _
+   *  matches exactly one character, or null to list all users.
+   * @return
+   *  A list of the names of all users matching the filter.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  List<String> listUsers(String filter) throws SQLException;
+
+  /**
+   * Returns the names of the users who logged in most recently.
+   *
+   * @param max
+   *  The maximum number of names to return.
+   * @return
+   *  The names of the users with a last login, the most recent first.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  List<String> listRecentUsers(int max) throws SQLException;
+
+  /**
+   * Deletes all users, entities and attributes.
+   *
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  void truncate() throws SQLException;
+
+  /**
+   * Adds a new entity to the specified user's set of entities.
+   *
+   * @param username
+   *  The name of the user to add a new entity for.
+   * @param entity
+   *  The name of the new entity to add.
+   * @param flags
+   *  The flags to set on the new entity.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null, or the entity parameter is null.
+   * @throws IllegalStateException
+   *  A user with the specified name does not exist, or an entity with the
+   *  specified name already exists in the user's set of entities.
+   */
+  void createEntity(String username, String entity, int flags) throws SQLException;
+
+  /**
+   * Deletes the specified entity of the user with the specified username.
+   *
+   * @param username
+   *  The name of the user whose entity to delete.
+   * @param entity
+   *  The name of the entity to delete.
+   * @throws SQLException
+   *  A database-related error occurred, or the entity does not exist.
+   * @throws IllegalArgumentException
+   *  The username parameter is null, or the entity parameter is null.
+   * @throws IllegalStateException
+   *  A user with the specified username does not exist.
+   */
+  void deleteEntity(String username, String entity) throws SQLException;
+
+  /**
+   * Edits the entity of the user with the specified username.
+   *
+   * @param username
+   *  The username of the user whose entity to edit.
+   * @param entity
+   *  The name of the entity to edit.
+   * @param newName
+   *  The new name of the entity, or null to keep the current name.
+   * @param flags
+   *  The new flags to set on the entity, or null to keep the existing flags.
+   * @throws SQLException
+   *  A database-related error occurred, or the entity does not exist.
+   * @throws IllegalArgumentException
+   *  The username parameter is null, or the entity parameter is null.
+   * @throws IllegalStateException
+   *  A user with the specified username does not exist, or the user already
+   *  has an entity with the new name.
+   */
+  void updateEntity(String username, String entity, String newName, Integer flags)
+      throws SQLException;
+
+  /**
+   * Determines whether the specified entity exists.
+   *
+   * @param username
+   *  The name of the user whose entities to look up.
+   * @param entity
+   *  The name of the entity to look up.
+   * @return
+   *  true if the entity exists; Otherwise false.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null, or the entity parameter is null.
+   * @throws IllegalStateException
+   *  A user with the specified username does not exist.
+   */
+  boolean entityExists(String username, String entity) throws SQLException;
+
+  /**
+   * Retrieves a list of the entities of the user with the specified username.
+   *
+   * @param username
+   *  The name of the user whose entities to retrieve.
+   * @return
+   *  A list of the user's entities.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null.
+   * @throws IllegalStateException
+   *  A user with the specified username does not exist.
+   */
+  List<Entity> listEntities(String username) throws SQLException;
+
+  /**
+   * Retrieves the data of the entity of the user with the specified username.
+   *
+   * @param username
+   *  The name of the user whose entity's data to retrieve.
+   * @param entity
+   *  The name of the entity whose data to retrieve.
+   * @return
+   *  The entity's data, or null if no such entity exists.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null, or the entity parameter is null.
+   * @throws IllegalStateException
+   *  A user with the specified username does not exist.
+   */
+  Entity getEntity(String username, String entity) throws SQLException;
+
+  /**
+   * Retrieves the attributes of the entity of the user with the specified
+   * username.
+   *
+   * @param username
+   *  The name of the user whose entity's attributes to retrieve.
+   * @param entity
+   *  The name of the entity whose attributes to retrieve.
+   * @return
+   *  A map of key/value pairs containing the entity's attributes.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null, or the entity parameter is null.
+   * @throws IllegalStateException
+   *  A user with the specified username or the entity does not exist.
+   */
+  Map<String, String> getAttributes(String username, String entity) throws SQLException;
+
+  /**
+   * Sets attributes of the entity of the user with the specified username.
+   * Attributes that already exist are overwritten; other existing attributes
+   * are kept.
+   *
+   * @param username
+   *  The name of the user whose entity's attributes to set.
+   * @param entity
+   *  The name of the entity whose attributes to set.
+   * @param attributes
+   *  A map of key/value pairs containing the attributes to set.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null, the entity parameter is null, or the
+   *  attributes parameter is null or contains a null key or value.
+   * @throws IllegalStateException
+   *  A user with the specified username or the entity does not exist.
+   */
+  void setAttributes(String username, String entity, Map<String, String> attributes)
+      throws SQLException;
+
+  /**
+   * Runs the specified work as one unit: the calls the work makes to this
+   * store on the calling thread share one connection and its prepared
+   * statements, and are committed together. If the work throws, they are
+   * rolled back. Calls from within the work join the running transaction.
+   *
+   * @param <T>
+   *  The type of the result of the work.
+   * @param work
+   *  The work to run.
+   * @return
+   *  The result of the work.
+   * @throws SQLException
+   *  A database-related error occurred, or was thrown by the work.
+   * @throws IllegalArgumentException
+   *  The work parameter is null.
+   */
+  <T> T inTransaction(Transaction<T> work) throws SQLException;
+
+  /**
+   * Returns a page of the accounts, i.e. the users with their entities and
+   * the entities' attributes, in the order of the usernames. Passing the
+   * name of the last account of a page returns the next page, so that all
+   * accounts can be read without holding them in memory at once.
+   *
+   * @param after
+   *  The name of the user after which the page starts, or null to start
+   *  with the first user.
+   * @param max
+   *  The maximum number of accounts to return.
+   * @return
+   *  The accounts, or an empty list if there are no more accounts.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  List<Account> listAccounts(String after, int max) throws SQLException;
+
+  /**
+   * Creates the specified accounts with their password-hashes, entities and
+   * attributes as they are. Accounts whose user already exists are skipped,
+   * so that an interrupted import can simply be repeated.
+   *
+   * @param accounts
+   *  The accounts to create.
+   * @return
+   *  The names of the users that were created.
+   * @throws SQLException
+   *  A database-related error occurred. None of the accounts were created
+   *  in that case.
+   * @throws IllegalArgumentException
+   *  The accounts parameter is null or contains null.
+   */
+  List<String> importAccounts(List<Account> accounts) throws SQLException;
+
+  /**
+   * Releases the resources held by the store.
+   *
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  void close() throws SQLException;
+}
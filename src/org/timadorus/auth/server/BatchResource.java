@@ -0,0 +1,271 @@
+package org.timadorus.auth.server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.SecurityContext;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+/**
+ * The resource class which handles the '/batch' HTTP request, which applies
+ * a list of entity operations for one or more users with a single request
+ * and a single transaction, e.g. for the clean-ups of game servers.
+ *
+ * Each operation is checked and executed like the corresponding request of
+ * the '/users/{user}/{entity}' resource and yields a result of its own. An
+ * operation that fails doesn't affect the other operations; the operations
+ * that succeed are committed together.
+ *
+ * @author agent
+ */
+@Produces("application/json")
+@Path("/batch")
+public class BatchResource {
+  /**
+   * The status of an operation that succeeded.
+   */
+  private static final int HTTP_STATUS_NO_CONTENT = 204;
+
+  /**
+   * The status of a malformed operation.
+   */
+  private static final int HTTP_STATUS_BAD_REQUEST = 400;
+
+  /**
+   * The status of an operation the requestor is not allowed to perform.
+   */
+  private static final int HTTP_STATUS_FORBIDDEN = 403;
+
+  /**
+   * The status of an operation that failed.
+   */
+  private static final int HTTP_STATUS_INTERNAL_SERVER_ERROR = 500;
+
+  /**
+   * The security context of the HTTP request, as set up by the SecurityFilter.
+   */
+  @Context SecurityContext security;
+
+  /**
+   * The HTTP request, used to record the remote address in the audit log.
+   */
+  @Context HttpServletRequest httpServletRequest;
+
+  /**
+   * The method that is executed when the /batch resource is being requested
+   * via the HTTP POST method.
+   *
+   * @param json
+   *  A JSON-array of operations. Each operation is a JSON-object with the
+   *  attributes 'op' ('create', 'update' or 'delete'), 'user' and 'entity',
+   *  plus the optional attributes 'name' (string) and 'flags' (integer) as
+   *  accepted by the single requests.
+   * @return
+   *  A JSON-array with the result of each operation, in the order of the
+   *  operations. Each result holds the attribute 'status' with the HTTP
+   *  status code the single request would have returned, plus the
+   *  attribute 'text' describing the error if the operation failed.
+   * @throws IllegalStateException
+   *  The request is not a JSON-array.
+   * @throws SQLException
+   *  The transaction could not be committed.
+   */
+  @POST
+  public String execute(String json) throws SQLException {
+    final List<?> operations;
+    try {
+      operations = new Gson().fromJson(json, List.class);
+    } catch (JsonParseException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+    if (operations == null) {
+      throw new IllegalStateException("The request holds no operations.");
+    }
+    final List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+    Database.inTransaction(new Transaction<Void>() {
+      @Override
+      public Void run() throws SQLException {
+        for (Object op : operations) {
+          results.add(execute(op));
+        }
+        return null;
+      }
+    });
+    for (int i = 0; i < results.size(); i++) {
+      if (results.get(i).get("status").equals(HTTP_STATUS_NO_CONTENT)) {
+        audit((Map<?, ?>) operations.get(i));
+      }
+    }
+    return new GsonBuilder().disableHtmlEscaping().create().toJson(results);
+  }
+
+  /**
+   * Executes the specified operation.
+   *
+   * @param operation
+   *  The operation, as parsed from the request.
+   * @return
+   *  The result of the operation.
+   * @throws SQLException
+   *  The transaction was rolled back by the database, e.g. because of a
+   *  deadlock, so none of the operations can be committed.
+   */
+  private Map<String, Object> execute(Object operation) throws SQLException {
+    Map<String, Object> result = new LinkedHashMap<String, Object>();
+    try {
+      if (!(operation instanceof Map)) {
+        throw new IllegalArgumentException("The operation is not a JSON-object.");
+      }
+      Map<?, ?> op = (Map<?, ?>) operation;
+      String type = getString(op, "op", true);
+      String user = getString(op, "user", true);
+      String entity = getString(op, "entity", true);
+      Integer flags = getInteger(op, "flags");
+      switch (type) {
+      case "create":
+        assertAllowed(user);
+        Database.createEntity(user, entity, flags != null ? flags.intValue() : 0);
+        break;
+      case "update":
+        // Only administrators may update entities.
+        assertAdmin();
+        Database.updateEntity(user, entity, getString(op, "name", false), flags);
+        break;
+      case "delete":
+        assertAllowed(user);
+        Database.deleteEntity(user, entity);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown operation '" + type + "'.");
+      }
+      result.put("status", HTTP_STATUS_NO_CONTENT);
+    } catch (IllegalArgumentException e) {
+      result.put("status", HTTP_STATUS_BAD_REQUEST);
+      result.put("text", e.getMessage());
+    } catch (SecurityException e) {
+      result.put("status", HTTP_STATUS_FORBIDDEN);
+      result.put("text", e.getMessage());
+    } catch (IllegalStateException e) {
+      result.put("status", HTTP_STATUS_INTERNAL_SERVER_ERROR);
+      result.put("text", e.getMessage());
+    } catch (SQLException e) {
+      // Errors of class 40 roll back the whole transaction, so the results of
+      // the preceding operations would be wrong.
+      if (e.getSQLState() != null && e.getSQLState().startsWith("40")) {
+        throw e;
+      }
+      result.put("status", HTTP_STATUS_INTERNAL_SERVER_ERROR);
+      result.put("text", e.getMessage());
+    }
+    return result;
+  }
+
+  /**
+   * Gets the specified string attribute of an operation.
+   *
+   * @param op
+   *  The operation.
+   * @param key
+   *  The name of the attribute.
+   * @param required
+   *  true if the attribute must be present; Otherwise false.
+   * @return
+   *  The value of the attribute, or null if it is missing.
+   * @throws IllegalArgumentException
+   *  The attribute is not a string, or missing although required.
+   */
+  private static String getString(Map<?, ?> op, String key, boolean required) {
+    Object value = op.get(key);
+    if (value == null && !required) {
+      return null;
+    }
+    if (!(value instanceof String)) {
+      throw new IllegalArgumentException("The attribute '" + key + "' must be a string.");
+    }
+    return (String) value;
+  }
+
+  /**
+   * Gets the specified integer attribute of an operation.
+   *
+   * @param op
+   *  The operation.
+   * @param key
+   *  The name of the attribute.
+   * @return
+   *  The value of the attribute, or null if it is missing.
+   * @throws IllegalArgumentException
+   *  The attribute is not a number.
+   */
+  private static Integer getInteger(Map<?, ?> op, String key) {
+    Object value = op.get(key);
+    if (value == null) {
+      return null;
+    }
+    if (!(value instanceof Number)) {
+      throw new IllegalArgumentException("The attribute '" + key + "' must be a number.");
+    }
+    return ((Number) value).intValue();
+  }
+
+  /**
+   * Asserts that the requestor is an administrator.
+   *
+   * @throws SecurityException
+   *  The requestor is not an administrator.
+   */
+  private void assertAdmin() {
+    if (!security.isUserInRole(AuthPrincipal.ROLE_ADMIN)) {
+      throw new SecurityException("Forbidden request");
+    }
+  }
+
+  /**
+   * Asserts that the requestor is allowed to manage the entities of the user
+   * with the specified name, i.e. is an administrator or that user.
+   *
+   * @param name
+   *  The name of the user.
+   * @throws SecurityException
+   *  The requestor is not allowed to manage the user's entities.
+   */
+  private void assertAllowed(String name) {
+    if (!security.isUserInRole(AuthPrincipal.ROLE_ADMIN)
+        && !name.equals(security.getUserPrincipal().getName())) {
+      throw new SecurityException("Forbidden request");
+    }
+  }
+
+  /**
+   * Records the specified operation, which succeeded, in the audit log.
+   *
+   * @param op
+   *  The operation.
+   */
+  private void audit(Map<?, ?> op) {
+    if (!Audit.isEnabled()) {
+      return;
+    }
+    AuditEvent event;
+    if ("create".equals(op.get("op"))) {
+      event = AuditEvent.ENTITY_CREATED;
+    } else if ("update".equals(op.get("op"))) {
+      event = AuditEvent.ENTITY_UPDATED;
+    } else {
+      event = AuditEvent.ENTITY_DELETED;
+    }
+    Audit.log(event, security.getUserPrincipal().getName(), op.get("user") + "/"
+        + op.get("entity"), httpServletRequest.getRemoteAddr());
+  }
+}
@@ -0,0 +1,153 @@
+package org.timadorus.auth.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Implements a thread-safe Bloom filter for strings.
+ *
+ * A Bloom filter is a compact set representation that may report false
+ * positives but never false negatives: if mightContain returns false, the
+ * string has definitely never been added to the filter.
+ *
+ * Bits are set with compare-and-set, so the filter can be read and updated
+ * concurrently without locking.
+ *
+ * @author agent
+ */
+public class BloomFilter {
+  /**
+   * The number of bits per long word.
+   */
+  private static final int WORD_BITS = 64;
+
+  /**
+   * The bit array.
+   */
+  private final AtomicLongArray bits;
+
+  /**
+   * The number of bits in the bit array.
+   */
+  private final long numBits;
+
+  /**
+   * The number of hash functions.
+   */
+  private final int numHashes;
+
+  /**
+   * Initializes a new instance of the BloomFilter class.
+   *
+   * @param expectedInsertions
+   *  The number of strings the filter is expected to hold.
+   * @param falsePositiveRate
+   *  The desired false positive rate once the filter holds the expected
+   *  number of strings, e.g. 0.01 for 1%.
+   * @throws IllegalArgumentException
+   *  The expectedInsertions parameter is less than 1, or the
+   *  falsePositiveRate parameter is not in the range (0, 1).
+   */
+  public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+    if (expectedInsertions < 1) {
+      throw new IllegalArgumentException("expectedInsertions");
+    }
+    if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+      throw new IllegalArgumentException("falsePositiveRate");
+    }
+    double ln2 = Math.log(2);
+    long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate)
+                              / (ln2 * ln2));
+    int words = (int) Math.min(Integer.MAX_VALUE, (m + WORD_BITS - 1) / WORD_BITS);
+    this.bits = new AtomicLongArray(Math.max(1, words));
+    this.numBits = (long) bits.length() * WORD_BITS;
+    this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * ln2));
+  }
+
+  /**
+   * Adds the specified string to the filter.
+   *
+   * @param s
+   *  The string to add.
+   * @throws IllegalArgumentException
+   *  The s parameter is null.
+   */
+  public void put(String s) {
+    if (s == null) {
+      throw new IllegalArgumentException("s");
+    }
+    long h = hash(s);
+    long h1 = h;
+    long h2 = (h >>> 32) | 1L;
+    for (int i = 0; i < numHashes; i++) {
+      long index = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+      int word = (int) (index / WORD_BITS);
+      long mask = 1L << (index % WORD_BITS);
+      while (true) {
+        long old = bits.get(word);
+        if ((old & mask) != 0 || bits.compareAndSet(word, old, old | mask)) {
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Determines whether the specified string might have been added to the
+   * filter.
+   *
+   * @param s
+   *  The string to look up.
+   * @return
+   *  false if the string has definitely not been added to the filter;
+   *  true if it might have been.
+   * @throws IllegalArgumentException
+   *  The s parameter is null.
+   */
+  public boolean mightContain(String s) {
+    if (s == null) {
+      throw new IllegalArgumentException("s");
+    }
+    long h = hash(s);
+    long h1 = h;
+    long h2 = (h >>> 32) | 1L;
+    for (int i = 0; i < numHashes; i++) {
+      long index = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+      if ((bits.get((int) (index / WORD_BITS)) & (1L << (index % WORD_BITS))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Removes all strings from the filter.
+   */
+  public void clear() {
+    for (int i = 0; i < bits.length(); i++) {
+      bits.set(i, 0);
+    }
+  }
+
+  /**
+   * Computes a well-mixed 64-bit hash of the specified string (FNV-1a
+   * followed by the MurmurHash3 finalizer).
+   *
+   * @param s
+   *  The string to hash.
+   * @return
+   *  The 64-bit hash of the string.
+   */
+  private static long hash(String s) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
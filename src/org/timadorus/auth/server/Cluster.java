@@ -0,0 +1,642 @@
+package org.timadorus.auth.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.timadorus.auth.util.Metrics;
+
+/**
+ * Keeps the per-node caches of several auth-servers sharing one database
+ * consistent. Each node sends a UDP datagram to its peers when it creates,
+ * changes or deletes users, and the peers drop the affected entries from
+ * their caches.
+ *
+ * Datagrams carry the id of the sending node and a sequence number and are
+ * signed with an HMAC of a secret shared by the nodes. Forged datagrams are
+ * ignored, as are datagrams that have already been received, e.g. because
+ * they were replayed; datagrams that arrive out of order within a window of
+ * the last 64 sequence numbers are still applied. Invalidations are
+ * idempotent, and the UserCache discards users whose load overlapped an
+ * invalidation, so the order in which they arrive doesn't matter.
+ *
+ * Nodes can also send periodic heartbeats, from which the other nodes learn
+ * which of them are up, e.g. to route users away from a node that is down.
+ *
+ * UDP does not guarantee delivery. A lost datagram leaves an entry stale on
+ * a peer until the entry expires, so the lifetime of the user cache bounds
+ * the staleness in any case.
+ *
+ * @author agent
+ */
+public class Cluster {
+  /**
+   * The version of the datagram format.
+   */
+  private static final byte PROTOCOL_VERSION = 1;
+
+  /**
+   * The message type for changed users.
+   */
+  private static final byte USERS_CHANGED = 1;
+
+  /**
+   * The message type for created users.
+   */
+  private static final byte USERS_CREATED = 2;
+
+  /**
+   * The message type for deleted users.
+   */
+  private static final byte USERS_DELETED = 3;
+
+  /**
+   * The message type for the deletion of all users.
+   */
+  private static final byte CLEARED = 4;
+
+  /**
+   * The message type for the periodic sign of life of a node.
+   */
+  private static final byte HEARTBEAT = 5;
+
+  /**
+   * The size of the header: version, type, node id, sequence number and
+   * the number of names.
+   */
+  private static final int HEADER_SIZE = 1 + 1 + 8 + 8 + 2;
+
+  /**
+   * The size of the HMAC that signs a datagram.
+   */
+  private static final int MAC_SIZE = 32;
+
+  /**
+   * The size up to which names are packed into one datagram, chosen to
+   * avoid IP fragmentation.
+   */
+  private static final int MAX_DATAGRAM_SIZE = 1400;
+
+  /**
+   * The number of sequence numbers below the highest one received from a
+   * node that may still arrive out of order.
+   */
+  private static final int WINDOW_SIZE = 64;
+
+  /**
+   * The maximum number of nodes whose sequence numbers are tracked.
+   */
+  private static final int MAX_NODES = 1024;
+
+  /**
+   * The HMAC algorithm.
+   */
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+
+  /**
+   * The encoding of the names.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Logging facility.
+   */
+  private static final Logger LOG = Logger.getLogger(Cluster.class.getName());
+
+  /**
+   * The number of datagrams sent.
+   */
+  private static final AtomicLong SENT = Metrics.counter("auth_cluster_datagrams_total",
+      "Cluster datagrams by outcome.", "outcome", "sent");
+
+  /**
+   * The number of datagrams received and applied.
+   */
+  private static final AtomicLong APPLIED = Metrics.counter("auth_cluster_datagrams_total",
+      "Cluster datagrams by outcome.", "outcome", "applied");
+
+  /**
+   * The number of datagrams received more than once.
+   */
+  private static final AtomicLong DUPLICATE = Metrics.counter("auth_cluster_datagrams_total",
+      "Cluster datagrams by outcome.", "outcome", "duplicate");
+
+  /**
+   * The number of datagrams that were malformed or not properly signed.
+   */
+  private static final AtomicLong REJECTED = Metrics.counter("auth_cluster_datagrams_total",
+      "Cluster datagrams by outcome.", "outcome", "rejected");
+
+  /**
+   * The socket datagrams are sent and received on.
+   */
+  private final DatagramSocket socket;
+
+  /**
+   * The addresses of the other nodes.
+   */
+  private final List<InetSocketAddress> peers = new CopyOnWriteArrayList<InetSocketAddress>();
+
+  /**
+   * The HMAC for sent datagrams, guarded by itself.
+   */
+  private final Mac sendMac;
+
+  /**
+   * The HMAC for received datagrams, used by the receiver thread only.
+   */
+  private final Mac receiveMac;
+
+  /**
+   * The random id of this node, which distinguishes its sequence numbers
+   * from those of earlier runs.
+   */
+  private final long nodeId = new SecureRandom().nextLong();
+
+  /**
+   * The sequence number of the last datagram sent.
+   */
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * The sequence numbers received from the other nodes, used by the
+   * receiver thread only.
+   */
+  private final Map<Long, Window> windows = new HashMap<Long, Window>();
+
+  /**
+   * The names of the nodes heartbeats were received from, mapped to the
+   * time at which the last one arrived, in nanoseconds.
+   */
+  private final ConcurrentHashMap<String, Long> lastSeen = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * The callback that applies the received invalidations.
+   */
+  private final Listener listener;
+
+  /**
+   * The thread that receives datagrams.
+   */
+  private final Thread receiver;
+
+  /**
+   * The thread that sends heartbeats, or null.
+   */
+  private volatile Thread heartbeat;
+
+  /**
+   * Determines whether the cluster has been closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Initializes a new instance of the Cluster class and starts receiving
+   * datagrams.
+   *
+   * @param address
+   *  The local address to bind to, or null to bind to all interfaces.
+   * @param port
+   *  The local port to bind to, or 0 to pick a free port.
+   * @param secret
+   *  The secret shared by the nodes.
+   * @param listener
+   *  The callback that applies the invalidations received from peers.
+   * @throws IllegalArgumentException
+   *  The secret parameter is null or empty, or the listener parameter is
+   *  null.
+   * @throws SocketException
+   *  The socket could not be bound.
+   * @throws GeneralSecurityException
+   *  The HMAC algorithm is not available.
+   */
+  public Cluster(InetAddress address, int port, byte[] secret, Listener listener)
+      throws SocketException, GeneralSecurityException {
+    if (secret == null || secret.length == 0) {
+      throw new IllegalArgumentException("secret");
+    }
+    if (listener == null) {
+      throw new IllegalArgumentException("listener");
+    }
+    this.listener = listener;
+    SecretKeySpec key = new SecretKeySpec(secret, MAC_ALGORITHM);
+    sendMac = Mac.getInstance(MAC_ALGORITHM);
+    sendMac.init(key);
+    receiveMac = Mac.getInstance(MAC_ALGORITHM);
+    receiveMac.init(key);
+    socket = new DatagramSocket(new InetSocketAddress(address, port));
+    receiver = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        receive();
+      }
+    }, "cluster-receiver");
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  /**
+   * Adds a node to which invalidations are sent.
+   *
+   * @param peer
+   *  The address and port of the node.
+   * @throws IllegalArgumentException
+   *  The peer parameter is null.
+   */
+  public void addPeer(InetSocketAddress peer) {
+    if (peer == null) {
+      throw new IllegalArgumentException("peer");
+    }
+    peers.add(peer);
+  }
+
+  /**
+   * Gets the local port datagrams are received on.
+   *
+   * @return
+   *  The local port.
+   */
+  public int getPort() {
+    return socket.getLocalPort();
+  }
+
+  /**
+   * Notifies the peers that the specified users have been changed.
+   *
+   * @param names
+   *  The names of the users.
+   */
+  public void usersChanged(Collection<String> names) {
+    publish(USERS_CHANGED, names);
+  }
+
+  /**
+   * Notifies the peers that the specified users have been created.
+   *
+   * @param names
+   *  The names of the users.
+   */
+  public void usersCreated(Collection<String> names) {
+    publish(USERS_CREATED, names);
+  }
+
+  /**
+   * Notifies the peers that the specified users have been deleted.
+   *
+   * @param names
+   *  The names of the users.
+   */
+  public void usersDeleted(Collection<String> names) {
+    publish(USERS_DELETED, names);
+  }
+
+  /**
+   * Notifies the peers that all users have been deleted.
+   */
+  public void cleared() {
+    publish(CLEARED, Collections.<String>emptyList());
+  }
+
+  /**
+   * Starts sending heartbeats to the peers, so that they can tell whether
+   * this node is up.
+   *
+   * @param name
+   *  The name under which the peers know this node.
+   * @param intervalMillis
+   *  The time between two heartbeats, in milliseconds.
+   * @throws IllegalArgumentException
+   *  The name parameter is null, or the intervalMillis parameter is less
+   *  than 1.
+   * @throws IllegalStateException
+   *  Heartbeats are already being sent.
+   */
+  public synchronized void startHeartbeat(final String name, final long intervalMillis) {
+    if (name == null) {
+      throw new IllegalArgumentException("name");
+    }
+    if (intervalMillis < 1) {
+      throw new IllegalArgumentException("intervalMillis");
+    }
+    if (heartbeat != null) {
+      throw new IllegalStateException("Heartbeats are already being sent.");
+    }
+    heartbeat = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        List<String> names = Collections.singletonList(name);
+        while (!closed) {
+          publish(HEARTBEAT, names);
+          try {
+            Thread.sleep(intervalMillis);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }, "cluster-heartbeat");
+    heartbeat.setDaemon(true);
+    heartbeat.start();
+  }
+
+  /**
+   * Stops sending heartbeats, so that the peers consider this node down.
+   */
+  public synchronized void stopHeartbeat() {
+    Thread t = heartbeat;
+    if (t != null) {
+      t.interrupt();
+    }
+  }
+
+  /**
+   * Determines whether a heartbeat has recently been received from the
+   * specified node.
+   *
+   * @param name
+   *  The name of the node.
+   * @param timeoutMillis
+   *  The time after the last heartbeat at which the node is considered to
+   *  be down, in milliseconds.
+   * @return
+   *  true if the node is up; Otherwise false.
+   */
+  public boolean isAlive(String name, long timeoutMillis) {
+    Long seen = lastSeen.get(name);
+    return seen != null
+        && System.nanoTime() - seen < TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+  }
+
+  /**
+   * Stops receiving datagrams and closes the socket.
+   */
+  public void close() {
+    closed = true;
+    stopHeartbeat();
+    socket.close();
+    try {
+      receiver.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Sends a message with the specified names to all peers, split into as
+   * many datagrams as necessary.
+   *
+   * @param type
+   *  The type of the message.
+   * @param names
+   *  The names of the affected users.
+   */
+  private void publish(byte type, Collection<String> names) {
+    if (closed || peers.isEmpty()) {
+      return;
+    }
+    List<byte[]> batch = new ArrayList<byte[]>();
+    int size = HEADER_SIZE + MAC_SIZE;
+    for (String name : names) {
+      byte[] raw = name.getBytes(UTF8);
+      if (!batch.isEmpty() && size + 2 + raw.length > MAX_DATAGRAM_SIZE) {
+        send(type, batch, size);
+        batch.clear();
+        size = HEADER_SIZE + MAC_SIZE;
+      }
+      batch.add(raw);
+      size += 2 + raw.length;
+    }
+    if (!batch.isEmpty() || names.isEmpty()) {
+      send(type, batch, size);
+    }
+  }
+
+  /**
+   * Signs a datagram with the specified names and sends it to all peers.
+   *
+   * @param type
+   *  The type of the message.
+   * @param names
+   *  The UTF-8 encoded names.
+   * @param size
+   *  The size of the datagram.
+   */
+  private void send(byte type, List<byte[]> names, int size) {
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    buf.put(PROTOCOL_VERSION).put(type).putLong(nodeId).putLong(sequence.incrementAndGet());
+    buf.putShort((short) names.size());
+    for (byte[] name : names) {
+      buf.putShort((short) name.length).put(name);
+    }
+    synchronized (sendMac) {
+      sendMac.update(buf.array(), 0, buf.position());
+      buf.put(sendMac.doFinal());
+    }
+    for (InetSocketAddress peer : peers) {
+      try {
+        socket.send(new DatagramPacket(buf.array(), buf.position(), peer));
+        SENT.incrementAndGet();
+      } catch (IOException e) {
+        LOG.warning("Error sending an invalidation to " + peer + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Receives and applies datagrams until the cluster is closed.
+   */
+  private void receive() {
+    byte[] data = new byte[65536];
+    DatagramPacket packet = new DatagramPacket(data, data.length);
+    while (!closed) {
+      try {
+        packet.setLength(data.length);
+        socket.receive(packet);
+      } catch (IOException e) {
+        if (!closed) {
+          LOG.warning("Error receiving an invalidation: " + e.getMessage());
+        }
+        continue;
+      }
+      try {
+        apply(data, packet.getLength());
+      } catch (RuntimeException e) {
+        LOG.warning("Error applying an invalidation from " + packet.getSocketAddress()
+            + ": " + e);
+      }
+    }
+  }
+
+  /**
+   * Verifies the specified datagram and passes its names to the listener.
+   *
+   * @param data
+   *  The buffer holding the datagram.
+   * @param length
+   *  The length of the datagram.
+   */
+  private void apply(byte[] data, int length) {
+    if (length < HEADER_SIZE + MAC_SIZE) {
+      REJECTED.incrementAndGet();
+      return;
+    }
+    int end = length - MAC_SIZE;
+    receiveMac.update(data, 0, end);
+    if (!MessageDigest.isEqual(receiveMac.doFinal(), Arrays.copyOfRange(data, end, length))) {
+      REJECTED.incrementAndGet();
+      return;
+    }
+    ByteBuffer buf = ByteBuffer.wrap(data, 0, end);
+    byte version = buf.get();
+    byte type = buf.get();
+    long node = buf.getLong();
+    long seq = buf.getLong();
+    if (version != PROTOCOL_VERSION || node == nodeId) {
+      REJECTED.incrementAndGet();
+      return;
+    }
+    int count = buf.getShort() & 0xFFFF;
+    List<String> names = new ArrayList<String>(count);
+    for (int i = 0; i < count; i++) {
+      byte[] raw = new byte[buf.getShort() & 0xFFFF];
+      buf.get(raw);
+      names.add(new String(raw, UTF8));
+    }
+    if (!accept(node, seq)) {
+      DUPLICATE.incrementAndGet();
+      return;
+    }
+    if (type == HEARTBEAT) {
+      for (String name : names) {
+        lastSeen.put(name, System.nanoTime());
+      }
+      return;
+    }
+    APPLIED.incrementAndGet();
+    switch (type) {
+      case USERS_CHANGED:
+        listener.usersChanged(names);
+        break;
+      case USERS_CREATED:
+        listener.usersCreated(names);
+        break;
+      case USERS_DELETED:
+        listener.usersDeleted(names);
+        break;
+      case CLEARED:
+        listener.cleared();
+        break;
+      default:
+        LOG.warning("Ignoring an invalidation of unknown type " + type + ".");
+    }
+  }
+
+  /**
+   * Records the specified sequence number of the specified node.
+   *
+   * @param node
+   *  The id of the sending node.
+   * @param seq
+   *  The sequence number of the datagram.
+   * @return
+   *  true if the datagram has not been received before; Otherwise false.
+   */
+  private boolean accept(long node, long seq) {
+    Window w = windows.get(node);
+    if (w == null) {
+      if (windows.size() >= MAX_NODES) {
+        windows.clear();
+      }
+      w = new Window();
+      w.highest = seq;
+      w.seen = 1;
+      windows.put(node, w);
+      return true;
+    }
+    if (seq > w.highest) {
+      long shift = seq - w.highest;
+      w.seen = shift >= WINDOW_SIZE ? 1 : (w.seen << shift) | 1;
+      w.highest = seq;
+      return true;
+    }
+    long age = w.highest - seq;
+    if (age >= WINDOW_SIZE || (w.seen & (1L << age)) != 0) {
+      return false;
+    }
+    w.seen |= 1L << age;
+    return true;
+  }
+
+  /**
+   * Applies the invalidations received from other nodes.
+   */
+  public interface Listener {
+    /**
+     * Called when users have been changed on another node.
+     *
+     * @param names
+     *  The names of the users.
+     */
+    void usersChanged(List<String> names);
+
+    /**
+     * Called when users have been created on another node.
+     *
+     * @param names
+     *  The names of the users.
+     */
+    void usersCreated(List<String> names);
+
+    /**
+     * Called when users have been deleted on another node.
+     *
+     * @param names
+     *  The names of the users.
+     */
+    void usersDeleted(List<String> names);
+
+    /**
+     * Called when all users have been deleted on another node.
+     */
+    void cleared();
+  }
+
+  /**
+   * The sequence numbers received from one node.
+   */
+  private static final class Window {
+    /**
+     * The highest sequence number received.
+     */
+    private long highest;
+
+    /**
+     * A bit for each of the sequence numbers below and including the
+     * highest one, set if the sequence number has been received.
+     */
+    private long seen;
+  }
+}
@@ -0,0 +1,226 @@
+package org.timadorus.auth.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MultivaluedMap;
+
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+
+/**
+ * Implements an HTTP-Response filter that compresses the JSON responses of
+ * the resources with gzip or deflate, as negotiated with the client through
+ * the 'Accept-Encoding' header.
+ *
+ * Only responses of at least the configured threshold size are compressed,
+ * since compressing small responses costs more CPU time than it saves on
+ * the wire. Streamed responses, such as the account archive, are left
+ * as they are.
+ *
+ * @author
+ *  agent
+ */
+public class CompressionFilter implements ContainerResponseFilter {
+  /**
+   * The default size in bytes from which responses are compressed.
+   */
+  public static final int DEFAULT_THRESHOLD = 1024;
+
+  /**
+   * The encoding of the JSON responses.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The size in bytes from which responses are compressed, or -1 if
+   * responses are never compressed.
+   */
+  private static volatile int threshold = DEFAULT_THRESHOLD;
+
+  /**
+   * The compression level, from 1 to 9, or -1 for the default level.
+   */
+  private static volatile int level = Deflater.DEFAULT_COMPRESSION;
+
+  /**
+   * A GZIP output-stream with a configurable compression level.
+   */
+  private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+    /**
+     * Initializes a new instance of the LeveledGZIPOutputStream class.
+     *
+     * @param out
+     *  The stream to write the compressed data to.
+     * @param level
+     *  The compression level.
+     * @throws IOException
+     *  The GZIP header could not be written.
+     */
+    public LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+      super(out);
+      def.setLevel(level);
+    }
+  }
+
+  /**
+   * Sets the size from which responses are compressed and the compression
+   * level.
+   *
+   * @param threshold
+   *  The size in bytes from which responses are compressed, or -1 to never
+   *  compress responses.
+   * @param level
+   *  The compression level, from 1 (fastest) to 9 (smallest), or -1 for the
+   *  default level.
+   * @throws IllegalArgumentException
+   *  The threshold parameter is less than -1, or the level parameter is not
+   *  a valid compression level.
+   */
+  public static void configure(int threshold, int level) {
+    if (threshold < -1) {
+      throw new IllegalArgumentException("threshold");
+    }
+    if (level != Deflater.DEFAULT_COMPRESSION
+        && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+      throw new IllegalArgumentException("level");
+    }
+    CompressionFilter.threshold = threshold;
+    CompressionFilter.level = level;
+  }
+
+  @Override
+  public ContainerResponse filter(ContainerRequest request, ContainerResponse response) {
+    Object entity = response.getEntity();
+    MultivaluedMap<String, Object> headers = response.getHttpHeaders();
+    if (!(entity instanceof String) || headers.containsKey("Content-Encoding")) {
+      return response;
+    }
+    byte[] data = ((String) entity).getBytes(UTF8);
+    int minSize = threshold;
+    if (minSize < 0 || data.length < minSize) {
+      return response;
+    }
+    // The response depends on the request's encodings from here on, so
+    // caches must not hand a compressed response to other clients.
+    headers.add("Vary", "Accept-Encoding");
+    String encoding = negotiate(request.getHeaderValue("Accept-Encoding"));
+    if (encoding == null) {
+      return response;
+    }
+    try {
+      response.setEntity(encode(data, encoding, level));
+    } catch (IOException e) {
+      // Writing to memory doesn't fail.
+      throw new IllegalStateException(e);
+    }
+    headers.putSingle("Content-Encoding", encoding);
+    // The compressed bytes differ from the uncompressed ones, so the
+    // entity-tag can only claim weak equivalence. Conditional GET requests
+    // compare entity-tags weakly and still match.
+    Object tag = headers.getFirst("ETag");
+    if (tag instanceof EntityTag && !((EntityTag) tag).isWeak()) {
+      headers.putSingle("ETag", new EntityTag(((EntityTag) tag).getValue(), true));
+    }
+    return response;
+  }
+
+  /**
+   * Chooses the encoding of a response from the value of the request's
+   * 'Accept-Encoding' header. gzip is preferred over deflate if the client
+   * accepts both.
+   *
+   * @param acceptEncoding
+   *  The value of the 'Accept-Encoding' header, or null.
+   * @return
+   *  "gzip", "deflate", or null if the response is not to be compressed.
+   */
+  public static String negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    // Codings that are not listed are accepted only through '*'.
+    Boolean gzip = null;
+    Boolean deflate = null;
+    boolean any = false;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim().toLowerCase();
+      boolean accepted = true;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            accepted = Double.parseDouble(param.substring(2)) > 0;
+          } catch (NumberFormatException e) {
+            accepted = false;
+          }
+        }
+      }
+      if ("gzip".equals(name) || "x-gzip".equals(name)) {
+        gzip = accepted;
+      } else if ("deflate".equals(name)) {
+        deflate = accepted;
+      } else if ("*".equals(name)) {
+        any = accepted;
+      }
+    }
+    if (gzip != null ? gzip.booleanValue() : any) {
+      return "gzip";
+    }
+    if (deflate != null ? deflate.booleanValue() : any) {
+      return "deflate";
+    }
+    return null;
+  }
+
+  /**
+   * Compresses the specified data with the specified encoding.
+   *
+   * @param data
+   *  The data to compress.
+   * @param encoding
+   *  The encoding, either "gzip" or "deflate". The deflate encoding is the
+   *  zlib format, as defined for HTTP.
+   * @param level
+   *  The compression level, from 1 to 9, or -1 for the default level.
+   * @return
+   *  The compressed data.
+   * @throws IOException
+   *  The data could not be compressed.
+   * @throws IllegalArgumentException
+   *  The data parameter is null, or the encoding parameter is not a
+   *  supported encoding.
+   */
+  public static byte[] encode(byte[] data, String encoding, int level) throws IOException {
+    if (data == null) {
+      throw new IllegalArgumentException("data");
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+    if ("gzip".equals(encoding)) {
+      GZIPOutputStream out = new LeveledGZIPOutputStream(bytes, level);
+      out.write(data);
+      out.close();
+    } else if ("deflate".equals(encoding)) {
+      Deflater deflater = new Deflater(level);
+      try {
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+        out.write(data);
+        out.close();
+      } finally {
+        // A deflater passed to the stream is not released by the stream.
+        deflater.end();
+      }
+    } else {
+      throw new IllegalArgumentException("encoding");
+    }
+    return bytes.toByteArray();
+  }
+}
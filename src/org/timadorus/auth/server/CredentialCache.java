@@ -0,0 +1,744 @@
+package org.timadorus.auth.server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.timadorus.auth.util.Crypto;
+
+/**
+ * Keeps the credentials of recently authenticated users, i.e. their ids,
+ * flags and decoded password hashes, in direct memory outside of the Java
+ * heap, so that millions of cached users neither add objects the garbage
+ * collector has to trace nor lengthen its pauses.
+ *
+ * The cache is an open-addressing hash table with linear probing, split into
+ * segments by the hash of the username. Each segment is a direct buffer of
+ * fixed-size slots; writers lock the segment, while readers take no lock and
+ * don't allocate: every slot has a sequence number that writers make odd
+ * while they modify the slot, and a reader only accepts a slot whose
+ * sequence number was even and unchanged across the read.
+ *
+ * Users whose names or hashes don't fit into a slot are not cached. Entries
+ * expire and are invalidated like those of the UserCache class.
+ *
+ * @author agent
+ */
+public class CredentialCache {
+  /**
+   * The maximum length of a cached username, in characters.
+   */
+  public static final int MAX_NAME_LENGTH = 48;
+
+  /**
+   * The maximum length of a cached salt or hash, in bytes.
+   */
+  public static final int MAX_HASH_LENGTH = 32;
+
+  /**
+   * The number of segments, a power of two.
+   */
+  private static final int SEGMENTS = 16;
+
+  /**
+   * The number of bits of the hash that select the segment.
+   */
+  private static final int SEGMENT_BITS = 4;
+
+  /**
+   * The minimum number of slots of a segment.
+   */
+  private static final int MIN_SLOTS = 16;
+
+  /**
+   * The state of a slot that has never been used.
+   */
+  private static final byte FREE = 0;
+
+  /**
+   * The state of a slot that holds an entry.
+   */
+  private static final byte USED = 1;
+
+  /**
+   * The state of a slot whose entry has been removed.
+   */
+  private static final byte DELETED = 2;
+
+  // The layout of a slot.
+  private static final int STATE = 0;
+
+  private static final int ADMIN = 1;
+
+  private static final int SALT_LENGTH = 2;
+
+  private static final int HASH_LENGTH = 3;
+
+  private static final int NAME_HASH = 4;
+
+  private static final int ID = 8;
+
+  private static final int FLAGS = 12;
+
+  private static final int ITERATIONS = 16;
+
+  private static final int NAME_LENGTH = 20;
+
+  private static final int EXPIRES = 24;
+
+  private static final int SALT = 32;
+
+  private static final int HASH = SALT + MAX_HASH_LENGTH;
+
+  private static final int NAME = HASH + MAX_HASH_LENGTH;
+
+  private static final int SLOT_SIZE = NAME + 2 * MAX_NAME_LENGTH;
+
+  /**
+   * The segments of the table.
+   */
+  private final Segment[] segments = new Segment[SEGMENTS];
+
+  /**
+   * The number of removals, see getVersion.
+   */
+  private final AtomicLong version = new AtomicLong();
+
+  /**
+   * The lifetime of an entry, in nanoseconds.
+   */
+  private final long ttl;
+
+  /**
+   * Initializes a new instance of the CredentialCache class.
+   *
+   * @param capacity
+   *  The maximum number of users to cache. The cache allocates about 200
+   *  bytes of direct memory per user up front.
+   * @param ttlMillis
+   *  The lifetime of an entry, in milliseconds.
+   * @throws IllegalArgumentException
+   *  The capacity parameter is negative, or the ttlMillis parameter is
+   *  negative.
+   */
+  public CredentialCache(int capacity, long ttlMillis) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("capacity");
+    }
+    if (ttlMillis < 0) {
+      throw new IllegalArgumentException("ttlMillis");
+    }
+    // Keep the load factor of each segment at or below 3/4.
+    long perSegment = ((long) capacity + SEGMENTS - 1) / SEGMENTS;
+    int slots = MIN_SLOTS;
+    while (slots < perSegment * 4 / 3 + 1) {
+      slots <<= 1;
+    }
+    if ((long) slots * SLOT_SIZE > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("capacity");
+    }
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(slots, (int) perSegment);
+    }
+    this.ttl = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+  }
+
+  /**
+   * Gets the cached credentials of the specified user without allocating
+   * memory on the heap.
+   *
+   * @param name
+   *  The name of the user.
+   * @param out
+   *  The credentials to fill in.
+   * @return
+   *  true if the credentials of the user were found; Otherwise false, e.g.
+   *  if the user is not cached, the entry has expired or was being modified
+   *  concurrently.
+   * @throws IllegalArgumentException
+   *  The name parameter is null, or the out parameter is null.
+   */
+  public boolean get(String name, Credentials out) {
+    if (name == null) {
+      throw new IllegalArgumentException("name");
+    }
+    if (out == null) {
+      throw new IllegalArgumentException("out");
+    }
+    if (name.length() > MAX_NAME_LENGTH) {
+      return false;
+    }
+    int h = hash(name);
+    return segmentFor(h).get(name, h, out, System.nanoTime());
+  }
+
+  /**
+   * Gets the number of removals so far. A user loaded from the database is
+   * only cached if no removal has happened since the load began, so that an
+   * update running concurrently with the load can't leave stale data behind.
+   *
+   * @return
+   *  The version to pass to put.
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Adds the credentials of the specified user to the cache, unless the
+   * cache is full, the user doesn't fit into a slot or an entry has been
+   * removed since the specified version was obtained.
+   *
+   * @param user
+   *  The user to cache.
+   * @param loadVersion
+   *  The version obtained with getVersion before the user was loaded.
+   * @throws IllegalArgumentException
+   *  The user parameter is null.
+   */
+  public void put(User user, long loadVersion) {
+    if (user == null) {
+      throw new IllegalArgumentException("user");
+    }
+    String name = user.getName();
+    if (name.length() > MAX_NAME_LENGTH) {
+      return;
+    }
+    Credentials c = new Credentials();
+    if (!c.load(user) || c.salt.length > MAX_HASH_LENGTH || c.hash.length > MAX_HASH_LENGTH) {
+      return;
+    }
+    int h = hash(name);
+    Segment s = segmentFor(h);
+    if (version.get() != loadVersion) {
+      return;
+    }
+    s.put(name, h, c, System.nanoTime() + ttl);
+    // Undo the put if a removal slipped in after the check.
+    if (version.get() != loadVersion) {
+      s.remove(name, h);
+    }
+  }
+
+  /**
+   * Removes the specified user from the cache, e.g. because it has been
+   * modified or deleted.
+   *
+   * @param name
+   *  The name of the user.
+   * @throws IllegalArgumentException
+   *  The name parameter is null.
+   */
+  public void remove(String name) {
+    if (name == null) {
+      throw new IllegalArgumentException("name");
+    }
+    version.incrementAndGet();
+    if (name.length() <= MAX_NAME_LENGTH) {
+      int h = hash(name);
+      segmentFor(h).remove(name, h);
+    }
+  }
+
+  /**
+   * Removes all users from the cache.
+   */
+  public void clear() {
+    version.incrementAndGet();
+    for (Segment s : segments) {
+      s.clear();
+    }
+  }
+
+  /**
+   * Gets the number of cached users.
+   *
+   * @return
+   *  The number of cached users, including expired ones not yet removed.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment s : segments) {
+      size += s.size;
+    }
+    return size;
+  }
+
+  /**
+   * Gets the segment of the specified hash.
+   *
+   * @param h
+   *  The hash of a username.
+   * @return
+   *  The segment.
+   */
+  private Segment segmentFor(int h) {
+    return segments[h >>> (Integer.SIZE - SEGMENT_BITS)];
+  }
+
+  /**
+   * Computes the hash of the specified username. The hash code of the
+   * string is cached by the string itself and spread, so that both the
+   * high bits selecting the segment and the low bits selecting the slot
+   * are well distributed.
+   *
+   * @param name
+   *  The username.
+   * @return
+   *  The hash.
+   */
+  private static int hash(String name) {
+    int h = name.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * The credentials of a user, filled in by the get method. An instance can
+   * be reused for any number of lookups, e.g. one per thread.
+   */
+  public static final class Credentials {
+    /**
+     * The id of the user.
+     */
+    private int id;
+
+    /**
+     * The flags set on the user.
+     */
+    private int flags;
+
+    /**
+     * Determines whether the user is an administrator.
+     */
+    private boolean admin;
+
+    /**
+     * The iteration count of the password hash.
+     */
+    private int iterations;
+
+    /**
+     * The salt of the password hash.
+     */
+    private byte[] salt = new byte[Crypto.SALT_BYTE_SIZE];
+
+    /**
+     * The password hash.
+     */
+    private byte[] hash = new byte[Crypto.HASH_BYTE_SIZE];
+
+    /**
+     * Sets the credentials to those of the specified user.
+     *
+     * @param user
+     *  The user.
+     * @return
+     *  true if the password hash of the user could be decoded; Otherwise
+     *  false.
+     * @throws IllegalArgumentException
+     *  The user parameter is null.
+     */
+    public boolean load(User user) {
+      if (user == null) {
+        throw new IllegalArgumentException("user");
+      }
+      String[] params = user.getHash().split(":");
+      if (params.length <= Crypto.PBKDF2_INDEX) {
+        return false;
+      }
+      try {
+        iterations = Integer.parseInt(params[Crypto.ITERATION_INDEX]);
+        salt = Crypto.fromHex(params[Crypto.SALT_INDEX]);
+        hash = Crypto.fromHex(params[Crypto.PBKDF2_INDEX]);
+      } catch (NumberFormatException e) {
+        return false;
+      }
+      id = user.getId();
+      flags = user.getFlags();
+      admin = user.isAdmin();
+      return true;
+    }
+
+    /**
+     * Gets the id of the user.
+     *
+     * @return
+     *  The id of the user.
+     */
+    public int getId() {
+      return id;
+    }
+
+    /**
+     * Gets the flags set on the user.
+     *
+     * @return
+     *  The flags set on the user.
+     */
+    public int getFlags() {
+      return flags;
+    }
+
+    /**
+     * Gets whether the user is an administrator.
+     *
+     * @return
+     *  true if the user is an administrator; Otherwise false.
+     */
+    public boolean isAdmin() {
+      return admin;
+    }
+
+    /**
+     * Gets the iteration count of the password hash.
+     *
+     * @return
+     *  The iteration count.
+     */
+    public int getIterations() {
+      return iterations;
+    }
+
+    /**
+     * Gets the salt of the password hash. The array is reused by later
+     * lookups.
+     *
+     * @return
+     *  The salt.
+     */
+    public byte[] getSalt() {
+      return salt;
+    }
+
+    /**
+     * Gets the password hash. The array is reused by later lookups.
+     *
+     * @return
+     *  The password hash.
+     */
+    public byte[] getHash() {
+      return hash;
+    }
+  }
+
+  /**
+   * A segment of the table, locked by its writers.
+   */
+  private static final class Segment {
+    /**
+     * The slots.
+     */
+    private final ByteBuffer slots;
+
+    /**
+     * The sequence numbers of the slots. A writer increments the sequence
+     * number of a slot before and after modifying the slot.
+     */
+    private final AtomicIntegerArray seqs;
+
+    /**
+     * The mask selecting a slot from a hash.
+     */
+    private final int mask;
+
+    /**
+     * The maximum number of entries.
+     */
+    private final int capacity;
+
+    /**
+     * The maximum number of slots that are not free, including deleted
+     * slots, before the segment is rebuilt.
+     */
+    private final int maxUsed;
+
+    /**
+     * The number of slots that are not free, including deleted slots.
+     */
+    private int used;
+
+    /**
+     * The number of entries.
+     */
+    private volatile int size;
+
+    /**
+     * Initializes a new instance of the Segment class.
+     *
+     * @param numSlots
+     *  The number of slots, a power of two.
+     * @param capacity
+     *  The maximum number of entries.
+     */
+    private Segment(int numSlots, int capacity) {
+      slots = ByteBuffer.allocateDirect(numSlots * SLOT_SIZE).order(ByteOrder.nativeOrder());
+      seqs = new AtomicIntegerArray(numSlots);
+      mask = numSlots - 1;
+      this.capacity = capacity;
+      maxUsed = numSlots * 3 / 4;
+    }
+
+    /**
+     * Looks up the specified user.
+     *
+     * @param name
+     *  The name of the user.
+     * @param h
+     *  The hash of the name.
+     * @param out
+     *  The credentials to fill in.
+     * @param now
+     *  The current time, in nanoseconds.
+     * @return
+     *  true if the user was found; Otherwise false.
+     */
+    private boolean get(String name, int h, Credentials out, long now) {
+      for (int n = 0; n <= mask; n++) {
+        int i = (h + n) & mask;
+        int seq = seqs.get(i);
+        if ((seq & 1) != 0) {
+          // The slot is being modified; treat it as a miss rather than wait.
+          return false;
+        }
+        int off = i * SLOT_SIZE;
+        byte state = slots.get(off + STATE);
+        if (state == FREE) {
+          return false;
+        }
+        if (state != USED || !matches(off, name, h)) {
+          continue;
+        }
+        boolean live = slots.getLong(off + EXPIRES) - now > 0;
+        out.id = slots.getInt(off + ID);
+        out.flags = slots.getInt(off + FLAGS);
+        out.admin = slots.get(off + ADMIN) != 0;
+        out.iterations = slots.getInt(off + ITERATIONS);
+        out.salt = read(off + SALT, slots.get(off + SALT_LENGTH), out.salt);
+        out.hash = read(off + HASH, slots.get(off + HASH_LENGTH), out.hash);
+        // A compare-and-set, unlike a plain read, keeps the reads of the slot
+        // above from being reordered after the check of the sequence number.
+        return live && seqs.compareAndSet(i, seq, seq);
+      }
+      return false;
+    }
+
+    /**
+     * Adds or replaces the entry of the specified user.
+     *
+     * @param name
+     *  The name of the user.
+     * @param h
+     *  The hash of the name.
+     * @param c
+     *  The credentials of the user.
+     * @param expires
+     *  The time at which the entry expires, in nanoseconds.
+     */
+    private synchronized void put(String name, int h, Credentials c, long expires) {
+      int i = find(name, h);
+      if (i < 0) {
+        if (size >= capacity || used >= maxUsed) {
+          rebuild(System.nanoTime());
+          if (size >= capacity) {
+            return;
+          }
+        }
+        i = insertionSlot(h);
+        if (slots.get(i * SLOT_SIZE + STATE) == FREE) {
+          used++;
+        }
+        size++;
+      }
+      int off = i * SLOT_SIZE;
+      seqs.incrementAndGet(i);
+      slots.put(off + STATE, USED);
+      slots.put(off + ADMIN, (byte) (c.admin ? 1 : 0));
+      slots.put(off + SALT_LENGTH, (byte) c.salt.length);
+      slots.put(off + HASH_LENGTH, (byte) c.hash.length);
+      slots.putInt(off + NAME_HASH, h);
+      slots.putInt(off + ID, c.id);
+      slots.putInt(off + FLAGS, c.flags);
+      slots.putInt(off + ITERATIONS, c.iterations);
+      slots.putInt(off + NAME_LENGTH, name.length());
+      slots.putLong(off + EXPIRES, expires);
+      for (int j = 0; j < c.salt.length; j++) {
+        slots.put(off + SALT + j, c.salt[j]);
+      }
+      for (int j = 0; j < c.hash.length; j++) {
+        slots.put(off + HASH + j, c.hash[j]);
+      }
+      for (int j = 0; j < name.length(); j++) {
+        slots.putChar(off + NAME + 2 * j, name.charAt(j));
+      }
+      seqs.incrementAndGet(i);
+    }
+
+    /**
+     * Removes the entry of the specified user, if any.
+     *
+     * @param name
+     *  The name of the user.
+     * @param h
+     *  The hash of the name.
+     */
+    private synchronized void remove(String name, int h) {
+      int i = find(name, h);
+      if (i >= 0) {
+        setState(i, DELETED);
+        size--;
+      }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    private synchronized void clear() {
+      for (int i = 0; i <= mask; i++) {
+        if (slots.get(i * SLOT_SIZE + STATE) != FREE) {
+          setState(i, FREE);
+        }
+      }
+      used = 0;
+      size = 0;
+    }
+
+    /**
+     * Finds the slot of the specified user.
+     *
+     * @param name
+     *  The name of the user.
+     * @param h
+     *  The hash of the name.
+     * @return
+     *  The index of the slot, or -1 if the user has no entry.
+     */
+    private int find(String name, int h) {
+      for (int n = 0; n <= mask; n++) {
+        int i = (h + n) & mask;
+        int off = i * SLOT_SIZE;
+        byte state = slots.get(off + STATE);
+        if (state == FREE) {
+          return -1;
+        }
+        if (state == USED && matches(off, name, h)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Finds the slot for a new entry with the specified hash, reusing the
+     * first deleted slot of the probe sequence.
+     *
+     * @param h
+     *  The hash of the name.
+     * @return
+     *  The index of a free or deleted slot.
+     */
+    private int insertionSlot(int h) {
+      int i = h & mask;
+      while (slots.get(i * SLOT_SIZE + STATE) == USED) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    /**
+     * Drops expired entries and deleted slots by reinserting the remaining
+     * entries into an emptied table. Lookups running concurrently may miss
+     * entries, which only sends them to the database.
+     *
+     * @param now
+     *  The current time, in nanoseconds.
+     */
+    private void rebuild(long now) {
+      byte[] live = new byte[size * SLOT_SIZE];
+      ByteBuffer view = slots.duplicate();
+      int count = 0;
+      for (int i = 0; i <= mask; i++) {
+        int off = i * SLOT_SIZE;
+        if (slots.get(off + STATE) == USED && slots.getLong(off + EXPIRES) - now > 0) {
+          view.position(off);
+          view.get(live, count * SLOT_SIZE, SLOT_SIZE);
+          count++;
+        }
+      }
+      clear();
+      ByteBuffer copy = ByteBuffer.wrap(live).order(slots.order());
+      for (int k = 0; k < count; k++) {
+        int i = insertionSlot(copy.getInt(k * SLOT_SIZE + NAME_HASH));
+        seqs.incrementAndGet(i);
+        view.position(i * SLOT_SIZE);
+        view.put(live, k * SLOT_SIZE, SLOT_SIZE);
+        seqs.incrementAndGet(i);
+      }
+      used = count;
+      size = count;
+    }
+
+    /**
+     * Sets the state of the specified slot.
+     *
+     * @param i
+     *  The index of the slot.
+     * @param state
+     *  The new state.
+     */
+    private void setState(int i, byte state) {
+      seqs.incrementAndGet(i);
+      slots.put(i * SLOT_SIZE + STATE, state);
+      seqs.incrementAndGet(i);
+    }
+
+    /**
+     * Determines whether the slot at the specified offset holds the entry
+     * of the specified user.
+     *
+     * @param off
+     *  The offset of the slot.
+     * @param name
+     *  The name of the user.
+     * @param h
+     *  The hash of the name.
+     * @return
+     *  true if the slot holds the entry of the user; Otherwise false.
+     */
+    private boolean matches(int off, String name, int h) {
+      if (slots.getInt(off + NAME_HASH) != h || slots.getInt(off + NAME_LENGTH) != name.length()) {
+        return false;
+      }
+      for (int j = 0; j < name.length(); j++) {
+        if (slots.getChar(off + NAME + 2 * j) != name.charAt(j)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Copies bytes of a slot into the specified array, which is replaced
+     * only if its length differs.
+     *
+     * @param off
+     *  The offset of the bytes.
+     * @param length
+     *  The number of bytes.
+     * @param array
+     *  The array to reuse.
+     * @return
+     *  The array holding the bytes.
+     */
+    private byte[] read(int off, int length, byte[] array) {
+      // The length of a slot being modified may be garbage.
+      int n = Math.min(length & 0xFF, MAX_HASH_LENGTH);
+      byte[] a = array.length == n ? array : new byte[n];
+      for (int j = 0; j < n; j++) {
+        a[j] = slots.get(off + j);
+      }
+      return a;
+    }
+  }
+}
@@ -1,39 +1,60 @@
 package org.timadorus.auth.server;
 
-import java.sql.Connection;
-import java.sql.DatabaseMetaData;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.dbcp2.BasicDataSource;
-import org.timadorus.auth.util.Crypto;
-
 /**
  * Provides an easy-to-use API for accessing and managing the auth database
  * tables.
  * 
- * The SQL dialect used is the Apache Derby SQL dialect. If, at some point,
- * another database provider is to be used, the SQL statements in this class
- * must be altered accordingly.
+ * The actual work is delegated to an implementation of the AuthStore
+ * interface. By default, this is a JdbcAuthStore that uses the SQL dialect
+ * matching the configured connection-string (Apache Derby or H2).
  * 
  * @author Torben Könke
  */
 public final class Database {
   /**
-   * The datasource.
+   * The store the calls are delegated to.
    */
-  private static final BasicDataSource DATA_SOURCE = new BasicDataSource();
-
+  private static volatile AuthStore store;
+  
+  /**
+   * The cache of unknown usernames, or null if the cache is disabled.
+   */
+  private static volatile UnknownUserCache unknownUsers;
+  
+  /**
+   * The cache of unknown usernames that is currently being populated, if any.
+   */
+  private static volatile UnknownUserCache loadingUsers;
+  
+  /**
+   * The cache of recently used users, or null if the cache is disabled.
+   */
+  private static volatile UserCache userCache;
+  
+  /**
+   * The off-heap cache of user credentials, or null if the cache is disabled.
+   */
+  private static volatile CredentialCache credentialCache;
+  
   /**
-   * The prefix to use for the database tables.
+   * The cluster notified of changes to users, or null.
    */
-  private static String prefix = "";
+  private static volatile Cluster cluster;
+  
+  /**
+   * The cache updates and cluster notifications to apply once the
+   * transaction of the current thread has committed, or null if the thread
+   * is not in a transaction.
+   */
+  private static final ThreadLocal<List<Runnable>> AFTER_COMMIT =
+      new ThreadLocal<List<Runnable>>();
   
   /**
    * Make CheckStyle happy.
@@ -61,36 +82,251 @@ public final class Database {
     if (connectionString == null) {
       throw new IllegalArgumentException("connectionString");
     }
-    DATA_SOURCE.setDriverClassName(className);
-    DATA_SOURCE.setUrl(connectionString);
-    if (prefix != null) {
-      Database.prefix = prefix;
+    setStore(new JdbcAuthStore(className, connectionString, prefix,
+                               getDialect(connectionString)));
+  }
+
+  /**
+   * Returns the SQL dialect for the database with the specified
+   * connection-string.
+   * 
+   * @param connectionString
+   *          The connection-string for the database.
+   * @return The SQL dialect of the database.
+   */
+  public static SqlDialect getDialect(String connectionString) {
+    if (connectionString.trim().startsWith("jdbc:h2:")) {
+      return new H2Dialect();
     }
+    return new DerbyDialect();
   }
 
   /**
-   * Determines whether the configured database settings are valid.
+   * Sets the store the database class delegates to, e.g. an instance of the
+   * MemoryAuthStore class for tests and benchmarks.
    * 
-   * @return true if connections to the database can be established;
-   *         Otherwise false.
+   * The caches hold users of the previous store, so the caches of users and
+   * credentials are cleared, and the cache of unknown usernames, which would
+   * have to be populated from the new store, is disabled.
+   * 
+   * @param store
+   *          The store to use.
+   * @throws IllegalArgumentException
+   *           The store parameter is null.
    */
-  public static boolean testConnection() {
-    Connection con = null;
+  public static void setStore(AuthStore store) {
+    if (store == null) {
+      throw new IllegalArgumentException("store");
+    }
+    Database.store = store;
+    unknownUsers = null;
+    UserCache users = userCache;
+    if (users != null) {
+      users.clear();
+    }
+    CredentialCache credentials = credentialCache;
+    if (credentials != null) {
+      credentials.clear();
+    }
+  }
+
+  /**
+   * Gets the store the database class delegates to.
+   * 
+   * @return The store.
+   * @throws IllegalStateException
+   *           The database class has not been initialized.
+   */
+  public static AuthStore getStore() {
+    AuthStore s = store;
+    if (s == null) {
+      throw new IllegalStateException("The database has not been initialized.");
+    }
+    return s;
+  }
+
+  /**
+   * Releases the resources held by the store, e.g. the pooled connections.
+   * 
+   * @throws SQLException
+   *           The store could not be closed.
+   */
+  public static void close() throws SQLException {
+    AuthStore s = store;
+    if (s != null) {
+      s.close();
+    }
+  }
+
+  /**
+   * Enables the cache of unknown usernames. The cache is populated with the
+   * names of all existing users before it is put to use.
+   * 
+   * @param cache
+   *          The cache to use, or null to disable the cache.
+   * @throws SQLException
+   *           The connection to the database could not be established, or
+   *           another database-related error occurred.
+   */
+  public static void enableUnknownUserCache(UnknownUserCache cache) throws SQLException {
+    if (cache == null) {
+      unknownUsers = null;
+      return;
+    }
+    // Users created while the names are being loaded are added to the cache
+    // by createUser, so none of them is missed.
+    loadingUsers = cache;
     try {
-      con = getConnection();
-      return true;
-    } catch (Exception e) {
-      return false;
+      for (String name : getStore().listUsers(null)) {
+        cache.addUser(name);
+      }
+      unknownUsers = cache;
     } finally {
-      try {
-        if (con != null) {
-          con.close();
+      loadingUsers = null;
+    }
+  }
+
+  /**
+   * Enables the cache of recently used users.
+   * 
+   * @param cache
+   *          The cache to use, or null to disable the cache.
+   */
+  public static void enableUserCache(UserCache cache) {
+    userCache = cache;
+  }
+
+  /**
+   * Gets the cache of recently used users.
+   * 
+   * @return The cache of recently used users, or null if the cache is
+   *         disabled.
+   */
+  public static UserCache getUserCache() {
+    return userCache;
+  }
+
+  /**
+   * Enables the off-heap cache of user credentials used by getCredentials.
+   * 
+   * @param cache
+   *          The cache to use, or null to disable the cache.
+   */
+  public static void enableCredentialCache(CredentialCache cache) {
+    credentialCache = cache;
+  }
+
+  /**
+   * Gets the off-heap cache of user credentials.
+   * 
+   * @return The cache of user credentials, or null if the cache is disabled.
+   */
+  public static CredentialCache getCredentialCache() {
+    return credentialCache;
+  }
+
+  /**
+   * Sets the cluster whose nodes are notified when users are created,
+   * changed or deleted, so that they can drop the users from their caches.
+   * 
+   * @param cluster
+   *          The cluster, or null to disable notifications.
+   */
+  public static void setCluster(Cluster cluster) {
+    Database.cluster = cluster;
+  }
+
+  /**
+   * Gets the cluster whose nodes are notified when users are changed.
+   * 
+   * @return The cluster, or null if notifications are disabled.
+   */
+  public static Cluster getCluster() {
+    return cluster;
+  }
+
+  /**
+   * Returns a listener that applies the changes made by other nodes of a
+   * cluster to the caches of this node.
+   * 
+   * @return A listener for the Cluster class.
+   */
+  static Cluster.Listener getClusterListener() {
+    return new Cluster.Listener() {
+      @Override
+      public void usersChanged(List<String> names) {
+        for (String name : names) {
+          removeCachedUser(name);
         }
-      } catch (SQLException e) {
       }
+
+      @Override
+      public void usersCreated(List<String> names) {
+        for (String name : names) {
+          addKnownUser(name);
+        }
+      }
+
+      @Override
+      public void usersDeleted(List<String> names) {
+        UnknownUserCache cache = unknownUsers;
+        for (String name : names) {
+          removeCachedUser(name);
+          if (cache != null) {
+            cache.removeUser(name);
+          }
+        }
+      }
+
+      @Override
+      public void cleared() {
+        clearCaches();
+      }
+    };
+  }
+
+  /**
+   * Determines whether the specified user is known not to exist, without
+   * querying the database.
+   * 
+   * @param username
+   *          The name of the user to look up.
+   * @return true if the user definitely does not exist; false if the user
+   *         might exist or the cache of unknown usernames is disabled.
+   */
+  public static boolean isUnknownUser(String username) {
+    UnknownUserCache cache = unknownUsers;
+    return cache != null && cache.isUnknown(username);
+  }
+
+  /**
+   * Records that a lookup for the specified user found no such user.
+   * 
+   * @param cache
+   *          The cache of unknown usernames in use when the lookup began, or
+   *          null if the cache is disabled.
+   * @param username
+   *          The name of the user that was looked up.
+   * @param version
+   *          The version of the cache obtained before the lookup began.
+   */
+  private static void recordUnknownUser(UnknownUserCache cache, String username,
+      long version) {
+    if (cache != null && !hasPendingChanges()) {
+      cache.recordMiss(username, version);
     }
   }
-  
+
+  /**
+   * Determines whether the configured database settings are valid.
+   * 
+   * @return true if connections to the database can be established;
+   *         Otherwise false.
+   */
+  public static boolean testConnection() {
+    return getStore().testConnection();
+  }
+
   /**
    * Determines whether the auth tables already exist.
    * 
@@ -100,26 +336,7 @@ public final class Database {
    *           The connection to the database could not be established.
    */
   public static boolean tablesExist() throws SQLException {
-    Connection con = getConnection();
-    ResultSet rs = null;
-    try {
-      DatabaseMetaData dbmd = con.getMetaData();
-      // With Derby, the default database schema applied to all SQL statements
-      // is the same as the user id provided, even if the schema does not exist.
-      // If no user id is provided, the default schema 'APP' is used.
-      rs = dbmd.getTables(null, dbmd.getUserName().toUpperCase(),
-                          (prefix + "users").toUpperCase(), null);
-      return rs.next();
-    } catch (SQLException e) {
-      return false;
-    } finally {
-      if (rs != null) {
-        rs.close();
-      }
-      if (con != null) {
-        con.close();
-      }
-    }
+    return getStore().tablesExist();
   }
 
   /**
@@ -130,49 +347,20 @@ public final class Database {
    *           The connection to the database could not be established.
    */
   public static boolean createTables() throws SQLException {
-    String usersTable = "CREATE TABLE " + prefix + "users"
-        + "(user_id INT NOT NULL GENERATED ALWAYS AS IDENTITY CONSTRAINT "
-        + "user_id_pk PRIMARY KEY, name VARCHAR(255) NOT NULL CONSTRAINT "
-        + "name_unique UNIQUE, password VARCHAR(255) NOT NULL, "
-        + "admin SMALLINT DEFAULT 0 NOT NULL, last_login TIMESTAMP, "
-        + "flags INTEGER DEFAULT 0 NOT NULL)";
-    
-    String entitiesTable = "CREATE TABLE " + prefix + "entitiesPerUser"
-        + "(entity_id INT NOT NULL GENERATED ALWAYS AS IDENTITY CONSTRAINT "
-        + "entity_id_pk PRIMARY KEY, user_id INT NOT NULL CONSTRAINT "
-        + "user_foreign_key REFERENCES " + prefix + "users ON DELETE CASCADE, "
-        + "name VARCHAR(255) NOT NULL, last_login TIMESTAMP, "
-        + "flags INTEGER DEFAULT 0 NOT NULL)";
-    
-    String attributesTable = "CREATE TABLE " + prefix + "attributesPerEntity"
-        + "(entity_id INT NOT NULL CONSTRAINT entity_foreign_key REFERENCES "
-        + prefix + "entitiesPerUser ON DELETE CASCADE, name VARCHAR(255) "
-        + "NOT NULL, value VARCHAR(255) NOT NULL, PRIMARY KEY(entity_id, name))";
-    
-    Statement statement = null;
-    Connection con = getConnection();
-    try {
-      statement = con.createStatement();
-      statement.execute(usersTable);
-      statement.close();
-      statement = con.createStatement();
-      statement.execute(entitiesTable);
-      statement.close();
-      statement = con.createStatement();
-      statement.execute(attributesTable);
-      return true;
-    } catch (SQLException e) {
-      e.printStackTrace();
-      System.out.println(e);
-      return false;
-    } finally {
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
-    }
+    return getStore().createTables();
+  }
+
+  /**
+   * Brings the schema of the auth tables up to date by applying all pending
+   * migrations.
+   * 
+   * @return The number of migrations that were applied.
+   * @throws SQLException
+   *           The connection to the database could not be established, or
+   *           a migration could not be applied.
+   */
+  public static int migrateSchema() throws SQLException {
+    return getStore().migrateSchema();
   }
 
   /**
@@ -191,31 +379,12 @@ public final class Database {
     if (username == null) {
       throw new IllegalArgumentException("username");
     }
-    String sqlStatement = "SELECT * from " + prefix + "users WHERE name = ?";
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet resultSet = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      statement.setString(1, username);
-      statement.execute();
-      
-      resultSet = statement.getResultSet();
-      return resultSet.next();
-    } finally {
-      if (resultSet != null) {
-        resultSet.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
+    if (isUnknownUser(username)) {
+      return false;
     }
+    return getStore().userExists(username);
   }
-  
+
   /**
    * Retrieves the data of the user with the the specified username.
    * 
@@ -234,36 +403,76 @@ public final class Database {
     if (username == null) {
       throw new IllegalArgumentException("username");
     }
-    String sqlStatement = "SELECT * from " + prefix + "users WHERE name = ?";
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet rs = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      statement.setString(1, username);
-      statement.execute();
-      rs = statement.getResultSet();
-      if (!rs.next()) {
-        return null;
-      }
-      return new User(rs.getInt("user_id"), rs.getString("name"),
-                      rs.getString("password"), rs.getShort("admin") != 0,
-                      rs.getTimestamp("last_login"), rs.getInt("flags"));
-    } finally {
-      if (rs != null) {
-        rs.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
+    UnknownUserCache unknown = unknownUsers;
+    if (unknown != null && unknown.isUnknown(username)) {
+      return null;
+    }
+    // Read before the lookup, so that a user created meanwhile isn't
+    // recorded as unknown.
+    long missVersion = unknown != null ? unknown.getVersion() : 0;
+    UserCache cache = userCache;
+    if (cache == null) {
+      User user = getStore().getUser(username);
+      if (user == null) {
+        recordUnknownUser(unknown, username, missVersion);
+      }
+      return user;
+    }
+    User user = cache.get(username);
+    if (user != null) {
+      return user;
     }
+    long version = cache.getVersion();
+    user = getStore().getUser(username);
+    if (user == null) {
+      recordUnknownUser(unknown, username, missVersion);
+    } else if (!hasPendingChanges()) {
+      cache.put(user, version);
+    }
+    return user;
+  }
+
+  /**
+   * Retrieves the credentials of the specified user for authentication.
+   * Credentials found in the credential cache are returned without querying
+   * the database or allocating memory on the heap.
+   * 
+   * @param username
+   *    The name of the user whose credentials to retrieve.
+   * @param out
+   *    The credentials to fill in.
+   * @return
+   *    true if the credentials were retrieved; Otherwise false, i.e. if no
+   *    such user exists.
+   * @throws SQLException
+   *    The connection to the database could not be established, or
+   *    another database-related error occurred.
+   * @throws IllegalArgumentException
+   *    The username parameter is null, or the out parameter is null.
+   */
+  public static boolean getCredentials(String username, CredentialCache.Credentials out)
+    throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (out == null) {
+      throw new IllegalArgumentException("out");
+    }
+    CredentialCache cache = credentialCache;
+    if (cache != null && cache.get(username, out)) {
+      return true;
+    }
+    long version = cache != null ? cache.getVersion() : 0;
+    User user = getUser(username);
+    if (user == null || !out.load(user)) {
+      return false;
+    }
+    if (cache != null && !hasPendingChanges()) {
+      cache.put(user, version);
+    }
+    return true;
   }
 
-  
   /**
    * Retrieves the password-hash for the specified user.
    * 
@@ -282,31 +491,21 @@ public final class Database {
     if (username == null) {
       throw new IllegalArgumentException("username");
     }
-    String sqlStatement = "SELECT password from " + prefix + "users WHERE name = ?";
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet resultSet = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      statement.setString(1, username);
-      statement.execute();
-      resultSet = statement.getResultSet();
-      if (!resultSet.next()) {
-        return null;
-      }
-      return resultSet.getString("password");
-    } finally {
-      if (resultSet != null) {
-        resultSet.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
+    UnknownUserCache unknown = unknownUsers;
+    if (unknown != null && unknown.isUnknown(username)) {
+      return null;
+    }
+    long missVersion = unknown != null ? unknown.getVersion() : 0;
+    UserCache cache = userCache;
+    User user = cache != null ? cache.get(username) : null;
+    if (user != null) {
+      return user.getHash();
+    }
+    String hash = getStore().getPassword(username);
+    if (hash == null) {
+      recordUnknownUser(unknown, username, missVersion);
     }
+    return hash;
   }
 
   /**
@@ -337,34 +536,41 @@ public final class Database {
     if (password == null) {
       throw new IllegalArgumentException("password");
     }
-    if (userExists(username)) {
-      throw new IllegalStateException("A user with the name of '" + username
-        + "' already exists in the auth table.");
+    // Register the name before inserting, so that it is never reported as
+    // unknown once the row exists.
+    addKnownUser(username);
+    getStore().createUser(username, password, admin, flags);
+    usersCreated(Collections.singletonList(username));
+  }
+
+  /**
+   * Creates several users at once, inserting them in batches.
+   * 
+   * @param users
+   *          A map of the names of the users to create to their passwords.
+   * @param admin
+   *          Set to true to create administrators, or false to create normal
+   *          users.
+   * @param flags
+   *          The flags to set on the users.
+   * @throws SQLException
+   *          The connection to the database could not be established, or
+   *          another database-related error occurred.
+   * @throws IllegalArgumentException
+   *          The users parameter is null.
+   */
+  public static void createUsers(Map<String, String> users, boolean admin, int flags)
+      throws SQLException {
+    if (users == null) {
+      throw new IllegalArgumentException("users");
     }
-    String sqlStatement = "INSERT INTO " + prefix + "users (name, password, admin, flags) "
-        + "VALUES (?, ?, ?, ?)";
-    Connection con = null;
-    PreparedStatement statement = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      statement.setString(1, username);
-      statement.setString(2, Crypto.createHash(password));
-      statement.setShort(3, (short) (admin ? 1 : 0));
-      statement.setInt(4, flags);
-      if (statement.executeUpdate() == 0) {
-        throw new SQLException("Insertion failed.");
-      }
-    } finally {
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
+    for (String username : users.keySet()) {
+      addKnownUser(username);
     }
+    getStore().createUsers(users, admin, flags);
+    usersCreated(new ArrayList<String>(users.keySet()));
   }
-  
+
   /**
    * Edits the user in the auth table with the specified username.
    * 
@@ -387,64 +593,8 @@ public final class Database {
    */
   public static void updateUser(String username, String password, Boolean admin,
     Integer flags) throws SQLException {
-    if (username == null) {
-      throw new IllegalArgumentException("username");
-    }
-    if (!userExists(username)) {
-      throw new IllegalStateException("A user with the name of '" + username
-        + "' does not exist in the auth table.");
-    }
-    int stack = 1;
-    StringBuilder b = new StringBuilder("UPDATE " + prefix + "users SET ");
-    if (password != null) {
-      b.append("password = ?");
-      stack++;
-    }
-    if (admin != null) {
-      if (stack > 1) {
-        b.append(", ");
-      }
-      b.append("admin = ?");
-      stack++;
-    }
-    if (flags != null) {
-      if (stack > 1) {
-        b.append(", ");
-      }
-      b.append("flags = ?");
-      stack++;
-    }
-    b.append(" WHERE name = ?");
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet resultSet = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(b.toString());
-      statement.setString(stack--, username);
-      if (flags != null) {
-        statement.setInt(stack--, flags);
-      }
-      if (admin != null) {
-        statement.setShort(stack--, (short) (admin.booleanValue() ? 1 : 0));
-      }
-      if (password != null) {
-        statement.setString(stack--, password);
-      }
-      if (statement.executeUpdate() == 0) {
-        throw new SQLException("Update failed.");
-      }
-    } finally {
-      if (resultSet != null) {
-        resultSet.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
-    }
+    getStore().updateUser(username, password, admin, flags);
+    usersChanged(Collections.singletonList(username));
   }
 
   /**
@@ -461,37 +611,10 @@ public final class Database {
    *          A user with the specified username does not exist in the auth table.
    */
   public static void deleteUser(String username) throws SQLException {
-    if (username == null) {
-      throw new IllegalArgumentException("username");
-    }
-    if (!userExists(username)) {
-      throw new IllegalStateException("A user with the name of '" + username
-        + "' does not exist in the auth table.");
-    }
-    String sqlStatement = "DELETE FROM " + prefix + "users WHERE name = ?";
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet resultSet = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      statement.setString(1, username);
-      if (statement.executeUpdate() == 0) {
-        throw new SQLException("Delete failed.");
-      }
-    } finally {
-      if (resultSet != null) {
-        resultSet.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
-    }
+    getStore().deleteUser(username);
+    usersDeleted(Collections.singletonList(username));
   }
-  
+
   /**
    * Determines whether the specified user is an administrator.
    * 
@@ -504,34 +627,7 @@ public final class Database {
    *  another database-related error occurred.
    */
   public static boolean isAdmin(String username) throws SQLException {
-    if (username == null) {
-      throw new IllegalArgumentException("username");
-    }
-    String sqlStatement = "SELECT admin FROM " + prefix + "users WHERE name = ?";
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet resultSet = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      statement.setString(1, username);
-      statement.execute();
-      resultSet = statement.getResultSet();
-      if (!resultSet.next()) {
-        return false;
-      }
-      return resultSet.getShort("admin") != 0;
-    } finally {
-      if (resultSet != null) {
-        resultSet.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
-    }
+    return getStore().isAdmin(username);
   }
 
   /**
@@ -550,35 +646,106 @@ public final class Database {
    *           another error occurred.
    */
   public static List<String> listUsers(String filter) throws SQLException {
-    String sqlStatement = "SELECT name from " + prefix + "users"
-        + ((filter != null) ? " WHERE name LIKE ?" : "");
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet resultSet = null;
+    return getStore().listUsers(filter);
+  }
+
+  /**
+   * Runs the specified work as one unit of work: the calls to the Database
+   * class the work makes on the calling thread share one connection and
+   * its prepared statements, and are committed together when the work
+   * returns, or rolled back if it throws. For example:
+   * 
+   * <pre>
+   * Database.inTransaction(new Transaction&lt;Void&gt;() {
+   *   public Void run() throws SQLException {
+   *     Database.createUser("bob", "secret", false, 0);
+   *     Database.createEntity("bob", "hero", 0);
+   *     return null;
+   *   }
+   * });
+   * </pre>
+   * 
+   * The caches are updated and the other nodes of the cluster are notified
+   * of the changes once the work has been committed, so that other threads
+   * can't cache the rows the work replaced in the meantime. The updates
+   * and notifications are dropped if the work is rolled back. Calls within
+   * the work also remove the changed users from the caches right away,
+   * and don't cache users until the work has been committed.
+   * 
+   * @param <T>
+   *          The type of the result of the work.
+   * @param work
+   *          The work to run.
+   * @return The result of the work.
+   * @throws SQLException
+   *           The connection to the database could not be established, or
+   *           another database-related error occurred.
+   * @throws IllegalArgumentException
+   *           The work parameter is null.
+   */
+  public static <T> T inTransaction(Transaction<T> work) throws SQLException {
+    if (AFTER_COMMIT.get() != null) {
+      // A nested transaction is part of the enclosing one.
+      return getStore().inTransaction(work);
+    }
+    List<Runnable> actions = new ArrayList<Runnable>();
+    AFTER_COMMIT.set(actions);
+    T result;
     try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      if (filter != null) {
-        statement.setString(1, filter);
-      }
-      statement.execute();
-      resultSet = statement.getResultSet();
-      List<String> names = new LinkedList<String>();
-      while (resultSet.next()) {
-        names.add(resultSet.getString("name"));
-      }
-      return names;
+      result = getStore().inTransaction(work);
     } finally {
-      if (resultSet != null) {
-        resultSet.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
+      AFTER_COMMIT.remove();
+    }
+    for (Runnable action : actions) {
+      action.run();
+    }
+    return result;
+  }
+
+  /**
+   * Returns a page of the accounts, i.e. the users with their entities and
+   * the entities' attributes, in the order of the usernames.
+   *
+   * @param after
+   *          The name of the user after which the page starts, or null to
+   *          start with the first user.
+   * @param max
+   *          The maximum number of accounts to return.
+   * @return The accounts, or an empty list if there are no more accounts.
+   * @throws SQLException
+   *           The connection to the database could not be established, or
+   *           another database-related error occurred.
+   */
+  public static List<Account> listAccounts(String after, int max) throws SQLException {
+    return getStore().listAccounts(after, max);
+  }
+
+  /**
+   * Creates the specified accounts with their password-hashes, entities and
+   * attributes as they are, skipping the accounts whose user already exists.
+   *
+   * @param accounts
+   *          The accounts to create.
+   * @return The names of the users that were created.
+   * @throws SQLException
+   *           The connection to the database could not be established, or
+   *           another database-related error occurred. None of the accounts
+   *           were created in that case.
+   * @throws IllegalArgumentException
+   *           The accounts parameter is null or contains null.
+   */
+  public static List<String> importAccounts(List<Account> accounts) throws SQLException {
+    if (accounts == null || accounts.contains(null)) {
+      throw new IllegalArgumentException("accounts");
+    }
+    for (Account account : accounts) {
+      addKnownUser(account.getUser().getName());
     }
+    List<String> names = getStore().importAccounts(accounts);
+    if (!names.isEmpty()) {
+      usersCreated(names);
+    }
+    return names;
   }
 
   /**
@@ -589,27 +756,58 @@ public final class Database {
    *           another database-related error occurred.
    */
   public static void truncate() throws SQLException {
-    String sqlStatement = "TRUNCATE TABLE " + prefix + "users";
-    Connection con = null;
-    Statement statement = null;
-    ResultSet resultSet = null;
-    try {
-      con = Database.getConnection();
-      statement = con.createStatement();
-      statement.executeUpdate(sqlStatement);
-    } finally {
-      if (resultSet != null) {
-        resultSet.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
+    UnknownUserCache cache = unknownUsers;
+    if (cache != null) {
+      cache.clear();
+    }
+    getStore().truncate();
+    UserCache users = userCache;
+    if (users != null) {
+      users.clear();
+    }
+    CredentialCache credentials = credentialCache;
+    if (credentials != null) {
+      credentials.clear();
+    }
+    Cluster c = cluster;
+    if (c != null) {
+      c.cleared();
     }
   }
-  
+
+  /**
+   * Removes all users from the caches, after the users have been deleted
+   * by another node.
+   */
+  private static void clearCaches() {
+    UnknownUserCache cache = unknownUsers;
+    if (cache != null) {
+      cache.clear();
+    }
+    UserCache users = userCache;
+    if (users != null) {
+      users.clear();
+    }
+    CredentialCache credentials = credentialCache;
+    if (credentials != null) {
+      credentials.clear();
+    }
+  }
+
+  /**
+   * Returns the names of the users who logged in most recently.
+   * 
+   * @param max
+   *          The maximum number of names to return.
+   * @return The names of the users with a last login, the most recent first.
+   * @throws SQLException
+   *           The connection to the database could not be established, or
+   *           another database-related error occurred.
+   */
+  public static List<String> listRecentUsers(int max) throws SQLException {
+    return getStore().listRecentUsers(max);
+  }
+
   /**
    * Creates a new entity to the specified user's set of entities.
    * 
@@ -631,40 +829,9 @@ public final class Database {
    */
   public static void createEntity(String username, String entity, int flags)
       throws SQLException {
-    if (username == null) {
-      throw new IllegalArgumentException("username");
-    }
-    if (entity == null) {
-      throw new IllegalArgumentException("entity");
-    }
-    int userId = getUserId(username);
-    if (entityExists(userId, entity)) {
-      throw new IllegalStateException("The entity '" + entity + "' already exists.");
-    }
-    String sqlStatement = "INSERT INTO " + prefix
-        + "entitiesPerUser (user_id, name, flags) "
-        + "VALUES (?, ?, ?)";
-    Connection con = null;
-    PreparedStatement statement = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      statement.setInt(1, userId);
-      statement.setString(2, entity);
-      statement.setInt(3, flags);
-      if (statement.executeUpdate() == 0) {
-        throw new SQLException("Insertion failed.");
-      }
-    } finally {
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
-    }
+    getStore().createEntity(username, entity, flags);
   }
-  
+
   /**
    * Deletes the specified entity of the user with the specified username.
    * 
@@ -682,39 +849,9 @@ public final class Database {
    *          or the entity with the specified name does not exist.
    */
   public static void deleteEntity(String username, String entity) throws SQLException {
-    if (username == null) {
-      throw new IllegalArgumentException("username");
-    }
-    if (entity == null) {
-      throw new IllegalArgumentException("entity");
-    }
-    int userId = getUserId(username);
-    String sqlStatement = "DELETE FROM " + prefix
-        + "entitiesPerUser WHERE user_id = ? AND name = ?";
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet resultSet = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      statement.setInt(1, userId);
-      statement.setString(2, entity);
-      if (statement.executeUpdate() == 0) {
-        throw new SQLException("Delete failed.");
-      }
-    } finally {
-      if (resultSet != null) {
-        resultSet.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
-    }
+    getStore().deleteEntity(username, entity);
   }
-  
+
   /**
    * Edits the entity of the user in the auth table with the specified username.
    * 
@@ -736,57 +873,9 @@ public final class Database {
    */
   public static void updateEntity(String username, String entity, String newName,
     Integer flags) throws SQLException {
-    if (username == null) {
-      throw new IllegalArgumentException("username");
-    }
-    if (entity == null) {
-      throw new IllegalArgumentException("entity");
-    }
-    int userId = getUserId(username);
-    int stack = 2;
-    StringBuilder b = new StringBuilder("UPDATE " + prefix + "entitiesPerUser SET ");
-    if (newName != null) {
-      b.append("name = ?");
-      stack++;
-    }
-    if (flags != null) {
-      if (stack > 1) {
-        b.append(", ");
-      }
-      b.append("flags = ?");
-      stack++;
-    }
-    b.append(" WHERE user_id = ? AND name = ?");
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet resultSet = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(b.toString());
-      statement.setString(stack--, entity);
-      statement.setInt(stack--, userId);
-      if (flags != null) {
-        statement.setInt(stack--, flags);
-      }
-      if (newName != null) {
-        statement.setString(stack--, newName);
-      }
-      if (statement.executeUpdate() == 0) {
-        throw new SQLException("Update failed.");
-      }
-    } finally {
-      if (resultSet != null) {
-        resultSet.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
-    }
+    getStore().updateEntity(username, entity, newName, flags);
   }
-  
+
   /**
    * Determines whether the specified entity exists in the auth table.
    * 
@@ -804,54 +893,9 @@ public final class Database {
    *          The username parameter is null, or the entity parameter is null.
    */
   public static boolean entityExists(String username, String entity) throws SQLException {
-    return entityExists(getUserId(username), entity);
-  }
-  
-  /**
-   * Determines whether the specified entity exists in the auth table.
-   * 
-   * @param userId
-   *          The unique id of the user whose entities to lookup.
-   * @param entity
-   *          The name of the entity to lookup.
-   * @return true if the entity exists; Otherwise false.
-   * @throws SQLException
-   *          The connection to the database could not be established, or
-   *          another database-related error occurred.
-   * @throws IllegalArgumentException
-   *          The entity parameter is null.
-   */
-  private static boolean entityExists(int userId, String entity) throws SQLException {
-    if (entity == null) {
-      throw new IllegalArgumentException("entity");
-    }
-    String sqlStatement = "SELECT * from " + prefix
-        + "entitiesPerUser WHERE user_id = ? AND name = ?";
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet resultSet = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      statement.setInt(1, userId);
-      statement.setString(2, entity);
-      statement.execute();
-      
-      resultSet = statement.getResultSet();
-      return resultSet.next();
-    } finally {
-      if (resultSet != null) {
-        resultSet.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
-    }
+    return getStore().entityExists(username, entity);
   }
-  
+
   /**
    * Retrieves a list of the entities of the user with the specified username.
    * 
@@ -868,41 +912,9 @@ public final class Database {
    *  A user with the specified name does not exist in the auth table.
    */
   public static List<Entity> listEntities(String username) throws SQLException {
-    if (username == null) {
-      throw new IllegalArgumentException("username");
-    }
-    int userId = getUserId(username);
-    String sqlStatement = "SELECT * from " + prefix
-        + "entitiesPerUser WHERE user_id = ?";
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet rs = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      statement.setInt(1, userId);
-      rs = statement.executeQuery();
-      List<Entity> ents = new LinkedList<Entity>();
-      while (rs.next()) {
-        Entity e = new Entity(rs.getInt("entity_id"), rs.getInt("user_id"),
-                              rs.getString("name"), rs.getTimestamp("last_login"),
-                              rs.getInt("flags"));
-        ents.add(e);
-      }
-      return ents;
-    } finally {
-      if (rs != null) {
-        rs.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
-    }
+    return getStore().listEntities(username);
   }
-  
+
   /**
    * Retrieves the data of the entity of the user with the the specified username.
    * 
@@ -922,44 +934,9 @@ public final class Database {
    *  A user with the specified name does not exist in the auth table.
    */
   public static Entity getEntity(String username, String entity) throws SQLException {
-    if (username == null) {
-      throw new IllegalArgumentException("username");
-    }
-    if (entity == null) {
-      throw new IllegalArgumentException("entity");
-    }
-    int userId = getUserId(username);
-    String sqlStatement = "SELECT * from " + prefix
-        + "entitiesPerUser WHERE user_id = ? AND name = ?";
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet rs = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      statement.setInt(1, userId);
-      statement.setString(2, entity);
-      statement.execute();
-      rs = statement.getResultSet();
-      if (!rs.next()) {
-        return null;
-      }
-      return new Entity(rs.getInt("entity_id"), rs.getInt("user_id"),
-                        rs.getString("name"), rs.getTimestamp("last_login"),
-                        rs.getInt("flags"));
-    } finally {
-      if (rs != null) {
-        rs.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
-    }
+    return getStore().getEntity(username, entity);
   }
-  
+
   /**
    * Retrieves the attributes of the entity of the user with the the
    * specified username.
@@ -980,97 +957,176 @@ public final class Database {
    */
   public static Map<String, String> getAttributes(String username, String entity)
       throws SQLException {
-    if (username == null) {
-      throw new IllegalArgumentException("username");
-    }
-    if (entity == null) {
-      throw new IllegalArgumentException("entity");
-    }
-    Entity ent = getEntity(username, entity);
-    String sqlStatement = "SELECT * from " + prefix
-        + "attributesPerEntity WHERE entity_id = ?";
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet rs = null;
-    Map<String, String> attr = new HashMap<String, String>();
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      statement.setInt(1, ent.getId());
-      statement.execute();
-      rs = statement.getResultSet();
-      while (rs.next()) {
-        attr.put(rs.getString("name"), rs.getString("value"));
-      }
-      return attr;
-    } finally {
-      if (rs != null) {
-        rs.close();
-      }
-      if (statement != null) {
-        statement.close();
-      }
-      if (con != null) {
-        con.close();
-      }
-    }
+    return getStore().getAttributes(username, entity);
   }
-  
+
   /**
-   * Returns the unique user-id for the user with the specified username.
+   * Sets attributes of the entity of the user with the the specified
+   * username. Existing attributes with the same names are overwritten.
    * 
    * @param username
-   *  The name of the user whose id to lookup.
-   * @return
-   *  The user-id of the user with the specified username.
+   *  The name of the user whose entity's attributes to set.
+   * @param entity
+   *  The name of the entity whose attributes to set.
+   * @param attributes
+   *  A map of key/value pairs containing the attributes to set.
    * @throws SQLException
    *  The connection to the database could not be established, or
    *  another database-related error occurred.
    * @throws IllegalArgumentException
-   *  The username parameter is null.
+   *  The username parameter is null, the entity parameter is null, or the
+   *  attributes parameter is null.
    * @throws IllegalStateException
-   *  A user with the specified username does not exist in the auth table.
+   *  A user with the specified name or the entity does not exist.
    */
-  private static int getUserId(String username) throws SQLException {
-    if (username == null) {
-      throw new IllegalArgumentException("username");
+  public static void setAttributes(String username, String entity,
+      Map<String, String> attributes) throws SQLException {
+    getStore().setAttributes(username, entity, attributes);
+  }
+
+  /**
+   * Determines whether the current thread is in a transaction that has
+   * changed users, whose rows must not be cached before the transaction has
+   * been committed.
+   * 
+   * @return
+   *  true if the thread's transaction has changed users; Otherwise false.
+   */
+  private static boolean hasPendingChanges() {
+    List<Runnable> actions = AFTER_COMMIT.get();
+    return actions != null && !actions.isEmpty();
+  }
+
+  /**
+   * Runs the specified action once the transaction of the current thread
+   * has been committed, or right away if the thread is not in a
+   * transaction.
+   * 
+   * @param action
+   *  The action to run.
+   */
+  private static void afterCommit(Runnable action) {
+    List<Runnable> actions = AFTER_COMMIT.get();
+    if (actions != null) {
+      actions.add(action);
+    } else {
+      action.run();
     }
-    String sqlStatement = "SELECT user_id from " + prefix + "users WHERE name = ?";
-    Connection con = null;
-    PreparedStatement statement = null;
-    ResultSet resultSet = null;
-    try {
-      con = Database.getConnection();
-      statement = con.prepareStatement(sqlStatement);
-      statement.setString(1, username);
-      statement.execute();
-      resultSet = statement.getResultSet();
-      if (!resultSet.next()) {
-        throw new IllegalStateException("A user with the name of '" + username
-                            + "' does not exist in the auth table.");
-      }
-      return resultSet.getInt("user_id");
-    } finally {
-      if (resultSet != null) {
-        resultSet.close();
+  }
+
+  /**
+   * Adds the specified users to the cache of known usernames and notifies
+   * the cluster, once they have been committed.
+   * 
+   * @param names
+   *  The names of the users that were created.
+   */
+  private static void usersCreated(final Collection<String> names) {
+    afterCommit(new Runnable() {
+      @Override
+      public void run() {
+        for (String name : names) {
+          addKnownUser(name);
+        }
+        Cluster c = cluster;
+        if (c != null) {
+          c.usersCreated(names);
+        }
       }
-      if (statement != null) {
-        statement.close();
+    });
+  }
+
+  /**
+   * Removes the specified users from the caches and notifies the cluster,
+   * once the changes have been committed. The users are also removed from
+   * the caches right away, so that the transaction making the changes
+   * doesn't read the cached rows.
+   * 
+   * @param names
+   *  The names of the users that were changed.
+   */
+  private static void usersChanged(final List<String> names) {
+    for (String name : names) {
+      removeCachedUser(name);
+    }
+    afterCommit(new Runnable() {
+      @Override
+      public void run() {
+        for (String name : names) {
+          removeCachedUser(name);
+        }
+        Cluster c = cluster;
+        if (c != null) {
+          c.usersChanged(names);
+        }
       }
-      if (con != null) {
-        con.close();
+    });
+  }
+
+  /**
+   * Removes the specified users from the caches, records them as unknown
+   * and notifies the cluster, once the deletions have been committed. The
+   * users are also removed from the caches right away, so that the
+   * transaction making the deletions doesn't read the cached rows.
+   * 
+   * @param names
+   *  The names of the users that were deleted.
+   */
+  private static void usersDeleted(final List<String> names) {
+    for (String name : names) {
+      removeCachedUser(name);
+    }
+    afterCommit(new Runnable() {
+      @Override
+      public void run() {
+        UnknownUserCache cache = unknownUsers;
+        for (String name : names) {
+          removeCachedUser(name);
+          if (cache != null) {
+            cache.removeUser(name);
+          }
+        }
+        Cluster c = cluster;
+        if (c != null) {
+          c.usersDeleted(names);
+        }
       }
+    });
+  }
+
+  /**
+   * Removes the specified user from the caches of recently used users, after
+   * the user has been modified or deleted.
+   * 
+   * @param username
+   *  The name of the user.
+   */
+  private static void removeCachedUser(String username) {
+    UserCache cache = userCache;
+    if (cache != null && username != null) {
+      cache.remove(username);
+    }
+    CredentialCache credentials = credentialCache;
+    if (credentials != null && username != null) {
+      credentials.remove(username);
     }
   }
 
   /**
-   * Returns a new Connection instance from the pool of connections.
+   * Adds the specified user to the cache of known usernames, including the
+   * one currently being populated, if any.
    * 
-   * @return A Connection instance for the configured database.
-   * @throws SQLException
-   *           The connection could not be established.
+   * @param username
+   *  The name of the user.
    */
-  private static Connection getConnection() throws SQLException {
-    return DATA_SOURCE.getConnection();
+  private static void addKnownUser(String username) {
+    UnknownUserCache cache = unknownUsers;
+    if (cache != null) {
+      cache.addUser(username);
+    }
+    cache = loadingUsers;
+    if (cache != null) {
+      cache.addUser(username);
+    }
   }
 }
@@ -0,0 +1,87 @@
+package org.timadorus.auth.server;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+/**
+ * Implements the Apache Derby SQL dialect.
+ *
+ * @author agent
+ */
+public class DerbyDialect implements SqlDialect {
+  /**
+   * The SQL state for a violated unique or primary key constraint.
+   */
+  private static final String DUPLICATE_KEY = "23505";
+
+  /**
+   * The SQL state for an object that already exists.
+   */
+  private static final String ALREADY_EXISTS = "X0Y32";
+
+  @Override
+  public String getName() {
+    return "Derby";
+  }
+
+  @Override
+  public String[] getCreateTableStatements(String prefix) {
+    String usersTable = "CREATE TABLE " + prefix + "users"
+        + "(user_id INT NOT NULL GENERATED ALWAYS AS IDENTITY CONSTRAINT "
+        + "user_id_pk PRIMARY KEY, name VARCHAR(255) NOT NULL CONSTRAINT "
+        + "name_unique UNIQUE, password VARCHAR(255) NOT NULL, "
+        + "admin SMALLINT DEFAULT 0 NOT NULL, last_login TIMESTAMP, "
+        + "flags INTEGER DEFAULT 0 NOT NULL)";
+
+    String entitiesTable = "CREATE TABLE " + prefix + "entitiesPerUser"
+        + "(entity_id INT NOT NULL GENERATED ALWAYS AS IDENTITY CONSTRAINT "
+        + "entity_id_pk PRIMARY KEY, user_id INT NOT NULL CONSTRAINT "
+        + "user_foreign_key REFERENCES " + prefix + "users ON DELETE CASCADE, "
+        + "name VARCHAR(255) NOT NULL, last_login TIMESTAMP, "
+        + "flags INTEGER DEFAULT 0 NOT NULL)";
+
+    String attributesTable = "CREATE TABLE " + prefix + "attributesPerEntity"
+        + "(entity_id INT NOT NULL CONSTRAINT entity_foreign_key REFERENCES "
+        + prefix + "entitiesPerUser ON DELETE CASCADE, name VARCHAR(255) "
+        + "NOT NULL, value VARCHAR(255) NOT NULL, PRIMARY KEY(entity_id, name))";
+
+    return new String[] {usersTable, entitiesTable, attributesTable};
+  }
+
+  @Override
+  public String getDefaultSchema(DatabaseMetaData dbmd) throws SQLException {
+    // With Derby, the default database schema applied to all SQL statements
+    // is the same as the user id provided, even if the schema does not exist.
+    // If no user id is provided, the default schema 'APP' is used.
+    String user = dbmd.getUserName();
+    return user != null ? user.toUpperCase() : "APP";
+  }
+
+  @Override
+  public String getTruncateStatement(String table) {
+    // TRUNCATE TABLE is not available before Derby 10.7, so delete the rows
+    // and let the cascades take care of the referencing tables.
+    return "DELETE FROM " + table;
+  }
+
+  @Override
+  public String getLockTableStatement(String table) {
+    return "LOCK TABLE " + table + " IN EXCLUSIVE MODE";
+  }
+
+  @Override
+  public String getUpsertAttributeStatement(String prefix) {
+    // MERGE is not available before Derby 10.11.
+    return null;
+  }
+
+  @Override
+  public boolean isDuplicateKey(SQLException e) {
+    return DUPLICATE_KEY.equals(e.getSQLState());
+  }
+
+  @Override
+  public boolean isAlreadyExists(SQLException e) {
+    return ALREADY_EXISTS.equals(e.getSQLState());
+  }
+}
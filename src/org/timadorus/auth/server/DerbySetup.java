@@ -0,0 +1,148 @@
+package org.timadorus.auth.server;
+
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.derby.drda.NetworkServerControl;
+import org.timadorus.auth.util.Config;
+
+/**
+ * Configures the Apache Derby engine from the server's configuration file
+ * and optionally starts the Derby network server.
+ *
+ * Derby reads its system-wide properties when the engine boots, that is,
+ * when the first connection is established. Therefore this class must be
+ * set up before the Database class hands out its first connection.
+ *
+ * @author agent
+ */
+public final class DerbySetup {
+  /**
+   * Logging facility.
+   */
+  private static final Logger LOG = Logger.getLogger(DerbySetup.class.getName());
+
+  /**
+   * The prefix of the configuration values that are passed on to Derby.
+   */
+  private static final String DERBY_PREFIX = "derby.";
+
+  /**
+   * The mode in which the auth-server runs Derby embedded only.
+   */
+  private static final String MODE_EMBEDDED = "embedded";
+
+  /**
+   * The mode in which the auth-server additionally runs the Derby network
+   * server in-process.
+   */
+  private static final String MODE_NETWORK = "network";
+
+  /**
+   * The Derby network server, or null if it has not been started.
+   */
+  private static NetworkServerControl networkServer;
+
+  /**
+   * Make CheckStyle happy.
+   */
+  private DerbySetup() {
+  }
+
+  /**
+   * Applies the Derby settings of the specified configuration and starts
+   * the Derby network server, if configured.
+   *
+   * All configuration values whose names start with 'derby.' (e.g.
+   * 'derby.storage.pageCacheSize') are set as system properties, unless the
+   * system property has already been set on the command-line.
+   *
+   * @param config
+   *  The server's configuration.
+   * @throws Exception
+   *  The configured mode is invalid, or the network server could not be
+   *  started.
+   * @throws IllegalArgumentException
+   *  The config parameter is null.
+   */
+  public static void apply(Config config) throws Exception {
+    if (config == null) {
+      throw new IllegalArgumentException("config");
+    }
+    for (Map.Entry<String, String> e : config.getProperties(DERBY_PREFIX).entrySet()) {
+      if (System.getProperty(e.getKey()) == null) {
+        System.setProperty(e.getKey(), e.getValue());
+      } else {
+        LOG.info("Derby property '" + e.getKey() + "' has been set on the "
+            + "command-line, ignoring the configured value.");
+      }
+    }
+    String mode = config.hasProperty("derbyMode")
+        ? config.getString("derbyMode") : MODE_EMBEDDED;
+    if (MODE_NETWORK.equalsIgnoreCase(mode)) {
+      InetAddress host = InetAddress.getByName(config.hasProperty("derbyNetworkHost")
+          ? config.getString("derbyNetworkHost") : "localhost");
+      int port = config.hasProperty("derbyNetworkPort")
+          ? config.getInt("derbyNetworkPort") : NetworkServerControl.DEFAULT_PORTNUMBER;
+      startNetworkServer(host, port);
+    } else if (!MODE_EMBEDDED.equalsIgnoreCase(mode)) {
+      throw new Exception("Invalid 'derbyMode' setting '" + mode
+          + "'. Valid settings are '" + MODE_EMBEDDED + "' and '"
+          + MODE_NETWORK + "'.");
+    }
+  }
+
+  /**
+   * Starts the Derby network server in-process, so that other processes
+   * can access the auth database while the auth-server is running.
+   *
+   * @param host
+   *  The address the network server listens on.
+   * @param port
+   *  The port the network server listens on.
+   * @throws Exception
+   *  The network server could not be started.
+   */
+  private static synchronized void startNetworkServer(InetAddress host, int port)
+      throws Exception {
+    if (networkServer != null) {
+      return;
+    }
+    NetworkServerControl server = new NetworkServerControl(host, port);
+    server.start(new PrintWriter(System.out, true));
+    // The server starts on a separate thread, so wait until it responds.
+    Exception error = null;
+    for (int i = 0; i < 20; i++) {
+      try {
+        server.ping();
+        error = null;
+        break;
+      } catch (Exception e) {
+        error = e;
+        Thread.sleep(250);
+      }
+    }
+    if (error != null) {
+      throw new Exception("The Derby network server could not be started.", error);
+    }
+    networkServer = server;
+    LOG.info("Derby network server listening on " + host + ":" + port + ".");
+  }
+
+  /**
+   * Shuts down the Derby network server, if it has been started.
+   */
+  public static synchronized void shutdown() {
+    if (networkServer == null) {
+      return;
+    }
+    try {
+      networkServer.shutdown();
+    } catch (Exception e) {
+      LOG.warning("Could not shut down the Derby network server: " + e);
+    }
+    networkServer = null;
+  }
+}
@@ -0,0 +1,92 @@
+package org.timadorus.auth.server;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+/**
+ * Implements the H2 SQL dialect.
+ *
+ * @author agent
+ */
+public class H2Dialect implements SqlDialect {
+  /**
+   * The SQL state for a violated unique or primary key constraint.
+   */
+  private static final String DUPLICATE_KEY = "23505";
+
+  /**
+   * The SQL state for a table that already exists.
+   */
+  private static final String TABLE_EXISTS = "42S01";
+
+  /**
+   * The SQL state for an index that already exists.
+   */
+  private static final String INDEX_EXISTS = "42S11";
+
+  @Override
+  public String getName() {
+    return "H2";
+  }
+
+  @Override
+  public String[] getCreateTableStatements(String prefix) {
+    String usersTable = "CREATE TABLE " + prefix + "users"
+        + "(user_id INT AUTO_INCREMENT CONSTRAINT "
+        + prefix + "user_id_pk PRIMARY KEY, name VARCHAR(255) NOT NULL CONSTRAINT "
+        + prefix + "name_unique UNIQUE, password VARCHAR(255) NOT NULL, "
+        + "admin SMALLINT DEFAULT 0 NOT NULL, last_login TIMESTAMP, "
+        + "flags INTEGER DEFAULT 0 NOT NULL)";
+
+    String entitiesTable = "CREATE TABLE " + prefix + "entitiesPerUser"
+        + "(entity_id INT AUTO_INCREMENT CONSTRAINT "
+        + prefix + "entity_id_pk PRIMARY KEY, user_id INT NOT NULL, "
+        + "name VARCHAR(255) NOT NULL, last_login TIMESTAMP, "
+        + "flags INTEGER DEFAULT 0 NOT NULL, CONSTRAINT " + prefix
+        + "user_foreign_key FOREIGN KEY (user_id) REFERENCES " + prefix
+        + "users (user_id) ON DELETE CASCADE)";
+
+    String attributesTable = "CREATE TABLE " + prefix + "attributesPerEntity"
+        + "(entity_id INT NOT NULL, name VARCHAR(255) NOT NULL, "
+        + "value VARCHAR(255) NOT NULL, PRIMARY KEY(entity_id, name), "
+        + "CONSTRAINT " + prefix + "entity_foreign_key FOREIGN KEY (entity_id) "
+        + "REFERENCES " + prefix + "entitiesPerUser (entity_id) ON DELETE CASCADE)";
+
+    return new String[] {usersTable, entitiesTable, attributesTable};
+  }
+
+  @Override
+  public String getDefaultSchema(DatabaseMetaData dbmd) throws SQLException {
+    return "PUBLIC";
+  }
+
+  @Override
+  public String getTruncateStatement(String table) {
+    // H2 refuses to truncate tables that are referenced by foreign keys,
+    // so delete the rows and let the cascades take care of the rest.
+    return "DELETE FROM " + table;
+  }
+
+  @Override
+  public String getLockTableStatement(String table) {
+    // H2 has no table locks, so lock all rows instead. This only excludes
+    // other transactions if the table is never empty.
+    return "SELECT * FROM " + table + " FOR UPDATE";
+  }
+
+  @Override
+  public String getUpsertAttributeStatement(String prefix) {
+    return "MERGE INTO " + prefix + "attributesPerEntity (entity_id, name, value) "
+        + "KEY (entity_id, name) VALUES (?, ?, ?)";
+  }
+
+  @Override
+  public boolean isDuplicateKey(SQLException e) {
+    return DUPLICATE_KEY.equals(e.getSQLState());
+  }
+
+  @Override
+  public boolean isAlreadyExists(SQLException e) {
+    return TABLE_EXISTS.equals(e.getSQLState()) || INDEX_EXISTS.equals(e.getSQLState());
+  }
+}
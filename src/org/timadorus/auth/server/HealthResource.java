@@ -0,0 +1,88 @@
+package org.timadorus.auth.server;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+/**
+ * The resource class which handles the '/health/live' and '/health/ready'
+ * HTTP requests for container orchestrators and load balancers. Both may be
+ * requested without credentials.
+ *
+ * The server is live as soon as it answers HTTP requests. It is ready once
+ * the database schema is in place, the connection pool has been filled and
+ * the caches have been loaded, and stops being ready when it is shut down.
+ * Other requests are answered with '503 Service Unavailable' while the
+ * server is not ready.
+ *
+ * @author agent
+ */
+@Path("/health")
+public class HealthResource {
+  /**
+   * The path prefix of the health resources, relative to the context path.
+   */
+  static final String PATH = "health/";
+
+  /**
+   * The HTTP status code for 'Service Unavailable'.
+   */
+  private static final int HTTP_SERVICE_UNAVAILABLE = 503;
+
+  /**
+   * Determines whether the server is ready to serve requests.
+   */
+  private static volatile boolean ready;
+
+  /**
+   * Determines whether the server is ready to serve requests.
+   *
+   * @return
+   *  true if the server is ready; Otherwise false.
+   */
+  public static boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Sets whether the server is ready to serve requests.
+   *
+   * @param value
+   *  true once the server is ready, false once it is being shut down.
+   */
+  public static void setReady(boolean value) {
+    ready = value;
+  }
+
+  /**
+   * The method that is executed when the /health/live resource is being
+   * requested via the HTTP GET method.
+   *
+   * @return
+   *  Always 'OK'.
+   */
+  @GET
+  @Path("live")
+  @Produces("text/plain")
+  public String getLive() {
+    return "OK";
+  }
+
+  /**
+   * The method that is executed when the /health/ready resource is being
+   * requested via the HTTP GET method.
+   *
+   * @return
+   *  '200 OK' if the server is ready; Otherwise '503 Service Unavailable'.
+   */
+  @GET
+  @Path("ready")
+  @Produces("text/plain")
+  public Response getReady() {
+    if (ready) {
+      return Response.ok("OK").build();
+    }
+    return Response.status(HTTP_SERVICE_UNAVAILABLE).entity("NOT READY").build();
+  }
+}
@@ -0,0 +1,512 @@
+package org.timadorus.auth.server;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+import org.timadorus.auth.util.Histogram;
+import org.timadorus.auth.util.Metrics;
+import org.timadorus.auth.util.Tracer;
+
+/**
+ * Decorates an AuthStore with latency histograms for each of its methods,
+ * which are reported as 'auth_store_seconds'. The calls are also recorded
+ * as spans of the current request's trace.
+ *
+ * @author agent
+ */
+public class InstrumentedAuthStore implements AuthStore {
+  /**
+   * The store the calls are delegated to.
+   */
+  private final AuthStore store;
+
+  /**
+   * The duration of the testConnection method.
+   */
+  private final Histogram testConnectionTime = timer("testConnection");
+
+  /**
+   * The duration of the tablesExist method.
+   */
+  private final Histogram tablesExistTime = timer("tablesExist");
+
+  /**
+   * The duration of the createTables method.
+   */
+  private final Histogram createTablesTime = timer("createTables");
+
+  /**
+   * The duration of the migrateSchema method.
+   */
+  private final Histogram migrateSchemaTime = timer("migrateSchema");
+
+  /**
+   * The duration of the userExists method.
+   */
+  private final Histogram userExistsTime = timer("userExists");
+
+  /**
+   * The duration of the getUser method.
+   */
+  private final Histogram getUserTime = timer("getUser");
+
+  /**
+   * The duration of the getPassword method.
+   */
+  private final Histogram getPasswordTime = timer("getPassword");
+
+  /**
+   * The duration of the inTransaction method, including the work.
+   */
+  private final Histogram inTransactionTime = timer("inTransaction");
+
+  /**
+   * The duration of the listAccounts method.
+   */
+  private final Histogram listAccountsTime = timer("listAccounts");
+
+  /**
+   * The duration of the importAccounts method.
+   */
+  private final Histogram importAccountsTime = timer("importAccounts");
+
+  /**
+   * The duration of the createUser method.
+   */
+  private final Histogram createUserTime = timer("createUser");
+
+  /**
+   * The duration of the createUsers method.
+   */
+  private final Histogram createUsersTime = timer("createUsers");
+
+  /**
+   * The duration of the updateUser method.
+   */
+  private final Histogram updateUserTime = timer("updateUser");
+
+  /**
+   * The duration of the deleteUser method.
+   */
+  private final Histogram deleteUserTime = timer("deleteUser");
+
+  /**
+   * The duration of the isAdmin method.
+   */
+  private final Histogram isAdminTime = timer("isAdmin");
+
+  /**
+   * The duration of the listUsers method.
+   */
+  private final Histogram listUsersTime = timer("listUsers");
+
+  /**
+   * The duration of the listRecentUsers method.
+   */
+  private final Histogram listRecentUsersTime = timer("listRecentUsers");
+
+  /**
+   * The duration of the truncate method.
+   */
+  private final Histogram truncateTime = timer("truncate");
+
+  /**
+   * The duration of the createEntity method.
+   */
+  private final Histogram createEntityTime = timer("createEntity");
+
+  /**
+   * The duration of the deleteEntity method.
+   */
+  private final Histogram deleteEntityTime = timer("deleteEntity");
+
+  /**
+   * The duration of the updateEntity method.
+   */
+  private final Histogram updateEntityTime = timer("updateEntity");
+
+  /**
+   * The duration of the entityExists method.
+   */
+  private final Histogram entityExistsTime = timer("entityExists");
+
+  /**
+   * The duration of the listEntities method.
+   */
+  private final Histogram listEntitiesTime = timer("listEntities");
+
+  /**
+   * The duration of the getEntity method.
+   */
+  private final Histogram getEntityTime = timer("getEntity");
+
+  /**
+   * The duration of the getAttributes method.
+   */
+  private final Histogram getAttributesTime = timer("getAttributes");
+
+  /**
+   * The duration of the setAttributes method.
+   */
+  private final Histogram setAttributesTime = timer("setAttributes");
+
+  /**
+   * Initializes a new instance of the InstrumentedAuthStore class.
+   *
+   * @param store
+   *  The store to delegate the calls to.
+   * @throws IllegalArgumentException
+   *  The store parameter is null.
+   */
+  public InstrumentedAuthStore(AuthStore store) {
+    if (store == null) {
+      throw new IllegalArgumentException("store");
+    }
+    this.store = store;
+  }
+
+  /**
+   * Gets the store the calls are delegated to.
+   *
+   * @return
+   *  The decorated store.
+   */
+  public AuthStore getStore() {
+    return store;
+  }
+
+  @Override
+  public boolean testConnection() {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.testConnection");
+    try {
+      return store.testConnection();
+    } finally {
+      testConnectionTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public boolean tablesExist() throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.tablesExist");
+    try {
+      return store.tablesExist();
+    } finally {
+      tablesExistTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public boolean createTables() throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.createTables");
+    try {
+      return store.createTables();
+    } finally {
+      createTablesTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public int migrateSchema() throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.migrateSchema");
+    try {
+      return store.migrateSchema();
+    } finally {
+      migrateSchemaTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public boolean userExists(String username) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.userExists");
+    try {
+      return store.userExists(username);
+    } finally {
+      userExistsTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public User getUser(String username) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.getUser");
+    try {
+      return store.getUser(username);
+    } finally {
+      getUserTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public String getPassword(String username) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.getPassword");
+    try {
+      return store.getPassword(username);
+    } finally {
+      getPasswordTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public void createUser(String username, String password, boolean admin,
+      int flags) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.createUser");
+    try {
+      store.createUser(username, password, admin, flags);
+    } finally {
+      createUserTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public void createUsers(Map<String, String> users, boolean admin, int flags) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.createUsers");
+    try {
+      store.createUsers(users, admin, flags);
+    } finally {
+      createUsersTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public void updateUser(String username, String password, Boolean admin,
+      Integer flags) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.updateUser");
+    try {
+      store.updateUser(username, password, admin, flags);
+    } finally {
+      updateUserTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public void deleteUser(String username) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.deleteUser");
+    try {
+      store.deleteUser(username);
+    } finally {
+      deleteUserTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public boolean isAdmin(String username) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.isAdmin");
+    try {
+      return store.isAdmin(username);
+    } finally {
+      isAdminTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public List<String> listUsers(String filter) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.listUsers");
+    try {
+      return store.listUsers(filter);
+    } finally {
+      listUsersTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public List<String> listRecentUsers(int max) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.listRecentUsers");
+    try {
+      return store.listRecentUsers(max);
+    } finally {
+      listRecentUsersTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public <T> T inTransaction(Transaction<T> work) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.inTransaction");
+    try {
+      return store.inTransaction(work);
+    } finally {
+      inTransactionTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public List<Account> listAccounts(String after, int max) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.listAccounts");
+    try {
+      return store.listAccounts(after, max);
+    } finally {
+      listAccountsTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public List<String> importAccounts(List<Account> accounts) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.importAccounts");
+    try {
+      return store.importAccounts(accounts);
+    } finally {
+      importAccountsTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public void truncate() throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.truncate");
+    try {
+      store.truncate();
+    } finally {
+      truncateTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public void createEntity(String username, String entity, int flags) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.createEntity");
+    try {
+      store.createEntity(username, entity, flags);
+    } finally {
+      createEntityTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public void deleteEntity(String username, String entity) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.deleteEntity");
+    try {
+      store.deleteEntity(username, entity);
+    } finally {
+      deleteEntityTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public void updateEntity(String username, String entity, String newName,
+      Integer flags) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.updateEntity");
+    try {
+      store.updateEntity(username, entity, newName, flags);
+    } finally {
+      updateEntityTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public boolean entityExists(String username, String entity) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.entityExists");
+    try {
+      return store.entityExists(username, entity);
+    } finally {
+      entityExistsTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public List<Entity> listEntities(String username) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.listEntities");
+    try {
+      return store.listEntities(username);
+    } finally {
+      listEntitiesTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public Entity getEntity(String username, String entity) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.getEntity");
+    try {
+      return store.getEntity(username, entity);
+    } finally {
+      getEntityTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public Map<String, String> getAttributes(String username, String entity) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.getAttributes");
+    try {
+      return store.getAttributes(username, entity);
+    } finally {
+      getAttributesTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public void setAttributes(String username, String entity,
+      Map<String, String> attributes) throws SQLException {
+    long start = System.nanoTime();
+    int span = Tracer.start("store.setAttributes");
+    try {
+      store.setAttributes(username, entity, attributes);
+    } finally {
+      setAttributesTime.recordSince(start);
+      Tracer.end(span);
+    }
+  }
+
+  @Override
+  public void close() throws SQLException {
+    store.close();
+  }
+
+  /**
+   * Returns the histogram for the specified method.
+   *
+   * @param method
+   *  The name of the method.
+   * @return
+   *  The histogram.
+   */
+  private static Histogram timer(String method) {
+    return Metrics.histogram("auth_store_seconds", "Duration of auth store calls.",
+        "method", method);
+  }
+}
@@ -0,0 +1,325 @@
+package org.timadorus.auth.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A hash map with primitive int keys that uses open addressing with linear
+ * probing, so that lookups neither box the key nor chase entry objects.
+ *
+ * The map supports any number of concurrent readers and one writer at a
+ * time: get, size and values never block, while put, remove and clear are
+ * synchronized on the map. Removed slots are marked as deleted and reclaimed
+ * when the table is rebuilt, so that a concurrent lookup never misses a key
+ * that was present for its whole duration.
+ *
+ * Keys must be positive, which holds for the identity columns of the auth
+ * tables.
+ *
+ * @param <V>
+ *  The type of the values.
+ * @author agent
+ */
+public class IntObjectMap<V> {
+  /**
+   * The key of a slot that has never been used.
+   */
+  private static final int FREE = 0;
+
+  /**
+   * The key of a slot whose entry has been removed.
+   */
+  private static final int DELETED = -1;
+
+  /**
+   * The minimum capacity of the table.
+   */
+  private static final int MIN_CAPACITY = 16;
+
+  /**
+   * The current table. Replaced as a whole when the table is rebuilt.
+   */
+  private volatile Table<V> table;
+
+  /**
+   * The number of entries in the map.
+   */
+  private volatile int size;
+
+  /**
+   * The number of slots that are not free, including deleted slots.
+   */
+  private int used;
+
+  /**
+   * Initializes a new instance of the IntObjectMap class.
+   */
+  public IntObjectMap() {
+    this(MIN_CAPACITY);
+  }
+
+  /**
+   * Initializes a new instance of the IntObjectMap class.
+   *
+   * @param expectedSize
+   *  The number of entries the map should hold without being rebuilt.
+   * @throws IllegalArgumentException
+   *  The expectedSize parameter is negative.
+   */
+  public IntObjectMap(int expectedSize) {
+    if (expectedSize < 0) {
+      throw new IllegalArgumentException("expectedSize");
+    }
+    table = new Table<V>(capacityFor(expectedSize));
+  }
+
+  /**
+   * Returns the value of the specified key.
+   *
+   * @param key
+   *  The key to look up.
+   * @return
+   *  The value of the key, or null if the map does not contain the key.
+   */
+  public V get(int key) {
+    if (key <= 0) {
+      return null;
+    }
+    Table<V> t = table;
+    int mask = t.keys.length() - 1;
+    for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+      int k = t.keys.get(i);
+      if (k == key) {
+        V value = t.values.get(i);
+        // The slot may have been removed and reused for another key while
+        // the value was being read.
+        if (t.keys.get(i) == key) {
+          return value;
+        }
+        return get(key);
+      }
+      if (k == FREE) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Determines whether the map contains the specified key.
+   *
+   * @param key
+   *  The key to look up.
+   * @return
+   *  true if the map contains the key; Otherwise false.
+   */
+  public boolean containsKey(int key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Associates the specified value with the specified key.
+   *
+   * @param key
+   *  The key.
+   * @param value
+   *  The value.
+   * @return
+   *  The previous value of the key, or null if the map did not contain the
+   *  key.
+   * @throws IllegalArgumentException
+   *  The key parameter is not positive, or the value parameter is null.
+   */
+  public synchronized V put(int key, V value) {
+    if (key <= 0) {
+      throw new IllegalArgumentException("key");
+    }
+    if (value == null) {
+      throw new IllegalArgumentException("value");
+    }
+    Table<V> t = table;
+    int mask = t.keys.length() - 1;
+    int slot = -1;
+    int i = hash(key) & mask;
+    for (;; i = (i + 1) & mask) {
+      int k = t.keys.get(i);
+      if (k == key) {
+        V old = t.values.get(i);
+        t.values.set(i, value);
+        return old;
+      }
+      if (k == DELETED && slot < 0) {
+        slot = i;
+      } else if (k == FREE) {
+        break;
+      }
+    }
+    if (slot < 0) {
+      slot = i;
+      used++;
+    }
+    // Publish the value before the key, as readers check the key first.
+    t.values.set(slot, value);
+    t.keys.set(slot, key);
+    size++;
+    if (used > t.keys.length() / 2) {
+      rebuild(capacityFor(size));
+    }
+    return null;
+  }
+
+  /**
+   * Removes the specified key from the map.
+   *
+   * @param key
+   *  The key to remove.
+   * @return
+   *  The value of the removed key, or null if the map did not contain the
+   *  key.
+   */
+  public synchronized V remove(int key) {
+    if (key <= 0) {
+      return null;
+    }
+    Table<V> t = table;
+    int mask = t.keys.length() - 1;
+    for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+      int k = t.keys.get(i);
+      if (k == key) {
+        V old = t.values.get(i);
+        t.keys.set(i, DELETED);
+        t.values.set(i, null);
+        size--;
+        return old;
+      }
+      if (k == FREE) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Removes all entries from the map.
+   */
+  public synchronized void clear() {
+    table = new Table<V>(MIN_CAPACITY);
+    size = 0;
+    used = 0;
+  }
+
+  /**
+   * Gets the number of entries in the map.
+   *
+   * @return
+   *  The number of entries in the map.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns a snapshot of the values of the map.
+   *
+   * @return
+   *  A list of the values of the map, in no particular order.
+   */
+  public List<V> values() {
+    Table<V> t = table;
+    List<V> list = new ArrayList<V>(size);
+    for (int i = 0; i < t.keys.length(); i++) {
+      if (t.keys.get(i) > 0) {
+        V value = t.values.get(i);
+        if (value != null) {
+          list.add(value);
+        }
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Copies all entries into a new table of the specified capacity, dropping
+   * deleted slots.
+   *
+   * @param capacity
+   *  The capacity of the new table.
+   */
+  private void rebuild(int capacity) {
+    Table<V> old = table;
+    Table<V> t = new Table<V>(capacity);
+    int mask = capacity - 1;
+    for (int i = 0; i < old.keys.length(); i++) {
+      int key = old.keys.get(i);
+      if (key > 0) {
+        int j = hash(key) & mask;
+        while (t.keys.get(j) != FREE) {
+          j = (j + 1) & mask;
+        }
+        t.values.set(j, old.values.get(i));
+        t.keys.set(j, key);
+      }
+    }
+    used = size;
+    table = t;
+  }
+
+  /**
+   * Returns the table capacity for the specified number of entries, which
+   * keeps the load factor at or below one quarter after a rebuild.
+   *
+   * @param entries
+   *  The number of entries.
+   * @return
+   *  The capacity, a power of two.
+   */
+  private static int capacityFor(int entries) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < entries * 4L && capacity < (1 << 30)) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  /**
+   * Spreads the bits of the specified key, as ids are sequential.
+   *
+   * @param key
+   *  The key.
+   * @return
+   *  The hash of the key.
+   */
+  private static int hash(int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * The slots of the map.
+   *
+   * @param <V>
+   *  The type of the values.
+   */
+  private static final class Table<V> {
+    /**
+     * The keys of the slots.
+     */
+    private final AtomicIntegerArray keys;
+
+    /**
+     * The values of the slots.
+     */
+    private final AtomicReferenceArray<V> values;
+
+    /**
+     * Initializes a new instance of the Table class.
+     *
+     * @param capacity
+     *  The number of slots.
+     */
+    private Table(int capacity) {
+      keys = new AtomicIntegerArray(capacity);
+      values = new AtomicReferenceArray<V>(capacity);
+    }
+  }
+}
@@ -1,10 +1,12 @@
 package org.timadorus.auth.server;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
@@ -21,6 +23,11 @@ public class Interpreter {
    */
   private static final Logger LOG = Logger.getLogger(Interpreter.class.getName());
 
+  /**
+   * The actor recorded in the audit log for changes made from the console.
+   */
+  private static final String CONSOLE = "console";
+
   /**
    * The input-stream from which to read commands.
    */
@@ -106,6 +113,12 @@ public class Interpreter {
         case "truncate":
           truncate();
           break;
+        case "export":
+          exportAccounts(args);
+          break;
+        case "import":
+          importAccounts(args);
+          break;
         case "help":
           help();
           break;
@@ -146,7 +159,7 @@ public class Interpreter {
    */
   private void stop(AuthServer server) {
     os.println("Stopping the auth server...");
-    server.stop();
+    Shutdown.run(server);
     os.println("Exiting...");
   }
 
@@ -167,6 +180,7 @@ public class Interpreter {
     boolean admin = args.length > 2;
     try {
       Database.createUser(name, password, admin, 0);
+      Audit.log(AuditEvent.USER_CREATED, CONSOLE, name, null);
       String s = "Created " + (admin ? "admin " : "") + "user '" + name
           + "' with password '" + password + "'.";
       os.println(s);
@@ -191,6 +205,7 @@ public class Interpreter {
     String password = args[1];
     try {
       Database.updateUser(name, password, null, null);
+      Audit.log(AuditEvent.USER_UPDATED, CONSOLE, name, null);
       String s = "Set password of user '" + name + "' to '" + password
           + "'.";
       os.println(s);
@@ -215,6 +230,7 @@ public class Interpreter {
     try {
       // Try to delete user from the database.
       Database.deleteUser(name);
+      Audit.log(AuditEvent.USER_DELETED, CONSOLE, name, null);
       String s = "Deleted user '" + name + "'.";
       os.println(s);
       LOG.info(s);
@@ -286,6 +302,7 @@ public class Interpreter {
       try {
         os.println("Truncating auth table...");
         Database.truncate();
+        Audit.log(AuditEvent.USERS_TRUNCATED, CONSOLE, null, null);
         os.println("Auth table truncated.");
         LOG.info("Truncated auth table.");
       } catch (Exception e) {
@@ -295,7 +312,57 @@ public class Interpreter {
   }
   
   /**
-   * Creates a new entity in the auth table.
+   * Writes the accounts to an archive file, resuming an interrupted export
+   * to the same file.
+   * 
+   * @param args
+   *          The command-line arguments.
+   */
+  private void exportAccounts(String[] args) {
+    if (args.length < 1) {
+      os.println("Invalid syntax. Try: export <file>");
+      return;
+    }
+    File file = new File(args[0]);
+    try {
+      long count = AccountArchive.export(file, AccountArchive.DEFAULT_PAGE_SIZE);
+      Audit.log(AuditEvent.ACCOUNTS_EXPORTED, CONSOLE, file.getPath(), null);
+      String s = "Exported " + count + " accounts to '" + file + "'.";
+      os.println(s);
+      LOG.info(s);
+    } catch (Exception e) {
+      os.println("Could not export to '" + file + "': " + e.getMessage()
+          + " Repeat the command to resume.");
+    }
+  }
+
+  /**
+   * Reads the accounts of an archive file into the auth table, skipping
+   * users that already exist.
+   * 
+   * @param args
+   *          The command-line arguments.
+   */
+  private void importAccounts(String[] args) {
+    if (args.length < 1) {
+      os.println("Invalid syntax. Try: import <file>");
+      return;
+    }
+    File file = new File(args[0]);
+    try {
+      long count = AccountArchive.importArchive(file, AccountArchive.DEFAULT_PAGE_SIZE);
+      Audit.log(AuditEvent.ACCOUNTS_IMPORTED, CONSOLE, file.getPath(), null);
+      String s = "Imported " + count + " accounts from '" + file + "'.";
+      os.println(s);
+      LOG.info(s);
+    } catch (Exception e) {
+      os.println("Could not import from '" + file + "': " + e.getMessage());
+    }
+  }
+  
+  /**
+   * Creates one or more new entities in the auth table. Several entities are
+   * created in one transaction, i.e. either all of them or none.
    * 
    * @param args
    *          The command-line arguments.
@@ -303,19 +370,30 @@ public class Interpreter {
    */
   private void createEntity(String[] args) {
     if (args.length < 2) {
-      os.println("Invalid syntax. Try: entity.create <user> <name>");
+      os.println("Invalid syntax. Try: entity.create <user> <name> [<name> ...]");
       return;
     }
-    String username = args[0];
-    String entity = args[1];
+    final String username = args[0];
+    final List<String> entities = Arrays.asList(args).subList(1, args.length);
     try {
-      Database.createEntity(username, entity, 0);
-      String s = "Created entity '" + entity + "' for user '" + username
-          + "'.";
-      os.println(s);
-      LOG.info(s);
+      Database.inTransaction(new Transaction<Void>() {
+        @Override
+        public Void run() throws SQLException {
+          for (String entity : entities) {
+            Database.createEntity(username, entity, 0);
+          }
+          return null;
+        }
+      });
+      for (String entity : entities) {
+        Audit.log(AuditEvent.ENTITY_CREATED, CONSOLE, username + "/" + entity, null);
+        String s = "Created entity '" + entity + "' for user '" + username
+            + "'.";
+        os.println(s);
+        LOG.info(s);
+      }
     } catch (Exception e) {
-      os.println("Could not create entity '" + entity + "': " + e.getMessage());
+      os.println("Could not create entities " + entities + ": " + e.getMessage());
     }
   }
   
@@ -335,6 +413,7 @@ public class Interpreter {
     try {
       // Try to delete entity from the database.
       Database.deleteEntity(username, entity);
+      Audit.log(AuditEvent.ENTITY_DELETED, CONSOLE, username + "/" + entity, null);
       String s = "Deleted entity '" + entity + "'.";
       os.println(s);
       LOG.info(s);
@@ -407,8 +486,8 @@ public class Interpreter {
     os.println(" Determines whether the specified user exists in the auth table.");
     os.println("user.list [<num>]");
     os.println(" Lists (the first <num> entries of) the auth table");
-    os.println("entity.create <user> <name>");
-    os.println(" Creates a new entity with the specified name for the specified user.");
+    os.println("entity.create <user> <name> [<name> ...]");
+    os.println(" Creates new entities with the specified names for the specified user.");
     os.println("entity.delete <user> <name>");
     os.println(" Deletes the entity of the specified user with the specified name.");
     os.println("entity.list <user>");
@@ -417,6 +496,11 @@ public class Interpreter {
     os.println(" Determines whether the specified entity of the specified user exists.");
     os.println("truncate");
     os.println(" Deletes all records in the auth table.");
+    os.println("export <file>");
+    os.println(" Writes all users, entities and attributes to the file, or resumes an");
+    os.println(" interrupted export to the file.");
+    os.println("import <file>");
+    os.println(" Reads the users, entities and attributes of the file, skipping existing users.");
     os.println("help");
     os.println(" This menu.");
   }
@@ -0,0 +1,2099 @@
+package org.timadorus.auth.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.timadorus.auth.util.Crypto;
+import org.timadorus.auth.util.Histogram;
+import org.timadorus.auth.util.Metrics;
+
+/**
+ * Implements the AuthStore interface on top of a relational database that is
+ * accessed through JDBC.
+ *
+ * The statements that differ between database engines are provided by an
+ * instance of the SqlDialect interface.
+ *
+ * @author agent
+ */
+public class JdbcAuthStore implements AuthStore {
+  /**
+   * The maximum number of rows inserted with a single batch.
+   */
+  private static final int BATCH_SIZE = 500;
+
+  /**
+   * The time spent waiting for a connection from the pool.
+   */
+  private static final Histogram POOL_WAIT = Metrics.histogram("auth_pool_wait_seconds",
+      "Time spent waiting for a pooled database connection.");
+
+  /**
+   * The time spent waiting for a connection from the read pool.
+   */
+  private static final Histogram READ_POOL_WAIT = Metrics.histogram(
+      "auth_read_pool_wait_seconds", "Time spent waiting for a pooled read connection.");
+
+  /**
+   * The maximum number of users whose recent writes are tracked.
+   */
+  private static final int MAX_TRACKED_WRITES = 100000;
+
+  /**
+   * The datasource all writes, and reads that must see them, go to.
+   */
+  private final DataSource dataSource;
+
+  /**
+   * The datasource for reads, e.g. a read replica. This is the same as the
+   * datasource for writes if reads are not split off.
+   */
+  private final DataSource readDataSource;
+
+  /**
+   * The time it may take for a write to become visible on the read
+   * datasource, in nanoseconds.
+   */
+  private final long replicaLag;
+
+  /**
+   * The users written recently, mapped to the time at which the write is
+   * visible on the read datasource, in nanoseconds.
+   */
+  private final ConcurrentHashMap<String, Long> recentWrites =
+      new ConcurrentHashMap<String, Long>();
+
+  /**
+   * The time at which the last write of any user is visible on the read
+   * datasource, in nanoseconds.
+   */
+  private volatile long lastWriteVisible = System.nanoTime();
+
+  /**
+   * The time until which all reads go to the datasource for writes, e.g.
+   * after the tables have been truncated, in nanoseconds.
+   */
+  private volatile long allWritesVisible = System.nanoTime();
+
+  /**
+   * The SQL dialect of the database.
+   */
+  private final SqlDialect dialect;
+
+  /**
+   * The prefix to use for the database tables.
+   */
+  private final String prefix;
+
+  /**
+   * The connection of the transaction running on the current thread, if
+   * any, see inTransaction.
+   */
+  private final ThreadLocal<BoundConnection> transaction = new ThreadLocal<BoundConnection>();
+
+  /**
+   * Initializes a new instance of the JdbcAuthStore class which manages its
+   * own pool of connections.
+   *
+   * @param className
+   *  The classname of the database driver.
+   * @param connectionString
+   *  The connection-string for the database.
+   * @param prefix
+   *  The prefix to use for the database tables, or null.
+   * @param dialect
+   *  The SQL dialect of the database.
+   * @throws IllegalArgumentException
+   *  The className parameter is null, the connectionString parameter is
+   *  null, or the dialect parameter is null.
+   */
+  public JdbcAuthStore(String className, String connectionString, String prefix,
+      SqlDialect dialect) {
+    this(createDataSource(className, connectionString), prefix, dialect);
+  }
+
+  /**
+   * Initializes a new instance of the JdbcAuthStore class.
+   *
+   * @param dataSource
+   *  The datasource to obtain connections from.
+   * @param prefix
+   *  The prefix to use for the database tables, or null.
+   * @param dialect
+   *  The SQL dialect of the database.
+   * @throws IllegalArgumentException
+   *  The dataSource parameter is null, or the dialect parameter is null.
+   */
+  public JdbcAuthStore(DataSource dataSource, String prefix, SqlDialect dialect) {
+    this(dataSource, dataSource, 0, prefix, dialect);
+  }
+
+  /**
+   * Initializes a new instance of the JdbcAuthStore class which sends reads
+   * to a datasource of their own, so that they don't queue behind writes
+   * for connections, e.g. to a read replica of the database.
+   *
+   * Reads that concern a user written within the replica lag, or that list
+   * users while any write is within the replica lag, go to the datasource
+   * for writes, so that a client always reads its own writes.
+   *
+   * @param dataSource
+   *  The datasource for writes.
+   * @param readDataSource
+   *  The datasource for reads.
+   * @param replicaLagMillis
+   *  The time it may take for a write to become visible on the read
+   *  datasource, in milliseconds, or 0 if both datasources access the same
+   *  database.
+   * @param prefix
+   *  The prefix to use for the database tables, or null.
+   * @param dialect
+   *  The SQL dialect of the database.
+   * @throws IllegalArgumentException
+   *  The dataSource parameter is null, the readDataSource parameter is null,
+   *  the replicaLagMillis parameter is negative, or the dialect parameter is
+   *  null.
+   */
+  public JdbcAuthStore(DataSource dataSource, DataSource readDataSource,
+      long replicaLagMillis, String prefix, SqlDialect dialect) {
+    if (dataSource == null) {
+      throw new IllegalArgumentException("dataSource");
+    }
+    if (readDataSource == null) {
+      throw new IllegalArgumentException("readDataSource");
+    }
+    if (replicaLagMillis < 0) {
+      throw new IllegalArgumentException("replicaLagMillis");
+    }
+    if (dialect == null) {
+      throw new IllegalArgumentException("dialect");
+    }
+    this.dataSource = dataSource;
+    this.readDataSource = readDataSource;
+    this.replicaLag = TimeUnit.MILLISECONDS.toNanos(replicaLagMillis);
+    this.dialect = dialect;
+    this.prefix = prefix != null ? prefix : "";
+    if (dataSource instanceof BasicDataSource) {
+      registerPoolGauges((BasicDataSource) dataSource, "auth_pool_", "Database");
+    }
+    if (readDataSource != dataSource && readDataSource instanceof BasicDataSource) {
+      registerPoolGauges((BasicDataSource) readDataSource, "auth_read_pool_", "Read");
+    }
+  }
+
+  /**
+   * Registers gauges for the number of active and idle connections of the
+   * specified pool.
+   *
+   * @param ds
+   *  The pooling datasource.
+   * @param name
+   *  The prefix of the names of the gauges.
+   * @param kind
+   *  The kind of connections, for the help texts.
+   */
+  private static void registerPoolGauges(final BasicDataSource ds, String name, String kind) {
+    Metrics.gauge(name + "active_connections", kind + " connections in use.",
+        new Metrics.Gauge() {
+          @Override
+          public double getValue() {
+            return ds.getNumActive();
+          }
+        });
+    Metrics.gauge(name + "idle_connections", "Idle pooled " + kind.toLowerCase(Locale.ROOT)
+        + " connections.",
+        new Metrics.Gauge() {
+          @Override
+          public double getValue() {
+            return ds.getNumIdle();
+          }
+        });
+    Metrics.gauge(name + "max_connections", "Maximum number of "
+        + kind.toLowerCase(Locale.ROOT) + " connections.",
+        new Metrics.Gauge() {
+          @Override
+          public double getValue() {
+            return ds.getMaxTotal();
+          }
+        });
+  }
+
+  /**
+   * Creates a pooling datasource for the specified database.
+   *
+   * @param className
+   *  The classname of the database driver.
+   * @param connectionString
+   *  The connection-string for the database.
+   * @param maxConnections
+   *  The maximum number of connections, or 0 for the default of the pool.
+   * @return
+   *  The datasource.
+   * @throws IllegalArgumentException
+   *  The className parameter is null, or the connectionString parameter is
+   *  null.
+   */
+  public static BasicDataSource createDataSource(String className,
+      String connectionString, int maxConnections) {
+    BasicDataSource ds = createDataSource(className, connectionString);
+    if (maxConnections > 0) {
+      ds.setMaxTotal(maxConnections);
+      ds.setMaxIdle(maxConnections);
+      ds.setInitialSize(maxConnections);
+    }
+    return ds;
+  }
+
+  /**
+   * Creates a pooling datasource for the specified database.
+   *
+   * @param className
+   *  The classname of the database driver.
+   * @param connectionString
+   *  The connection-string for the database.
+   * @return
+   *  The datasource.
+   * @throws IllegalArgumentException
+   *  The className parameter is null, or the connectionString parameter is
+   *  null.
+   */
+  private static BasicDataSource createDataSource(String className,
+      String connectionString) {
+    if (className == null) {
+      throw new IllegalArgumentException("className");
+    }
+    if (connectionString == null) {
+      throw new IllegalArgumentException("connectionString");
+    }
+    BasicDataSource ds = new BasicDataSource();
+    ds.setDriverClassName(className);
+    ds.setUrl(connectionString);
+    // Keep the prepared statements of each pooled connection, so that the
+    // statements of frequent calls are only parsed once per connection.
+    ds.setPoolPreparedStatements(true);
+    // Open all idle connections with the first one, i.e. at startup.
+    ds.setInitialSize(ds.getMaxIdle());
+    return ds;
+  }
+
+  /**
+   * Gets the SQL dialect of the database.
+   *
+   * @return
+   *  The SQL dialect of the database.
+   */
+  public SqlDialect getDialect() {
+    return dialect;
+  }
+
+  @Override
+  public boolean testConnection() {
+    Connection con = null;
+    try {
+      con = getConnection();
+      if (readDataSource != dataSource) {
+        con.close();
+        con = getConnection(true);
+      }
+      return true;
+    } catch (Exception e) {
+      return false;
+    } finally {
+      try {
+        if (con != null) {
+          con.close();
+        }
+      } catch (SQLException e) {
+      }
+    }
+  }
+
+  @Override
+  public boolean tablesExist() throws SQLException {
+    Connection con = getConnection();
+    ResultSet rs = null;
+    try {
+      DatabaseMetaData dbmd = con.getMetaData();
+      rs = dbmd.getTables(null, dialect.getDefaultSchema(dbmd),
+                          (prefix + "users").toUpperCase(), null);
+      return rs.next();
+    } catch (SQLException e) {
+      return false;
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+  }
+
+  @Override
+  public boolean createTables() throws SQLException {
+    Statement statement = null;
+    Connection con = getConnection();
+    try {
+      for (String ddl : dialect.getCreateTableStatements(prefix)) {
+        statement = con.createStatement();
+        statement.execute(ddl);
+        statement.close();
+        statement = null;
+      }
+      return true;
+    } catch (SQLException e) {
+      e.printStackTrace();
+      System.out.println(e);
+      return false;
+    } finally {
+      recordWrite(null);
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+  }
+
+  @Override
+  public int migrateSchema() throws SQLException {
+    Connection con = getConnection();
+    try {
+      int migrations = new SchemaMigrator(prefix, dialect).migrate(con);
+      if (migrations > 0) {
+        recordWrite(null);
+      }
+      return migrations;
+    } finally {
+      con.close();
+    }
+  }
+
+  @Override
+  public boolean userExists(String username) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    String sqlStatement = "SELECT user_id from " + prefix + "users WHERE name = ?";
+    Connection con = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    try {
+      con = getConnection(useReplica(username));
+      statement = con.prepareStatement(sqlStatement);
+      statement.setString(1, username);
+      resultSet = statement.executeQuery();
+      return resultSet.next();
+    } finally {
+      if (resultSet != null) {
+        resultSet.close();
+      }
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+  }
+
+  @Override
+  public User getUser(String username) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    String sqlStatement = "SELECT * from " + prefix + "users WHERE name = ?";
+    Connection con = null;
+    PreparedStatement statement = null;
+    ResultSet rs = null;
+    try {
+      con = getConnection(useReplica(username));
+      statement = con.prepareStatement(sqlStatement);
+      statement.setString(1, username);
+      rs = statement.executeQuery();
+      if (!rs.next()) {
+        return null;
+      }
+      return new User(rs.getInt("user_id"), rs.getString("name"),
+                      rs.getString("password"), rs.getShort("admin") != 0,
+                      rs.getTimestamp("last_login"), rs.getInt("flags"));
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+  }
+
+  @Override
+  public String getPassword(String username) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    String sqlStatement = "SELECT password from " + prefix + "users WHERE name = ?";
+    Connection con = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    try {
+      con = getConnection(useReplica(username));
+      statement = con.prepareStatement(sqlStatement);
+      statement.setString(1, username);
+      resultSet = statement.executeQuery();
+      if (!resultSet.next()) {
+        return null;
+      }
+      return resultSet.getString("password");
+    } finally {
+      if (resultSet != null) {
+        resultSet.close();
+      }
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+  }
+
+  @Override
+  public void createUser(String username, String password, boolean admin,
+    int flags) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (password == null) {
+      throw new IllegalArgumentException("password");
+    }
+    // The name_unique constraint rejects existing users, so that there is no
+    // window between a check and the insert.
+    String hash = Crypto.createHash(password);
+    String sqlStatement = "INSERT INTO " + prefix + "users (name, password, admin, flags) "
+        + "VALUES (?, ?, ?, ?)";
+    Connection con = null;
+    PreparedStatement statement = null;
+    try {
+      con = getConnection();
+      statement = con.prepareStatement(sqlStatement);
+      statement.setString(1, username);
+      statement.setString(2, hash);
+      statement.setShort(3, (short) (admin ? 1 : 0));
+      statement.setInt(4, flags);
+      if (statement.executeUpdate() == 0) {
+        throw new SQLException("Insertion failed.");
+      }
+    } catch (SQLException e) {
+      if (isDuplicateKey(e)) {
+        throw new IllegalStateException("A user with the name of '" + username
+          + "' already exists in the auth table.");
+      }
+      throw e;
+    } finally {
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+    recordWrite(username);
+  }
+
+  @Override
+  public void createUsers(Map<String, String> users, boolean admin, int flags)
+      throws SQLException {
+    if (users == null) {
+      throw new IllegalArgumentException("users");
+    }
+    for (Map.Entry<String, String> e : users.entrySet()) {
+      if (e.getKey() == null || e.getValue() == null) {
+        throw new IllegalArgumentException("users");
+      }
+    }
+    String sqlStatement = "INSERT INTO " + prefix + "users (name, password, admin, flags) "
+        + "VALUES (?, ?, ?, ?)";
+    Connection con = null;
+    PreparedStatement statement = null;
+    try {
+      con = getConnection();
+      con.setAutoCommit(false);
+      statement = con.prepareStatement(sqlStatement);
+      int pending = 0;
+      for (Map.Entry<String, String> e : users.entrySet()) {
+        statement.setString(1, e.getKey());
+        statement.setString(2, Crypto.createHash(e.getValue()));
+        statement.setShort(3, (short) (admin ? 1 : 0));
+        statement.setInt(4, flags);
+        statement.addBatch();
+        if (++pending == BATCH_SIZE) {
+          executeBatch(con, statement);
+          pending = 0;
+        }
+      }
+      if (pending > 0) {
+        executeBatch(con, statement);
+      }
+    } finally {
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.setAutoCommit(true);
+        con.close();
+      }
+    }
+    for (String username : users.keySet()) {
+      recordWrite(username);
+    }
+  }
+
+  @Override
+  public void updateUser(String username, String password, Boolean admin,
+    Integer flags) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (password == null && admin == null && flags == null) {
+      if (!userExists(username)) {
+        throw new IllegalStateException("A user with the name of '" + username
+          + "' does not exist in the auth table.");
+      }
+      return;
+    }
+    String hash = password != null ? Crypto.createHash(password) : null;
+    int stack = 1;
+    StringBuilder b = new StringBuilder("UPDATE " + prefix + "users SET ");
+    if (password != null) {
+      b.append("password = ?");
+      stack++;
+    }
+    if (admin != null) {
+      if (stack > 1) {
+        b.append(", ");
+      }
+      b.append("admin = ?");
+      stack++;
+    }
+    if (flags != null) {
+      if (stack > 1) {
+        b.append(", ");
+      }
+      b.append("flags = ?");
+      stack++;
+    }
+    b.append(" WHERE name = ?");
+    Connection con = null;
+    PreparedStatement statement = null;
+    try {
+      con = getConnection();
+      statement = con.prepareStatement(b.toString());
+      statement.setString(stack--, username);
+      if (flags != null) {
+        statement.setInt(stack--, flags);
+      }
+      if (admin != null) {
+        statement.setShort(stack--, (short) (admin.booleanValue() ? 1 : 0));
+      }
+      if (hash != null) {
+        statement.setString(stack--, hash);
+      }
+      if (statement.executeUpdate() == 0) {
+        throw new IllegalStateException("A user with the name of '" + username
+          + "' does not exist in the auth table.");
+      }
+    } finally {
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+    recordWrite(username);
+  }
+
+  @Override
+  public void deleteUser(String username) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    String sqlStatement = "DELETE FROM " + prefix + "users WHERE name = ?";
+    Connection con = null;
+    PreparedStatement statement = null;
+    try {
+      con = getConnection();
+      statement = con.prepareStatement(sqlStatement);
+      statement.setString(1, username);
+      if (statement.executeUpdate() == 0) {
+        throw new IllegalStateException("A user with the name of '" + username
+          + "' does not exist in the auth table.");
+      }
+    } finally {
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+    recordWrite(username);
+  }
+
+  @Override
+  public boolean isAdmin(String username) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    String sqlStatement = "SELECT admin FROM " + prefix + "users WHERE name = ?";
+    Connection con = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    try {
+      con = getConnection(useReplica(username));
+      statement = con.prepareStatement(sqlStatement);
+      statement.setString(1, username);
+      resultSet = statement.executeQuery();
+      if (!resultSet.next()) {
+        return false;
+      }
+      return resultSet.getShort("admin") != 0;
+    } finally {
+      if (resultSet != null) {
+        resultSet.close();
+      }
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+  }
+
+  @Override
+  public List<String> listUsers(String filter) throws SQLException {
+    String sqlStatement = "SELECT name from " + prefix + "users"
+        + ((filter != null) ? " WHERE name LIKE ?" : "");
+    Connection con = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    try {
+      con = getConnection(useReplica(null));
+      statement = con.prepareStatement(sqlStatement);
+      if (filter != null) {
+        statement.setString(1, filter);
+      }
+      resultSet = statement.executeQuery();
+      List<String> names = new LinkedList<String>();
+      while (resultSet.next()) {
+        names.add(resultSet.getString("name"));
+      }
+      return names;
+    } finally {
+      if (resultSet != null) {
+        resultSet.close();
+      }
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+  }
+
+  @Override
+  public List<String> listRecentUsers(int max) throws SQLException {
+    String sqlStatement = "SELECT name FROM " + prefix + "users"
+        + " WHERE last_login IS NOT NULL ORDER BY last_login DESC";
+    Connection con = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    try {
+      con = getConnection(useReplica(null));
+      statement = con.prepareStatement(sqlStatement);
+      // Limit the rows portably rather than with dialect-specific syntax.
+      statement.setMaxRows(max);
+      resultSet = statement.executeQuery();
+      List<String> names = new LinkedList<String>();
+      while (resultSet.next()) {
+        names.add(resultSet.getString("name"));
+      }
+      return names;
+    } finally {
+      if (resultSet != null) {
+        resultSet.close();
+      }
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+  }
+
+  @Override
+  public void truncate() throws SQLException {
+    // Entities and attributes are removed by the cascading foreign keys.
+    String sqlStatement = dialect.getTruncateStatement(prefix + "users");
+    Connection con = null;
+    Statement statement = null;
+    try {
+      con = getConnection();
+      statement = con.createStatement();
+      statement.executeUpdate(sqlStatement);
+    } finally {
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+    recordWrite(null);
+  }
+
+  @Override
+  public void createEntity(String username, String entity, int flags)
+      throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (entity == null) {
+      throw new IllegalArgumentException("entity");
+    }
+    // Resolve the user within the insert and let the unique index on
+    // (user_id, name) reject existing entities.
+    String sqlStatement = "INSERT INTO " + prefix
+        + "entitiesPerUser (user_id, name, flags) "
+        + "SELECT user_id, CAST(? AS VARCHAR(255)), CAST(? AS INTEGER) FROM "
+        + prefix + "users WHERE name = ?";
+    Connection con = null;
+    PreparedStatement statement = null;
+    try {
+      con = getConnection();
+      statement = con.prepareStatement(sqlStatement);
+      statement.setString(1, entity);
+      statement.setInt(2, flags);
+      statement.setString(3, username);
+      if (statement.executeUpdate() == 0) {
+        throw new IllegalStateException("A user with the name of '" + username
+                            + "' does not exist in the auth table.");
+      }
+    } catch (SQLException e) {
+      if (isDuplicateKey(e)) {
+        throw new IllegalStateException("The entity '" + entity + "' already exists.");
+      }
+      throw e;
+    } finally {
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+    recordWrite(username);
+  }
+
+  @Override
+  public void deleteEntity(String username, String entity) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (entity == null) {
+      throw new IllegalArgumentException("entity");
+    }
+    String sqlStatement = "DELETE FROM " + prefix
+        + "entitiesPerUser WHERE user_id = (SELECT user_id FROM " + prefix
+        + "users WHERE name = ?) AND name = ?";
+    Connection con = null;
+    PreparedStatement statement = null;
+    try {
+      con = getConnection();
+      statement = con.prepareStatement(sqlStatement);
+      statement.setString(1, username);
+      statement.setString(2, entity);
+      if (statement.executeUpdate() == 0) {
+        // Only failed deletes pay for telling a missing user from a missing
+        // entity.
+        getUserId(con, username);
+        throw new SQLException("Delete failed.");
+      }
+    } finally {
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+    recordWrite(username);
+  }
+
+  @Override
+  public void updateEntity(String username, String entity, String newName,
+    Integer flags) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (entity == null) {
+      throw new IllegalArgumentException("entity");
+    }
+    if (newName == null && flags == null) {
+      getUserId(username, false);
+      return;
+    }
+    int stack = 2;
+    StringBuilder b = new StringBuilder("UPDATE " + prefix + "entitiesPerUser SET ");
+    if (newName != null) {
+      b.append("name = ?");
+      stack++;
+    }
+    if (flags != null) {
+      if (stack > 2) {
+        b.append(", ");
+      }
+      b.append("flags = ?");
+      stack++;
+    }
+    b.append(" WHERE user_id = (SELECT user_id FROM " + prefix
+        + "users WHERE name = ?) AND name = ?");
+    Connection con = null;
+    PreparedStatement statement = null;
+    try {
+      con = getConnection();
+      statement = con.prepareStatement(b.toString());
+      statement.setString(stack--, entity);
+      statement.setString(stack--, username);
+      if (flags != null) {
+        statement.setInt(stack--, flags);
+      }
+      if (newName != null) {
+        statement.setString(stack--, newName);
+      }
+      if (statement.executeUpdate() == 0) {
+        getUserId(con, username);
+        throw new SQLException("Update failed.");
+      }
+    } catch (SQLException e) {
+      if (isDuplicateKey(e)) {
+        throw new IllegalStateException("The entity '" + newName + "' already exists.");
+      }
+      throw e;
+    } finally {
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+    recordWrite(username);
+  }
+
+  @Override
+  public boolean entityExists(String username, String entity) throws SQLException {
+    boolean replica = useReplica(username);
+    return entityExists(getUserId(username, replica), entity, replica);
+  }
+
+  /**
+   * Determines whether the specified entity exists in the auth table.
+   *
+   * @param userId
+   *  The unique id of the user whose entities to lookup.
+   * @param entity
+   *  The name of the entity to lookup.
+   * @param replica
+   *  true if the lookup may be answered by the read datasource; Otherwise
+   *  false.
+   * @return
+   *  true if the entity exists; Otherwise false.
+   * @throws SQLException
+   *  The connection to the database could not be established, or
+   *  another database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The entity parameter is null.
+   */
+  private boolean entityExists(int userId, String entity, boolean replica) throws SQLException {
+    return getEntityId(userId, entity, replica) >= 0;
+  }
+
+  @Override
+  public List<Entity> listEntities(String username) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    boolean replica = useReplica(username);
+    int userId = getUserId(username, replica);
+    String sqlStatement = "SELECT * from " + prefix
+        + "entitiesPerUser WHERE user_id = ?";
+    Connection con = null;
+    PreparedStatement statement = null;
+    ResultSet rs = null;
+    try {
+      con = getConnection(replica);
+      statement = con.prepareStatement(sqlStatement);
+      statement.setInt(1, userId);
+      rs = statement.executeQuery();
+      List<Entity> ents = new LinkedList<Entity>();
+      while (rs.next()) {
+        Entity e = new Entity(rs.getInt("entity_id"), rs.getInt("user_id"),
+                              rs.getString("name"), rs.getTimestamp("last_login"),
+                              rs.getInt("flags"));
+        ents.add(e);
+      }
+      return ents;
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+  }
+
+  @Override
+  public Entity getEntity(String username, String entity) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (entity == null) {
+      throw new IllegalArgumentException("entity");
+    }
+    boolean replica = useReplica(username);
+    int userId = getUserId(username, replica);
+    String sqlStatement = "SELECT * from " + prefix
+        + "entitiesPerUser WHERE user_id = ? AND name = ?";
+    Connection con = null;
+    PreparedStatement statement = null;
+    ResultSet rs = null;
+    try {
+      con = getConnection(replica);
+      statement = con.prepareStatement(sqlStatement);
+      statement.setInt(1, userId);
+      statement.setString(2, entity);
+      rs = statement.executeQuery();
+      if (!rs.next()) {
+        return null;
+      }
+      return new Entity(rs.getInt("entity_id"), rs.getInt("user_id"),
+                        rs.getString("name"), rs.getTimestamp("last_login"),
+                        rs.getInt("flags"));
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+  }
+
+  @Override
+  public Map<String, String> getAttributes(String username, String entity)
+      throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (entity == null) {
+      throw new IllegalArgumentException("entity");
+    }
+    boolean replica = useReplica(username);
+    int entityId = getExistingEntityId(username, entity, replica);
+    String sqlStatement = "SELECT name, value from " + prefix
+        + "attributesPerEntity WHERE entity_id = ?";
+    Connection con = null;
+    PreparedStatement statement = null;
+    ResultSet rs = null;
+    Map<String, String> attr = new HashMap<String, String>();
+    try {
+      con = getConnection(replica);
+      statement = con.prepareStatement(sqlStatement);
+      statement.setInt(1, entityId);
+      rs = statement.executeQuery();
+      while (rs.next()) {
+        attr.put(rs.getString("name"), rs.getString("value"));
+      }
+      return attr;
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+  }
+
+  @Override
+  public void setAttributes(String username, String entity,
+      Map<String, String> attributes) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (entity == null) {
+      throw new IllegalArgumentException("entity");
+    }
+    if (attributes == null) {
+      throw new IllegalArgumentException("attributes");
+    }
+    for (Map.Entry<String, String> e : attributes.entrySet()) {
+      if (e.getKey() == null || e.getValue() == null) {
+        throw new IllegalArgumentException("attributes");
+      }
+    }
+    if (attributes.isEmpty()) {
+      getExistingEntityId(username, entity, false);
+      return;
+    }
+    // Resolve the entity and set the attributes in one transaction, so that
+    // the entity can't be deleted in between.
+    Connection con = null;
+    try {
+      con = getConnection();
+      con.setAutoCommit(false);
+      int entityId = getExistingEntityId(con, username, entity);
+      String upsert = dialect.getUpsertAttributeStatement(prefix);
+      if (upsert != null) {
+        upsertAttributes(con, upsert, entityId, attributes);
+      } else {
+        updateOrInsertAttributes(con, entityId, attributes);
+      }
+      con.commit();
+    } catch (SQLException e) {
+      if (con != null) {
+        con.rollback();
+      }
+      throw e;
+    } catch (IllegalStateException e) {
+      con.rollback();
+      throw e;
+    } finally {
+      if (con != null) {
+        con.setAutoCommit(true);
+        con.close();
+      }
+    }
+    recordWrite(username);
+  }
+
+  /**
+   * Sets the specified attributes using the dialect's upsert statement.
+   *
+   * @param con
+   *  The connection to use.
+   * @param sqlStatement
+   *  The upsert statement.
+   * @param entityId
+   *  The unique id of the entity.
+   * @param attributes
+   *  The attributes to set.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  private void upsertAttributes(Connection con, String sqlStatement, int entityId,
+      Map<String, String> attributes) throws SQLException {
+    PreparedStatement statement = con.prepareStatement(sqlStatement);
+    try {
+      for (Map.Entry<String, String> e : attributes.entrySet()) {
+        statement.setInt(1, entityId);
+        statement.setString(2, e.getKey());
+        statement.setString(3, e.getValue());
+        statement.addBatch();
+      }
+      statement.executeBatch();
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Sets the specified attributes for databases which do not support upserts,
+   * by first updating all attributes and then inserting those which did not
+   * exist. The caller must hold a transaction.
+   *
+   * @param con
+   *  The connection to use.
+   * @param entityId
+   *  The unique id of the entity.
+   * @param attributes
+   *  The attributes to set.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  private void updateOrInsertAttributes(Connection con, int entityId,
+      Map<String, String> attributes) throws SQLException {
+    List<Map.Entry<String, String>> entries =
+        new ArrayList<Map.Entry<String, String>>(attributes.entrySet());
+    int[] counts;
+    PreparedStatement update = con.prepareStatement("UPDATE " + prefix
+        + "attributesPerEntity SET value = ? WHERE entity_id = ? AND name = ?");
+    try {
+      for (Map.Entry<String, String> e : entries) {
+        update.setString(1, e.getValue());
+        update.setInt(2, entityId);
+        update.setString(3, e.getKey());
+        update.addBatch();
+      }
+      counts = update.executeBatch();
+    } finally {
+      update.close();
+    }
+    PreparedStatement insert = con.prepareStatement("INSERT INTO " + prefix
+        + "attributesPerEntity (entity_id, name, value) VALUES (?, ?, ?)");
+    try {
+      int pending = 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] == 0) {
+          insert.setInt(1, entityId);
+          insert.setString(2, entries.get(i).getKey());
+          insert.setString(3, entries.get(i).getValue());
+          insert.addBatch();
+          pending++;
+        }
+      }
+      if (pending > 0) {
+        insert.executeBatch();
+      }
+    } finally {
+      insert.close();
+    }
+  }
+
+  @Override
+  public List<Account> listAccounts(String after, int max) throws SQLException {
+    List<Account> accounts = new ArrayList<Account>();
+    Connection con = null;
+    try {
+      con = getConnection(useReplica(null));
+      List<User> page = readUsers(con, after, max);
+      if (page.isEmpty()) {
+        return accounts;
+      }
+      // The entities and attributes of the whole page are read with one
+      // query each, selecting the range of usernames the page spans.
+      String first = page.get(0).getName();
+      String last = page.get(page.size() - 1).getName();
+      Map<Integer, List<Entity>> entities = readEntities(con, first, last);
+      Map<Integer, Map<String, String>> attributes = readAttributes(con, first, last);
+      for (User user : page) {
+        List<Entity> ents = entities.get(user.getId());
+        if (ents == null) {
+          ents = new ArrayList<Entity>();
+        }
+        Map<String, Map<String, String>> attr = new HashMap<String, Map<String, String>>();
+        for (Entity e : ents) {
+          Map<String, String> a = attributes.get(e.getId());
+          if (a != null) {
+            attr.put(e.getName(), a);
+          }
+        }
+        accounts.add(new Account(user, ents, attr));
+      }
+      return accounts;
+    } finally {
+      if (con != null) {
+        con.close();
+      }
+    }
+  }
+
+  @Override
+  public List<String> importAccounts(List<Account> accounts) throws SQLException {
+    if (accounts == null || accounts.contains(null)) {
+      throw new IllegalArgumentException("accounts");
+    }
+    List<String> names = new ArrayList<String>();
+    if (accounts.isEmpty()) {
+      return names;
+    }
+    String first = accounts.get(0).getUser().getName();
+    String last = first;
+    for (Account account : accounts) {
+      String name = account.getUser().getName();
+      if (name.compareTo(first) < 0) {
+        first = name;
+      }
+      if (name.compareTo(last) > 0) {
+        last = name;
+      }
+    }
+    Connection con = null;
+    try {
+      con = getConnection();
+      con.setAutoCommit(false);
+      // Skip the users that exist, so that an interrupted import can simply
+      // be repeated.
+      Set<String> skipped = new HashSet<String>(readUserIds(con, first, last).keySet());
+      List<Account> created = new ArrayList<Account>();
+      for (Account account : accounts) {
+        if (skipped.add(account.getUser().getName())) {
+          created.add(account);
+        }
+      }
+      if (!created.isEmpty()) {
+        insertUsers(con, created);
+        Map<String, Integer> userIds = readUserIds(con, first, last);
+        insertEntities(con, created, userIds);
+        insertAttributes(con, created, userIds, readEntities(con, first, last));
+      }
+      con.commit();
+      for (Account account : created) {
+        names.add(account.getUser().getName());
+      }
+    } catch (SQLException e) {
+      if (con != null) {
+        con.rollback();
+      }
+      throw e;
+    } catch (RuntimeException e) {
+      con.rollback();
+      throw e;
+    } finally {
+      if (con != null) {
+        con.setAutoCommit(true);
+        con.close();
+      }
+    }
+    if (!names.isEmpty()) {
+      recordWrite(null);
+    }
+    return names;
+  }
+
+  @Override
+  public <T> T inTransaction(Transaction<T> work) throws SQLException {
+    if (work == null) {
+      throw new IllegalArgumentException("work");
+    }
+    if (transaction.get() != null) {
+      return work.run();
+    }
+    Connection con = getConnection();
+    BoundConnection bound = new BoundConnection(con);
+    boolean committed = false;
+    try {
+      con.setAutoCommit(false);
+      transaction.set(bound);
+      T result = work.run();
+      con.commit();
+      committed = true;
+      transaction.remove();
+      for (String username : bound.writes) {
+        recordWrite(username);
+      }
+      return result;
+    } finally {
+      transaction.remove();
+      try {
+        if (!committed) {
+          con.rollback();
+        }
+      } finally {
+        bound.closeStatements();
+        con.setAutoCommit(true);
+        con.close();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws SQLException {
+    if (dataSource instanceof BasicDataSource) {
+      ((BasicDataSource) dataSource).close();
+    }
+    if (readDataSource != dataSource && readDataSource instanceof BasicDataSource) {
+      ((BasicDataSource) readDataSource).close();
+    }
+  }
+
+  /**
+   * Returns the unique user-id for the user with the specified username.
+   *
+   * @param username
+   *  The name of the user whose id to lookup.
+   * @param replica
+   *  true if the lookup may be answered by the read datasource; Otherwise
+   *  false.
+   * @return
+   *  The user-id of the user with the specified username.
+   * @throws SQLException
+   *  The connection to the database could not be established, or
+   *  another database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The username parameter is null.
+   * @throws IllegalStateException
+   *  A user with the specified username does not exist in the auth table.
+   */
+  private int getUserId(String username, boolean replica) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    Connection con = getConnection(replica);
+    try {
+      return getUserId(con, username);
+    } finally {
+      con.close();
+    }
+  }
+
+  /**
+   * Returns the unique user-id for the user with the specified username,
+   * using the specified connection.
+   *
+   * @param con
+   *  The connection to use.
+   * @param username
+   *  The name of the user whose id to lookup.
+   * @return
+   *  The user-id of the user with the specified username.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalStateException
+   *  A user with the specified username does not exist in the auth table.
+   */
+  private int getUserId(Connection con, String username) throws SQLException {
+    String sqlStatement = "SELECT user_id from " + prefix + "users WHERE name = ?";
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    try {
+      statement = con.prepareStatement(sqlStatement);
+      statement.setString(1, username);
+      resultSet = statement.executeQuery();
+      if (!resultSet.next()) {
+        throw new IllegalStateException("A user with the name of '" + username
+                            + "' does not exist in the auth table.");
+      }
+      return resultSet.getInt("user_id");
+    } finally {
+      if (resultSet != null) {
+        resultSet.close();
+      }
+      if (statement != null) {
+        statement.close();
+      }
+    }
+  }
+
+  /**
+   * Returns the unique entity-id for the specified entity.
+   *
+   * @param userId
+   *  The unique id of the user whose entity to lookup.
+   * @param entity
+   *  The name of the entity to lookup.
+   * @param replica
+   *  true if the lookup may be answered by the read datasource; Otherwise
+   *  false.
+   * @return
+   *  The entity-id of the entity, or -1 if no such entity exists.
+   * @throws SQLException
+   *  The connection to the database could not be established, or
+   *  another database-related error occurred.
+   * @throws IllegalArgumentException
+   *  The entity parameter is null.
+   */
+  private int getEntityId(int userId, String entity, boolean replica) throws SQLException {
+    if (entity == null) {
+      throw new IllegalArgumentException("entity");
+    }
+    String sqlStatement = "SELECT entity_id from " + prefix
+        + "entitiesPerUser WHERE user_id = ? AND name = ?";
+    Connection con = null;
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    try {
+      con = getConnection(replica);
+      statement = con.prepareStatement(sqlStatement);
+      statement.setInt(1, userId);
+      statement.setString(2, entity);
+      resultSet = statement.executeQuery();
+      return resultSet.next() ? resultSet.getInt("entity_id") : -1;
+    } finally {
+      if (resultSet != null) {
+        resultSet.close();
+      }
+      if (statement != null) {
+        statement.close();
+      }
+      if (con != null) {
+        con.close();
+      }
+    }
+  }
+
+  /**
+   * Returns the unique entity-id for the specified entity.
+   *
+   * @param username
+   *  The name of the user whose entity to lookup.
+   * @param entity
+   *  The name of the entity to lookup.
+   * @param replica
+   *  true if the lookup may be answered by the read datasource; Otherwise
+   *  false.
+   * @return
+   *  The entity-id of the entity.
+   * @throws SQLException
+   *  The connection to the database could not be established, or
+   *  another database-related error occurred.
+   * @throws IllegalStateException
+   *  A user with the specified username or the entity does not exist.
+   */
+  private int getExistingEntityId(String username, String entity, boolean replica)
+      throws SQLException {
+    Connection con = getConnection(replica);
+    try {
+      return getExistingEntityId(con, username, entity);
+    } finally {
+      con.close();
+    }
+  }
+
+  /**
+   * Reads a page of users in the order of their names.
+   *
+   * @param con
+   *  The connection to use.
+   * @param after
+   *  The name of the user after which the page starts, or null.
+   * @param max
+   *  The maximum number of users to read.
+   * @return
+   *  The users.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  private List<User> readUsers(Connection con, String after, int max) throws SQLException {
+    String sqlStatement = "SELECT user_id, name, password, admin, flags FROM " + prefix
+        + "users" + (after != null ? " WHERE name > ?" : "") + " ORDER BY name";
+    PreparedStatement statement = con.prepareStatement(sqlStatement);
+    ResultSet rs = null;
+    try {
+      // Limit the rows portably rather than with dialect-specific syntax.
+      statement.setMaxRows(max);
+      if (after != null) {
+        statement.setString(1, after);
+      }
+      rs = statement.executeQuery();
+      List<User> page = new ArrayList<User>();
+      while (rs.next()) {
+        page.add(new User(rs.getInt("user_id"), rs.getString("name"),
+                          rs.getString("password"), rs.getShort("admin") != 0,
+                          null, rs.getInt("flags")));
+      }
+      return page;
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      statement.close();
+    }
+  }
+
+  /**
+   * Reads the ids of the users whose names lie within the specified range.
+   *
+   * @param con
+   *  The connection to use.
+   * @param first
+   *  The first name of the range.
+   * @param last
+   *  The last name of the range.
+   * @return
+   *  The ids of the users, keyed by name.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  private Map<String, Integer> readUserIds(Connection con, String first, String last)
+      throws SQLException {
+    PreparedStatement statement = con.prepareStatement("SELECT user_id, name FROM "
+        + prefix + "users WHERE name >= ? AND name <= ?");
+    ResultSet rs = null;
+    try {
+      statement.setString(1, first);
+      statement.setString(2, last);
+      rs = statement.executeQuery();
+      Map<String, Integer> ids = new HashMap<String, Integer>();
+      while (rs.next()) {
+        ids.put(rs.getString("name"), rs.getInt("user_id"));
+      }
+      return ids;
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      statement.close();
+    }
+  }
+
+  /**
+   * Reads the entities of the users whose names lie within the specified
+   * range.
+   *
+   * @param con
+   *  The connection to use.
+   * @param first
+   *  The first name of the range.
+   * @param last
+   *  The last name of the range.
+   * @return
+   *  The entities, keyed by the id of their user.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  private Map<Integer, List<Entity>> readEntities(Connection con, String first, String last)
+      throws SQLException {
+    PreparedStatement statement = con.prepareStatement("SELECT e.entity_id, e.user_id, "
+        + "e.name, e.last_login, e.flags FROM " + prefix + "entitiesPerUser e JOIN " + prefix
+        + "users u ON e.user_id = u.user_id WHERE u.name >= ? AND u.name <= ?");
+    ResultSet rs = null;
+    try {
+      statement.setString(1, first);
+      statement.setString(2, last);
+      rs = statement.executeQuery();
+      Map<Integer, List<Entity>> ents = new HashMap<Integer, List<Entity>>();
+      while (rs.next()) {
+        Entity e = new Entity(rs.getInt("entity_id"), rs.getInt("user_id"),
+                              rs.getString("name"), rs.getTimestamp("last_login"),
+                              rs.getInt("flags"));
+        List<Entity> list = ents.get(e.getUserId());
+        if (list == null) {
+          list = new ArrayList<Entity>();
+          ents.put(e.getUserId(), list);
+        }
+        list.add(e);
+      }
+      return ents;
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      statement.close();
+    }
+  }
+
+  /**
+   * Reads the attributes of the entities of the users whose names lie within
+   * the specified range.
+   *
+   * @param con
+   *  The connection to use.
+   * @param first
+   *  The first name of the range.
+   * @param last
+   *  The last name of the range.
+   * @return
+   *  The attributes, keyed by the id of their entity.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  private Map<Integer, Map<String, String>> readAttributes(Connection con, String first,
+      String last) throws SQLException {
+    PreparedStatement statement = con.prepareStatement("SELECT a.entity_id, a.name, a.value "
+        + "FROM " + prefix + "attributesPerEntity a JOIN " + prefix + "entitiesPerUser e "
+        + "ON a.entity_id = e.entity_id JOIN " + prefix + "users u ON e.user_id = u.user_id "
+        + "WHERE u.name >= ? AND u.name <= ?");
+    ResultSet rs = null;
+    try {
+      statement.setString(1, first);
+      statement.setString(2, last);
+      rs = statement.executeQuery();
+      Map<Integer, Map<String, String>> attr = new HashMap<Integer, Map<String, String>>();
+      while (rs.next()) {
+        int entityId = rs.getInt("entity_id");
+        Map<String, String> map = attr.get(entityId);
+        if (map == null) {
+          map = new HashMap<String, String>();
+          attr.put(entityId, map);
+        }
+        map.put(rs.getString("name"), rs.getString("value"));
+      }
+      return attr;
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      statement.close();
+    }
+  }
+
+  /**
+   * Inserts the users of the specified accounts in batches. The caller must
+   * hold a transaction.
+   *
+   * @param con
+   *  The connection to use.
+   * @param accounts
+   *  The accounts whose users to insert.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  private void insertUsers(Connection con, List<Account> accounts) throws SQLException {
+    PreparedStatement statement = con.prepareStatement("INSERT INTO " + prefix
+        + "users (name, password, admin, flags) VALUES (?, ?, ?, ?)");
+    try {
+      int pending = 0;
+      for (Account account : accounts) {
+        User user = account.getUser();
+        statement.setString(1, user.getName());
+        statement.setString(2, user.getHash());
+        statement.setShort(3, (short) (user.isAdmin() ? 1 : 0));
+        statement.setInt(4, user.getFlags());
+        statement.addBatch();
+        if (++pending == BATCH_SIZE) {
+          statement.executeBatch();
+          pending = 0;
+        }
+      }
+      if (pending > 0) {
+        statement.executeBatch();
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Inserts the entities of the specified accounts in batches. The caller
+   * must hold a transaction.
+   *
+   * @param con
+   *  The connection to use.
+   * @param accounts
+   *  The accounts whose entities to insert.
+   * @param userIds
+   *  The ids of the users of the accounts, keyed by name.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  private void insertEntities(Connection con, List<Account> accounts,
+      Map<String, Integer> userIds) throws SQLException {
+    PreparedStatement statement = con.prepareStatement("INSERT INTO " + prefix
+        + "entitiesPerUser (user_id, name, flags) VALUES (?, ?, ?)");
+    try {
+      int pending = 0;
+      for (Account account : accounts) {
+        int userId = userIds.get(account.getUser().getName());
+        for (Entity e : account.getEntities()) {
+          statement.setInt(1, userId);
+          statement.setString(2, e.getName());
+          statement.setInt(3, e.getFlags());
+          statement.addBatch();
+          if (++pending == BATCH_SIZE) {
+            statement.executeBatch();
+            pending = 0;
+          }
+        }
+      }
+      if (pending > 0) {
+        statement.executeBatch();
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Inserts the attributes of the entities of the specified accounts in
+   * batches. The caller must hold a transaction.
+   *
+   * @param con
+   *  The connection to use.
+   * @param accounts
+   *  The accounts whose attributes to insert.
+   * @param userIds
+   *  The ids of the users of the accounts, keyed by name.
+   * @param entities
+   *  The inserted entities, keyed by the id of their user.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  private void insertAttributes(Connection con, List<Account> accounts,
+      Map<String, Integer> userIds, Map<Integer, List<Entity>> entities) throws SQLException {
+    PreparedStatement statement = con.prepareStatement("INSERT INTO " + prefix
+        + "attributesPerEntity (entity_id, name, value) VALUES (?, ?, ?)");
+    try {
+      int pending = 0;
+      for (Account account : accounts) {
+        List<Entity> ents = entities.get(userIds.get(account.getUser().getName()));
+        if (ents == null) {
+          continue;
+        }
+        for (Entity e : ents) {
+          for (Map.Entry<String, String> a : account.getAttributes(e.getName()).entrySet()) {
+            statement.setInt(1, e.getId());
+            statement.setString(2, a.getKey());
+            statement.setString(3, a.getValue());
+            statement.addBatch();
+            if (++pending == BATCH_SIZE) {
+              statement.executeBatch();
+              pending = 0;
+            }
+          }
+        }
+      }
+      if (pending > 0) {
+        statement.executeBatch();
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Returns the unique entity-id for the specified entity in a single query,
+   * using the specified connection.
+   *
+   * @param con
+   *  The connection to use.
+   * @param username
+   *  The name of the user whose entity to lookup.
+   * @param entity
+   *  The name of the entity to lookup.
+   * @return
+   *  The entity-id of the entity.
+   * @throws SQLException
+   *  A database-related error occurred.
+   * @throws IllegalStateException
+   *  A user with the specified username or the entity does not exist.
+   */
+  private int getExistingEntityId(Connection con, String username, String entity)
+      throws SQLException {
+    String sqlStatement = "SELECT e.entity_id FROM " + prefix + "entitiesPerUser e JOIN "
+        + prefix + "users u ON e.user_id = u.user_id WHERE u.name = ? AND e.name = ?";
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    try {
+      statement = con.prepareStatement(sqlStatement);
+      statement.setString(1, username);
+      statement.setString(2, entity);
+      resultSet = statement.executeQuery();
+      if (resultSet.next()) {
+        return resultSet.getInt(1);
+      }
+    } finally {
+      if (resultSet != null) {
+        resultSet.close();
+      }
+      if (statement != null) {
+        statement.close();
+      }
+    }
+    // Tell a missing user from a missing entity.
+    getUserId(con, username);
+    throw new IllegalStateException("The entity '" + entity + "' does not exist.");
+  }
+
+  /**
+   * Determines whether the specified exception, or an exception chained to
+   * it, reports the violation of a unique constraint.
+   *
+   * @param e
+   *  The exception.
+   * @return
+   *  true if a unique constraint was violated; Otherwise false.
+   */
+  private boolean isDuplicateKey(SQLException e) {
+    for (SQLException next = e; next != null; next = next.getNextException()) {
+      if (dialect.isDuplicateKey(next)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Executes and commits the pending batch of the specified statement.
+   *
+   * @param con
+   *  The connection the statement belongs to.
+   * @param statement
+   *  The statement whose batch to execute.
+   * @throws SQLException
+   *  The batch could not be executed. The batch is rolled back.
+   */
+  private static void executeBatch(Connection con, PreparedStatement statement)
+      throws SQLException {
+    try {
+      statement.executeBatch();
+      con.commit();
+    } catch (SQLException e) {
+      con.rollback();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns a new Connection instance from the pool of connections.
+   *
+   * @return
+   *  A Connection instance for the configured database.
+   * @throws SQLException
+   *  The connection could not be established.
+   */
+  private Connection getConnection() throws SQLException {
+    BoundConnection bound = transaction.get();
+    if (bound != null) {
+      return bound.proxy;
+    }
+    long start = System.nanoTime();
+    try {
+      return dataSource.getConnection();
+    } finally {
+      POOL_WAIT.recordSince(start);
+    }
+  }
+
+  /**
+   * Returns a new Connection instance from the pool of connections for
+   * reads or for writes.
+   *
+   * @param replica
+   *  true to obtain the connection from the read datasource; Otherwise
+   *  false.
+   * @return
+   *  A Connection instance for the configured database.
+   * @throws SQLException
+   *  The connection could not be established.
+   */
+  private Connection getConnection(boolean replica) throws SQLException {
+    // Reads within a transaction must see its writes.
+    if (!replica || transaction.get() != null) {
+      return getConnection();
+    }
+    long start = System.nanoTime();
+    try {
+      return readDataSource.getConnection();
+    } finally {
+      READ_POOL_WAIT.recordSince(start);
+    }
+  }
+
+  /**
+   * Determines whether a read may go to the read datasource, i.e. whether
+   * the writes it must see are visible there.
+   *
+   * @param username
+   *  The user the read concerns, or null if the read lists users.
+   * @return
+   *  true if the read may go to the read datasource; Otherwise false.
+   */
+  private boolean useReplica(String username) {
+    if (readDataSource == dataSource) {
+      return false;
+    }
+    if (replicaLag == 0) {
+      return true;
+    }
+    long now = System.nanoTime();
+    if (allWritesVisible - now > 0) {
+      return false;
+    }
+    if (username == null) {
+      return lastWriteVisible - now <= 0;
+    }
+    Long visible = recentWrites.get(username);
+    return visible == null || visible - now <= 0;
+  }
+
+  /**
+   * Records a write of the specified user, so that reads concerning the
+   * user go to the datasource for writes until the write is visible on the
+   * read datasource.
+   *
+   * @param username
+   *  The user that was written, or null if all users were written.
+   */
+  private void recordWrite(String username) {
+    if (readDataSource == dataSource || replicaLag == 0) {
+      return;
+    }
+    // The writes of a transaction only start to replicate once it commits.
+    BoundConnection bound = transaction.get();
+    if (bound != null) {
+      bound.writes.add(username);
+      return;
+    }
+    long visible = System.nanoTime() + replicaLag;
+    lastWriteVisible = visible;
+    if (username == null) {
+      allWritesVisible = visible;
+      return;
+    }
+    if (recentWrites.size() >= MAX_TRACKED_WRITES) {
+      long now = System.nanoTime();
+      Iterator<Long> it = recentWrites.values().iterator();
+      while (it.hasNext()) {
+        if (it.next() - now <= 0) {
+          it.remove();
+        }
+      }
+      if (recentWrites.size() >= MAX_TRACKED_WRITES) {
+        // Too many writes to track individually, e.g. during provisioning.
+        recentWrites.clear();
+        allWritesVisible = visible;
+        return;
+      }
+    }
+    recentWrites.put(username, visible);
+  }
+
+  /**
+   * The connection of a transaction, handed out in place of pooled
+   * connections while the transaction runs. The methods of the store
+   * close, commit and roll back the connections they use; the handed out
+   * proxy ignores these calls, so that the transaction decides the outcome,
+   * and reuses the statements prepared on the connection.
+   */
+  private static final class BoundConnection implements InvocationHandler {
+    /**
+     * The connection of the transaction.
+     */
+    private final Connection con;
+
+    /**
+     * The proxy handed out in place of the connection.
+     */
+    private final Connection proxy;
+
+    /**
+     * The statements prepared on the connection, mapped by their SQL.
+     */
+    private final Map<String, PreparedStatement> statements =
+        new HashMap<String, PreparedStatement>();
+
+    /**
+     * The users written by the transaction, including null if all users
+     * were written.
+     */
+    private final Set<String> writes = new HashSet<String>();
+
+    /**
+     * The proxies of the statements, mapped by their SQL.
+     */
+    private final Map<String, PreparedStatement> proxies =
+        new HashMap<String, PreparedStatement>();
+
+    /**
+     * Initializes a new instance of the BoundConnection class.
+     *
+     * @param con
+     *  The connection of the transaction.
+     */
+    private BoundConnection(Connection con) {
+      this.con = con;
+      proxy = (Connection) Proxy.newProxyInstance(JdbcAuthStore.class.getClassLoader(),
+          new Class<?>[] {Connection.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("close") || name.equals("commit") || name.equals("setAutoCommit")
+          || (name.equals("rollback") && args == null)) {
+        return null;
+      }
+      if (name.equals("prepareStatement") && args.length == 1) {
+        return prepare((String) args[0]);
+      }
+      try {
+        return method.invoke(con, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+
+    /**
+     * Returns the statement for the specified SQL, preparing it on first
+     * use.
+     *
+     * @param sql
+     *  The SQL of the statement.
+     * @return
+     *  A proxy of the statement that ignores calls of its close method.
+     * @throws SQLException
+     *  The statement could not be prepared.
+     */
+    private PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement p = proxies.get(sql);
+      if (p != null) {
+        return p;
+      }
+      final PreparedStatement statement = con.prepareStatement(sql);
+      statements.put(sql, statement);
+      p = (PreparedStatement) Proxy.newProxyInstance(JdbcAuthStore.class.getClassLoader(),
+          new Class<?>[] {PreparedStatement.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object target, Method method, Object[] args)
+                throws Throwable {
+              if (method.getName().equals("close")) {
+                return null;
+              }
+              try {
+                return method.invoke(statement, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+            }
+          });
+      proxies.put(sql, p);
+      return p;
+    }
+
+    /**
+     * Closes the statements prepared on the connection.
+     *
+     * @throws SQLException
+     *  A statement could not be closed.
+     */
+    private void closeStatements() throws SQLException {
+      for (PreparedStatement statement : statements.values()) {
+        statement.close();
+      }
+      statements.clear();
+      proxies.clear();
+    }
+  }
+}
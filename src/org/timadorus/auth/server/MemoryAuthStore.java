@@ -0,0 +1,1195 @@
+package org.timadorus.auth.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.timadorus.auth.util.Crypto;
+
+/**
+ * Implements the AuthStore interface by keeping all data in memory.
+ *
+ * Users and entities are kept in maps keyed by their primitive ids, plus an
+ * index from user names to ids. The maps of entity names and attributes are
+ * never modified once published but replaced as a whole, so that reads never
+ * block and never see a partially applied mutation of a single map.
+ * Mutations are serialized by a write lock. A transaction holds the write
+ * lock while it runs and saves the accounts it changes, so that they can be
+ * restored if the transaction is rolled back.
+ *
+ * Without a directory, the data is lost when the process exits, which makes
+ * the store suitable for tests and benchmarks. With a directory, every
+ * mutation is appended to a journal before it is applied, and the data is
+ * recovered from the last snapshot plus the journal at startup. A new
+ * snapshot is written whenever the journal exceeds the configured size and
+ * when the store is closed.
+ *
+ * Note that the store assumes it is the only writer of its data: changes
+ * made by other auth-servers are not seen.
+ *
+ * @author agent
+ */
+public class MemoryAuthStore implements AuthStore {
+  /**
+   * Logging facility.
+   */
+  private static final Logger LOG = Logger.getLogger(MemoryAuthStore.class.getName());
+
+  /**
+   * Record type of the snapshot header.
+   */
+  private static final byte OP_HEADER = 0;
+
+  /**
+   * Record type for creating a user.
+   */
+  private static final byte OP_CREATE_USER = 1;
+
+  /**
+   * Record type for updating a user.
+   */
+  private static final byte OP_UPDATE_USER = 2;
+
+  /**
+   * Record type for deleting a user.
+   */
+  private static final byte OP_DELETE_USER = 3;
+
+  /**
+   * Record type for creating an entity.
+   */
+  private static final byte OP_CREATE_ENTITY = 4;
+
+  /**
+   * Record type for updating an entity.
+   */
+  private static final byte OP_UPDATE_ENTITY = 5;
+
+  /**
+   * Record type for deleting an entity.
+   */
+  private static final byte OP_DELETE_ENTITY = 6;
+
+  /**
+   * Record type for setting attributes of an entity.
+   */
+  private static final byte OP_SET_ATTRIBUTES = 7;
+
+  /**
+   * Record type for deleting all data.
+   */
+  private static final byte OP_TRUNCATE = 8;
+
+  /**
+   * The users, keyed by id.
+   */
+  private final IntObjectMap<User> users = new IntObjectMap<User>();
+
+  /**
+   * The ids of the users, keyed by name.
+   */
+  private final Map<String, Integer> userIds = new ConcurrentHashMap<String, Integer>();
+
+  /**
+   * The names of the users in order, for paging through the accounts.
+   */
+  private final ConcurrentSkipListSet<String> userNames = new ConcurrentSkipListSet<String>();
+
+  /**
+   * The ids of the entities of each user, keyed by the name of the entity.
+   * Keyed by the id of the user.
+   */
+  private final IntObjectMap<Map<String, Integer>> userEntities =
+      new IntObjectMap<Map<String, Integer>>();
+
+  /**
+   * The entities, keyed by id.
+   */
+  private final IntObjectMap<Entity> entities = new IntObjectMap<Entity>();
+
+  /**
+   * The attributes of each entity, keyed by the id of the entity.
+   */
+  private final IntObjectMap<Map<String, String>> attributes =
+      new IntObjectMap<Map<String, String>>();
+
+  /**
+   * The lock held while mutating the store.
+   */
+  private final Object writeLock = new Object();
+
+  /**
+   * The accounts changed by the running transaction as they were before the
+   * transaction changed them, keyed by username, or null if no transaction
+   * is running. A null account means the user did not exist. Guarded by the
+   * write lock.
+   */
+  private Map<String, Account> undo;
+
+  /**
+   * The journal, or null if the data is not persisted.
+   */
+  private final StoreJournal journal;
+
+  /**
+   * The journal size in bytes above which a new snapshot is written.
+   */
+  private final long checkpointBytes;
+
+  /**
+   * The id assigned to the next user that is created.
+   */
+  private int nextUserId = 1;
+
+  /**
+   * The id assigned to the next entity that is created.
+   */
+  private int nextEntityId = 1;
+
+  /**
+   * The sequence number of the last applied record.
+   */
+  private long sequence;
+
+  /**
+   * The sequence number of the snapshot that has been read at startup.
+   */
+  private long snapshotSequence;
+
+  /**
+   * Determines whether the tables have been created.
+   */
+  private volatile boolean created;
+
+  /**
+   * Initializes a new instance of the MemoryAuthStore class which does not
+   * persist its data.
+   */
+  public MemoryAuthStore() {
+    journal = null;
+    checkpointBytes = 0;
+  }
+
+  /**
+   * Initializes a new instance of the MemoryAuthStore class which persists
+   * its data in the specified directory and recovers the data persisted by
+   * a previous instance.
+   *
+   * @param dir
+   *  The directory for the snapshot and journal files.
+   * @param sync
+   *  true to force each mutation to disk before it is applied; false to
+   *  leave flushing to the operating system. Without forcing, mutations of
+   *  the last few seconds may be lost if the machine crashes.
+   * @param checkpointBytes
+   *  The journal size in bytes above which a new snapshot is written.
+   * @throws IOException
+   *  The snapshot or journal could not be read.
+   * @throws IllegalArgumentException
+   *  The dir parameter is null, or the checkpointBytes parameter is not
+   *  positive.
+   */
+  public MemoryAuthStore(File dir, boolean sync, long checkpointBytes) throws IOException {
+    if (dir == null) {
+      throw new IllegalArgumentException("dir");
+    }
+    if (checkpointBytes <= 0) {
+      throw new IllegalArgumentException("checkpointBytes");
+    }
+    this.checkpointBytes = checkpointBytes;
+    journal = new StoreJournal(dir, sync);
+    synchronized (writeLock) {
+      journal.open(new StoreJournal.Replayer() {
+        @Override
+        public void replay(byte[] record, boolean snapshot) throws IOException {
+          apply(record, snapshot);
+        }
+      });
+      created = journal.hasSnapshot() || sequence > 0;
+    }
+    LOG.info("Loaded " + users.size() + " users and " + entities.size()
+        + " entities from '" + dir + "'.");
+  }
+
+  @Override
+  public boolean testConnection() {
+    return true;
+  }
+
+  @Override
+  public boolean tablesExist() {
+    return created;
+  }
+
+  @Override
+  public boolean createTables() throws SQLException {
+    synchronized (writeLock) {
+      created = true;
+      checkpoint();
+    }
+    return true;
+  }
+
+  @Override
+  public int migrateSchema() {
+    return 0;
+  }
+
+  @Override
+  public boolean userExists(String username) {
+    return getUser(username) != null;
+  }
+
+  @Override
+  public User getUser(String username) {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    Integer id = userIds.get(username);
+    return id != null ? users.get(id) : null;
+  }
+
+  @Override
+  public String getPassword(String username) {
+    User user = getUser(username);
+    return user != null ? user.getHash() : null;
+  }
+
+  @Override
+  public void createUser(String username, String password, boolean admin, int flags)
+      throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (password == null) {
+      throw new IllegalArgumentException("password");
+    }
+    // Hash outside of the lock, as hashing is deliberately slow.
+    String hash = Crypto.createHash(password);
+    synchronized (writeLock) {
+      if (userIds.containsKey(username)) {
+        throw new IllegalStateException("A user with the name of '" + username
+          + "' already exists in the auth table.");
+      }
+      saveForUndo(username);
+      commit(createUserRecord(new User(nextUserId, username, hash, admin, null, flags)));
+    }
+  }
+
+  @Override
+  public void createUsers(Map<String, String> newUsers, boolean admin, int flags)
+      throws SQLException {
+    if (newUsers == null) {
+      throw new IllegalArgumentException("users");
+    }
+    Map<String, String> hashes = new LinkedHashMap<String, String>();
+    for (Map.Entry<String, String> e : newUsers.entrySet()) {
+      if (e.getKey() == null || e.getValue() == null) {
+        throw new IllegalArgumentException("users");
+      }
+      hashes.put(e.getKey(), Crypto.createHash(e.getValue()));
+    }
+    synchronized (writeLock) {
+      List<byte[]> records = new ArrayList<byte[]>(hashes.size());
+      int id = nextUserId;
+      for (Map.Entry<String, String> e : hashes.entrySet()) {
+        if (userIds.containsKey(e.getKey())) {
+          throw new SQLException("A user with the name of '" + e.getKey()
+              + "' already exists in the auth table.", "23505");
+        }
+        records.add(createUserRecord(new User(id++, e.getKey(), e.getValue(), admin,
+            null, flags)));
+      }
+      for (String username : hashes.keySet()) {
+        saveForUndo(username);
+      }
+      commit(records);
+    }
+  }
+
+  @Override
+  public void updateUser(String username, String password, Boolean admin, Integer flags)
+      throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    String hash = password != null ? Crypto.createHash(password) : null;
+    synchronized (writeLock) {
+      User user = getExistingUser(username);
+      saveForUndo(username);
+      Record r = new Record(OP_UPDATE_USER);
+      r.writeInt(user.getId());
+      r.writeUTF(hash != null ? hash : user.getHash());
+      r.writeBoolean(admin != null ? admin.booleanValue() : user.isAdmin());
+      r.writeInt(flags != null ? flags.intValue() : user.getFlags());
+      commit(r.toByteArray());
+    }
+  }
+
+  @Override
+  public void deleteUser(String username) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    synchronized (writeLock) {
+      Record r = new Record(OP_DELETE_USER);
+      r.writeInt(getExistingUser(username).getId());
+      saveForUndo(username);
+      commit(r.toByteArray());
+    }
+  }
+
+  @Override
+  public boolean isAdmin(String username) {
+    User user = getUser(username);
+    return user != null && user.isAdmin();
+  }
+
+  @Override
+  public List<String> listUsers(String filter) {
+    Pattern pattern = filter != null ? toPattern(filter) : null;
+    List<String> names = new LinkedList<String>();
+    for (String name : userIds.keySet()) {
+      if (pattern == null || pattern.matcher(name).matches()) {
+        names.add(name);
+      }
+    }
+    return names;
+  }
+
+  @Override
+  public List<String> listRecentUsers(int max) {
+    List<User> recent = new ArrayList<User>();
+    for (User user : users.values()) {
+      if (user.getLastLogin() != null) {
+        recent.add(user);
+      }
+    }
+    Collections.sort(recent, new Comparator<User>() {
+      @Override
+      public int compare(User a, User b) {
+        return b.getLastLogin().compareTo(a.getLastLogin());
+      }
+    });
+    List<String> names = new LinkedList<String>();
+    for (User user : recent) {
+      if (names.size() == max) {
+        break;
+      }
+      names.add(user.getName());
+    }
+    return names;
+  }
+
+  @Override
+  public <T> T inTransaction(Transaction<T> work) throws SQLException {
+    if (work == null) {
+      throw new IllegalArgumentException("work");
+    }
+    // The changes are applied as the work makes them, and holding the write
+    // lock keeps other writers from interleaving with the work.
+    synchronized (writeLock) {
+      if (undo != null) {
+        return work.run();
+      }
+      undo = new LinkedHashMap<String, Account>();
+      boolean committed = false;
+      try {
+        T result = work.run();
+        committed = true;
+        return result;
+      } finally {
+        Map<String, Account> saved = undo;
+        undo = null;
+        if (!committed) {
+          rollback(saved);
+        }
+      }
+    }
+  }
+
+  @Override
+  public List<Account> listAccounts(String after, int max) {
+    List<Account> accounts = new ArrayList<Account>();
+    Iterable<String> names = after != null ? userNames.tailSet(after, false) : userNames;
+    for (String name : names) {
+      if (accounts.size() >= max) {
+        break;
+      }
+      Integer id = userIds.get(name);
+      User user = id != null ? users.get(id) : null;
+      if (user == null) {
+        // Deleted in the meantime.
+        continue;
+      }
+      accounts.add(getAccount(user));
+    }
+    return accounts;
+  }
+
+  @Override
+  public List<String> importAccounts(List<Account> accounts) throws SQLException {
+    if (accounts == null || accounts.contains(null)) {
+      throw new IllegalArgumentException("accounts");
+    }
+    synchronized (writeLock) {
+      List<byte[]> records = new ArrayList<byte[]>();
+      Set<String> names = new LinkedHashSet<String>();
+      int userId = nextUserId;
+      int entityId = nextEntityId;
+      for (Account account : accounts) {
+        User user = account.getUser();
+        if (userIds.containsKey(user.getName()) || names.contains(user.getName())) {
+          continue;
+        }
+        records.add(createUserRecord(new User(userId, user.getName(), user.getHash(),
+            user.isAdmin(), null, user.getFlags())));
+        Map<String, Integer> ents = new HashMap<String, Integer>();
+        for (Entity e : account.getEntities()) {
+          if (ents.put(e.getName(), entityId) != null) {
+            throw new SQLException("The entity '" + e.getName() + "' of the user '"
+                + user.getName() + "' exists more than once.", "23505");
+          }
+          records.add(createEntityRecord(new Entity(entityId, userId, e.getName(), null,
+              e.getFlags())));
+          Map<String, String> attr = account.getAttributes(e.getName());
+          if (!attr.isEmpty()) {
+            records.add(createAttributesRecord(entityId, attr));
+          }
+          entityId++;
+        }
+        names.add(user.getName());
+        userId++;
+      }
+      for (String username : names) {
+        saveForUndo(username);
+      }
+      commit(records);
+      return new ArrayList<String>(names);
+    }
+  }
+
+  @Override
+  public void truncate() throws SQLException {
+    synchronized (writeLock) {
+      for (String username : userNames) {
+        saveForUndo(username);
+      }
+      commit(new Record(OP_TRUNCATE).toByteArray());
+    }
+  }
+
+  @Override
+  public void createEntity(String username, String entity, int flags) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (entity == null) {
+      throw new IllegalArgumentException("entity");
+    }
+    synchronized (writeLock) {
+      User user = getExistingUser(username);
+      if (getEntityIds(user.getId()).containsKey(entity)) {
+        throw new IllegalStateException("The entity '" + entity + "' already exists.");
+      }
+      saveForUndo(username);
+      commit(createEntityRecord(new Entity(nextEntityId, user.getId(), entity, null, flags)));
+    }
+  }
+
+  @Override
+  public void deleteEntity(String username, String entity) throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (entity == null) {
+      throw new IllegalArgumentException("entity");
+    }
+    synchronized (writeLock) {
+      Integer id = getEntityIds(getExistingUser(username).getId()).get(entity);
+      if (id == null) {
+        throw new SQLException("Delete failed.");
+      }
+      saveForUndo(username);
+      Record r = new Record(OP_DELETE_ENTITY);
+      r.writeInt(id);
+      commit(r.toByteArray());
+    }
+  }
+
+  @Override
+  public void updateEntity(String username, String entity, String newName, Integer flags)
+      throws SQLException {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (entity == null) {
+      throw new IllegalArgumentException("entity");
+    }
+    synchronized (writeLock) {
+      Map<String, Integer> ids = getEntityIds(getExistingUser(username).getId());
+      Integer id = ids.get(entity);
+      if (id == null) {
+        throw new SQLException("Update failed.");
+      }
+      String name = newName != null ? newName : entity;
+      if (!name.equals(entity) && ids.containsKey(name)) {
+        throw new IllegalStateException("The entity '" + name + "' already exists.");
+      }
+      saveForUndo(username);
+      Record r = new Record(OP_UPDATE_ENTITY);
+      r.writeInt(id);
+      r.writeUTF(name);
+      r.writeInt(flags != null ? flags.intValue() : entities.get(id).getFlags());
+      commit(r.toByteArray());
+    }
+  }
+
+  @Override
+  public boolean entityExists(String username, String entity) {
+    return getEntity(username, entity) != null;
+  }
+
+  @Override
+  public List<Entity> listEntities(String username) {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    List<Entity> ents = new LinkedList<Entity>();
+    for (Integer id : getEntityIds(getExistingUser(username).getId()).values()) {
+      Entity e = entities.get(id);
+      if (e != null) {
+        ents.add(e);
+      }
+    }
+    return ents;
+  }
+
+  @Override
+  public Entity getEntity(String username, String entity) {
+    if (username == null) {
+      throw new IllegalArgumentException("username");
+    }
+    if (entity == null) {
+      throw new IllegalArgumentException("entity");
+    }
+    Integer id = getEntityIds(getExistingUser(username).getId()).get(entity);
+    return id != null ? entities.get(id) : null;
+  }
+
+  @Override
+  public Map<String, String> getAttributes(String username, String entity) {
+    Map<String, String> attr = attributes.get(getExistingEntity(username, entity).getId());
+    return attr != null ? new HashMap<String, String>(attr) : new HashMap<String, String>();
+  }
+
+  @Override
+  public void setAttributes(String username, String entity, Map<String, String> attrs)
+      throws SQLException {
+    if (attrs == null) {
+      throw new IllegalArgumentException("attributes");
+    }
+    for (Map.Entry<String, String> e : attrs.entrySet()) {
+      if (e.getKey() == null || e.getValue() == null) {
+        throw new IllegalArgumentException("attributes");
+      }
+    }
+    synchronized (writeLock) {
+      int id = getExistingEntity(username, entity).getId();
+      saveForUndo(username);
+      commit(createAttributesRecord(id, attrs));
+    }
+  }
+
+  @Override
+  public void close() throws SQLException {
+    if (journal == null) {
+      return;
+    }
+    synchronized (writeLock) {
+      checkpoint();
+      try {
+        journal.close();
+      } catch (IOException e) {
+        throw new SQLException("The journal could not be closed.", e);
+      }
+    }
+  }
+
+  /**
+   * Writes a snapshot of the complete data and empties the journal.
+   *
+   * @throws SQLException
+   *  The snapshot could not be written.
+   */
+  public void checkpoint() throws SQLException {
+    if (journal == null) {
+      return;
+    }
+    synchronized (writeLock) {
+      StoreJournal.Checkpoint cp = null;
+      try {
+        cp = journal.beginCheckpoint();
+        Record header = new Record(OP_HEADER);
+        header.writeInt(nextUserId);
+        header.writeInt(nextEntityId);
+        cp.write(header.toByteArray());
+        for (User user : users.values()) {
+          cp.write(createUserRecord(user));
+        }
+        for (Entity e : entities.values()) {
+          cp.write(createEntityRecord(e));
+        }
+        for (Entity e : entities.values()) {
+          Map<String, String> attr = attributes.get(e.getId());
+          if (attr != null) {
+            cp.write(createAttributesRecord(e.getId(), attr));
+          }
+        }
+        cp.commit();
+      } catch (IOException e) {
+        if (cp != null) {
+          cp.abort();
+        }
+        throw new SQLException("The snapshot could not be written.", e);
+      }
+    }
+  }
+
+  /**
+   * Creates the record for creating the specified user.
+   *
+   * @param user
+   *  The user.
+   * @return
+   *  The record.
+   */
+  private byte[] createUserRecord(User user) {
+    Record r = new Record(OP_CREATE_USER);
+    r.writeInt(user.getId());
+    r.writeUTF(user.getName());
+    r.writeUTF(user.getHash());
+    r.writeBoolean(user.isAdmin());
+    r.writeInt(user.getFlags());
+    return r.toByteArray();
+  }
+
+  /**
+   * Creates the record for creating the specified entity.
+   *
+   * @param entity
+   *  The entity.
+   * @return
+   *  The record.
+   */
+  private byte[] createEntityRecord(Entity entity) {
+    Record r = new Record(OP_CREATE_ENTITY);
+    r.writeInt(entity.getId());
+    r.writeInt(entity.getUserId());
+    r.writeUTF(entity.getName());
+    r.writeInt(entity.getFlags());
+    return r.toByteArray();
+  }
+
+  /**
+   * Creates the record for setting the specified attributes of an entity.
+   *
+   * @param entityId
+   *  The id of the entity.
+   * @param attrs
+   *  The attributes to set.
+   * @return
+   *  The record.
+   */
+  private byte[] createAttributesRecord(int entityId, Map<String, String> attrs) {
+    Record r = new Record(OP_SET_ATTRIBUTES);
+    r.writeInt(entityId);
+    r.writeAttributes(attrs);
+    return r.toByteArray();
+  }
+
+  /**
+   * Saves the account of the specified user before the running transaction,
+   * if any, changes it for the first time. The caller must hold the write
+   * lock.
+   *
+   * @param username
+   *  The name of the user about to be created or changed.
+   */
+  private void saveForUndo(String username) {
+    if (undo == null || undo.containsKey(username)) {
+      return;
+    }
+    User user = getUser(username);
+    undo.put(username, user != null ? getAccount(user) : null);
+  }
+
+  /**
+   * Restores the accounts saved by a transaction that failed, by deleting
+   * their current state and recreating them as they were. The records are
+   * appended to the journal like any other mutation, so that the journal
+   * recovers the restored state. The caller must hold the write lock.
+   *
+   * @param saved
+   *  The accounts saved by the transaction.
+   */
+  private void rollback(Map<String, Account> saved) {
+    List<byte[]> records = new ArrayList<byte[]>();
+    for (String username : saved.keySet()) {
+      User user = getUser(username);
+      if (user != null) {
+        Record r = new Record(OP_DELETE_USER);
+        r.writeInt(user.getId());
+        records.add(r.toByteArray());
+      }
+    }
+    for (Account account : saved.values()) {
+      if (account == null) {
+        continue;
+      }
+      records.add(createUserRecord(account.getUser()));
+      for (Entity e : account.getEntities()) {
+        records.add(createEntityRecord(e));
+        Map<String, String> attr = account.getAttributes(e.getName());
+        if (!attr.isEmpty()) {
+          records.add(createAttributesRecord(e.getId(), attr));
+        }
+      }
+    }
+    if (records.isEmpty()) {
+      return;
+    }
+    try {
+      commit(records);
+    } catch (SQLException e) {
+      // Don't hide the exception of the work.
+      LOG.log(Level.SEVERE, "A transaction could not be rolled back.", e);
+    }
+  }
+
+  /**
+   * Appends the specified record to the journal and applies it. The caller
+   * must hold the write lock.
+   *
+   * @param record
+   *  The record.
+   * @throws SQLException
+   *  The record could not be written to the journal.
+   */
+  private void commit(byte[] record) throws SQLException {
+    commit(Collections.singletonList(record));
+  }
+
+  /**
+   * Appends the specified records to the journal and applies them. The
+   * caller must hold the write lock.
+   *
+   * @param records
+   *  The records.
+   * @throws SQLException
+   *  The records could not be written to the journal.
+   */
+  private void commit(List<byte[]> records) throws SQLException {
+    try {
+      if (journal != null) {
+        journal.append(records);
+      }
+      for (byte[] record : records) {
+        apply(record, false);
+      }
+      if (journal != null && journal.size() > checkpointBytes) {
+        checkpoint();
+      }
+    } catch (IOException e) {
+      throw new SQLException("The journal could not be written.", e);
+    }
+  }
+
+  /**
+   * Applies the specified record to the maps. The caller must hold the
+   * write lock.
+   *
+   * @param record
+   *  The record.
+   * @param fromSnapshot
+   *  true if the record is read from the snapshot; Otherwise false.
+   * @throws IOException
+   *  The record is malformed.
+   */
+  private void apply(byte[] record, boolean fromSnapshot) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    long seq = in.readLong();
+    byte op = in.readByte();
+    if (!fromSnapshot && seq <= snapshotSequence) {
+      // Already contained in the snapshot.
+      return;
+    }
+    switch (op) {
+      case OP_HEADER:
+        snapshotSequence = seq;
+        sequence = seq;
+        nextUserId = Math.max(nextUserId, in.readInt());
+        nextEntityId = Math.max(nextEntityId, in.readInt());
+        break;
+      case OP_CREATE_USER:
+        applyCreateUser(new User(in.readInt(), in.readUTF(), in.readUTF(),
+            in.readBoolean(), null, in.readInt()));
+        break;
+      case OP_UPDATE_USER:
+        User old = users.get(in.readInt());
+        users.put(old.getId(), new User(old.getId(), old.getName(), in.readUTF(),
+            in.readBoolean(), old.getLastLogin(), in.readInt()));
+        break;
+      case OP_DELETE_USER:
+        applyDeleteUser(in.readInt());
+        break;
+      case OP_CREATE_ENTITY:
+        applyCreateEntity(new Entity(in.readInt(), in.readInt(), in.readUTF(), null,
+            in.readInt()));
+        break;
+      case OP_UPDATE_ENTITY:
+        applyUpdateEntity(in.readInt(), in.readUTF(), in.readInt());
+        break;
+      case OP_DELETE_ENTITY:
+        applyDeleteEntity(in.readInt());
+        break;
+      case OP_SET_ATTRIBUTES:
+        int entityId = in.readInt();
+        Map<String, String> attr = attributes.get(entityId);
+        attr = attr != null ? new HashMap<String, String>(attr)
+            : new HashMap<String, String>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          attr.put(in.readUTF(), in.readUTF());
+        }
+        attributes.put(entityId, Collections.unmodifiableMap(attr));
+        break;
+      case OP_TRUNCATE:
+        userNames.clear();
+        userIds.clear();
+        users.clear();
+        userEntities.clear();
+        entities.clear();
+        attributes.clear();
+        break;
+      default:
+        throw new IOException("Unknown record type " + op + ".");
+    }
+    if (!fromSnapshot) {
+      sequence = Math.max(sequence, seq);
+    }
+  }
+
+  /**
+   * Adds the specified user to the maps.
+   *
+   * @param user
+   *  The user.
+   */
+  private void applyCreateUser(User user) {
+    userEntities.put(user.getId(), Collections.<String, Integer>emptyMap());
+    users.put(user.getId(), user);
+    // Publish the name last, so that readers never find a name without a user.
+    userIds.put(user.getName(), user.getId());
+    userNames.add(user.getName());
+    nextUserId = Math.max(nextUserId, user.getId() + 1);
+  }
+
+  /**
+   * Removes the specified user and the user's entities from the maps.
+   *
+   * @param userId
+   *  The id of the user.
+   */
+  private void applyDeleteUser(int userId) {
+    User user = users.get(userId);
+    userNames.remove(user.getName());
+    userIds.remove(user.getName());
+    users.remove(userId);
+    Map<String, Integer> ids = userEntities.remove(userId);
+    if (ids != null) {
+      for (Integer id : ids.values()) {
+        entities.remove(id);
+        attributes.remove(id);
+      }
+    }
+  }
+
+  /**
+   * Adds the specified entity to the maps.
+   *
+   * @param entity
+   *  The entity.
+   */
+  private void applyCreateEntity(Entity entity) {
+    entities.put(entity.getId(), entity);
+    Map<String, Integer> ids = new LinkedHashMap<String, Integer>(
+        getEntityIds(entity.getUserId()));
+    ids.put(entity.getName(), entity.getId());
+    userEntities.put(entity.getUserId(), Collections.unmodifiableMap(ids));
+    nextEntityId = Math.max(nextEntityId, entity.getId() + 1);
+  }
+
+  /**
+   * Renames the specified entity and sets its flags.
+   *
+   * @param entityId
+   *  The id of the entity.
+   * @param name
+   *  The new name of the entity.
+   * @param flags
+   *  The new flags of the entity.
+   */
+  private void applyUpdateEntity(int entityId, String name, int flags) {
+    Entity old = entities.get(entityId);
+    entities.put(entityId, new Entity(entityId, old.getUserId(), name,
+        old.getLastLogin(), flags));
+    if (!name.equals(old.getName())) {
+      Map<String, Integer> ids = new LinkedHashMap<String, Integer>(
+          getEntityIds(old.getUserId()));
+      ids.remove(old.getName());
+      ids.put(name, entityId);
+      userEntities.put(old.getUserId(), Collections.unmodifiableMap(ids));
+    }
+  }
+
+  /**
+   * Removes the specified entity and its attributes from the maps.
+   *
+   * @param entityId
+   *  The id of the entity.
+   */
+  private void applyDeleteEntity(int entityId) {
+    Entity old = entities.get(entityId);
+    Map<String, Integer> ids = new LinkedHashMap<String, Integer>(
+        getEntityIds(old.getUserId()));
+    ids.remove(old.getName());
+    userEntities.put(old.getUserId(), Collections.unmodifiableMap(ids));
+    entities.remove(entityId);
+    attributes.remove(entityId);
+  }
+
+  /**
+   * Returns the account of the specified user.
+   *
+   * @param user
+   *  The user.
+   * @return
+   *  The user with the user's entities and their attributes.
+   */
+  private Account getAccount(User user) {
+    List<Entity> ents = new ArrayList<Entity>();
+    Map<String, Map<String, String>> attr = new HashMap<String, Map<String, String>>();
+    for (Integer entityId : getEntityIds(user.getId()).values()) {
+      Entity e = entities.get(entityId);
+      if (e == null) {
+        continue;
+      }
+      ents.add(e);
+      Map<String, String> a = attributes.get(entityId);
+      if (a != null) {
+        attr.put(e.getName(), a);
+      }
+    }
+    return new Account(user, ents, attr);
+  }
+
+  /**
+   * Returns the user with the specified name.
+   *
+   * @param username
+   *  The name of the user.
+   * @return
+   *  The user with the specified name.
+   * @throws IllegalStateException
+   *  A user with the specified username does not exist.
+   */
+  private User getExistingUser(String username) {
+    User user = getUser(username);
+    if (user == null) {
+      throw new IllegalStateException("A user with the name of '" + username
+          + "' does not exist in the auth table.");
+    }
+    return user;
+  }
+
+  /**
+   * Returns the ids of the entities of the specified user.
+   *
+   * @param userId
+   *  The id of the user.
+   * @return
+   *  The ids of the user's entities, keyed by name.
+   */
+  private Map<String, Integer> getEntityIds(int userId) {
+    Map<String, Integer> ids = userEntities.get(userId);
+    return ids != null ? ids : Collections.<String, Integer>emptyMap();
+  }
+
+  /**
+   * Returns the specified entity.
+   *
+   * @param username
+   *  The name of the user whose entity to return.
+   * @param entity
+   *  The name of the entity.
+   * @return
+   *  The entity.
+   * @throws IllegalArgumentException
+   *  The username parameter is null, or the entity parameter is null.
+   * @throws IllegalStateException
+   *  A user with the specified username or the entity does not exist.
+   */
+  private Entity getExistingEntity(String username, String entity) {
+    Entity e = getEntity(username, entity);
+    if (e == null) {
+      throw new IllegalStateException("The entity '" + entity + "' does not exist.");
+    }
+    return e;
+  }
+
+  /**
+   * Converts the specified SQL LIKE pattern into a regular expression.
+   *
+   * @param filter
+   *  The SQL LIKE pattern.
+   * @return
+   *  The equivalent regular expression.
+   */
+  private static Pattern toPattern(String filter) {
+    StringBuilder b = new StringBuilder();
+    StringBuilder literal = new StringBuilder();
+    for (char c : filter.toCharArray()) {
+      if (c == '%' || c == '_') {
+        if (literal.length() > 0) {
+          b.append(Pattern.quote(literal.toString()));
+          literal.setLength(0);
+        }
+        b.append(c == '%' ? ".*" : ".");
+      } else {
+        literal.append(c);
+      }
+    }
+    if (literal.length() > 0) {
+      b.append(Pattern.quote(literal.toString()));
+    }
+    return Pattern.compile(b.toString(), Pattern.DOTALL);
+  }
+
+  /**
+   * Builds a journal record. The record starts with the next sequence
+   * number and the record type. The sequence numbers of the records of a
+   * snapshot are ignored, only the one of its header counts.
+   */
+  private final class Record {
+    /**
+     * The buffer the record is written to.
+     */
+    private final ByteArrayOutputStream buf = new ByteArrayOutputStream(64);
+
+    /**
+     * The stream the record is written to.
+     */
+    private final DataOutputStream out = new DataOutputStream(buf);
+
+    /**
+     * Initializes a new instance of the Record class.
+     *
+     * @param op
+     *  The record type.
+     */
+    private Record(byte op) {
+      try {
+        out.writeLong(op == OP_HEADER ? sequence : sequence + 1);
+        out.writeByte(op);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * Writes the specified integer.
+     *
+     * @param value
+     *  The value to write.
+     */
+    private void writeInt(int value) {
+      try {
+        out.writeInt(value);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * Writes the specified boolean.
+     *
+     * @param value
+     *  The value to write.
+     */
+    private void writeBoolean(boolean value) {
+      try {
+        out.writeBoolean(value);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * Writes the specified string.
+     *
+     * @param value
+     *  The value to write.
+     */
+    private void writeUTF(String value) {
+      try {
+        out.writeUTF(value);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * Writes the specified attributes.
+     *
+     * @param attrs
+     *  The attributes to write.
+     */
+    private void writeAttributes(Map<String, String> attrs) {
+      writeInt(attrs.size());
+      for (Map.Entry<String, String> e : attrs.entrySet()) {
+        writeUTF(e.getKey());
+        writeUTF(e.getValue());
+      }
+    }
+
+    /**
+     * Returns the bytes of the record.
+     *
+     * @return
+     *  The bytes of the record.
+     */
+    private byte[] toByteArray() {
+      return buf.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package org.timadorus.auth.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.ext.Provider;
+
+import org.timadorus.auth.util.Histogram;
+import org.timadorus.auth.util.Metrics;
+import org.timadorus.auth.util.Tracer;
+
+import com.sun.jersey.api.core.HttpContext;
+import com.sun.jersey.api.model.AbstractResourceMethod;
+import com.sun.jersey.spi.container.ResourceMethodDispatchAdapter;
+import com.sun.jersey.spi.container.ResourceMethodDispatchProvider;
+import com.sun.jersey.spi.dispatch.RequestDispatcher;
+
+/**
+ * Wraps the dispatchers of all resource methods so that the duration of each
+ * call is recorded in a histogram per method, including calls that end with
+ * an exception.
+ *
+ * The time spent in the SecurityFilter is not included; it is recorded
+ * separately by the filter.
+ *
+ * @author agent
+ */
+@Provider
+public class MetricsDispatchAdapter implements ResourceMethodDispatchAdapter {
+  @Override
+  public ResourceMethodDispatchProvider adapt(final ResourceMethodDispatchProvider provider) {
+    return new ResourceMethodDispatchProvider() {
+      @Override
+      public RequestDispatcher create(AbstractResourceMethod method) {
+        RequestDispatcher dispatcher = provider.create(method);
+        if (dispatcher == null) {
+          return null;
+        }
+        return new TimedDispatcher(dispatcher, method.getMethod().getName());
+      }
+    };
+  }
+
+  /**
+   * A dispatcher that records the duration and failures of the calls of
+   * another dispatcher.
+   */
+  private static final class TimedDispatcher implements RequestDispatcher {
+    /**
+     * The dispatcher invoking the resource method.
+     */
+    private final RequestDispatcher dispatcher;
+
+    /**
+     * The durations of the calls.
+     */
+    private final Histogram time;
+
+    /**
+     * The number of calls that ended with an exception.
+     */
+    private final AtomicLong errors;
+
+    /**
+     * The name of the span recorded for each call.
+     */
+    private final String spanName;
+
+    /**
+     * Initializes a new instance of the TimedDispatcher class.
+     *
+     * @param dispatcher
+     *  The dispatcher invoking the resource method.
+     * @param endpoint
+     *  The name of the resource method.
+     */
+    private TimedDispatcher(RequestDispatcher dispatcher, String endpoint) {
+      this.dispatcher = dispatcher;
+      spanName = "resource." + endpoint;
+      time = Metrics.histogram("auth_request_seconds",
+          "Duration of resource method calls.", "endpoint", endpoint);
+      errors = Metrics.counter("auth_request_errors_total",
+          "Resource method calls that ended with an exception.", "endpoint", endpoint);
+    }
+
+    @Override
+    public void dispatch(Object resource, HttpContext context) {
+      long start = System.nanoTime();
+      int span = Tracer.start(spanName);
+      boolean completed = false;
+      try {
+        dispatcher.dispatch(resource, context);
+        completed = true;
+      } finally {
+        time.recordSince(start);
+        Tracer.end(span);
+        if (!completed) {
+          errors.incrementAndGet();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package org.timadorus.auth.server;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.SecurityContext;
+
+import org.timadorus.auth.util.Metrics;
+
+/**
+ * The resource class which handles the '/metrics' HTTP request and returns
+ * the metrics of the server in the Prometheus text format.
+ *
+ * @author agent
+ */
+@Path("/metrics")
+public class MetricsResource {
+  /**
+   * The security context of the HTTP request, as set up by the SecurityFilter.
+   */
+  @Context SecurityContext security;
+
+  /**
+   * The method that is executed when the /metrics resource is being
+   * requested via the HTTP GET method.
+   *
+   * @return
+   *  The metrics in the Prometheus text format.
+   * @throws SecurityException
+   *  The requestor is not an administrator.
+   */
+  @GET
+  @Produces("text/plain; version=0.0.4")
+  public String getMetrics() {
+    // Only administrators may read the metrics.
+    if (!security.isUserInRole(AuthPrincipal.ROLE_ADMIN)) {
+      throw new SecurityException("Forbidden request");
+    }
+    StringBuilder b = new StringBuilder();
+    Metrics.writePrometheus(b);
+    return b.toString();
+  }
+}
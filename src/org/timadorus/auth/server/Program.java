@@ -1,14 +1,30 @@
 package org.timadorus.auth.server;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.sql.DataSource;
+
+import org.timadorus.auth.util.AsyncHandler;
 import org.timadorus.auth.util.Config;
+import org.timadorus.auth.util.HashRing;
+import org.timadorus.auth.util.Metrics;
+import org.timadorus.auth.util.Tracer;
 
 /**
  * The entry-point of the application.
@@ -26,6 +42,11 @@ public final class Program {
    */
   private static final int DEFAULT_SERVICE_PORT = 50001;
   
+  /**
+   * The highest valid port number.
+   */
+  private static final int MAX_PORT = 65535;
+  
   /**
    * The server's configuration file.
    */
@@ -77,6 +98,43 @@ public final class Program {
     }
     // Read properties from the configuration file.
     Config config = new Config(configPath + "/" + CONFIG);
+    AuthServer server = start(config);
+    // Start a simple command-line interpreter.
+    if (config.getBoolean("interactiveMode")) {
+      System.out.println("Type help for a list of available commands.");
+      new Interpreter().start(server);
+    } else {
+      System.out.println("Running as service.");
+    }
+  }
+
+  /**
+   * Sets up the database and starts an auth-server as configured by the
+   * configuration file in the specified directory. This allows tools such as
+   * the load generator to run a server in their own process.
+   * 
+   * @param configPath
+   *  The directory containing the server's configuration file.
+   * @return
+   *  The started auth-server.
+   * @throws Exception
+   *  The configuration is invalid, or the server could not be started.
+   */
+  public static AuthServer start(String configPath) throws Exception {
+    return start(new Config(configPath + "/" + CONFIG));
+  }
+
+  /**
+   * Sets up the database and starts an auth-server as configured.
+   * 
+   * @param config
+   *  The server's configuration.
+   * @return
+   *  The started auth-server.
+   * @throws Exception
+   *  The configuration is invalid, or the server could not be started.
+   */
+  private static AuthServer start(Config config) throws Exception {
     if (config.hasProperty("loggingFile")) {
       loadLoggingProperties(config.getString("loggingFile"));
     }
@@ -84,14 +142,149 @@ public final class Program {
         ? config.getInt("listenPort") : DEFAULT_SERVICE_PORT;
     InetAddress inetAddr = config.hasProperty("networkInterface")
         ? InetAddress.getByName(config.getString("networkInterface")) : null;
-    boolean interactive = config.getBoolean("interactiveMode");
-        
-    // Init the database class.
-    Database.init(config.getString("dbDriverClassName"),
-                  config.getString("dbConnectionString"),
-                  config.hasProperty("dbTablePrefix")
-                  ? config.getString("dbTablePrefix") : null);
-    // Test the database settings before starting the actual server.
+    configureThrottling(config);
+    Tracer.configure(config.hasProperty("traceSampleRate")
+        ? Double.parseDouble(config.getString("traceSampleRate")) : 0,
+        getInt(config, "traceSlowMillis", 0));
+    if (config.hasProperty("auditLogDir")) {
+      Audit.init(new AuditLog(new File(config.getString("auditLogDir")),
+          getInt(config, "auditLogSegmentRecords", 524288),
+          getInt(config, "auditLogMaxSegments", 16),
+          getInt(config, "auditLogBufferRecords", 65536)));
+    }
+
+    String store = config.hasProperty("dbStore") ? config.getString("dbStore") : "jdbc";
+    if ("memory".equalsIgnoreCase(store)) {
+      // Keep all data in memory, persisted through a snapshot and journal.
+      Database.setStore(new MemoryAuthStore(new File(config.getString("memoryStoreDir")),
+          config.hasProperty("memoryStoreSync") && config.getBoolean("memoryStoreSync"),
+          getInt(config, "memoryStoreCheckpointBytes", 64 * 1024 * 1024)));
+    } else if ("jdbc".equalsIgnoreCase(store)) {
+      // Derby reads its settings when the engine boots, so apply them before
+      // the first connection is established.
+      DerbySetup.apply(config);
+      initJdbcStore(config);
+    } else {
+      throw new Exception("Invalid 'dbStore' setting '" + store
+          + "'. Valid settings are 'jdbc' and 'memory'.");
+    }
+    // Record the latency of each store method.
+    Database.setStore(new InstrumentedAuthStore(Database.getStore()));
+    registerMetrics();
+    if (config.hasProperty("clusterPort")) {
+      startCluster(config, inetAddr);
+    }
+    if (config.hasProperty("ringNodes")) {
+      configureRouting(config);
+    }
+    SecurityFilter.setConstantTimeRejects(config.hasProperty("constantTimeRejects")
+        && config.getBoolean("constantTimeRejects"));
+    CompressionFilter.configure(getInt(config, "compressionThreshold",
+        CompressionFilter.DEFAULT_THRESHOLD), getInt(config, "compressionLevel", -1));
+    // Create a new auth-server instance.
+    final AuthServer server = new AuthServer(listenPort,
+     config.getString("keyStoreFile"),
+     config.getString("keyStorePassword"),
+     config.hasProperty("trustStoreFile") ? config.getString("trustStoreFile") : null,
+     config.getString("sharedSecretKey"),
+     inetAddr,
+     config.getString("gameServers"),
+     config.getBoolean("sessionEncryption"));
+    server.setDrainTimeout(getInt(config, "drainTimeoutMillis", 10000));
+    // Start the server and warm up the crypto and JSON code paths while the
+    // database is being prepared. Until the server is ready, it only answers
+    // health checks.
+    final int warmUpIterations = getInt(config, "warmUpIterations", 100);
+    ExecutorService startup = Executors.newFixedThreadPool(2);
+    Future<Void> serverStarted = startup.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        server.start();
+        return null;
+      }
+    });
+    Future<Void> cryptoWarmed = startup.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        WarmUp.exercise(warmUpIterations);
+        return null;
+      }
+    });
+    startup.shutdown();
+    try {
+      prepareDatabase(config);
+      await(serverStarted);
+      await(cryptoWarmed);
+    } catch (Exception e) {
+      if (serverStarted.isDone()) {
+        try {
+          serverStarted.get();
+          server.stop();
+        } catch (ExecutionException ignored) {
+          // The server has not been started.
+        }
+      }
+      throw e;
+    }
+    // Drain requests and flush pending writes on SIGTERM.
+    Shutdown.addHook(server);
+    HealthResource.setReady(true);
+    // Let the other nodes of the ring route users to this node.
+    Cluster cluster = Database.getCluster();
+    if (cluster != null && config.hasProperty("ringNodes")) {
+      cluster.startHeartbeat(config.getString("ringSelf").trim(),
+          getInt(config, "ringHeartbeatMillis", 1000));
+    }
+    String m = "Timadorus auth server (Version " + getVersionString()
+        + ") started. Accepting connections on "
+        + (inetAddr != null ? inetAddr : "all interfaces") + " on port "
+        + listenPort + ".";
+    System.out.println(m);
+    LOG.info(m);
+    return server;
+  }
+  
+  /**
+   * Sets up the JDBC store with a pool of connections for writes and,
+   * optionally, a separate pool for reads, e.g. from a read replica, so that
+   * logins don't queue behind bulk writes for connections.
+   * 
+   * @param config
+   *  The server's configuration.
+   */
+  private static void initJdbcStore(Config config) {
+    String driver = config.getString("dbDriverClassName");
+    String url = config.getString("dbConnectionString");
+    String prefix = config.hasProperty("dbTablePrefix") ? config.getString("dbTablePrefix") : null;
+    DataSource writes = JdbcAuthStore.createDataSource(driver, url,
+        getInt(config, "dbMaxConnections", 0));
+    if (!config.hasProperty("dbReadConnectionString")
+        && !config.hasProperty("dbReadMaxConnections")) {
+      Database.setStore(new JdbcAuthStore(writes, prefix, Database.getDialect(url)));
+      return;
+    }
+    // Without a replica, the read pool connects to the same database and
+    // sees all writes right away.
+    boolean replica = config.hasProperty("dbReadConnectionString");
+    DataSource reads = JdbcAuthStore.createDataSource(driver,
+        replica ? config.getString("dbReadConnectionString") : url,
+        getInt(config, "dbReadMaxConnections", 0));
+    Database.setStore(new JdbcAuthStore(writes, reads,
+        replica ? getInt(config, "dbReplicaLagMillis", 5000) : 0, prefix,
+        Database.getDialect(url)));
+  }
+
+  /**
+   * Tests the connection to the database, creates or migrates the tables,
+   * loads the cache of unknown users and preloads the user cache. With a JDBC
+   * store, the first connection also fills the connection pool.
+   * 
+   * @param config
+   *  The server's configuration.
+   * @throws Exception
+   *  The database could not be prepared.
+   */
+  private static void prepareDatabase(Config config) throws Exception {
     if (!Database.testConnection()) {
       throw new Exception("The connection to the database could not be "
         + "established. Please verify the 'dbDriverClassName' and "
@@ -109,30 +302,223 @@ public final class Program {
           + "password 'password' of the default administrator account "
           + "'account'.");
     }
-    // Create and start a new auth-server instance.
-    AuthServer server = new AuthServer(listenPort,
-     config.getString("keyStoreFile"),
-     config.getString("keyStorePassword"),
-     config.hasProperty("trustStoreFile") ? config.getString("trustStoreFile") : null,
-     config.getString("sharedSecretKey"),
-     inetAddr,
-     config.getString("gameServers"),
-     config.getBoolean("sessionEncryption"));
-    
-    server.start();
-    String m = "Timadorus auth server (Version " + getVersionString()
-        + ") started. Accepting connections on "
-        + (inetAddr != null ? inetAddr : "all interfaces") + " on port "
-        + listenPort + ".";
-    System.out.println(m);
-    LOG.info(m);
-    // Start a simple command-line interpreter.
-    if (interactive) {
-      System.out.println("Type help for a list of available commands.");
-      new Interpreter().start(server);
-    } else {
-      System.out.println("Running as service.");
+    // Apply pending schema migrations, e.g. indexes added in later versions.
+    int migrations = Database.migrateSchema();
+    if (migrations > 0) {
+      System.out.println("Applied " + migrations + " database migration(s).");
+    }
+    // Reject lookups for unknown users without querying the database. The
+    // cache never forgets that a name is unknown, so a user created by a
+    // process it isn't notified of stays locked out; hence it's opt-in.
+    if (config.hasProperty("unknownUserCache") && config.getBoolean("unknownUserCache")) {
+      if (config.hasProperty("clusterPeers")
+          && config.getString("clusterPeers").trim().length() > 0
+          && !(config.hasProperty("unknownUserCacheInCluster")
+              && config.getBoolean("unknownUserCacheInCluster"))) {
+        throw new Exception("The 'unknownUserCache' may reject new users whose "
+            + "cluster notification was lost. Set 'unknownUserCacheInCluster' to "
+            + "true to enable it in a cluster anyway.");
+      }
+      Database.enableUnknownUserCache(new UnknownUserCache(
+          getInt(config, "unknownUserCacheCapacity", 1000000),
+          getInt(config, "unknownUserCacheMissMillis", 60000),
+          getInt(config, "unknownUserCacheMaxMisses", 100000)));
+    }
+    // Keep the credentials of recently authenticated users off the heap.
+    if (config.hasProperty("credentialCache") && config.getBoolean("credentialCache")) {
+      Database.enableCredentialCache(new CredentialCache(
+          getInt(config, "credentialCacheCapacity", 1000000),
+          getInt(config, "credentialCacheMillis", 30000)));
+    }
+    // Cached users accept changes made by other processes only once their
+    // entries expire, so caching changes authentication; hence it's opt-in.
+    if (!config.hasProperty("userCache") || !config.getBoolean("userCache")) {
+      return;
     }
+    Database.enableUserCache(new UserCache(getInt(config, "userCacheCapacity", 100000),
+        getInt(config, "userCacheMillis", 30000)));
+    int warmUpUsers = getInt(config, "warmUpUsers", 10000);
+    WarmUp.setSnapshotFile(config.hasProperty("userCacheSnapshot")
+        ? new File(config.getString("userCacheSnapshot")) : null, warmUpUsers);
+    // Load the users who are likely to log in first, preferably those who
+    // were in the cache when the server was last shut down.
+    long start = System.currentTimeMillis();
+    List<String> names = null;
+    try {
+      names = WarmUp.readSnapshot();
+    } catch (IOException e) {
+      LOG.warning("Error reading the user cache snapshot: " + e.getMessage());
+    }
+    if (names == null) {
+      names = Database.listRecentUsers(warmUpUsers);
+    }
+    int loaded = WarmUp.preload(names);
+    if (loaded > 0) {
+      LOG.info("Preloaded " + loaded + " users in "
+          + (System.currentTimeMillis() - start) + " ms.");
+    }
+  }
+
+  /**
+   * Joins the cluster of auth-servers sharing the database, so that the
+   * caches of the nodes are invalidated when users are changed on any node.
+   * 
+   * @param config
+   *  The server's configuration.
+   * @param inetAddr
+   *  The local address to bind to, or null to bind to all interfaces.
+   * @throws Exception
+   *  The settings are invalid, or the socket could not be bound.
+   */
+  private static void startCluster(Config config, InetAddress inetAddr) throws Exception {
+    String secret = config.hasProperty("clusterSecret")
+        ? config.getString("clusterSecret") : config.getString("sharedSecretKey");
+    Cluster cluster = new Cluster(inetAddr, config.getInt("clusterPort"),
+        secret.trim().getBytes("UTF-8"), Database.getClusterListener());
+    String peers = config.hasProperty("clusterPeers") ? config.getString("clusterPeers") : "";
+    for (String peer : peers.split(",")) {
+      peer = peer.trim();
+      if (peer.length() == 0) {
+        continue;
+      }
+      int colon = peer.lastIndexOf(':');
+      if (colon < 0) {
+        cluster.close();
+        throw new Exception("Invalid 'clusterPeers' entry '" + peer
+            + "'. Entries must be of the form host:port.");
+      }
+      cluster.addPeer(new InetSocketAddress(peer.substring(0, colon),
+          Integer.parseInt(peer.substring(colon + 1))));
+    }
+    Database.setCluster(cluster);
+    LOG.info("Joined the cluster on port " + cluster.getPort() + ".");
+  }
+
+  /**
+   * Sets up the routing of users to the nodes of a ring. If the server is
+   * part of a cluster, it only routes users to nodes that are up.
+   * 
+   * @param config
+   *  The server's configuration.
+   * @throws Exception
+   *  The settings are invalid.
+   */
+  private static void configureRouting(Config config) throws Exception {
+    List<String> nodes = new ArrayList<String>();
+    for (String node : config.getString("ringNodes").split(",")) {
+      node = node.trim();
+      if (node.length() == 0) {
+        continue;
+      }
+      // The SecurityFilter redirects to the host and port of the node.
+      int colon = node.lastIndexOf(':');
+      int port = -1;
+      if (colon > 0) {
+        try {
+          port = Integer.parseInt(node.substring(colon + 1));
+        } catch (NumberFormatException e) {
+          port = -1;
+        }
+      }
+      if (port < 1 || port > MAX_PORT) {
+        throw new Exception("Invalid 'ringNodes' entry '" + node
+            + "'. Entries must be of the form host:port.");
+      }
+      nodes.add(node);
+    }
+    String self = config.getString("ringSelf").trim();
+    if (!nodes.contains(self)) {
+      throw new Exception("The 'ringSelf' setting '" + self
+          + "' is not one of the 'ringNodes'.");
+    }
+    SecurityFilter.setRouter(new Router(new HashRing(nodes,
+        getInt(config, "ringVirtualNodes", HashRing.DEFAULT_VIRTUAL_NODES)), self,
+        Database.getCluster(), getInt(config, "ringDownMillis", 3000)));
+    LOG.info("Routing users to the nodes " + nodes + ".");
+  }
+
+  /**
+   * Waits for the specified startup step to complete.
+   * 
+   * @param step
+   *  The startup step.
+   * @throws Exception
+   *  The step failed with this exception.
+   */
+  private static void await(Future<Void> step) throws Exception {
+    try {
+      step.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Sets up the rate limiters of the SecurityFilter from the throttling
+   * settings of the configuration file. Settings that are omitted fall back
+   * to their defaults.
+   * 
+   * @param config
+   *  The server's configuration.
+   */
+  private static void configureThrottling(Config config) {
+    int maxEntries = getInt(config, "throttleMaxEntries", 100000);
+    int backoff = getInt(config, "throttleBackoffMillis", 1000);
+    int maxBackoff = getInt(config, "throttleMaxBackoffMillis", 300000);
+    RateLimiter byAddress = new RateLimiter(
+        getInt(config, "throttleAddressRate", 20),
+        getInt(config, "throttleAddressBurst", 40), maxEntries,
+        getInt(config, "throttleAddressFreeFailures", 10), backoff, maxBackoff);
+    RateLimiter byUser = new RateLimiter(
+        getInt(config, "throttleUserRate", 5),
+        getInt(config, "throttleUserBurst", 10), maxEntries,
+        getInt(config, "throttleUserFreeFailures", 3), backoff, maxBackoff);
+    SecurityFilter.setRateLimiters(byAddress, byUser);
+  }
+  
+  /**
+   * Exposes the metrics through JMX and registers gauges for the records
+   * dropped by the audit log and the asynchronous log handler.
+   * 
+   * @throws JMException
+   *  The metrics MBean could not be registered.
+   */
+  private static void registerMetrics() throws JMException {
+    Metrics.gauge("auth_audit_dropped_events", "Audit events dropped because the "
+        + "buffer was full.", new Metrics.Gauge() {
+          @Override
+          public double getValue() {
+            return Audit.getDropped();
+          }
+        });
+    Metrics.gauge("auth_log_dropped_records", "Log records dropped because the "
+        + "queue was full.", new Metrics.Gauge() {
+          @Override
+          public double getValue() {
+            return AsyncHandler.getTotalDropped();
+          }
+        });
+    Metrics.registerMBean();
+  }
+  
+  /**
+   * Gets the configuration value with the specified name as an integer, or
+   * the specified default value if the configuration value does not exist.
+   * 
+   * @param config
+   *  The server's configuration.
+   * @param key
+   *  The name of the configuration value to retrieve.
+   * @param defaultValue
+   *  The value to return if the configuration value does not exist.
+   * @return
+   *  The configuration value or the default value.
+   */
+  private static int getInt(Config config, String key, int defaultValue) {
+    return config.hasProperty(key) ? config.getInt(key) : defaultValue;
   }
   
   /**
@@ -0,0 +1,401 @@
+package org.timadorus.auth.server;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implements a lock-free, keyed token-bucket rate limiter for failed
+ * attempts, with exponential back-off for repeated failures.
+ *
+ * Each key (e.g. a remote address or a username) is assigned a bucket that
+ * holds up to 'burst' tokens and is refilled at a constant rate. Only failed
+ * attempts consume tokens, so that legitimate clients are never throttled,
+ * however many requests they make. The bucket is implemented as a
+ * 'theoretical arrival time' (GCRA) so that consuming a token is a single
+ * compare-and-set on one long value.
+ *
+ * Once a key has accumulated more than a configurable number of consecutive
+ * failures, it is blocked for an exponentially growing amount of time, up to
+ * a maximum. A success resets the failure count of a key.
+ *
+ * The number of tracked keys is bounded. Keys that show up while the table
+ * is full are hashed onto a fixed set of overflow buckets, which limit the
+ * rate of their failures but are never blocked, so that filling the table
+ * with made-up keys can't lock out the clients that aren't tracked. Idle
+ * buckets are swept out periodically by whichever thread happens to pass
+ * the sweep deadline first.
+ *
+ * @author agent
+ */
+public class RateLimiter {
+  /**
+   * The interval at which idle buckets are swept out, in nanoseconds.
+   */
+  private static final long SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+  /**
+   * The maximum shift applied when computing the back-off time.
+   */
+  private static final int MAX_BACKOFF_SHIFT = 30;
+
+  /**
+   * The number of overflow buckets.
+   */
+  private static final int OVERFLOW_BUCKETS = 64;
+
+  /**
+   * The map of tracked keys.
+   */
+  private final ConcurrentHashMap<String, Bucket> buckets =
+      new ConcurrentHashMap<String, Bucket>();
+
+  /**
+   * The buckets shared by the keys that can't be tracked individually
+   * because the table is full.
+   */
+  private final Bucket[] overflow = new Bucket[OVERFLOW_BUCKETS];
+
+  /**
+   * The time it takes to refill a single token, in nanoseconds.
+   */
+  private final long interval;
+
+  /**
+   * The amount of time a bucket may run ahead of the current time, which
+   * determines the burst size, in nanoseconds.
+   */
+  private final long tolerance;
+
+  /**
+   * The maximum number of keys to track.
+   */
+  private final int maxEntries;
+
+  /**
+   * The number of consecutive failures that are tolerated before a key is
+   * blocked.
+   */
+  private final int freeFailures;
+
+  /**
+   * The back-off time for the first blocked failure, in nanoseconds.
+   */
+  private final long baseBackoff;
+
+  /**
+   * The maximum back-off time, in nanoseconds.
+   */
+  private final long maxBackoff;
+
+  /**
+   * The time at which the next sweep is due.
+   */
+  private final AtomicLong nextSweep;
+
+  /**
+   * The state associated with a single key.
+   */
+  private static final class Bucket {
+    /**
+     * The theoretical arrival time of the next request.
+     */
+    private final AtomicLong tat;
+
+    /**
+     * The number of consecutive failures.
+     */
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * The time until which the key is blocked.
+     */
+    private volatile long blockedUntil;
+
+    /**
+     * The time at which the key was last seen.
+     */
+    private volatile long lastSeen;
+
+    /**
+     * Initializes a new instance of the Bucket class.
+     *
+     * @param now
+     *  The current time, in nanoseconds.
+     */
+    Bucket(long now) {
+      tat = new AtomicLong(now);
+      blockedUntil = now;
+      lastSeen = now;
+    }
+  }
+
+  /**
+   * Initializes a new instance of the RateLimiter class.
+   *
+   * @param ratePerSecond
+   *  The sustained number of requests per second allowed for a single key.
+   * @param burst
+   *  The number of requests a single key may issue in a burst.
+   * @param maxEntries
+   *  The maximum number of keys to track individually.
+   * @param freeFailures
+   *  The number of consecutive failures that are tolerated before a key is
+   *  blocked.
+   * @param baseBackoffMillis
+   *  The time a key is blocked for after its first failure beyond the
+   *  tolerated ones, in milliseconds. The time doubles with each further
+   *  failure.
+   * @param maxBackoffMillis
+   *  The maximum time a key is blocked for, in milliseconds.
+   * @throws IllegalArgumentException
+   *  The ratePerSecond parameter is not positive, or the burst parameter is
+   *  less than 1, or the maxEntries parameter is less than 1, or one of the
+   *  remaining parameters is negative.
+   */
+  public RateLimiter(double ratePerSecond, int burst, int maxEntries,
+    int freeFailures, long baseBackoffMillis, long maxBackoffMillis) {
+    if (ratePerSecond <= 0) {
+      throw new IllegalArgumentException("ratePerSecond");
+    }
+    if (burst < 1) {
+      throw new IllegalArgumentException("burst");
+    }
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries");
+    }
+    if (freeFailures < 0) {
+      throw new IllegalArgumentException("freeFailures");
+    }
+    if (baseBackoffMillis < 0) {
+      throw new IllegalArgumentException("baseBackoffMillis");
+    }
+    if (maxBackoffMillis < baseBackoffMillis) {
+      throw new IllegalArgumentException("maxBackoffMillis");
+    }
+    this.interval = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+    this.tolerance = interval * (burst - 1);
+    this.maxEntries = maxEntries;
+    this.freeFailures = freeFailures;
+    this.baseBackoff = TimeUnit.MILLISECONDS.toNanos(baseBackoffMillis);
+    this.maxBackoff = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+    long now = System.nanoTime();
+    this.nextSweep = new AtomicLong(now + SWEEP_INTERVAL);
+    for (int i = 0; i < overflow.length; i++) {
+      overflow[i] = new Bucket(now);
+    }
+  }
+
+  /**
+   * Determines whether an attempt for the specified key is allowed, i.e.
+   * whether the key is neither blocked nor has used up its tokens with
+   * failed attempts. No token is consumed.
+   *
+   * @param key
+   *  The key to check.
+   * @return
+   *  0 if the attempt is allowed; Otherwise the number of nanoseconds after
+   *  which the key may try again.
+   * @throws IllegalArgumentException
+   *  The key parameter is null.
+   */
+  public long check(String key) {
+    return check(key, System.nanoTime());
+  }
+
+  /**
+   * Determines whether an attempt for the specified key is allowed.
+   *
+   * @param key
+   *  The key to check.
+   * @param now
+   *  The current time, in nanoseconds, as returned by System.nanoTime.
+   * @return
+   *  0 if the attempt is allowed; Otherwise the number of nanoseconds after
+   *  which the key may try again.
+   * @throws IllegalArgumentException
+   *  The key parameter is null.
+   */
+  public long check(String key, long now) {
+    if (key == null) {
+      throw new IllegalArgumentException("key");
+    }
+    maybeSweep(now);
+    Bucket b = buckets.get(key);
+    if (b == null) {
+      // Keys without failures are not tracked, unless the table is full.
+      if (buckets.size() < maxEntries) {
+        return 0;
+      }
+      b = getOverflowBucket(key);
+    }
+    long blocked = b.blockedUntil - now;
+    if (blocked > 0) {
+      return blocked;
+    }
+    // System.nanoTime may be negative, so only compare differences.
+    long wait = b.tat.get() - now - tolerance;
+    return wait > 0 ? wait : 0;
+  }
+
+  /**
+   * Records a failed attempt for the specified key, consuming one of its
+   * tokens and blocking the key for an exponentially growing amount of time
+   * once the tolerated number of failures has been exceeded.
+   *
+   * @param key
+   *  The key to record a failure for.
+   * @throws IllegalArgumentException
+   *  The key parameter is null.
+   */
+  public void recordFailure(String key) {
+    recordFailure(key, System.nanoTime());
+  }
+
+  /**
+   * Records a failed attempt for the specified key.
+   *
+   * @param key
+   *  The key to record a failure for.
+   * @param now
+   *  The current time, in nanoseconds, as returned by System.nanoTime.
+   * @throws IllegalArgumentException
+   *  The key parameter is null.
+   */
+  public void recordFailure(String key, long now) {
+    if (key == null) {
+      throw new IllegalArgumentException("key");
+    }
+    maybeSweep(now);
+    Bucket b = getBucket(key, now);
+    boolean tracked = b != null;
+    if (!tracked) {
+      b = getOverflowBucket(key);
+    }
+    b.lastSeen = now;
+    while (true) {
+      long tat = b.tat.get();
+      long start = tat - now > 0 ? tat : now;
+      if (b.tat.compareAndSet(tat, start + interval)) {
+        break;
+      }
+    }
+    if (!tracked) {
+      // Blocking a shared bucket would lock out every client hashed onto it,
+      // so untracked keys are only limited in their rate.
+      return;
+    }
+    int excess = b.failures.incrementAndGet() - freeFailures;
+    if (excess > 0) {
+      long backoff = baseBackoff << Math.min(excess - 1, MAX_BACKOFF_SHIFT);
+      if (backoff <= 0 || backoff > maxBackoff) {
+        backoff = maxBackoff;
+      }
+      b.blockedUntil = now + backoff;
+    }
+  }
+
+  /**
+   * Records a successful attempt for the specified key, resetting its
+   * failure count.
+   *
+   * @param key
+   *  The key to record a success for.
+   * @throws IllegalArgumentException
+   *  The key parameter is null.
+   */
+  public void recordSuccess(String key) {
+    if (key == null) {
+      throw new IllegalArgumentException("key");
+    }
+    Bucket b = buckets.get(key);
+    if (b != null) {
+      b.failures.set(0);
+      b.blockedUntil = System.nanoTime();
+    }
+  }
+
+  /**
+   * Gets the number of keys currently being tracked.
+   *
+   * @return
+   *  The number of keys currently being tracked.
+   */
+  public int size() {
+    return buckets.size();
+  }
+
+  /**
+   * Removes all buckets that have fully refilled and are neither blocked nor
+   * have recently failed.
+   *
+   * @param now
+   *  The current time, in nanoseconds, as returned by System.nanoTime.
+   */
+  public void sweep(long now) {
+    Iterator<Bucket> it = buckets.values().iterator();
+    while (it.hasNext()) {
+      Bucket b = it.next();
+      if (b.tat.get() - now > 0 || b.blockedUntil - now > 0) {
+        continue;
+      }
+      if (b.failures.get() > 0 && now - b.lastSeen < maxBackoff) {
+        continue;
+      }
+      it.remove();
+    }
+  }
+
+  /**
+   * Gets the bucket for the specified key, creating it if necessary.
+   *
+   * @param key
+   *  The key whose bucket to retrieve.
+   * @param now
+   *  The current time, in nanoseconds.
+   * @return
+   *  The bucket for the key, or null if the table is full.
+   */
+  private Bucket getBucket(String key, long now) {
+    Bucket b = buckets.get(key);
+    if (b != null) {
+      return b;
+    }
+    // The table is swept periodically rather than here, so that a full
+    // table doesn't make every failure scan it.
+    if (buckets.size() >= maxEntries) {
+      return null;
+    }
+    Bucket created = new Bucket(now);
+    b = buckets.putIfAbsent(key, created);
+    return b != null ? b : created;
+  }
+
+  /**
+   * Gets the overflow bucket the specified key is hashed onto.
+   *
+   * @param key
+   *  The key.
+   * @return
+   *  The overflow bucket for the key.
+   */
+  private Bucket getOverflowBucket(String key) {
+    return overflow[(key.hashCode() & Integer.MAX_VALUE) % overflow.length];
+  }
+
+  /**
+   * Sweeps the table if the sweep interval has elapsed. Only one of the
+   * threads passing the deadline performs the sweep.
+   *
+   * @param now
+   *  The current time, in nanoseconds.
+   */
+  private void maybeSweep(long now) {
+    long due = nextSweep.get();
+    if (now - due >= 0 && nextSweep.compareAndSet(due, now + SWEEP_INTERVAL)) {
+      sweep(now);
+    }
+  }
+}
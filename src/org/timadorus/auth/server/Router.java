@@ -0,0 +1,88 @@
+package org.timadorus.auth.server;
+
+import org.timadorus.auth.util.HashRing;
+
+/**
+ * Decides which auth-server of a ring serves a user, so that the data of
+ * each user is cached on one node only and the working set of each node
+ * stays small.
+ *
+ * A user is served by the first node following the username on the ring
+ * that is up. Without a cluster, the nodes can't tell whether their peers
+ * are up and always route to the owner; clients then fail over to the next
+ * node on the ring themselves, see the Authenticator class.
+ *
+ * @author agent
+ */
+public class Router {
+  /**
+   * The ring of nodes.
+   */
+  private final HashRing ring;
+
+  /**
+   * The name of this node on the ring.
+   */
+  private final String self;
+
+  /**
+   * The cluster that tracks which nodes are up, or null.
+   */
+  private final Cluster cluster;
+
+  /**
+   * The time after the last heartbeat at which a node is considered to be
+   * down, in milliseconds.
+   */
+  private final long downMillis;
+
+  /**
+   * Initializes a new instance of the Router class.
+   *
+   * @param ring
+   *  The ring of nodes.
+   * @param self
+   *  The name of this node on the ring.
+   * @param cluster
+   *  The cluster that tracks which nodes are up, or null to consider all
+   *  nodes up.
+   * @param downMillis
+   *  The time after the last heartbeat at which a node is considered to be
+   *  down, in milliseconds.
+   * @throws IllegalArgumentException
+   *  The ring parameter is null, or the self parameter is null.
+   */
+  public Router(HashRing ring, String self, Cluster cluster, long downMillis) {
+    if (ring == null) {
+      throw new IllegalArgumentException("ring");
+    }
+    if (self == null) {
+      throw new IllegalArgumentException("self");
+    }
+    this.ring = ring;
+    this.self = self;
+    this.cluster = cluster;
+    this.downMillis = downMillis;
+  }
+
+  /**
+   * Determines the node that serves the specified user.
+   *
+   * @param username
+   *  The name of the user.
+   * @return
+   *  The name of the node to redirect the user to, or null if this node
+   *  serves the user.
+   */
+  public String route(String username) {
+    for (String node : ring.getNodes(username, ring.size())) {
+      if (node.equals(self)) {
+        return null;
+      }
+      if (cluster == null || cluster.isAlive(node, downMillis)) {
+        return node;
+      }
+    }
+    return null;
+  }
+}
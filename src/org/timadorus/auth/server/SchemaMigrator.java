@@ -0,0 +1,263 @@
+package org.timadorus.auth.server;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.logging.Logger;
+
+/**
+ * Evolves the schema of the auth database by applying an ordered list of
+ * migrations.
+ *
+ * The version of the schema is kept in the schema_version table, which
+ * holds one row per applied migration. Each migration is applied in a
+ * transaction of its own while holding an exclusive lock on that table, so
+ * that several auth-servers starting up at the same time against the same
+ * database don't apply a migration twice. The table also holds a row with
+ * version 0, so that it is never empty for databases such as H2, which
+ * lock a table by locking all of its rows.
+ *
+ * Migrations must only ever be appended to the list; a migration that has
+ * been released must never be changed.
+ *
+ * @author agent
+ */
+public class SchemaMigrator {
+  /**
+   * Logging facility.
+   */
+  private static final Logger LOG = Logger.getLogger(SchemaMigrator.class.getName());
+
+  /**
+   * The migrations, in the order they are applied. The version of a
+   * migration is its index in this array plus one. The string '{prefix}'
+   * is replaced by the table prefix.
+   */
+  private static final String[][] MIGRATIONS = {
+    // Version 1: Entities are looked up by (user_id, name) by getEntity,
+    // entityExists, deleteEntity and updateEntity. This also enforces that
+    // entity names are unique per user. listUsers is served by the index
+    // backing the name_unique constraint of the users table.
+    {
+      "Add unique index on entitiesPerUser(user_id, name)",
+      "CREATE UNIQUE INDEX {prefix}entity_user_name_idx "
+        + "ON {prefix}entitiesPerUser (user_id, name)"
+    },
+  };
+
+  /**
+   * The prefix of the database tables.
+   */
+  private final String prefix;
+
+  /**
+   * The SQL dialect of the database.
+   */
+  private final SqlDialect dialect;
+
+  /**
+   * Initializes a new instance of the SchemaMigrator class.
+   *
+   * @param prefix
+   *  The prefix of the database tables.
+   * @param dialect
+   *  The SQL dialect of the database.
+   * @throws IllegalArgumentException
+   *  The prefix parameter is null, or the dialect parameter is null.
+   */
+  public SchemaMigrator(String prefix, SqlDialect dialect) {
+    if (prefix == null) {
+      throw new IllegalArgumentException("prefix");
+    }
+    if (dialect == null) {
+      throw new IllegalArgumentException("dialect");
+    }
+    this.prefix = prefix;
+    this.dialect = dialect;
+  }
+
+  /**
+   * Gets the schema version that results from applying all migrations.
+   *
+   * @return
+   *  The latest schema version.
+   */
+  public static int getLatestVersion() {
+    return MIGRATIONS.length;
+  }
+
+  /**
+   * Applies all migrations that have not been applied yet.
+   *
+   * @param con
+   *  The connection to apply the migrations on. The auto-commit mode of
+   *  the connection is restored before the method returns.
+   * @return
+   *  The number of migrations that were applied.
+   * @throws SQLException
+   *  A migration could not be applied.
+   * @throws IllegalArgumentException
+   *  The con parameter is null.
+   */
+  public int migrate(Connection con) throws SQLException {
+    if (con == null) {
+      throw new IllegalArgumentException("con");
+    }
+    createVersionTable(con);
+    insertLockRow(con);
+    boolean autoCommit = con.getAutoCommit();
+    con.setAutoCommit(false);
+    int applied = 0;
+    try {
+      for (int i = 0; i < MIGRATIONS.length; i++) {
+        if (apply(con, i + 1, MIGRATIONS[i])) {
+          applied++;
+        }
+      }
+    } finally {
+      con.setAutoCommit(autoCommit);
+    }
+    return applied;
+  }
+
+  /**
+   * Applies the specified migration, unless it has already been applied.
+   *
+   * @param con
+   *  The connection to apply the migration on.
+   * @param version
+   *  The version of the migration.
+   * @param migration
+   *  The description of the migration followed by its SQL statements.
+   * @return
+   *  true if the migration was applied; false if it had already been
+   *  applied.
+   * @throws SQLException
+   *  The migration could not be applied.
+   */
+  private boolean apply(Connection con, int version, String[] migration)
+      throws SQLException {
+    Statement statement = con.createStatement();
+    try {
+      statement.execute(dialect.getLockTableStatement(prefix + "schema_version"));
+      if (getVersion(con) >= version) {
+        con.commit();
+        return false;
+      }
+      LOG.info("Migrating auth database to version " + version + ": "
+          + migration[0]);
+      for (int i = 1; i < migration.length; i++) {
+        statement.execute(migration[i].replace("{prefix}", prefix));
+      }
+      PreparedStatement insert = con.prepareStatement("INSERT INTO " + prefix
+          + "schema_version (version, description, applied) VALUES (?, ?, ?)");
+      try {
+        insert.setInt(1, version);
+        insert.setString(2, migration[0]);
+        insert.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+        insert.executeUpdate();
+      } finally {
+        insert.close();
+      }
+      con.commit();
+      return true;
+    } catch (SQLException e) {
+      con.rollback();
+      throw e;
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Gets the current schema version.
+   *
+   * @param con
+   *  The connection to use.
+   * @return
+   *  The version of the last applied migration, or 0 if no migration has
+   *  been applied.
+   * @throws SQLException
+   *  The schema version could not be determined.
+   */
+  public int getVersion(Connection con) throws SQLException {
+    Statement statement = con.createStatement();
+    ResultSet rs = null;
+    try {
+      rs = statement.executeQuery("SELECT MAX(version) FROM " + prefix
+          + "schema_version");
+      return rs.next() ? rs.getInt(1) : 0;
+    } finally {
+      if (rs != null) {
+        rs.close();
+      }
+      statement.close();
+    }
+  }
+
+  /**
+   * Inserts the row with version 0 into the schema_version table if it does
+   * not exist. Locking the rows of the table then always locks this row, even
+   * before the first migration has been applied.
+   *
+   * @param con
+   *  The connection to use, in auto-commit mode.
+   * @throws SQLException
+   *  The row could not be inserted.
+   */
+  private void insertLockRow(Connection con) throws SQLException {
+    PreparedStatement insert = con.prepareStatement("INSERT INTO " + prefix
+        + "schema_version (version, description, applied) VALUES (0, ?, ?)");
+    try {
+      insert.setString(1, "Schema version lock");
+      insert.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+      insert.executeUpdate();
+    } catch (SQLException e) {
+      // The row exists, or another auth-server inserted it in the meantime.
+      if (!dialect.isDuplicateKey(e)) {
+        throw e;
+      }
+    } finally {
+      insert.close();
+    }
+  }
+
+  /**
+   * Creates the schema_version table if it does not exist.
+   *
+   * @param con
+   *  The connection to use.
+   * @throws SQLException
+   *  The table could not be created.
+   */
+  private void createVersionTable(Connection con) throws SQLException {
+    DatabaseMetaData dbmd = con.getMetaData();
+    ResultSet rs = dbmd.getTables(null, dialect.getDefaultSchema(dbmd),
+                                  (prefix + "schema_version").toUpperCase(), null);
+    try {
+      if (rs.next()) {
+        return;
+      }
+    } finally {
+      rs.close();
+    }
+    Statement statement = con.createStatement();
+    try {
+      statement.execute("CREATE TABLE " + prefix + "schema_version"
+          + "(version INT NOT NULL CONSTRAINT " + prefix + "schema_version_pk "
+          + "PRIMARY KEY, description VARCHAR(255) NOT NULL, "
+          + "applied TIMESTAMP NOT NULL)");
+    } catch (SQLException e) {
+      // Another auth-server may have created the table in the meantime.
+      if (!dialect.isAlreadyExists(e)) {
+        throw e;
+      }
+    } finally {
+      statement.close();
+    }
+  }
+}
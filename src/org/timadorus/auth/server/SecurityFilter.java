@@ -1,12 +1,21 @@
 package org.timadorus.auth.server;
 
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriBuilder;
 
 import org.timadorus.auth.util.Crypto;
+import org.timadorus.auth.util.Histogram;
+import org.timadorus.auth.util.Metrics;
+import org.timadorus.auth.util.Tracer;
 
 import com.sun.jersey.core.util.Base64;
 import com.sun.jersey.spi.container.ContainerRequest;
@@ -19,22 +28,170 @@ import com.sun.jersey.spi.container.ContainerRequestFilter;
  * This is used to verify the client's credentials which are passed as part
  * of the HTTP request (HTTP Basic Access Authentication).
  * 
+ * Failed logins are throttled per remote address and per username before
+ * any database or hashing work is done, so that brute-force attempts can't
+ * be used to tie up the server's CPU with PBKDF2 computations. Successful
+ * logins don't count against the limits, so that busy clients such as game
+ * servers behind one address are not throttled.
+ * 
+ * If the server is part of a ring, requests for users owned by another node
+ * are redirected to that node, unless the client is failing over.
+ * 
  * @author
  *  Torben Könke
  */
 public class SecurityFilter implements ContainerRequestFilter  {
+  /**
+   * The header with which clients ask to be served by the node they contact,
+   * because the node that owns the user did not respond.
+   */
+  public static final String FAILOVER_HEADER = "X-Auth-Failover";
+
   /**
    * The HTTP status code for unauthorized access.
    */
   private static final int HTTP_NOT_AUTHORIZED = 401;
-  
+
+  /**
+   * The HTTP status code for too many requests.
+   */
+  private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+  /**
+   * The HTTP status code for a temporary redirect.
+   */
+  private static final int HTTP_TEMPORARY_REDIRECT = 307;
+
   /**
    * Logging facility.
    */
   private static final Logger LOG = Logger.getLogger(SecurityFilter.class.getName());
-  
+
+  /**
+   * The rate limiter keyed by remote address.
+   */
+  private static volatile RateLimiter addressLimiter =
+      new RateLimiter(20, 40, 100000, 10, 1000, 300000);
+
+  /**
+   * The rate limiter keyed by username.
+   */
+  private static volatile RateLimiter userLimiter =
+      new RateLimiter(5, 10, 100000, 3, 1000, 300000);
+
+  /**
+   * A password hash that is verified in place of a real one for unknown
+   * users, if constant-time rejects are enabled.
+   */
+  private static final String DUMMY_HASH = Crypto.createHash("dummy");
+
+  /**
+   * The credentials looked up by each thread, reused across requests.
+   */
+  private static final ThreadLocal<CredentialCache.Credentials> CREDENTIALS =
+      new ThreadLocal<CredentialCache.Credentials>() {
+        @Override
+        protected CredentialCache.Credentials initialValue() {
+          return new CredentialCache.Credentials();
+        }
+      };
+
+  /**
+   * Determines whether requests for unknown users take as long as requests
+   * with a wrong password.
+   */
+  private static volatile boolean constantTimeRejects;
+
+  /**
+   * The router that assigns users to the nodes of a ring, or null.
+   */
+  private static volatile Router router;
+
+  /**
+   * The number of authenticated requests.
+   */
+  private static final AtomicLong SUCCEEDED = Metrics.counter("auth_logins_total",
+      "Authentication attempts by outcome.", "outcome", "success");
+
+  /**
+   * The number of requests with invalid or no credentials.
+   */
+  private static final AtomicLong FAILED = Metrics.counter("auth_logins_total",
+      "Authentication attempts by outcome.", "outcome", "failure");
+
+  /**
+   * The number of throttled requests.
+   */
+  private static final AtomicLong THROTTLED = Metrics.counter("auth_logins_total",
+      "Authentication attempts by outcome.", "outcome", "throttled");
+
+  /**
+   * The time spent authenticating requests that succeeded.
+   */
+  private static final Histogram SUCCESS_TIME = Metrics.histogram("auth_filter_seconds",
+      "Duration of request authentication.", "outcome", "success");
+
+  /**
+   * The time spent authenticating requests that failed.
+   */
+  private static final Histogram FAILURE_TIME = Metrics.histogram("auth_filter_seconds",
+      "Duration of request authentication.", "outcome", "failure");
+
+  /**
+   * The number of requests redirected to the node that owns the user.
+   */
+  private static final AtomicLong REDIRECTED = Metrics.counter("auth_redirects_total",
+      "Requests redirected to the node owning the user.");
+
   @Context HttpServletRequest httpServletRequest;
-  
+
+  /**
+   * Sets the rate limiters used for throttling requests.
+   * 
+   * @param byAddress
+   *  The rate limiter keyed by remote address.
+   * @param byUser
+   *  The rate limiter keyed by username.
+   * @throws IllegalArgumentException
+   *  The byAddress parameter is null, or the byUser parameter is null.
+   */
+  public static void setRateLimiters(RateLimiter byAddress, RateLimiter byUser) {
+    if (byAddress == null) {
+      throw new IllegalArgumentException("byAddress");
+    }
+    if (byUser == null) {
+      throw new IllegalArgumentException("byUser");
+    }
+    addressLimiter = byAddress;
+    userLimiter = byUser;
+  }
+
+  /**
+   * Sets whether requests for unknown users should take as long as requests
+   * with a wrong password, so that response times don't reveal whether a
+   * user exists. This costs a PBKDF2 computation per request for an unknown
+   * user, though no database query.
+   * 
+   * @param enabled
+   *  true to enable constant-time rejects; Otherwise false.
+   */
+  public static void setConstantTimeRejects(boolean enabled) {
+    constantTimeRejects = enabled;
+  }
+
+  /**
+   * Sets the router that assigns users to the nodes of a ring. Requests for
+   * users served by another node are redirected to that node before their
+   * credentials are verified.
+   * 
+   * @param ringRouter
+   *  The router, or null to serve all users. The nodes of its ring must be
+   *  of the form host:port.
+   */
+  public static void setRouter(Router ringRouter) {
+    router = ringRouter;
+  }
+
   /**
    * A filter method that is being executed whenever an HTTP request comes in.
    * 
@@ -45,56 +202,150 @@ public class SecurityFilter implements ContainerRequestFilter  {
    */
   @Override
   public ContainerRequest filter(ContainerRequest request) {
-    if (!authenticate(request)) {
-      LOG.warning("Failed auth attempt for resource '"
-               + request.getPath()
-               + "' from <" + httpServletRequest.getRemoteAddr()
-               + "> with authorization-header '"
-               + request.getHeaderValue(ContainerRequest.AUTHORIZATION) + "'.");
+    // Health checks are made by orchestrators without credentials.
+    if (request.getPath().startsWith(HealthResource.PATH)) {
+      return request;
+    }
+    long start = System.nanoTime();
+    String address = httpServletRequest.getRemoteAddr();
+    String[] credentials = getCredentials(request);
+    String username = credentials != null ? credentials[0] : null;
+    Router r = router;
+    if (r != null && username != null
+        && request.getHeaderValue(FAILOVER_HEADER) == null) {
+      String node = r.route(username);
+      if (node != null) {
+        REDIRECTED.incrementAndGet();
+        int colon = node.lastIndexOf(':');
+        URI location = UriBuilder.fromUri(request.getRequestUri())
+            .host(node.substring(0, colon))
+            .port(Integer.parseInt(node.substring(colon + 1))).build();
+        throw new WebApplicationException(Response
+            .status(HTTP_TEMPORARY_REDIRECT).location(location).build());
+      }
+    }
+    // Reject throttled requests before doing any database or PBKDF2 work.
+    // Only failures consume tokens, which happens below.
+    long wait = addressLimiter.check(address);
+    if (wait == 0 && username != null) {
+      wait = userLimiter.check(username);
+    }
+    if (wait > 0) {
+      THROTTLED.incrementAndGet();
+      if (Audit.isEnabled()) {
+        Audit.log(AuditEvent.LOGIN_THROTTLED, username, null, address);
+      } else {
+        LOG.log(Level.WARNING, "Throttled auth attempt for resource ''{0}'' from <{1}> "
+            + "for user ''{2}''.", new Object[] {request.getPath(), address, username});
+      }
+      throw new WebApplicationException(Response
+          .status(HTTP_TOO_MANY_REQUESTS)
+          .header("Retry-After", Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(wait)))
+          .build());
+    }
+    AuthPrincipal principal = null;
+    if (credentials != null) {
+      int span = Tracer.start("filter.authenticate");
+      try {
+        principal = authenticate(credentials[0], credentials[1], request.isSecure());
+      } finally {
+        Tracer.end(span);
+      }
+    }
+    if (principal == null) {
+      FAILED.incrementAndGet();
+      FAILURE_TIME.recordSince(start);
+      addressLimiter.recordFailure(address);
+      if (username != null) {
+        userLimiter.recordFailure(username);
+      }
+      // Never log the authorization header, it contains the password.
+      if (Audit.isEnabled()) {
+        Audit.log(AuditEvent.LOGIN_FAILURE, username, null, address);
+      } else {
+        LOG.log(Level.WARNING, "Failed auth attempt for resource ''{0}'' from <{1}> "
+            + "for user ''{2}''.", new Object[] {request.getPath(), address, username});
+      }
       throw new WebApplicationException(HTTP_NOT_AUTHORIZED);
     }
+    addressLimiter.recordSuccess(address);
+    userLimiter.recordSuccess(username);
+    SUCCEEDED.incrementAndGet();
+    SUCCESS_TIME.recordSince(start);
+    Audit.log(AuditEvent.LOGIN_SUCCESS, username, null, address);
+    // Attach the verified principal so resources can make authorization
+    // decisions without hitting the database again.
+    request.setSecurityContext(principal);
     return request;
   }
-  
+
   /**
-   * Authenticates the credentials included in the specified request's HTTP
+   * Extracts the credentials included in the specified request's HTTP
    * headers.
    * 
    * @param request
-   *  The request whose credentials to verify.
+   *  The request whose credentials to extract.
    * @return
-   *  true if the passed credentials are valid; Otherwise false.
+   *  An array containing the username and the password, or null if the
+   *  request does not contain valid basic access credentials.
    */
-  private boolean authenticate(ContainerRequest request) {
-    // Extract authentication credentials from the HTTP headers.
+  private String[] getCredentials(ContainerRequest request) {
     String authentication = request.getHeaderValue(ContainerRequest.AUTHORIZATION);
     if (authentication == null) {
-      return false;
+      return null;
     }
     if (!authentication.startsWith("Basic ")) {
-      return false;
+      return null;
     }
     authentication = authentication.substring("Basic ".length());
-    String[] values = new String(Base64.base64Decode(authentication)).split(":");
-    if (values.length < 2) {
-      return false;
+    String[] values;
+    try {
+      values = new String(Base64.base64Decode(authentication)).split(":");
+    } catch (Exception e) {
+      return null;
     }
-    String username = values[0];
-    String password = values[1];
-    if ((username == null) || (password == null)) {
-      return false;
+    if (values.length < 2) {
+      return null;
     }
+    return values;
+  }
+
+  /**
+   * Authenticates the specified credentials.
+   * 
+   * @param username
+   *  The name of the user to authenticate.
+   * @param password
+   *  The password of the user.
+   * @param secure
+   *  true if the request was made over a secure channel; Otherwise false.
+   * @return
+   *  The verified principal if the passed credentials are valid; Otherwise
+   *  null.
+   */
+  private AuthPrincipal authenticate(String username, String password,
+    boolean secure) {
     // Validate the extracted credentials.
     try {
-      String dbPasswordHash = Database.getPassword(username);
+      // Unknown users are usually rejected by the Database class without a
+      // query.
+      CredentialCache.Credentials credentials = CREDENTIALS.get();
       // The user doesn't exist.
-      if (dbPasswordHash == null) {
-        return false;
+      if (!Database.getCredentials(username, credentials)) {
+        if (constantTimeRejects) {
+          Crypto.validatePassword(password, DUMMY_HASH);
+        }
+        return null;
       }
       // Compare the password hashes.
-      return Crypto.validatePassword(password, dbPasswordHash);
+      if (!Crypto.validatePassword(password.toCharArray(), credentials.getSalt(),
+          credentials.getIterations(), credentials.getHash())) {
+        return null;
+      }
+      return new AuthPrincipal(credentials.getId(), username, credentials.isAdmin(),
+          credentials.getFlags(), secure);
     } catch (Exception e) {
-      return false;
+      return null;
     }
   }
 }
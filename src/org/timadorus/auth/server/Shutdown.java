@@ -0,0 +1,106 @@
+package org.timadorus.auth.server;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Shuts the auth-server down gracefully: new requests are rejected, the
+ * requests in flight are given time to complete, the snapshot of the user
+ * cache is written, and pending writes of the store and the audit log are
+ * flushed before the connection pool is closed.
+ *
+ * The sequence runs from the 'stop' command of the interpreter or from the
+ * shutdown hook of the JVM, e.g. when the init script sends SIGTERM, but
+ * only once.
+ *
+ * @author agent
+ */
+final class Shutdown {
+  /**
+   * Logging facility.
+   */
+  private static final Logger LOG = Logger.getLogger(Shutdown.class.getName());
+
+  /**
+   * Determines whether the server has been shut down.
+   */
+  private static final AtomicBoolean DONE = new AtomicBoolean();
+
+  /**
+   * Make CheckStyle happy.
+   */
+  private Shutdown() {
+    // Make CheckStyle happy.
+  }
+
+  /**
+   * Registers a JVM shutdown hook which shuts down the specified server.
+   *
+   * @param server
+   *  The server to shut down.
+   * @throws IllegalArgumentException
+   *  The server parameter is null.
+   */
+  static void addHook(final AuthServer server) {
+    if (server == null) {
+      throw new IllegalArgumentException("server");
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread("shutdown") {
+      @Override
+      public void run() {
+        Shutdown.run(server);
+      }
+    });
+  }
+
+  /**
+   * Drains and stops the specified server and closes the store and the
+   * audit log. Subsequent calls return immediately.
+   *
+   * @param server
+   *  The server to shut down.
+   * @throws IllegalArgumentException
+   *  The server parameter is null.
+   */
+  static void run(AuthServer server) {
+    if (server == null) {
+      throw new IllegalArgumentException("server");
+    }
+    if (!DONE.compareAndSet(false, true)) {
+      return;
+    }
+    // Let load balancers and the other nodes of the ring take the server out
+    // of rotation.
+    HealthResource.setReady(false);
+    Cluster cluster = Database.getCluster();
+    if (cluster != null) {
+      cluster.stopHeartbeat();
+    }
+    // The log handlers may already have been closed by the shutdown hook of
+    // the LogManager, so report the progress on the console as well.
+    System.out.println("Draining requests for up to " + server.getDrainTimeout() + " ms...");
+    if (!server.drain()) {
+      String m = "Requests were still in flight after the drain timeout.";
+      System.out.println(m);
+      LOG.warning(m);
+    }
+    server.stop();
+    if (cluster != null) {
+      Database.setCluster(null);
+      cluster.close();
+    }
+    // Let the next start preload the users that were active.
+    WarmUp.writeSnapshot();
+    try {
+      // Writes the snapshot of the memory store, or closes the pooled
+      // connections of the JDBC store.
+      Database.close();
+    } catch (SQLException e) {
+      LOG.warning("Error closing the database: " + e.getMessage());
+    }
+    DerbySetup.shutdown();
+    Audit.close();
+    System.out.println("The auth server has been shut down.");
+  }
+}
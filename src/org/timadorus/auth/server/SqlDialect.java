@@ -0,0 +1,101 @@
+package org.timadorus.auth.server;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+/**
+ * Encapsulates the SQL statements and error codes that differ between the
+ * database engines supported by the JdbcAuthStore class.
+ *
+ * @author agent
+ */
+public interface SqlDialect {
+  /**
+   * Gets the name of the dialect.
+   *
+   * @return
+   *  The name of the dialect.
+   */
+  String getName();
+
+  /**
+   * Gets the DDL statements for creating the auth tables, in the order in
+   * which they must be executed.
+   *
+   * @param prefix
+   *  The prefix of the database tables.
+   * @return
+   *  The DDL statements for creating the auth tables.
+   */
+  String[] getCreateTableStatements(String prefix);
+
+  /**
+   * Gets the name of the schema in which unqualified tables are created.
+   *
+   * @param dbmd
+   *  The meta-data of the connection.
+   * @return
+   *  The name of the default schema, as stored in the database catalog.
+   * @throws SQLException
+   *  The meta-data could not be queried.
+   */
+  String getDefaultSchema(DatabaseMetaData dbmd) throws SQLException;
+
+  /**
+   * Gets the statement for deleting all rows from the specified table.
+   *
+   * @param table
+   *  The name of the table, including the prefix.
+   * @return
+   *  The statement for deleting all rows from the table.
+   */
+  String getTruncateStatement(String table);
+
+  /**
+   * Gets the statement for exclusively locking the specified table until
+   * the end of the current transaction. Databases without table locks may
+   * lock all rows of the table instead, so the table must not be empty.
+   *
+   * @param table
+   *  The name of the table, including the prefix.
+   * @return
+   *  The statement for locking the table.
+   */
+  String getLockTableStatement(String table);
+
+  /**
+   * Gets a single statement which inserts an attribute or replaces the value
+   * of an existing attribute. The statement takes the parameters entity_id,
+   * name and value, in that order.
+   *
+   * @param prefix
+   *  The prefix of the database tables.
+   * @return
+   *  The upsert statement, or null if the database does not support upserts
+   *  in a single statement.
+   */
+  String getUpsertAttributeStatement(String prefix);
+
+  /**
+   * Determines whether the specified exception was raised because a unique
+   * or primary key constraint was violated.
+   *
+   * @param e
+   *  The exception to examine.
+   * @return
+   *  true if the exception denotes a duplicate key; Otherwise false.
+   */
+  boolean isDuplicateKey(SQLException e);
+
+  /**
+   * Determines whether the specified exception was raised because a table
+   * or index to be created already exists.
+   *
+   * @param e
+   *  The exception to examine.
+   * @return
+   *  true if the exception denotes an already existing object; Otherwise
+   *  false.
+   */
+  boolean isAlreadyExists(SQLException e);
+}
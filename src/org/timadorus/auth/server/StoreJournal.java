@@ -0,0 +1,377 @@
+package org.timadorus.auth.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the state of a MemoryAuthStore as a snapshot file plus an
+ * append-only journal of the mutations applied since the snapshot was
+ * written.
+ *
+ * Both files consist of frames holding one record each. A frame starts with
+ * the length and the CRC-32 checksum of the record, so that a record that
+ * was only partially written when the process died is detected and
+ * discarded on recovery. Records start with a sequence number; records of
+ * the journal that are already contained in the snapshot are skipped, which
+ * makes recovery safe even if the process died while a checkpoint was
+ * being written.
+ *
+ * @author agent
+ */
+class StoreJournal {
+  /**
+   * Logging facility.
+   */
+  private static final Logger LOG = Logger.getLogger(StoreJournal.class.getName());
+
+  /**
+   * The name of the snapshot file.
+   */
+  private static final String SNAPSHOT = "snapshot";
+
+  /**
+   * The name of the journal file.
+   */
+  private static final String JOURNAL = "journal";
+
+  /**
+   * The size of the frame header, i.e. the length and the checksum.
+   */
+  private static final int HEADER_SIZE = 8;
+
+  /**
+   * The maximum size of a single record.
+   */
+  private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * Receives the records read during recovery.
+   */
+  interface Replayer {
+    /**
+     * Applies the specified record.
+     *
+     * @param record
+     *  The record, including its sequence number.
+     * @param snapshot
+     *  true if the record was read from the snapshot; false if it was read
+     *  from the journal.
+     * @throws IOException
+     *  The record is malformed.
+     */
+    void replay(byte[] record, boolean snapshot) throws IOException;
+  }
+
+  /**
+   * The directory holding the snapshot and journal files.
+   */
+  private final File dir;
+
+  /**
+   * Determines whether appended records are forced to disk.
+   */
+  private final boolean sync;
+
+  /**
+   * The channel of the journal file, or null if the journal is closed.
+   */
+  private FileChannel journal;
+
+  /**
+   * Initializes a new instance of the StoreJournal class.
+   *
+   * @param dir
+   *  The directory holding the snapshot and journal files. The directory is
+   *  created if it does not exist.
+   * @param sync
+   *  true to force each appended record to disk before it is applied;
+   *  false to leave flushing to the operating system.
+   * @throws IOException
+   *  The directory could not be created.
+   * @throws IllegalArgumentException
+   *  The dir parameter is null.
+   */
+  StoreJournal(File dir, boolean sync) throws IOException {
+    if (dir == null) {
+      throw new IllegalArgumentException("dir");
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create directory '" + dir + "'.");
+    }
+    this.dir = dir;
+    this.sync = sync;
+  }
+
+  /**
+   * Determines whether a snapshot has been written.
+   *
+   * @return
+   *  true if the snapshot file exists; Otherwise false.
+   */
+  boolean hasSnapshot() {
+    return new File(dir, SNAPSHOT).isFile();
+  }
+
+  /**
+   * Reads the snapshot and the journal and opens the journal for appending.
+   * A partially written record at the end of the journal is discarded.
+   *
+   * @param replayer
+   *  The object that receives the records.
+   * @throws IOException
+   *  The files could not be read, or the snapshot is corrupt.
+   */
+  synchronized void open(Replayer replayer) throws IOException {
+    File snapshot = new File(dir, SNAPSHOT);
+    if (snapshot.isFile()) {
+      long valid = read(snapshot, replayer, true);
+      if (valid != snapshot.length()) {
+        throw new IOException("The snapshot '" + snapshot + "' is corrupt.");
+      }
+    }
+    File file = new File(dir, JOURNAL);
+    long valid = file.isFile() ? read(file, replayer, false) : 0;
+    journal = new RandomAccessFile(file, "rw").getChannel();
+    if (journal.size() > valid) {
+      LOG.warning("Discarding " + (journal.size() - valid) + " bytes of an "
+          + "incomplete record at the end of '" + file + "'.");
+      journal.truncate(valid);
+    }
+    journal.position(valid);
+  }
+
+  /**
+   * Appends the specified records to the journal.
+   *
+   * @param records
+   *  The records to append.
+   * @throws IOException
+   *  The records could not be written.
+   */
+  synchronized void append(List<byte[]> records) throws IOException {
+    if (journal == null) {
+      throw new IOException("The journal is closed.");
+    }
+    for (byte[] record : records) {
+      write(journal, record);
+    }
+    if (sync) {
+      journal.force(false);
+    }
+  }
+
+  /**
+   * Gets the size of the journal.
+   *
+   * @return
+   *  The size of the journal in bytes.
+   * @throws IOException
+   *  The size could not be determined.
+   */
+  synchronized long size() throws IOException {
+    return journal != null ? journal.size() : 0;
+  }
+
+  /**
+   * Starts writing a new snapshot. The records describing the complete state
+   * of the store are written to the returned checkpoint, which replaces the
+   * current snapshot and empties the journal when it is committed. Records
+   * must not be appended while the checkpoint is in progress.
+   *
+   * @return
+   *  The checkpoint to write the records to.
+   * @throws IOException
+   *  The snapshot file could not be created.
+   */
+  synchronized Checkpoint beginCheckpoint() throws IOException {
+    return new Checkpoint(new File(dir, SNAPSHOT + ".tmp"));
+  }
+
+  /**
+   * Closes the journal.
+   *
+   * @throws IOException
+   *  The journal could not be closed.
+   */
+  synchronized void close() throws IOException {
+    if (journal != null) {
+      journal.force(true);
+      journal.close();
+      journal = null;
+    }
+  }
+
+  /**
+   * Writes the specified record as a frame to the specified channel.
+   *
+   * @param channel
+   *  The channel to write to.
+   * @param record
+   *  The record to write.
+   * @throws IOException
+   *  The record could not be written.
+   */
+  private static void write(FileChannel channel, byte[] record) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + record.length);
+    buf.putInt(record.length);
+    buf.putInt((int) crc.getValue());
+    buf.put(record);
+    buf.flip();
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+  }
+
+  /**
+   * Reads the frames of the specified file until the end of the file or the
+   * first incomplete or corrupt frame.
+   *
+   * @param file
+   *  The file to read.
+   * @param replayer
+   *  The object that receives the records.
+   * @param snapshot
+   *  true if the file is the snapshot; Otherwise false.
+   * @return
+   *  The number of bytes of complete frames.
+   * @throws IOException
+   *  The file could not be read.
+   */
+  private static long read(File file, Replayer replayer, boolean snapshot)
+      throws IOException {
+    InputStream is = new FileInputStream(file);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(is, 65536));
+    long valid = 0;
+    try {
+      while (true) {
+        int length;
+        int checksum;
+        byte[] record;
+        try {
+          length = in.readInt();
+          checksum = in.readInt();
+          if (length < 0 || length > MAX_RECORD_SIZE) {
+            return valid;
+          }
+          record = new byte[length];
+          in.readFully(record);
+        } catch (EOFException e) {
+          return valid;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int) crc.getValue() != checksum) {
+          return valid;
+        }
+        replayer.replay(record, snapshot);
+        valid += HEADER_SIZE + length;
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * A snapshot that is being written.
+   */
+  final class Checkpoint {
+    /**
+     * The temporary file the snapshot is written to.
+     */
+    private final File file;
+
+    /**
+     * The stream of the temporary file.
+     */
+    private final FileOutputStream fos;
+
+    /**
+     * The buffered stream the frames are written to.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * Initializes a new instance of the Checkpoint class.
+     *
+     * @param file
+     *  The temporary file to write the snapshot to.
+     * @throws IOException
+     *  The file could not be created.
+     */
+    private Checkpoint(File file) throws IOException {
+      this.file = file;
+      fos = new FileOutputStream(file);
+      out = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+    }
+
+    /**
+     * Writes the specified record to the snapshot.
+     *
+     * @param record
+     *  The record to write.
+     * @throws IOException
+     *  The record could not be written.
+     */
+    void write(byte[] record) throws IOException {
+      CRC32 crc = new CRC32();
+      crc.update(record);
+      out.writeInt(record.length);
+      out.writeInt((int) crc.getValue());
+      out.write(record);
+    }
+
+    /**
+     * Replaces the current snapshot with the written records and empties
+     * the journal.
+     *
+     * @throws IOException
+     *  The snapshot could not be replaced.
+     */
+    void commit() throws IOException {
+      try {
+        out.flush();
+        fos.getFD().sync();
+      } finally {
+        out.close();
+      }
+      Files.move(file.toPath(), new File(dir, SNAPSHOT).toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      synchronized (StoreJournal.this) {
+        if (journal != null) {
+          journal.truncate(0);
+          journal.position(0);
+          journal.force(true);
+        }
+      }
+    }
+
+    /**
+     * Discards the written records, keeping the current snapshot.
+     */
+    void abort() {
+      try {
+        out.close();
+      } catch (IOException e) {
+      }
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package org.timadorus.auth.server;
+
+import java.sql.SQLException;
+
+/**
+ * A unit of work that is run by Database.inTransaction. All calls to the
+ * Database class made by the run method share one connection and are
+ * committed together when the method returns, or rolled back if it throws.
+ *
+ * @param <T>
+ *  The type of the result of the work.
+ * @author agent
+ */
+public interface Transaction<T> {
+  /**
+   * Performs the work.
+   *
+   * @return
+   *  The result of the work, or null.
+   * @throws SQLException
+   *  A database-related error occurred. The transaction is rolled back.
+   */
+  T run() throws SQLException;
+}
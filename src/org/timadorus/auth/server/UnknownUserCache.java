@@ -0,0 +1,185 @@
+package org.timadorus.auth.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of usernames that are known not to exist, so that lookups for
+ * unknown users can be answered without querying the database.
+ *
+ * The cache consists of a Bloom filter of all existing usernames, which is
+ * maintained as users are created, and a small cache of recent misses with a
+ * limited lifetime, which covers names that pass the Bloom filter (false
+ * positives and deleted users).
+ *
+ * The cache must never report an existing user as unknown. Therefore all
+ * users must be added to it, which only holds as long as the users table is
+ * not modified by anything but this server instance.
+ *
+ * @author agent
+ */
+public class UnknownUserCache {
+  /**
+   * The Bloom filter of existing usernames.
+   */
+  private final BloomFilter names;
+
+  /**
+   * Recently looked up names that don't exist, mapped to the time at which
+   * the entry expires.
+   */
+  private final ConcurrentHashMap<String, Long> misses =
+      new ConcurrentHashMap<String, Long>();
+
+  /**
+   * The number of users added, see getVersion.
+   */
+  private final AtomicLong version = new AtomicLong();
+
+  /**
+   * The lifetime of an entry in the miss cache, in nanoseconds.
+   */
+  private final long missTtl;
+
+  /**
+   * The maximum number of entries in the miss cache.
+   */
+  private final int maxMisses;
+
+  /**
+   * Initializes a new instance of the UnknownUserCache class.
+   *
+   * @param capacity
+   *  The number of users the Bloom filter is dimensioned for.
+   * @param missTtlMillis
+   *  The lifetime of an entry in the miss cache, in milliseconds.
+   * @param maxMisses
+   *  The maximum number of entries in the miss cache.
+   * @throws IllegalArgumentException
+   *  The capacity parameter is less than 1, or the missTtlMillis parameter is
+   *  negative, or the maxMisses parameter is negative.
+   */
+  public UnknownUserCache(int capacity, long missTtlMillis, int maxMisses) {
+    if (missTtlMillis < 0) {
+      throw new IllegalArgumentException("missTtlMillis");
+    }
+    if (maxMisses < 0) {
+      throw new IllegalArgumentException("maxMisses");
+    }
+    this.names = new BloomFilter(capacity, 0.01);
+    this.missTtl = TimeUnit.MILLISECONDS.toNanos(missTtlMillis);
+    this.maxMisses = maxMisses;
+  }
+
+  /**
+   * Adds the specified username to the set of existing users.
+   *
+   * @param name
+   *  The name of the user.
+   */
+  public void addUser(String name) {
+    names.put(name);
+    version.incrementAndGet();
+    misses.remove(name);
+  }
+
+  /**
+   * Gets the number of users added so far. A miss is only recorded if no
+   * user has been added since the lookup began, so that a user created
+   * concurrently with the lookup isn't reported as unknown.
+   *
+   * @return
+   *  The version to pass to recordMiss.
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Notes that the specified user has been deleted.
+   *
+   * @param name
+   *  The name of the user.
+   */
+  public void removeUser(String name) {
+    recordMiss(name, version.get());
+  }
+
+  /**
+   * Records that a lookup for the specified username found no such user,
+   * unless a user has been added since the specified version was obtained.
+   *
+   * @param name
+   *  The name that was looked up.
+   * @param lookupVersion
+   *  The version obtained with getVersion before the lookup began.
+   */
+  public void recordMiss(String name, long lookupVersion) {
+    long now = System.nanoTime();
+    if (misses.size() >= maxMisses) {
+      sweep(now);
+      if (misses.size() >= maxMisses) {
+        return;
+      }
+    }
+    if (version.get() != lookupVersion) {
+      return;
+    }
+    Long expires = Long.valueOf(now + missTtl);
+    misses.put(name, expires);
+    // Undo the miss if a user was added after the check.
+    if (version.get() != lookupVersion) {
+      misses.remove(name, expires);
+    }
+  }
+
+  /**
+   * Determines whether the specified username is known not to exist.
+   *
+   * @param name
+   *  The name to look up.
+   * @return
+   *  true if the user definitely does not exist; false if it might exist.
+   */
+  public boolean isUnknown(String name) {
+    if (!names.mightContain(name)) {
+      return true;
+    }
+    Long expires = misses.get(name);
+    if (expires == null) {
+      return false;
+    }
+    if (expires - System.nanoTime() > 0) {
+      return true;
+    }
+    misses.remove(name, expires);
+    return false;
+  }
+
+  /**
+   * Removes all users and misses from the cache.
+   */
+  public void clear() {
+    version.incrementAndGet();
+    names.clear();
+    misses.clear();
+  }
+
+  /**
+   * Removes expired entries from the miss cache.
+   *
+   * @param now
+   *  The current time, in nanoseconds.
+   */
+  private void sweep(long now) {
+    Iterator<Map.Entry<String, Long>> it = misses.entrySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().getValue() - now <= 0) {
+        it.remove();
+      }
+    }
+  }
+}
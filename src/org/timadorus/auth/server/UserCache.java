@@ -0,0 +1,241 @@
+package org.timadorus.auth.server;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the data of recently authenticated users, including their password
+ * hashes, in memory, so that repeated logins don't query the database.
+ *
+ * Entries expire after a limited lifetime. Changes made through this server
+ * instance remove the affected entries right away; changes made by other
+ * instances sharing the database become visible once the entries expire.
+ *
+ * @author agent
+ */
+public class UserCache {
+  /**
+   * The cached users, mapped by name.
+   */
+  private final ConcurrentHashMap<String, CacheEntry> users =
+      new ConcurrentHashMap<String, CacheEntry>();
+
+  /**
+   * The number of removals, see getVersion.
+   */
+  private final AtomicLong version = new AtomicLong();
+
+  /**
+   * The lifetime of an entry, in nanoseconds.
+   */
+  private final long ttl;
+
+  /**
+   * The maximum number of entries.
+   */
+  private final int capacity;
+
+  /**
+   * Initializes a new instance of the UserCache class.
+   *
+   * @param capacity
+   *  The maximum number of users to cache.
+   * @param ttlMillis
+   *  The lifetime of an entry, in milliseconds.
+   * @throws IllegalArgumentException
+   *  The capacity parameter is negative, or the ttlMillis parameter is
+   *  negative.
+   */
+  public UserCache(int capacity, long ttlMillis) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("capacity");
+    }
+    if (ttlMillis < 0) {
+      throw new IllegalArgumentException("ttlMillis");
+    }
+    this.capacity = capacity;
+    this.ttl = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+  }
+
+  /**
+   * Gets the cached data of the specified user.
+   *
+   * @param name
+   *  The name of the user.
+   * @return
+   *  The user, or null if the user is not cached or the entry has expired.
+   */
+  public User get(String name) {
+    CacheEntry e = users.get(name);
+    if (e == null) {
+      return null;
+    }
+    long now = System.nanoTime();
+    if (e.expires - now <= 0) {
+      users.remove(name, e);
+      return null;
+    }
+    e.used = now;
+    return e.user;
+  }
+
+  /**
+   * Gets the number of removals so far. A user loaded from the database is
+   * only cached if no removal has happened since the load began, so that an
+   * update running concurrently with the load can't leave stale data behind.
+   *
+   * @return
+   *  The version to pass to put.
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Adds the specified user to the cache, unless the cache is full or an
+   * entry has been removed since the specified version was obtained.
+   *
+   * @param user
+   *  The user to cache.
+   * @param loadVersion
+   *  The version obtained with getVersion before the user was loaded.
+   */
+  public void put(User user, long loadVersion) {
+    long now = System.nanoTime();
+    if (users.size() >= capacity) {
+      sweep(now);
+      if (users.size() >= capacity) {
+        return;
+      }
+    }
+    CacheEntry e = new CacheEntry(user, now + ttl, now);
+    if (version.get() != loadVersion) {
+      return;
+    }
+    users.put(user.getName(), e);
+    // Undo the put if a removal slipped in after the check.
+    if (version.get() != loadVersion) {
+      users.remove(user.getName(), e);
+    }
+  }
+
+  /**
+   * Removes the specified user from the cache, e.g. because it has been
+   * modified or deleted.
+   *
+   * @param name
+   *  The name of the user.
+   */
+  public void remove(String name) {
+    version.incrementAndGet();
+    users.remove(name);
+  }
+
+  /**
+   * Removes all users from the cache.
+   */
+  public void clear() {
+    version.incrementAndGet();
+    users.clear();
+  }
+
+  /**
+   * Gets the number of cached users.
+   *
+   * @return
+   *  The number of cached users, including expired ones not yet removed.
+   */
+  public int size() {
+    return users.size();
+  }
+
+  /**
+   * Gets the names of the cached users, the most recently used first.
+   *
+   * @param max
+   *  The maximum number of names to return.
+   * @return
+   *  The names of the cached users.
+   */
+  public List<String> getRecentNames(int max) {
+    // Copy the times of use, which may change while sorting.
+    List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>();
+    for (Map.Entry<String, CacheEntry> e : users.entrySet()) {
+      entries.add(new AbstractMap.SimpleEntry<String, Long>(e.getKey(), e.getValue().used));
+    }
+    Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+      @Override
+      public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+        long d = b.getValue() - a.getValue();
+        return d < 0 ? -1 : (d > 0 ? 1 : 0);
+      }
+    });
+    List<String> names = new ArrayList<String>(Math.min(max, entries.size()));
+    for (Map.Entry<String, Long> e : entries) {
+      if (names.size() == max) {
+        break;
+      }
+      names.add(e.getKey());
+    }
+    return names;
+  }
+
+  /**
+   * Removes expired entries from the cache.
+   *
+   * @param now
+   *  The current time, in nanoseconds.
+   */
+  private void sweep(long now) {
+    Iterator<CacheEntry> it = users.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().expires - now <= 0) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * A cached user.
+   */
+  private static final class CacheEntry {
+    /**
+     * The data of the user.
+     */
+    private final User user;
+
+    /**
+     * The time at which the entry expires, in nanoseconds.
+     */
+    private final long expires;
+
+    /**
+     * The time at which the entry was last used, in nanoseconds.
+     */
+    private volatile long used;
+
+    /**
+     * Initializes a new instance of the CacheEntry class.
+     *
+     * @param user
+     *  The data of the user.
+     * @param expires
+     *  The time at which the entry expires.
+     * @param used
+     *  The time at which the entry was last used.
+     */
+    private CacheEntry(User user, long expires, long used) {
+      this.user = user;
+      this.expires = expires;
+      this.used = used;
+    }
+  }
+}
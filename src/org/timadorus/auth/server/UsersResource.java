@@ -1,6 +1,10 @@
 package org.timadorus.auth.server;
 
 import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
 import java.text.ParseException;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -8,8 +12,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.servlet.ServletConfig;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -19,11 +25,15 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
-import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 import org.timadorus.auth.util.Crypto;
-import org.timadorus.auth.util.Util;
+import org.timadorus.auth.util.Tracer;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -38,15 +48,31 @@ import com.google.gson.GsonBuilder;
 @Path("/users")
 public class UsersResource {
   /**
-   * The HTTP headers of the HTTP request.
+   * The encoding of the JSON-objects from which the entity-tags are computed.
    */
-  @Context HttpHeaders headers;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  
+  /**
+   * The security context of the HTTP request, as set up by the SecurityFilter.
+   */
+  @Context SecurityContext security;
   
   /**
    * The Servlet configuration.
    */
   @Context ServletConfig config;
   
+  /**
+   * The HTTP request, used to record the remote address in the audit log.
+   */
+  @Context HttpServletRequest httpServletRequest;
+  
+  /**
+   * The HTTP request, used to evaluate the preconditions of conditional
+   * GET requests.
+   */
+  @Context Request request;
+  
   /**
    * Gets the username of the user making the HTTP request.
    * 
@@ -54,9 +80,8 @@ public class UsersResource {
    *  The username of the user performing the HTTP request.
    */
   private String getUsername() {
-    // Get the username from HTTP request headers.
-    String auth = headers.getRequestHeader(HttpHeaders.AUTHORIZATION).get(0);
-    return Util.getBasicAccessUsername(auth);
+    // The principal has been verified and attached by the SecurityFilter.
+    return security.getUserPrincipal().getName();
   }
   
   /**
@@ -65,13 +90,11 @@ public class UsersResource {
    * @return
    *  true if the user performing the HTTP request is an administrator;
    *  Otherwise false.
-   * @throws Exception
-   *  An unexpected error occurred.
    */
-  private boolean isAdmin() throws Exception {
-// Disabled as per Lutz' request.
-//    return Database.isAdmin(getUsername());
-    return false;
+  private boolean isAdmin() {
+    // The role was read along with the password hash when the request was
+    // authenticated, so this doesn't require another database query.
+    return security.isUserInRole(AuthPrincipal.ROLE_ADMIN);
   }
   
   /**
@@ -100,29 +123,60 @@ public class UsersResource {
    * 
    * @param name
    *  The name of the user whose data will be returned.
+   * @param compact
+   *  An optional parameter which, if true, omits the fields that are only
+   *  returned to administrators, e.g. for clients on slow links.
    * @return
-   *  A JSON-object containing information about the requested user.
+   *  A JSON-object containing information about the requested user, or an
+   *  empty response with the status 304 (Not Modified) if it matches the
+   *  entity-tag of the request's 'If-None-Match' header.
    * @throws Exception 
    * @throws SecurityException
    *  The requestor is not allowed to request the resource.
    */
   @GET
   @Path("{name}")
-  public String getUser(@PathParam("name") String name) throws Exception {
+  public Response getUser(@PathParam("name") final String name,
+    @QueryParam("compact") boolean compact) throws Exception {
     // A user may only request information about his own account, unless he is
     // an administrator.
     assertAllowed(name);
-    // Fetch the user information.
-    User user = Database.getUser(name);
-    if (user == null) {
-      throw new IllegalStateException("The user '" + name + "' does not exist.");
-    }
-    List<Entity> ents = Database.listEntities(name);
+    // Fetch the user and the entities on one connection, so that they are
+    // consistent with each other.
+    final User[] user = new User[1];
+    List<Entity> ents = Database.inTransaction(new Transaction<List<Entity>>() {
+      @Override
+      public List<Entity> run() throws SQLException {
+        user[0] = Database.getUser(name);
+        if (user[0] == null) {
+          throw new IllegalStateException("The user '" + name + "' does not exist.");
+        }
+        return Database.listEntities(name);
+      }
+    });
+    return conditional(toJson(user[0], ents, !compact && isAdmin()));
+  }
+
+  /**
+   * Converts the specified user and entities into the JSON-object returned
+   * by the getUser method.
+   * 
+   * @param user
+   *  The user.
+   * @param ents
+   *  The entities of the user.
+   * @param privileged
+   *  true to include the fields that are only returned to administrators;
+   *  Otherwise false.
+   * @return
+   *  A JSON-object containing information about the user.
+   */
+  private String toJson(User user, List<Entity> ents, boolean privileged) {
     // Construct and return a proper JSON object.
     Map<String, Object> props = new HashMap<String, Object>();
     props.put("name", user.getName());
     // Make some fields visible only if the requestor is privileged.
-    if (isAdmin()) {
+    if (privileged) {
       props.put("id", user.getId());
       props.put("hash", user.getHash());
       props.put("admin", user.isAdmin());
@@ -156,6 +210,7 @@ public class UsersResource {
     // Only administrators may delete user accounts.
     assertAdmin();
     Database.deleteUser(name);
+    audit(AuditEvent.USER_DELETED, name);
   }
   
   /**
@@ -175,21 +230,77 @@ public class UsersResource {
    */
   @PUT
   @Path("{name}")
-  public void createUser(@PathParam("name") String name, String json)
+  public void createUser(@PathParam("name") final String name, String json)
       throws Exception {
     // Only administrators may create user accounts.
     assertAdmin();
+    final Map<String, Map<String, Object>> entities;
     try {
       @SuppressWarnings("unchecked")
       Map<String, Object> map = new Gson().fromJson(json, Map.class);
-      String password = (String) map.get("password");
-      boolean admin = map.get("admin") != null
+      final String password = (String) map.get("password");
+      final boolean admin = map.get("admin") != null
           ? ((boolean) map.get("admin")) : false;
-      int flags = map.get("flags") != null ? ((Double) map.get("flags")).intValue() : 0;
-      Database.createUser(name, password, admin, flags);
+      final int flags = map.get("flags") != null ? ((Double) map.get("flags")).intValue() : 0;
+      @SuppressWarnings("unchecked")
+      Map<String, Map<String, Object>> ents = map.get("entities") != null
+          ? (Map<String, Map<String, Object>>) map.get("entities")
+          : new HashMap<String, Map<String, Object>>();
+      entities = ents;
+      // Create the user along with its entities and their stats, all or
+      // nothing.
+      Database.inTransaction(new Transaction<Void>() {
+        @Override
+        public Void run() throws SQLException {
+          Database.createUser(name, password, admin, flags);
+          for (Map.Entry<String, Map<String, Object>> e : entities.entrySet()) {
+            createEntity(name, e.getKey(), e.getValue());
+          }
+          return null;
+        }
+      });
     } catch (Exception e) {
       throw new IllegalStateException(e.getMessage());
     }
+    audit(AuditEvent.USER_CREATED, name);
+    for (String entity : entities.keySet()) {
+      audit(AuditEvent.ENTITY_CREATED, name + "/" + entity);
+    }
+  }
+
+  /**
+   * Creates an entity as part of the creation of its user.
+   * 
+   * @param user
+   *  The name of the user.
+   * @param entity
+   *  The name of the entity.
+   * @param props
+   *  The attributes of the entity, i.e. 'flags' (integer) and 'stats'
+   *  (object), or null.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  private static void createEntity(String user, String entity, Map<String, Object> props)
+    throws SQLException {
+    int flags = 0;
+    Map<String, String> stats = new HashMap<String, String>();
+    if (props != null) {
+      if (props.get("flags") != null) {
+        flags = ((Double) props.get("flags")).intValue();
+      }
+      if (props.get("stats") != null) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = (Map<String, Object>) props.get("stats");
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+          stats.put(e.getKey(), String.valueOf(e.getValue()));
+        }
+      }
+    }
+    Database.createEntity(user, entity, flags);
+    if (!stats.isEmpty()) {
+      Database.setAttributes(user, entity, stats);
+    }
   }
   
   /**
@@ -235,6 +346,7 @@ public class UsersResource {
     } catch (Exception e) {
       throw new IllegalStateException(e.getMessage());
     }
+    audit(AuditEvent.USER_UPDATED, name);
   }
   
   /**
@@ -245,6 +357,9 @@ public class UsersResource {
    *  The name of the user whose entity will be returned.
    * @param entity
    *  The name of the entity to return information for.
+   * @param compact
+   *  An optional parameter which, if true, omits the fields that are only
+   *  returned to administrators.
    * @return
    *  A JSON-object containing information about the requested entity.
    * @throws SecurityException
@@ -257,7 +372,8 @@ public class UsersResource {
   @GET
   @Path("{user}/{entity}")
   public String getEntity(@PathParam("user") String user,
-    @PathParam("entity") String entity) throws Exception {
+    @PathParam("entity") String entity, @QueryParam("compact") boolean compact)
+    throws Exception {
     assertAllowed(user);
     // Fetch and return information on entity.
     Entity ent = Database.getEntity(user, entity);
@@ -265,7 +381,13 @@ public class UsersResource {
       throw new IllegalStateException("The entity '" + entity + "' does not exist.");
     }
     // Select one of the gameserver to redirect the client to.
-    InetSocketAddress endpoint = selectGameServer(user, entity);
+    int span = Tracer.start("selectGameServer");
+    InetSocketAddress endpoint;
+    try {
+      endpoint = selectGameServer(user, entity);
+    } finally {
+      Tracer.end(span);
+    }
     // Construct and return a proper JSON object.
     Map<String, Object> props = new HashMap<String, Object>();
     props.put("name", ent.getName());
@@ -276,12 +398,18 @@ public class UsersResource {
           Base64.encodeBase64String(Crypto.generateRandomKey().getEncoded());
       props.put("sessionKey", sessionKey);
     }
-    props.put("authToken", generateAuthToken(user, entity,
-                                             endpoint.getHostName(),
-                                             sessionKey));
+    span = Tracer.start("generateAuthToken");
+    try {
+      props.put("authToken", generateAuthToken(user, entity,
+                                               endpoint.getHostName(),
+                                               sessionKey));
+    } finally {
+      Tracer.end(span);
+    }
     props.put("gameServer", endpoint.getHostName() + ":" + endpoint.getPort());
+    audit(AuditEvent.TOKEN_ISSUED, user + "/" + entity);
     // Make some fields visible only if the requestor is privileged.
-    if (isAdmin()) {
+    if (!compact && isAdmin()) {
       props.put("id", ent.getId());
       props.put("lastLogin", ent.getLastLogin());
       props.put("flags", ent.getFlags());
@@ -310,6 +438,7 @@ public class UsersResource {
     // Only administrators may delete user accounts.
     assertAllowed(user);
     Database.deleteEntity(user, entity);
+    audit(AuditEvent.ENTITY_DELETED, user + "/" + entity);
   }
 
   /**
@@ -347,6 +476,7 @@ public class UsersResource {
     } catch (Exception e) {
       throw new IllegalStateException(e.getMessage());
     }
+    audit(AuditEvent.ENTITY_CREATED, user + "/" + entity);
   }
   
   /**
@@ -387,6 +517,7 @@ public class UsersResource {
     } catch (Exception e) {
       throw new IllegalStateException(e.getMessage());
     }
+    audit(AuditEvent.ENTITY_UPDATED, user + "/" + entity);
   }
 
   /**
@@ -398,7 +529,9 @@ public class UsersResource {
    * @param entity
    *  The name of the entity whose stats will be returned.
    * @return
-   *  A JSON-object containing the stats of the requested entity.
+   *  A JSON-object containing the stats of the requested entity, or an
+   *  empty response with the status 304 (Not Modified) if it matches the
+   *  entity-tag of the request's 'If-None-Match' header.
    * @throws SecurityException
    *  The requestor is not allowed to request the resource.
    * @throws IllegalStateException
@@ -408,12 +541,44 @@ public class UsersResource {
    */
   @GET
   @Path("{user}/{entity}/stats")
-  public String getStats(@PathParam("user") String user,
+  public Response getStats(@PathParam("user") String user,
     @PathParam("entity") String entity) throws Exception {
     assertAllowed(user);
-    // Fetch stats for entity and return as a JSON-object.
-    Map<String, String> attr = Database.getAttributes(user, entity);
-    return new Gson().toJson(attr);
+    // Fetch stats for entity and return as a JSON-object. The stats are
+    // sorted so that the same stats always yield the same entity-tag.
+    Map<String, String> attr = new TreeMap<String, String>(
+        Database.getAttributes(user, entity));
+    return conditional(new Gson().toJson(attr));
+  }
+  
+  /**
+   * Creates the response to a GET request from the specified JSON-object.
+   * The entity-tag of the response is a hash of the JSON-object, so that
+   * clients can revalidate their copy with an 'If-None-Match' header and
+   * the object is not sent again unless it has changed.
+   * 
+   * @param json
+   *  The JSON-object to return.
+   * @return
+   *  The response carrying the JSON-object and its entity-tag, or an empty
+   *  response with the status 304 (Not Modified) if the entity-tag matches
+   *  the request's 'If-None-Match' header.
+   */
+  private Response conditional(String json) {
+    EntityTag tag;
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      tag = new EntityTag(Hex.encodeHexString(
+          md.digest(json.getBytes(UTF8))));
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-1.
+      throw new IllegalStateException(e);
+    }
+    Response.ResponseBuilder builder = request.evaluatePreconditions(tag);
+    if (builder == null) {
+      builder = Response.ok(json);
+    }
+    return builder.tag(tag).build();
   }
   
   /**
@@ -444,6 +609,21 @@ public class UsersResource {
     }
   }
   
+  /**
+   * Records the specified event in the audit log, with the requestor as the
+   * actor.
+   * 
+   * @param event
+   *  The event to record.
+   * @param subject
+   *  The affected user or entity, as 'user/entity'.
+   */
+  private void audit(AuditEvent event, String subject) {
+    if (Audit.isEnabled()) {
+      Audit.log(event, getUsername(), subject, httpServletRequest.getRemoteAddr());
+    }
+  }
+  
   /**
    * Generates the auth-token for the specified entity.
    * 
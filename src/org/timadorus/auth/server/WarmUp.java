@@ -0,0 +1,186 @@
+package org.timadorus.auth.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.timadorus.auth.util.Crypto;
+
+import com.google.gson.Gson;
+
+/**
+ * Prepares a freshly started auth-server for traffic before it reports
+ * readiness: the code paths of the crypto and JSON libraries are exercised
+ * until the JIT has compiled them, and the users who are likely to log in
+ * first are loaded into the user cache.
+ *
+ * The users to preload are read from a snapshot of the user cache, which is
+ * written when the server shuts down, or, without a snapshot, determined by
+ * the time of their last login.
+ *
+ * @author agent
+ */
+final class WarmUp {
+  /**
+   * Logging facility.
+   */
+  private static final Logger LOG = Logger.getLogger(WarmUp.class.getName());
+
+  /**
+   * The password used for the synthetic calls.
+   */
+  private static final String PASSWORD = "warm-up";
+
+  /**
+   * The encoding of the snapshot file.
+   */
+  private static final String ENCODING = "UTF-8";
+
+  /**
+   * The snapshot file of the user cache, or null.
+   */
+  private static volatile File snapshotFile;
+
+  /**
+   * The maximum number of users written to the snapshot file.
+   */
+  private static volatile int snapshotUsers;
+
+  /**
+   * Make CheckStyle happy.
+   */
+  private WarmUp() {
+    // Make CheckStyle happy.
+  }
+
+  /**
+   * Runs the crypto and JSON code paths used by the requests the specified
+   * number of times.
+   *
+   * @param iterations
+   *  The number of synthetic calls of each code path.
+   * @throws Exception
+   *  A crypto provider could not be initialized.
+   */
+  static void exercise(int iterations) throws Exception {
+    String hash = Crypto.createHash(PASSWORD);
+    Gson gson = new Gson();
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("name", PASSWORD);
+    props.put("admin", Boolean.FALSE);
+    props.put("flags", Integer.valueOf(0));
+    for (int i = 0; i < Math.max(iterations, 1); i++) {
+      Crypto.validatePassword(PASSWORD, hash);
+      Crypto.aesDecrypt(Crypto.aesEncrypt(PASSWORD.getBytes(ENCODING), PASSWORD), PASSWORD);
+      gson.fromJson(gson.toJson(props), Map.class);
+    }
+  }
+
+  /**
+   * Loads the specified users and their entities, so that the users are in
+   * the user and credential caches and the pages of their rows in the cache
+   * of the database.
+   *
+   * @param names
+   *  The names of the users to load.
+   * @return
+   *  The number of users that were loaded.
+   * @throws SQLException
+   *  A database-related error occurred.
+   */
+  static int preload(List<String> names) throws SQLException {
+    int loaded = 0;
+    CredentialCache.Credentials credentials = new CredentialCache.Credentials();
+    for (String name : names) {
+      if (Database.getCredentials(name, credentials)) {
+        Database.listEntities(name);
+        loaded++;
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Sets the snapshot file of the user cache.
+   *
+   * @param file
+   *  The snapshot file, or null to disable snapshots.
+   * @param maxUsers
+   *  The maximum number of users written to the snapshot file.
+   */
+  static void setSnapshotFile(File file, int maxUsers) {
+    snapshotFile = file;
+    snapshotUsers = maxUsers;
+  }
+
+  /**
+   * Reads the names of the users from the snapshot file.
+   *
+   * @return
+   *  The names of the users, or null if there is no snapshot file.
+   * @throws IOException
+   *  The snapshot file could not be read.
+   */
+  static List<String> readSnapshot() throws IOException {
+    File file = snapshotFile;
+    if (file == null || !file.isFile()) {
+      return null;
+    }
+    List<String> names = new LinkedList<String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), ENCODING));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null && names.size() < snapshotUsers) {
+        if (line.length() > 0) {
+          names.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return names;
+  }
+
+  /**
+   * Writes the names of the most recently used users of the user cache to
+   * the snapshot file. The file is replaced atomically, so that a crash
+   * while writing leaves the previous snapshot intact.
+   */
+  static void writeSnapshot() {
+    File file = snapshotFile;
+    UserCache cache = Database.getUserCache();
+    if (file == null || cache == null) {
+      return;
+    }
+    File temp = new File(file.getPath() + ".tmp");
+    try {
+      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+          new FileOutputStream(temp), ENCODING));
+      try {
+        for (String name : cache.getRecentNames(snapshotUsers)) {
+          writer.write(name);
+          writer.newLine();
+        }
+      } finally {
+        writer.close();
+      }
+      if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+        throw new IOException("Could not rename '" + temp + "' to '" + file + "'");
+      }
+    } catch (IOException e) {
+      LOG.warning("Error writing the user cache snapshot: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,342 @@
+package org.timadorus.auth.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * A java.util.logging handler that hands log records to a background thread,
+ * which publishes them to the actual target handlers. Logging threads only
+ * enqueue the record; formatting the message and writing it happen on the
+ * background thread, in batches with one flush per batch.
+ *
+ * The handler is configured through the logging.properties file:
+ *
+ * <pre>
+ * org.timadorus.auth.util.AsyncHandler.targets    comma-separated handler classes
+ * org.timadorus.auth.util.AsyncHandler.capacity   queue capacity (8192)
+ * org.timadorus.auth.util.AsyncHandler.batchSize  records per batch (256)
+ * org.timadorus.auth.util.AsyncHandler.overflow   drop or block (drop)
+ * org.timadorus.auth.util.AsyncHandler.keepLevel  never dropped level (SEVERE)
+ * org.timadorus.auth.util.AsyncHandler.inferCaller  stack walk per record (false)
+ * org.timadorus.auth.util.AsyncHandler.level      handler level (ALL)
+ * </pre>
+ *
+ * If the queue is full, records are dropped and counted, unless the overflow
+ * policy is 'block' or the record's level is at least 'keepLevel', in which
+ * case the logging thread waits for space. The number of dropped records is
+ * reported to the targets once the queue has drained.
+ *
+ * Unless 'inferCaller' is enabled, the source class of a record is set to the
+ * name of its logger instead of walking the stack of the logging thread. Log
+ * calls should pass parameters instead of concatenating strings so that the
+ * message is only built if it is written.
+ *
+ * @author agent
+ */
+public class AsyncHandler extends Handler {
+  /**
+   * The total number of records dropped by all instances.
+   */
+  private static final AtomicLong TOTAL_DROPPED = new AtomicLong();
+
+  /**
+   * The queue of records waiting to be published.
+   */
+  private final BlockingQueue<LogRecord> queue;
+
+  /**
+   * The handlers records are published to.
+   */
+  private final List<Handler> targets;
+
+  /**
+   * The maximum number of records published before the targets are flushed.
+   */
+  private final int batchSize;
+
+  /**
+   * Determines whether logging threads wait for space if the queue is full.
+   */
+  private final boolean block;
+
+  /**
+   * Records at or above this level are never dropped.
+   */
+  private final Level keepLevel;
+
+  /**
+   * Determines whether the source of a record is determined from the stack
+   * of the logging thread.
+   */
+  private final boolean inferCaller;
+
+  /**
+   * The number of records dropped by this handler.
+   */
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * The thread publishing the records to the targets.
+   */
+  private final Thread writer;
+
+  /**
+   * Set when the handler is closed.
+   */
+  private volatile boolean closed;
+
+  /**
+   * Initializes a new instance of the AsyncHandler class from the settings
+   * of the LogManager.
+   */
+  public AsyncHandler() {
+    this(createTargets(getProperty("targets", "")),
+        Integer.parseInt(getProperty("capacity", "8192")),
+        Integer.parseInt(getProperty("batchSize", "256")),
+        "block".equalsIgnoreCase(getProperty("overflow", "drop")),
+        Level.parse(getProperty("keepLevel", "SEVERE")),
+        Boolean.parseBoolean(getProperty("inferCaller", "false")));
+    setLevel(Level.parse(getProperty("level", "ALL")));
+  }
+
+  /**
+   * Initializes a new instance of the AsyncHandler class.
+   *
+   * @param targets
+   *  The handlers to publish records to.
+   * @param capacity
+   *  The maximum number of records waiting to be published.
+   * @param batchSize
+   *  The maximum number of records published before the targets are flushed.
+   * @param block
+   *  true to make logging threads wait for space if the queue is full; false
+   *  to drop records below keepLevel.
+   * @param keepLevel
+   *  The level at or above which records are never dropped.
+   * @param inferCaller
+   *  true to determine the source class and method of each record from the
+   *  stack of the logging thread; false to use the name of the logger.
+   * @throws IllegalArgumentException
+   *  The targets parameter is null, or the capacity or batchSize parameter
+   *  is not positive, or the keepLevel parameter is null.
+   */
+  public AsyncHandler(List<Handler> targets, int capacity, int batchSize, boolean block,
+      Level keepLevel, boolean inferCaller) {
+    if (targets == null) {
+      throw new IllegalArgumentException("targets");
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity");
+    }
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("batchSize");
+    }
+    if (keepLevel == null) {
+      throw new IllegalArgumentException("keepLevel");
+    }
+    this.targets = new ArrayList<Handler>(targets);
+    this.queue = new ArrayBlockingQueue<LogRecord>(capacity);
+    this.batchSize = batchSize;
+    this.block = block;
+    this.keepLevel = keepLevel;
+    this.inferCaller = inferCaller;
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        write();
+      }
+    }, "async-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Gets the total number of records dropped by all AsyncHandler instances.
+   *
+   * @return
+   *  The number of dropped records.
+   */
+  public static long getTotalDropped() {
+    return TOTAL_DROPPED.get();
+  }
+
+  /**
+   * Gets the number of records dropped by this handler.
+   *
+   * @return
+   *  The number of dropped records.
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Gets the number of records waiting to be published.
+   *
+   * @return
+   *  The number of queued records.
+   */
+  public int getQueued() {
+    return queue.size();
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (closed || !isLoggable(record)) {
+      return;
+    }
+    if (inferCaller) {
+      // Walk the stack now, it would be the writer's stack later.
+      record.getSourceClassName();
+    } else {
+      record.setSourceClassName(record.getLoggerName());
+    }
+    if (queue.offer(record)) {
+      return;
+    }
+    if (block || record.getLevel().intValue() >= keepLevel.intValue()) {
+      try {
+        queue.put(record);
+        return;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    dropped.incrementAndGet();
+    TOTAL_DROPPED.incrementAndGet();
+  }
+
+  @Override
+  public void flush() {
+    // The writer thread flushes the targets after each batch.
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    writer.interrupt();
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Handler h : targets) {
+      h.close();
+    }
+  }
+
+  /**
+   * The loop of the writer thread, which publishes the queued records in
+   * batches until the handler is closed and the queue is empty.
+   */
+  private void write() {
+    List<LogRecord> batch = new ArrayList<LogRecord>(batchSize);
+    long reported = 0;
+    while (true) {
+      try {
+        LogRecord first = queue.poll(1, TimeUnit.SECONDS);
+        if (first != null) {
+          batch.add(first);
+          queue.drainTo(batch, batchSize - 1);
+        }
+      } catch (InterruptedException e) {
+        // Interrupted by close, drain the queue below.
+        queue.drainTo(batch);
+      }
+      for (LogRecord r : batch) {
+        publishToTargets(r);
+      }
+      boolean written = !batch.isEmpty();
+      batch.clear();
+      long d = dropped.get();
+      if (d != reported && queue.isEmpty()) {
+        LogRecord r = new LogRecord(Level.WARNING, "Dropped " + (d - reported)
+            + " log record(s) because the queue was full.");
+        r.setSourceClassName(AsyncHandler.class.getName());
+        publishToTargets(r);
+        reported = d;
+        written = true;
+      }
+      if (written) {
+        for (Handler h : targets) {
+          h.flush();
+        }
+      }
+      if (closed && queue.isEmpty()) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Publishes the specified record to all targets.
+   *
+   * @param record
+   *  The record to publish.
+   */
+  private void publishToTargets(LogRecord record) {
+    for (Handler h : targets) {
+      try {
+        h.publish(record);
+      } catch (RuntimeException e) {
+        reportError(null, e, ErrorManager.WRITE_FAILURE);
+      }
+    }
+  }
+
+  /**
+   * Gets a property of this handler from the LogManager.
+   *
+   * @param name
+   *  The name of the property, without the class name.
+   * @param defaultValue
+   *  The value to return if the property is not set.
+   * @return
+   *  The value of the property, or the default value.
+   */
+  private static String getProperty(String name, String defaultValue) {
+    String value = LogManager.getLogManager().getProperty(
+        AsyncHandler.class.getName() + "." + name);
+    return value != null ? value.trim() : defaultValue;
+  }
+
+  /**
+   * Instantiates the specified handler classes.
+   *
+   * @param classNames
+   *  The comma-separated class names of the handlers.
+   * @return
+   *  The handlers.
+   * @throws IllegalArgumentException
+   *  A handler could not be instantiated.
+   */
+  private static List<Handler> createTargets(String classNames) {
+    List<Handler> list = new ArrayList<Handler>();
+    for (String s : classNames.split(",")) {
+      String name = s.trim();
+      if (name.isEmpty()) {
+        continue;
+      }
+      try {
+        list.add((Handler) ClassLoader.getSystemClassLoader().loadClass(name)
+            .getDeclaredConstructor().newInstance());
+      } catch (Exception e) {
+        throw new IllegalArgumentException("Could not create the log handler '"
+            + name + "'.", e);
+      }
+    }
+    return list;
+  }
+}
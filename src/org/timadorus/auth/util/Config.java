@@ -3,8 +3,10 @@ package org.timadorus.auth.util;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.TreeMap;
 
 /**
  * Provides a convenient means for loading property files.
@@ -123,4 +125,29 @@ public final class Config {
     }
     return Integer.parseInt(value);
   }
+  
+  /**
+   * Gets all configuration values whose names start with the specified
+   * prefix.
+   * 
+   * @param prefix
+   *  The prefix of the names of the configuration values to retrieve.
+   * @return
+   *  A map of the matching configuration values, sorted by name. The names
+   *  include the prefix.
+   * @throws IllegalArgumentException
+   *  The prefix parameter is null.
+   */
+  public Map<String, String> getProperties(String prefix) {
+    if (prefix == null) {
+      throw new IllegalArgumentException("prefix");
+    }
+    Map<String, String> map = new TreeMap<String, String>();
+    for (String key : props.stringPropertyNames()) {
+      if (key.startsWith(prefix)) {
+        map.put(key, props.getProperty(key));
+      }
+    }
+    return map;
+  }
 }
@@ -85,6 +85,30 @@ public final class Crypto {
    */
   private static final int AES_PBKDF2_ITERATIONS = 1000;
 
+  /**
+   * The time spent hashing passwords.
+   */
+  private static final Histogram HASH_TIME = Metrics.histogram("auth_crypto_seconds",
+      "Duration of cryptographic operations.", "op", "hash");
+
+  /**
+   * The time spent validating passwords.
+   */
+  private static final Histogram VALIDATE_TIME = Metrics.histogram("auth_crypto_seconds",
+      "Duration of cryptographic operations.", "op", "validate");
+
+  /**
+   * The time spent encrypting data.
+   */
+  private static final Histogram ENCRYPT_TIME = Metrics.histogram("auth_crypto_seconds",
+      "Duration of cryptographic operations.", "op", "encrypt");
+
+  /**
+   * The time spent decrypting data.
+   */
+  private static final Histogram DECRYPT_TIME = Metrics.histogram("auth_crypto_seconds",
+      "Duration of cryptographic operations.", "op", "decrypt");
+
   /**
    * Make CheckStyle happy.
    */
@@ -122,6 +146,8 @@ public final class Crypto {
     if (password == null) {
       throw new IllegalArgumentException("password");
     }
+    long start = System.nanoTime();
+    int span = Tracer.start("crypto.hash");
     // Generate a random salt.
     SecureRandom random = new SecureRandom();
     byte[] salt = new byte[SALT_BYTE_SIZE];
@@ -133,6 +159,9 @@ public final class Crypto {
       return PBKDF2_ITERATIONS + ":" + toHex(salt) + ":" + toHex(hash);
     } catch (Exception e) {
       throw new RuntimeException(e);
+    } finally {
+      HASH_TIME.recordSince(start);
+      Tracer.end(span);
     }
   }
 
@@ -165,20 +194,56 @@ public final class Crypto {
    *     The password paramter is null, or the correctHash parameter is null.
    */
   public static boolean validatePassword(char[] password, String correctHash) {
+    if (correctHash == null) {
+      throw new IllegalArgumentException("correctHash");
+    }
     // Decode the hash into its parameters.
     String[] params = correctHash.split(":");
     int iterations = Integer.parseInt(params[ITERATION_INDEX]);
     byte[] salt = fromHex(params[SALT_INDEX]);
     byte[] hash = fromHex(params[PBKDF2_INDEX]);
+    return validatePassword(password, salt, iterations, hash);
+  }
+
+  /**
+   * Validates a password using the decoded parameters of a hash, so that
+   * hashes kept in binary form don't need to be formatted and parsed again.
+   * 
+   * @param password
+   *     The password to check.
+   * @param salt
+   *     The salt of the hash of the valid password.
+   * @param iterations
+   *     The iteration count of the hash of the valid password.
+   * @param correctHash
+   *     The hash of the valid password.
+   * @return
+   *     true if the password is correct; Otherwise false.
+   * @throws IllegalArgumentException
+   *     The password paramter is null, or the salt parameter is null, or the
+   *     correctHash parameter is null.
+   */
+  public static boolean validatePassword(char[] password, byte[] salt, int iterations,
+    byte[] correctHash) {
+    if (correctHash == null) {
+      throw new IllegalArgumentException("correctHash");
+    }
+    long start = System.nanoTime();
+    int span = Tracer.start("crypto.validate");
     // Compute the hash of the provided password, using the same salt,
     // iteration count, and hash length.
     try {
-      byte[] testHash = pbkdf2(password, salt, iterations, hash.length);
+      byte[] testHash = pbkdf2(password, salt, iterations, correctHash.length);
       // Compare the hashes in constant time. The password is correct if
       // both hashes match.
-      return slowEquals(hash, testHash);
+      return slowEquals(correctHash, testHash);
+    } catch (IllegalArgumentException e) {
+      throw e;
     } catch (Exception e) {
       throw new RuntimeException(e);
+    } finally {
+      VALIDATE_TIME.recordSince(start);
+      Tracer.end(span);
     }
   }
 
@@ -243,7 +308,8 @@ public final class Crypto {
   }
 
   /**
-   * Converts the specified string of hexadecimal characters into a byte array.
+   * Converts the specified string of hexadecimal characters into a byte array,
+   * e.g. the salt or hash part of a hash created by createHash.
    * 
    * @param hex
    *    The hex string to convert.
@@ -252,7 +318,7 @@ public final class Crypto {
    * @throws IllegalArgumentException
    *    The hex parameter is null.
    */
-  private static byte[] fromHex(String hex) {
+  public static byte[] fromHex(String hex) {
     if (hex == null) {
       throw new IllegalArgumentException("hex");
     }
@@ -309,33 +375,40 @@ public final class Crypto {
     if (password == null) {
       throw new IllegalArgumentException("password");
     }
-    // Generate a random salt.
-    SecureRandom random = new SecureRandom();
-    byte[] salt = new byte[AES_SALT_SIZE];
-    random.nextBytes(salt);
-    // Generate the secret-key for encryption.
-    byte[] keyBytes = pbkdf2(password.toCharArray(), salt, AES_PBKDF2_ITERATIONS,
-                         AES_KEY_SIZE);
-    SecretKey skey = new SecretKeySpec(keyBytes, "AES");
-    // Instantiate the crypto provider.
-    Cipher cipher = Cipher.getInstance(AES_TRANSFORMATION, "SunJCE");
-    cipher.init(Cipher.ENCRYPT_MODE, skey);
-    // Generate a random initialization vector.
-    IvParameterSpec spec = cipher.getParameters()
-        .getParameterSpec(IvParameterSpec.class);
-    byte[] iv = spec.getIV();
-    if (iv.length != AES_IV_SIZE) {
-      throw new IllegalStateException("Unexpected IV size " + iv.length
-                                      + ", expected " + AES_IV_SIZE + ".");
+    long start = System.nanoTime();
+    int span = Tracer.start("crypto.encrypt");
+    try {
+      // Generate a random salt.
+      SecureRandom random = new SecureRandom();
+      byte[] salt = new byte[AES_SALT_SIZE];
+      random.nextBytes(salt);
+      // Generate the secret-key for encryption.
+      byte[] keyBytes = pbkdf2(password.toCharArray(), salt, AES_PBKDF2_ITERATIONS,
+                           AES_KEY_SIZE);
+      SecretKey skey = new SecretKeySpec(keyBytes, "AES");
+      // Instantiate the crypto provider.
+      Cipher cipher = Cipher.getInstance(AES_TRANSFORMATION, "SunJCE");
+      cipher.init(Cipher.ENCRYPT_MODE, skey);
+      // Generate a random initialization vector.
+      IvParameterSpec spec = cipher.getParameters()
+          .getParameterSpec(IvParameterSpec.class);
+      byte[] iv = spec.getIV();
+      if (iv.length != AES_IV_SIZE) {
+        throw new IllegalStateException("Unexpected IV size " + iv.length
+                                        + ", expected " + AES_IV_SIZE + ".");
+      }
+      byte[] encrypted = cipher.doFinal(data);
+      // Prepend the IV and salt to the encrypted data.
+      byte[] ret = new byte[AES_SALT_SIZE + AES_IV_SIZE + encrypted.length];
+      System.arraycopy(salt, 0, ret, 0, AES_SALT_SIZE);
+      System.arraycopy(iv, 0, ret, AES_SALT_SIZE, AES_IV_SIZE);
+      System.arraycopy(encrypted, 0, ret, AES_SALT_SIZE + AES_IV_SIZE,
+                       encrypted.length);
+      return ret;
+    } finally {
+      ENCRYPT_TIME.recordSince(start);
+      Tracer.end(span);
     }
-    byte[] encrypted = cipher.doFinal(data);
-    // Prepend the IV and salt to the encrypted data.
-    byte[] ret = new byte[AES_SALT_SIZE + AES_IV_SIZE + encrypted.length];
-    System.arraycopy(salt, 0, ret, 0, AES_SALT_SIZE);
-    System.arraycopy(iv, 0, ret, AES_SALT_SIZE, AES_IV_SIZE);
-    System.arraycopy(encrypted, 0, ret, AES_SALT_SIZE + AES_IV_SIZE,
-                     encrypted.length);
-    return ret;
   }
   
   /**
@@ -358,22 +431,29 @@ public final class Crypto {
     if (password == null) {
       throw new IllegalArgumentException("password");
     }
-    // Extract the salt and IV.
-    byte[] salt = new byte[AES_SALT_SIZE];
-    byte[] iv = new byte[AES_IV_SIZE];
-    byte[] encrypted = new byte[data.length - AES_SALT_SIZE - AES_IV_SIZE];
-    System.arraycopy(data, 0, salt, 0, AES_SALT_SIZE);
-    System.arraycopy(data, AES_SALT_SIZE, iv, 0, AES_IV_SIZE);
-    System.arraycopy(data, AES_SALT_SIZE + AES_IV_SIZE, encrypted, 0,
-                     encrypted.length);
-    // Generate the secret-key for decryption.
-    byte[] keyBytes = pbkdf2(password.toCharArray(), salt, AES_PBKDF2_ITERATIONS,
-                         AES_KEY_SIZE);
-    SecretKey skey = new SecretKeySpec(keyBytes, "AES");
-    // Instantiate the crypto provider.
-    Cipher cipher = Cipher.getInstance(AES_TRANSFORMATION, "SunJCE");
-    cipher.init(Cipher.DECRYPT_MODE, skey, new IvParameterSpec(iv));
-    return cipher.doFinal(encrypted);
+    long start = System.nanoTime();
+    int span = Tracer.start("crypto.decrypt");
+    try {
+      // Extract the salt and IV.
+      byte[] salt = new byte[AES_SALT_SIZE];
+      byte[] iv = new byte[AES_IV_SIZE];
+      byte[] encrypted = new byte[data.length - AES_SALT_SIZE - AES_IV_SIZE];
+      System.arraycopy(data, 0, salt, 0, AES_SALT_SIZE);
+      System.arraycopy(data, AES_SALT_SIZE, iv, 0, AES_IV_SIZE);
+      System.arraycopy(data, AES_SALT_SIZE + AES_IV_SIZE, encrypted, 0,
+                       encrypted.length);
+      // Generate the secret-key for decryption.
+      byte[] keyBytes = pbkdf2(password.toCharArray(), salt, AES_PBKDF2_ITERATIONS,
+                           AES_KEY_SIZE);
+      SecretKey skey = new SecretKeySpec(keyBytes, "AES");
+      // Instantiate the crypto provider.
+      Cipher cipher = Cipher.getInstance(AES_TRANSFORMATION, "SunJCE");
+      cipher.init(Cipher.DECRYPT_MODE, skey, new IvParameterSpec(iv));
+      return cipher.doFinal(encrypted);
+    } finally {
+      DECRYPT_TIME.recordSince(start);
+      Tracer.end(span);
+    }
   }
   
   /**
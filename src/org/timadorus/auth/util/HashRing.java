@@ -0,0 +1,186 @@
+package org.timadorus.auth.util;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Maps keys such as usernames to nodes by consistent hashing: each node is
+ * placed on a ring at a number of pseudo-random points, and a key belongs to
+ * the node at the first point following the hash of the key. Adding or
+ * removing a node only moves the keys of the neighbouring points.
+ *
+ * The auth-servers and the clients build the ring from the same node names,
+ * so that they agree on the owner of each user.
+ *
+ * @author agent
+ */
+public class HashRing {
+  /**
+   * The default number of points per node.
+   */
+  public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+  /**
+   * The encoding of keys and node names.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The hashes of the points on the ring, in ascending order.
+   */
+  private final long[] points;
+
+  /**
+   * The node at each point.
+   */
+  private final String[] owners;
+
+  /**
+   * The number of distinct nodes.
+   */
+  private final int size;
+
+  /**
+   * Initializes a new instance of the HashRing class.
+   *
+   * @param nodes
+   *  The names of the nodes, e.g. 'host:port'.
+   * @param virtualNodes
+   *  The number of points per node; more points spread the keys more evenly.
+   * @throws IllegalArgumentException
+   *  The nodes parameter is null or empty, or the virtualNodes parameter is
+   *  less than 1.
+   */
+  public HashRing(Collection<String> nodes, int virtualNodes) {
+    if (nodes == null || nodes.isEmpty()) {
+      throw new IllegalArgumentException("nodes");
+    }
+    if (virtualNodes < 1) {
+      throw new IllegalArgumentException("virtualNodes");
+    }
+    Set<String> distinct = new LinkedHashSet<String>(nodes);
+    TreeMap<Long, String> ring = new TreeMap<Long, String>();
+    for (String node : distinct) {
+      for (int i = 0; i < virtualNodes; i++) {
+        long point = hash(node + "#" + i);
+        // On a collision, the smaller name wins regardless of the order in
+        // which the nodes were passed.
+        String other = ring.get(point);
+        if (other == null || node.compareTo(other) < 0) {
+          ring.put(point, node);
+        }
+      }
+    }
+    points = new long[ring.size()];
+    owners = new String[ring.size()];
+    int i = 0;
+    for (Map.Entry<Long, String> e : ring.entrySet()) {
+      points[i] = e.getKey();
+      owners[i] = e.getValue();
+      i++;
+    }
+    size = distinct.size();
+  }
+
+  /**
+   * Gets the node the specified key belongs to.
+   *
+   * @param key
+   *  The key.
+   * @return
+   *  The name of the node.
+   * @throws IllegalArgumentException
+   *  The key parameter is null.
+   */
+  public String getNode(String key) {
+    if (key == null) {
+      throw new IllegalArgumentException("key");
+    }
+    return owners[indexOf(hash(key))];
+  }
+
+  /**
+   * Gets the distinct nodes following the specified key on the ring, i.e.
+   * the owner of the key followed by the nodes that take over, in order,
+   * if the preceding ones are down.
+   *
+   * @param key
+   *  The key.
+   * @param count
+   *  The maximum number of nodes to return.
+   * @return
+   *  The names of the nodes, the owner first.
+   * @throws IllegalArgumentException
+   *  The key parameter is null.
+   */
+  public List<String> getNodes(String key, int count) {
+    if (key == null) {
+      throw new IllegalArgumentException("key");
+    }
+    int max = Math.min(count, size);
+    Set<String> nodes = new LinkedHashSet<String>();
+    int start = indexOf(hash(key));
+    for (int i = 0; i < owners.length && nodes.size() < max; i++) {
+      nodes.add(owners[(start + i) % owners.length]);
+    }
+    return new ArrayList<String>(nodes);
+  }
+
+  /**
+   * Gets the number of distinct nodes.
+   *
+   * @return
+   *  The number of nodes.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Finds the first point at or after the specified hash, wrapping around.
+   *
+   * @param hash
+   *  The hash of a key.
+   * @return
+   *  The index of the point.
+   */
+  private int indexOf(long hash) {
+    int i = Arrays.binarySearch(points, hash);
+    if (i < 0) {
+      i = -i - 1;
+    }
+    return i == points.length ? 0 : i;
+  }
+
+  /**
+   * Computes the position of the specified string on the ring from the
+   * first eight bytes of its MD5 digest, which is stable across platforms.
+   *
+   * @param s
+   *  The string.
+   * @return
+   *  The position on the ring.
+   */
+  private static long hash(String s) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("MD5").digest(s.getBytes(UTF8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    long h = 0;
+    for (int i = 0; i < 8; i++) {
+      h = (h << 8) | (digest[i] & 0xFF);
+    }
+    return h;
+  }
+}
@@ -0,0 +1,193 @@
+package org.timadorus.auth.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds with a bounded relative
+ * error, in the manner of HdrHistogram.
+ *
+ * Each power of two is divided into 16 linear sub-buckets, so that a
+ * recorded value is off by at most 1/16 of its magnitude while the whole
+ * range of longs fits into less than a thousand counters. Recording a value
+ * is a few shifts and an atomic increment.
+ *
+ * @author agent
+ */
+public class Histogram {
+  /**
+   * The number of bits used for the sub-buckets of a power of two.
+   */
+  private static final int SUB_BITS = 4;
+
+  /**
+   * The number of sub-buckets of a power of two.
+   */
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  /**
+   * The number of buckets.
+   */
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+  /**
+   * The number of values of each bucket.
+   */
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  /**
+   * The number of recorded values.
+   */
+  private final AtomicLong count = new AtomicLong();
+
+  /**
+   * The sum of the recorded values.
+   */
+  private final AtomicLong sum = new AtomicLong();
+
+  /**
+   * The largest recorded value.
+   */
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records the specified value.
+   *
+   * @param nanos
+   *  The value in nanoseconds. Negative values are recorded as 0.
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(bucketOf(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long m = max.get();
+    while (value > m && !max.compareAndSet(m, value)) {
+      m = max.get();
+    }
+  }
+
+  /**
+   * Records the time that has passed since the specified start time.
+   *
+   * @param startNanos
+   *  The start time as returned by System.nanoTime.
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Gets the number of recorded values.
+   *
+   * @return
+   *  The number of recorded values.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Gets the sum of the recorded values.
+   *
+   * @return
+   *  The sum in nanoseconds.
+   */
+  public long getSum() {
+    return sum.get();
+  }
+
+  /**
+   * Gets the largest recorded value.
+   *
+   * @return
+   *  The largest value in nanoseconds.
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Returns the value below which the specified fraction of the recorded
+   * values falls.
+   *
+   * @param quantile
+   *  The quantile, between 0 and 1.
+   * @return
+   *  The upper bound of the bucket containing the quantile in nanoseconds,
+   *  or 0 if no values have been recorded.
+   * @throws IllegalArgumentException
+   *  The quantile parameter is not between 0 and 1.
+   */
+  public long getQuantile(double quantile) {
+    if (quantile < 0 || quantile > 1) {
+      throw new IllegalArgumentException("quantile");
+    }
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Returns the bucket of the specified value.
+   *
+   * @param value
+   *  The non-negative value.
+   * @return
+   *  The index of the bucket.
+   */
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * Returns the largest value of the specified bucket.
+   *
+   * @param bucket
+   *  The index of the bucket.
+   * @return
+   *  The largest value of the bucket.
+   */
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    return lower + (1L << (exponent - SUB_BITS)) - 1;
+  }
+
+  /**
+   * Converts the specified duration to seconds.
+   *
+   * @param nanos
+   *  The duration in nanoseconds.
+   * @return
+   *  The duration in seconds.
+   */
+  public static double toSeconds(long nanos) {
+    return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+  }
+}
@@ -0,0 +1,366 @@
+package org.timadorus.auth.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A registry of the counters, gauges and latency histograms of the server.
+ *
+ * Metrics are identified by a name and an optional list of label/value
+ * pairs, as in the Prometheus data model. Looking up a metric involves a map
+ * lookup, so call sites on hot paths should keep the returned instance in a
+ * static field. Updating a metric is lock-free.
+ *
+ * @author agent
+ */
+public final class Metrics {
+  /**
+   * The name of the MBean the metrics are exposed through.
+   */
+  public static final String OBJECT_NAME = "org.timadorus.auth:type=Metrics";
+
+  /**
+   * The quantiles reported for histograms.
+   */
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  /**
+   * The suffixes of the quantiles in the values exposed through JMX.
+   */
+  private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+  /**
+   * The registered metric families, by name.
+   */
+  private static final ConcurrentMap<String, Family> FAMILIES =
+      new ConcurrentSkipListMap<String, Family>();
+
+  /**
+   * The type of a metric family.
+   */
+  private enum Type {
+    /**
+     * A monotonically increasing count.
+     */
+    COUNTER,
+
+    /**
+     * A value that can go up and down.
+     */
+    GAUGE,
+
+    /**
+     * A distribution of durations, reported as a Prometheus summary.
+     */
+    SUMMARY
+  }
+
+  /**
+   * A value that is read when the metrics are reported.
+   */
+  public interface Gauge {
+    /**
+     * Gets the current value of the gauge.
+     *
+     * @return
+     *  The current value.
+     */
+    double getValue();
+  }
+
+  /**
+   * Make CheckStyle happy.
+   */
+  private Metrics() {
+    // Make CheckStyle happy.
+  }
+
+  /**
+   * Returns the counter with the specified name and labels, creating it if
+   * it does not exist.
+   *
+   * @param name
+   *  The name of the counter, e.g. 'auth_logins_total'.
+   * @param help
+   *  A description of the counter.
+   * @param labels
+   *  Pairs of label names and values.
+   * @return
+   *  The counter.
+   * @throws IllegalArgumentException
+   *  The name parameter is null, or the labels parameter does not consist of
+   *  pairs, or the name is registered with a different type.
+   */
+  public static AtomicLong counter(String name, String help, String... labels) {
+    return (AtomicLong) family(name, help, Type.COUNTER).get(labels, new AtomicLong());
+  }
+
+  /**
+   * Returns the histogram with the specified name and labels, creating it if
+   * it does not exist.
+   *
+   * @param name
+   *  The name of the histogram, e.g. 'auth_request_seconds'.
+   * @param help
+   *  A description of the histogram.
+   * @param labels
+   *  Pairs of label names and values.
+   * @return
+   *  The histogram.
+   * @throws IllegalArgumentException
+   *  The name parameter is null, or the labels parameter does not consist of
+   *  pairs, or the name is registered with a different type.
+   */
+  public static Histogram histogram(String name, String help, String... labels) {
+    return (Histogram) family(name, help, Type.SUMMARY).get(labels, new Histogram());
+  }
+
+  /**
+   * Registers the specified gauge, replacing a gauge with the same name and
+   * labels.
+   *
+   * @param name
+   *  The name of the gauge, e.g. 'auth_pool_active_connections'.
+   * @param help
+   *  A description of the gauge.
+   * @param gauge
+   *  The gauge.
+   * @param labels
+   *  Pairs of label names and values.
+   * @throws IllegalArgumentException
+   *  The name parameter is null, or the gauge parameter is null, or the
+   *  labels parameter does not consist of pairs, or the name is registered
+   *  with a different type.
+   */
+  public static void gauge(String name, String help, Gauge gauge, String... labels) {
+    if (gauge == null) {
+      throw new IllegalArgumentException("gauge");
+    }
+    family(name, help, Type.GAUGE).metrics.put(labelsOf(labels), gauge);
+  }
+
+  /**
+   * Writes all metrics in the Prometheus text exposition format. Durations
+   * are reported in seconds.
+   *
+   * @param out
+   *  The builder to write to.
+   * @throws IllegalArgumentException
+   *  The out parameter is null.
+   */
+  public static void writePrometheus(StringBuilder out) {
+    if (out == null) {
+      throw new IllegalArgumentException("out");
+    }
+    for (Family f : FAMILIES.values()) {
+      out.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+      out.append("# TYPE ").append(f.name).append(' ')
+         .append(f.type.name().toLowerCase()).append('\n');
+      for (Map.Entry<String, Object> e : f.metrics.entrySet()) {
+        String labels = e.getKey();
+        Object m = e.getValue();
+        if (m instanceof Histogram) {
+          Histogram h = (Histogram) m;
+          for (double q : QUANTILES) {
+            out.append(f.name).append('{').append(labels)
+               .append(labels.isEmpty() ? "" : ",").append("quantile=\"").append(q)
+               .append("\"} ").append(Histogram.toSeconds(h.getQuantile(q))).append('\n');
+          }
+          String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+          out.append(f.name).append("_sum").append(suffix)
+             .append(Histogram.toSeconds(h.getSum())).append('\n');
+          out.append(f.name).append("_count").append(suffix).append(h.getCount()).append('\n');
+        } else {
+          out.append(f.name).append(labels.isEmpty() ? " " : "{" + labels + "} ")
+             .append(valueOf(m)).append('\n');
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the current values of all metrics as a flat map. Histograms are
+   * reported as their count and quantiles in seconds.
+   *
+   * @return
+   *  The values of the metrics, keyed by 'name{labels}' plus a suffix for
+   *  histograms.
+   */
+  public static Map<String, Number> getValues() {
+    Map<String, Number> values = new LinkedHashMap<String, Number>();
+    for (Family f : FAMILIES.values()) {
+      for (Map.Entry<String, Object> e : f.metrics.entrySet()) {
+        String key = e.getKey().isEmpty() ? f.name : f.name + "{" + e.getKey() + "}";
+        Object m = e.getValue();
+        if (m instanceof Histogram) {
+          Histogram h = (Histogram) m;
+          values.put(key + ".count", h.getCount());
+          for (int i = 0; i < QUANTILES.length; i++) {
+            values.put(key + "." + QUANTILE_NAMES[i],
+                Histogram.toSeconds(h.getQuantile(QUANTILES[i])));
+          }
+          values.put(key + ".max", Histogram.toSeconds(h.getMax()));
+        } else {
+          values.put(key, valueOf(m));
+        }
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Registers an MBean exposing the metrics with the platform MBean server,
+   * unless it has already been registered.
+   *
+   * @throws JMException
+   *  The MBean could not be registered.
+   */
+  public static void registerMBean() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(OBJECT_NAME);
+    if (!server.isRegistered(name)) {
+      server.registerMBean(new MetricsMBean(), name);
+    }
+  }
+
+  /**
+   * Returns the value of the specified counter or gauge.
+   *
+   * @param metric
+   *  The counter or gauge.
+   * @return
+   *  The current value.
+   */
+  private static Number valueOf(Object metric) {
+    if (metric instanceof Gauge) {
+      return ((Gauge) metric).getValue();
+    }
+    return ((AtomicLong) metric).get();
+  }
+
+  /**
+   * Returns the family with the specified name, creating it if it does not
+   * exist.
+   *
+   * @param name
+   *  The name of the family.
+   * @param help
+   *  A description of the family.
+   * @param type
+   *  The type of the family.
+   * @return
+   *  The family.
+   * @throws IllegalArgumentException
+   *  The name parameter is null, or the family exists with another type.
+   */
+  private static Family family(String name, String help, Type type) {
+    if (name == null) {
+      throw new IllegalArgumentException("name");
+    }
+    Family f = FAMILIES.get(name);
+    if (f == null) {
+      Family created = new Family(name, help != null ? help : name, type);
+      f = FAMILIES.putIfAbsent(name, created);
+      if (f == null) {
+        f = created;
+      }
+    }
+    if (f.type != type) {
+      throw new IllegalArgumentException("The metric '" + name + "' is a "
+          + f.type.name().toLowerCase() + ".");
+    }
+    return f;
+  }
+
+  /**
+   * Formats the specified label pairs as in the Prometheus text format.
+   *
+   * @param labels
+   *  Pairs of label names and values.
+   * @return
+   *  The formatted labels, e.g. 'method="getUser"', or an empty string.
+   * @throws IllegalArgumentException
+   *  The labels parameter does not consist of pairs.
+   */
+  private static String labelsOf(String[] labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("labels");
+    }
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        b.append(',');
+      }
+      b.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\")
+          .replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+    }
+    return b.toString();
+  }
+
+  /**
+   * The metrics sharing a name.
+   */
+  private static final class Family {
+    /**
+     * The name of the metrics.
+     */
+    private final String name;
+
+    /**
+     * A description of the metrics.
+     */
+    private final String help;
+
+    /**
+     * The type of the metrics.
+     */
+    private final Type type;
+
+    /**
+     * The metrics, keyed by their formatted labels.
+     */
+    private final ConcurrentMap<String, Object> metrics =
+        new ConcurrentSkipListMap<String, Object>();
+
+    /**
+     * Initializes a new instance of the Family class.
+     *
+     * @param name
+     *  The name of the metrics.
+     * @param help
+     *  A description of the metrics.
+     * @param type
+     *  The type of the metrics.
+     */
+    private Family(String name, String help, Type type) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+    }
+
+    /**
+     * Returns the metric with the specified labels, adding the specified
+     * metric if there is none.
+     *
+     * @param labels
+     *  Pairs of label names and values.
+     * @param metric
+     *  The metric to add if there is none.
+     * @return
+     *  The metric with the labels.
+     */
+    private Object get(String[] labels, Object metric) {
+      String key = labelsOf(labels);
+      Object existing = metrics.putIfAbsent(key, metric);
+      return existing != null ? existing : metric;
+    }
+  }
+}
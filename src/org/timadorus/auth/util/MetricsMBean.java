@@ -0,0 +1,73 @@
+package org.timadorus.auth.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the values of all registered metrics as read-only JMX attributes.
+ * The set of attributes grows as metrics are registered.
+ *
+ * @author agent
+ */
+class MetricsMBean implements DynamicMBean {
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    Number value = Metrics.getValues().get(attribute);
+    if (value == null) {
+      throw new AttributeNotFoundException(attribute);
+    }
+    return value;
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    Map<String, Number> values = Metrics.getValues();
+    AttributeList list = new AttributeList();
+    for (String name : attributes) {
+      Number value = values.get(name);
+      if (value != null) {
+        list.add(new Attribute(name, value));
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("The metrics are read-only.");
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature)
+      throws MBeanException, ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+    for (Map.Entry<String, Number> e : Metrics.getValues().entrySet()) {
+      attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+          e.getKey(), true, false, false));
+    }
+    return new MBeanInfo(getClass().getName(), "Metrics of the auth server.",
+        attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+        new MBeanOperationInfo[0], null);
+  }
+}
@@ -0,0 +1,275 @@
+package org.timadorus.auth.util;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records how the time of a request is split between its phases.
+ *
+ * A trace is started when a request enters the server and finished when the
+ * response has been written. In between, the code on the request's thread
+ * marks phases such as the password check or a database call as spans:
+ *
+ * <pre>
+ * int span = Tracer.start("crypto.validate");
+ * try {
+ *   ...
+ * } finally {
+ *   Tracer.end(span);
+ * }
+ * </pre>
+ *
+ * Spans may be nested. A finished trace is written to the logger
+ * 'org.timadorus.auth.trace' if the request was sampled, or if it took
+ * longer than the slow threshold. If neither sampling nor the threshold is
+ * enabled, start and end return after reading a volatile flag.
+ *
+ * @author agent
+ */
+public final class Tracer {
+  /**
+   * The logger finished traces are written to.
+   */
+  private static final Logger LOG = Logger.getLogger("org.timadorus.auth.trace");
+
+  /**
+   * The maximum number of spans of a trace; further spans are not recorded.
+   */
+  private static final int MAX_SPANS = 32;
+
+  /**
+   * The trace of the request being processed by the current thread.
+   */
+  private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<Trace>() {
+    @Override
+    protected Trace initialValue() {
+      return new Trace();
+    }
+  };
+
+  /**
+   * The random numbers for sampling, per thread.
+   */
+  private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+    @Override
+    protected Random initialValue() {
+      return new Random();
+    }
+  };
+
+  /**
+   * Determines whether requests are traced at all.
+   */
+  private static volatile boolean enabled;
+
+  /**
+   * The fraction of requests whose traces are written.
+   */
+  private static volatile double sampleRate;
+
+  /**
+   * The duration above which traces are always written, or 0.
+   */
+  private static volatile long slowNanos;
+
+  /**
+   * Make CheckStyle happy.
+   */
+  private Tracer() {
+    // Make CheckStyle happy.
+  }
+
+  /**
+   * Configures the tracer.
+   *
+   * @param rate
+   *  The fraction of requests whose traces are written, between 0 and 1.
+   * @param slowMillis
+   *  The duration in milliseconds above which the trace of a request is
+   *  always written, or 0 to only write sampled traces.
+   * @throws IllegalArgumentException
+   *  The rate parameter is not between 0 and 1, or the slowMillis parameter
+   *  is negative.
+   */
+  public static void configure(double rate, long slowMillis) {
+    if (rate < 0 || rate > 1) {
+      throw new IllegalArgumentException("rate");
+    }
+    if (slowMillis < 0) {
+      throw new IllegalArgumentException("slowMillis");
+    }
+    sampleRate = rate;
+    slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+    enabled = rate > 0 || slowMillis > 0;
+  }
+
+  /**
+   * Determines whether requests are traced.
+   *
+   * @return
+   *  true if tracing is enabled; Otherwise false.
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts the trace of a request on the current thread.
+   */
+  public static void begin() {
+    if (!enabled) {
+      return;
+    }
+    Trace t = CURRENT.get();
+    t.active = true;
+    t.sampled = sampleRate > 0 && RANDOM.get().nextDouble() < sampleRate;
+    t.count = 0;
+    t.depth = 0;
+    t.start = System.nanoTime();
+  }
+
+  /**
+   * Starts a span of the trace of the current thread.
+   *
+   * @param name
+   *  The name of the phase.
+   * @return
+   *  The handle of the span to pass to end, or -1 if no trace is active.
+   */
+  public static int start(String name) {
+    if (!enabled) {
+      return -1;
+    }
+    Trace t = CURRENT.get();
+    if (!t.active || t.count == MAX_SPANS) {
+      return -1;
+    }
+    int span = t.count++;
+    t.names[span] = name;
+    t.depths[span] = t.depth++;
+    t.ends[span] = 0;
+    t.starts[span] = System.nanoTime();
+    return span;
+  }
+
+  /**
+   * Ends the specified span.
+   *
+   * @param span
+   *  The handle returned by start.
+   */
+  public static void end(int span) {
+    if (span < 0) {
+      return;
+    }
+    Trace t = CURRENT.get();
+    if (t.active && span < t.count) {
+      t.ends[span] = System.nanoTime();
+      t.depth = t.depths[span];
+    }
+  }
+
+  /**
+   * Finishes the trace of the current thread and writes it, if the request
+   * was sampled or slow.
+   *
+   * @param request
+   *  A description of the request, e.g. 'GET /users/bob/hero'.
+   * @param status
+   *  The HTTP status of the response.
+   */
+  public static void finish(String request, int status) {
+    if (!enabled) {
+      return;
+    }
+    Trace t = CURRENT.get();
+    if (!t.active) {
+      return;
+    }
+    t.active = false;
+    long duration = System.nanoTime() - t.start;
+    boolean slow = slowNanos > 0 && duration >= slowNanos;
+    if (!(t.sampled || slow) || !LOG.isLoggable(Level.INFO)) {
+      return;
+    }
+    StringBuilder b = new StringBuilder();
+    b.append(request).append(' ').append(status).append(' ')
+     .append(slow ? "slow" : "sampled").append(" total=").append(millis(duration));
+    for (int i = 0; i < t.count; i++) {
+      b.append(' ');
+      for (int d = 0; d < t.depths[i]; d++) {
+        b.append('>');
+      }
+      b.append(t.names[i]).append('=');
+      b.append(t.ends[i] != 0 ? millis(t.ends[i] - t.starts[i]) : "?");
+      b.append('@').append(millis(t.starts[i] - t.start));
+    }
+    LOG.info(b.toString());
+  }
+
+  /**
+   * Formats the specified duration in milliseconds.
+   *
+   * @param nanos
+   *  The duration in nanoseconds.
+   * @return
+   *  The duration in milliseconds with three decimals.
+   */
+  private static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.3fms", nanos / 1e6);
+  }
+
+  /**
+   * The spans of the request being processed by a thread. The instance is
+   * reused for all requests of the thread.
+   */
+  private static final class Trace {
+    /**
+     * The names of the spans.
+     */
+    private final String[] names = new String[MAX_SPANS];
+
+    /**
+     * The nesting depths of the spans.
+     */
+    private final int[] depths = new int[MAX_SPANS];
+
+    /**
+     * The start times of the spans.
+     */
+    private final long[] starts = new long[MAX_SPANS];
+
+    /**
+     * The end times of the spans, or 0 if a span has not ended.
+     */
+    private final long[] ends = new long[MAX_SPANS];
+
+    /**
+     * The number of spans.
+     */
+    private int count;
+
+    /**
+     * The depth of the next span.
+     */
+    private int depth;
+
+    /**
+     * The start time of the request.
+     */
+    private long start;
+
+    /**
+     * Determines whether a request is being traced.
+     */
+    private boolean active;
+
+    /**
+     * Determines whether the trace is written regardless of its duration.
+     */
+    private boolean sampled;
+  }
+}
@@ -0,0 +1,192 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.timadorus.auth.server.AccountArchive;
+import org.timadorus.auth.server.Database;
+import org.timadorus.auth.server.H2Dialect;
+import org.timadorus.auth.server.JdbcAuthStore;
+import org.timadorus.auth.server.MemoryAuthStore;
+import org.timadorus.auth.util.Crypto;
+
+/**
+ * Contains unit-tests for the AccountArchive class. The accounts are
+ * exported from a MemoryAuthStore and imported into an H2 database.
+ *
+ * @author agent
+ */
+public class AccountArchiveTest {
+  /**
+   * The number of users of the exported store.
+   */
+  private static final int USERS = 25;
+
+  /**
+   * The number of accounts read or imported at once, so that the tests
+   * span several pages.
+   */
+  private static final int PAGE_SIZE = 10;
+
+  /**
+   * The archive file.
+   */
+  private File file;
+
+  /**
+   * The store the accounts are exported from.
+   */
+  private MemoryAuthStore source;
+
+  /**
+   * The store the accounts are imported into.
+   */
+  private JdbcAuthStore target;
+
+  /**
+   * Populates the store to export and creates an empty target store.
+   *
+   * @throws Exception
+   *  The stores could not be created.
+   */
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("accounts", ".bin");
+    file.delete();
+    source = new MemoryAuthStore();
+    source.createTables();
+    Map<String, String> users = new HashMap<String, String>();
+    for (int i = 0; i < USERS; i++) {
+      users.put("user" + i, "pw");
+    }
+    source.createUsers(users, false, 3);
+    source.createUser("admin", "secret", true, 0);
+    source.createEntity("user7", "hero", 1);
+    source.createEntity("user7", "mage", 2);
+    Map<String, String> attr = new HashMap<String, String>();
+    attr.put("level", "12");
+    attr.put("zone", "harbour");
+    source.setAttributes("user7", "mage", attr);
+    Database.setStore(source);
+    target = new JdbcAuthStore("org.h2.Driver", "jdbc:h2:mem:archivetest;DB_CLOSE_DELAY=-1",
+        null, new H2Dialect());
+    if (!target.tablesExist()) {
+      target.createTables();
+      target.migrateSchema();
+    }
+    target.truncate();
+  }
+
+  /**
+   * Deletes the archive and releases the target store.
+   *
+   * @throws Exception
+   *  The store could not be closed.
+   */
+  @After
+  public void tearDown() throws Exception {
+    file.delete();
+    target.close();
+  }
+
+  /**
+   * Ensures the accounts are exported and imported along with their
+   * password-hashes, entities and attributes, and that existing users are
+   * skipped when the import is repeated.
+   *
+   * @throws Exception
+   *  The accounts could not be exported or imported.
+   */
+  @Test
+  public void roundTrip() throws Exception {
+    assertEquals(USERS + 1, AccountArchive.export(file, PAGE_SIZE));
+    Database.setStore(target);
+    assertEquals(USERS + 1, AccountArchive.importArchive(file, PAGE_SIZE));
+    verify();
+    assertEquals(0, AccountArchive.importArchive(file, PAGE_SIZE));
+    assertEquals(USERS + 1, target.listUsers(null).size());
+  }
+
+  /**
+   * Ensures an export that was interrupted in the middle of a record is
+   * resumed after the last complete account, and an archive that is cut
+   * short is not taken as complete.
+   *
+   * @throws Exception
+   *  The accounts could not be exported or imported.
+   */
+  @Test
+  public void resumeExport() throws Exception {
+    AccountArchive.export(file, PAGE_SIZE);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(raf.length() / 2);
+    raf.close();
+    Database.setStore(target);
+    try {
+      AccountArchive.importArchive(file, PAGE_SIZE);
+      fail();
+    } catch (IOException e) {
+    }
+    int partial = target.listUsers(null).size();
+    assertTrue(partial > 0 && partial < USERS + 1);
+    Database.setStore(source);
+    long resumed = AccountArchive.export(file, PAGE_SIZE);
+    assertTrue(resumed > 0 && resumed < USERS + 1);
+    assertEquals(0, AccountArchive.export(file, PAGE_SIZE));
+    Database.setStore(target);
+    assertEquals(USERS + 1 - partial, AccountArchive.importArchive(file, PAGE_SIZE));
+    verify();
+  }
+
+  /**
+   * Ensures a record whose checksum doesn't match is rejected.
+   *
+   * @throws Exception
+   *  The accounts could not be exported.
+   */
+  @Test
+  public void corruptRecordIsRejected() throws Exception {
+    AccountArchive.export(file, PAGE_SIZE);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(raf.length() / 2);
+    int b = raf.read();
+    raf.seek(raf.length() / 2);
+    raf.write(b ^ 0xff);
+    raf.close();
+    Database.setStore(target);
+    try {
+      AccountArchive.importArchive(file, PAGE_SIZE);
+      fail();
+    } catch (IOException e) {
+    }
+    assertTrue(target.listUsers(null).size() < USERS + 1);
+  }
+
+  /**
+   * Ensures the target holds all accounts of the source.
+   *
+   * @throws Exception
+   *  The target could not be read.
+   */
+  private void verify() throws Exception {
+    assertEquals(USERS + 1, target.listUsers(null).size());
+    assertTrue(target.isAdmin("admin"));
+    assertTrue(Crypto.validatePassword("secret", target.getPassword("admin")));
+    assertEquals(3, target.getUser("user0").getFlags());
+    assertEquals(2, target.listEntities("user7").size());
+    assertEquals(2, target.getEntity("user7", "mage").getFlags());
+    assertEquals("12", target.getAttributes("user7", "mage").get("level"));
+    assertEquals("harbour", target.getAttributes("user7", "mage").get("zone"));
+    assertTrue(target.getAttributes("user7", "hero").isEmpty());
+  }
+}
@@ -0,0 +1,124 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.timadorus.auth.server.AuditEvent;
+import org.timadorus.auth.server.AuditLog;
+import org.timadorus.auth.server.AuditLogReader;
+import org.timadorus.auth.server.AuditRecord;
+
+/**
+ * Contains unit-tests for the AuditLog and AuditLogReader classes.
+ *
+ * @author agent
+ */
+public class AuditLogTest {
+  /**
+   * The directory holding the segment files.
+   */
+  private File dir;
+
+  /**
+   * Creates an empty directory for the audit log.
+   *
+   * @throws Exception
+   *  The directory could not be created.
+   */
+  @Before
+  public void setUp() throws Exception {
+    dir = File.createTempFile("audit-log", "");
+    dir.delete();
+  }
+
+  /**
+   * Deletes the directory of the audit log.
+   */
+  @After
+  public void tearDown() {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * Ensures written events can be read back and filtered.
+   *
+   * @throws Exception
+   *  The log could not be read or written.
+   */
+  @Test
+  public void writeAndFilter() throws Exception {
+    AuditLog log = new AuditLog(dir, 1024, 4, 64);
+    assertTrue(log.append(AuditEvent.LOGIN_SUCCESS, "bob", null, "10.0.0.1"));
+    assertTrue(log.append(AuditEvent.TOKEN_ISSUED, "bob", "bob/hero", "10.0.0.1"));
+    assertTrue(log.append(AuditEvent.LOGIN_FAILURE, "eve", null, "::1"));
+    assertTrue(log.append(AuditEvent.USER_DELETED, "admin", "bob", null));
+    log.close();
+
+    AuditLogReader reader = new AuditLogReader(dir);
+    List<AuditRecord> all = reader.find();
+    assertEquals(4, all.size());
+    assertEquals(AuditEvent.TOKEN_ISSUED, all.get(1).getEvent());
+    assertEquals("bob/hero", all.get(1).getSubject());
+    assertEquals(all.get(0).getSequence() + 1, all.get(1).getSequence());
+    assertEquals(InetAddress.getByName("::1"), all.get(2).getAddress());
+
+    reader.setUser("bob");
+    assertEquals(3, reader.find().size());
+    reader.setEvent(AuditEvent.LOGIN_SUCCESS);
+    assertEquals(1, reader.find().size());
+    reader.setUser(null);
+    reader.setEvent(null);
+    reader.setAddress(InetAddress.getByName("10.0.0.1"));
+    assertEquals(2, reader.find().size());
+  }
+
+  /**
+   * Ensures full segments are rotated, old segments are deleted and writing
+   * continues after the last record when the log is reopened.
+   *
+   * @throws Exception
+   *  The log could not be read or written.
+   */
+  @Test
+  public void rotateAndResume() throws Exception {
+    AuditLog log = new AuditLog(dir, 8, 3, 16);
+    for (int i = 0; i < 20; i++) {
+      while (!log.append(AuditEvent.LOGIN_SUCCESS, "user" + i, null, null)) {
+        Thread.sleep(1);
+      }
+    }
+    log.close();
+    // 20 records in segments of 8 records, all three segments are kept.
+    assertEquals(20, new AuditLogReader(dir).find().size());
+
+    log = new AuditLog(dir, 8, 3, 16);
+    for (int i = 20; i < 30; i++) {
+      while (!log.append(AuditEvent.LOGIN_SUCCESS, "user" + i, null, null)) {
+        Thread.sleep(1);
+      }
+    }
+    log.close();
+    // The third segment was filled up, the fourth was created and the first
+    // one deleted.
+    List<AuditRecord> records = new AuditLogReader(dir).find();
+    assertEquals(22, records.size());
+    assertEquals(3, dir.listFiles().length);
+    for (int i = 0; i < records.size(); i++) {
+      assertEquals("user" + (8 + i), records.get(i).getActor());
+      assertEquals(records.get(0).getSequence() + i, records.get(i).getSequence());
+    }
+  }
+}
@@ -0,0 +1,377 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.timadorus.auth.server.Account;
+import org.timadorus.auth.server.AuthStore;
+import org.timadorus.auth.server.DerbyDialect;
+import org.timadorus.auth.server.H2Dialect;
+import org.timadorus.auth.server.JdbcAuthStore;
+import org.timadorus.auth.server.MemoryAuthStore;
+import org.timadorus.auth.server.Transaction;
+import org.timadorus.auth.server.User;
+import org.timadorus.auth.util.Crypto;
+
+/**
+ * Contains unit-tests for the implementations of the AuthStore interface.
+ *
+ * Every test is run against in-memory Derby and H2 databases and against
+ * the MemoryAuthStore class.
+ *
+ * @author agent
+ */
+@RunWith(Parameterized.class)
+public class AuthStoreTest {
+  /**
+   * The name of the store under test.
+   */
+  private final String name;
+
+  /**
+   * The store under test.
+   */
+  private AuthStore store;
+
+  /**
+   * Initializes a new instance of the AuthStoreTest class.
+   *
+   * @param name
+   *  The name of the store to test.
+   */
+  public AuthStoreTest(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Returns the names of the stores to test.
+   *
+   * @return
+   *  The names of the stores to test.
+   */
+  @Parameters
+  public static Collection<Object[]> stores() {
+    return Arrays.asList(new Object[][] {{"derby"}, {"h2"}, {"h2-split"}, {"memory"}});
+  }
+
+  /**
+   * Creates an empty store.
+   *
+   * @throws Exception
+   *  The store could not be created.
+   */
+  @Before
+  public void setUp() throws Exception {
+    if ("derby".equals(name)) {
+      store = new JdbcAuthStore("org.apache.derby.jdbc.EmbeddedDriver",
+          "jdbc:derby:memory:authstoretest;create=true", "test_", new DerbyDialect());
+    } else if ("h2".equals(name)) {
+      store = new JdbcAuthStore("org.h2.Driver",
+          "jdbc:h2:mem:authstoretest;DB_CLOSE_DELAY=-1", "test_", new H2Dialect());
+    } else if ("h2-split".equals(name)) {
+      // Reads use a pool of their own on the same database.
+      String url = "jdbc:h2:mem:authstoretest;DB_CLOSE_DELAY=-1";
+      store = new JdbcAuthStore(JdbcAuthStore.createDataSource("org.h2.Driver", url, 2),
+          JdbcAuthStore.createDataSource("org.h2.Driver", url, 2), 0, "test_",
+          new H2Dialect());
+    } else {
+      store = new MemoryAuthStore();
+    }
+    if (!store.tablesExist()) {
+      assertTrue(store.createTables());
+      store.migrateSchema();
+    }
+    assertTrue(store.tablesExist());
+    store.truncate();
+  }
+
+  /**
+   * Releases the store.
+   *
+   * @throws Exception
+   *  The store could not be closed.
+   */
+  @After
+  public void tearDown() throws Exception {
+    store.close();
+  }
+
+  /**
+   * Ensures users can be created, updated and deleted.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void userLifecycle() throws Exception {
+    assertFalse(store.userExists("bob"));
+    assertNull(store.getUser("bob"));
+    store.createUser("bob", "secret", false, 3);
+    User bob = store.getUser("bob");
+    assertNotNull(bob);
+    assertEquals(3, bob.getFlags());
+    assertFalse(store.isAdmin("bob"));
+    assertTrue(Crypto.validatePassword("secret", store.getPassword("bob")));
+    try {
+      store.createUser("bob", "other", false, 0);
+      fail();
+    } catch (IllegalStateException e) {
+    }
+    store.updateUser("bob", "changed", Boolean.TRUE, null);
+    assertTrue(store.isAdmin("bob"));
+    assertEquals(3, store.getUser("bob").getFlags());
+    assertTrue(Crypto.validatePassword("changed", store.getPassword("bob")));
+    store.deleteUser("bob");
+    assertFalse(store.userExists("bob"));
+    try {
+      store.deleteUser("bob");
+      fail();
+    } catch (IllegalStateException e) {
+    }
+  }
+
+  /**
+   * Ensures concurrent attempts to create the same user succeed exactly
+   * once, and that conflicts and missing rows are reported as illegal
+   * states.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void conflictingWrites() throws Exception {
+    final int threads = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicInteger created = new AtomicInteger();
+    final AtomicInteger rejected = new AtomicInteger();
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            store.createUser("dave", "secret", false, 0);
+            created.incrementAndGet();
+          } catch (IllegalStateException e) {
+            rejected.incrementAndGet();
+          } catch (Exception e) {
+            // Counted as neither.
+          }
+        }
+      };
+      workers[i].start();
+    }
+    start.countDown();
+    for (Thread t : workers) {
+      t.join();
+    }
+    assertEquals(1, created.get());
+    assertEquals(threads - 1, rejected.get());
+    store.createEntity("dave", "rogue", 0);
+    store.createEntity("dave", "bard", 0);
+    try {
+      store.updateEntity("dave", "bard", "rogue", null);
+      fail();
+    } catch (IllegalStateException e) {
+    }
+    try {
+      store.createEntity("nobody", "rogue", 0);
+      fail();
+    } catch (IllegalStateException e) {
+    }
+    try {
+      store.updateUser("nobody", "secret", null, null);
+      fail();
+    } catch (IllegalStateException e) {
+    }
+    try {
+      store.deleteEntity("nobody", "rogue");
+      fail();
+    } catch (IllegalStateException e) {
+    }
+  }
+
+  /**
+   * Ensures users can be created in batches and listed with a filter.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void batchCreateAndList() throws Exception {
+    Map<String, String> users = new HashMap<String, String>();
+    for (int i = 0; i < 12; i++) {
+      users.put("player" + i, "pw" + i);
+    }
+    users.put("gm_1", "pw");
+    store.createUsers(users, false, 0);
+    assertEquals(13, store.listUsers(null).size());
+    assertEquals(new HashSet<String>(Arrays.asList("player1", "player10", "player11")),
+                 new HashSet<String>(store.listUsers("player1%")));
+    assertEquals(Arrays.asList("gm_1"), store.listUsers("gm__"));
+    // None of the users has logged in yet.
+    assertTrue(store.listRecentUsers(10).isEmpty());
+  }
+
+  /**
+   * Ensures entities can be created, renamed and deleted, and are deleted
+   * along with their user.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void entityLifecycle() throws Exception {
+    store.createUser("alice", "secret", false, 0);
+    store.createEntity("alice", "warrior", 1);
+    store.createEntity("alice", "mage", 2);
+    try {
+      store.createEntity("alice", "mage", 0);
+      fail();
+    } catch (IllegalStateException e) {
+    }
+    assertEquals(2, store.listEntities("alice").size());
+    store.updateEntity("alice", "mage", null, 5);
+    assertEquals(5, store.getEntity("alice", "mage").getFlags());
+    store.updateEntity("alice", "mage", "wizard", null);
+    assertFalse(store.entityExists("alice", "mage"));
+    assertEquals(5, store.getEntity("alice", "wizard").getFlags());
+    store.deleteEntity("alice", "warrior");
+    assertEquals(1, store.listEntities("alice").size());
+    try {
+      store.listEntities("nobody");
+      fail();
+    } catch (IllegalStateException e) {
+    }
+    store.deleteUser("alice");
+    store.createUser("alice", "secret", false, 0);
+    assertTrue(store.listEntities("alice").isEmpty());
+  }
+
+  /**
+   * Ensures setting attributes inserts new attributes and replaces the
+   * values of existing ones.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void upsertAttributes() throws Exception {
+    store.createUser("carol", "secret", false, 0);
+    store.createEntity("carol", "thief", 0);
+    assertTrue(store.getAttributes("carol", "thief").isEmpty());
+    Map<String, String> attr = new HashMap<String, String>();
+    attr.put("level", "1");
+    attr.put("zone", "harbour");
+    store.setAttributes("carol", "thief", attr);
+    attr.clear();
+    attr.put("level", "2");
+    attr.put("gold", "100");
+    store.setAttributes("carol", "thief", attr);
+    Map<String, String> expected = new HashMap<String, String>();
+    expected.put("level", "2");
+    expected.put("zone", "harbour");
+    expected.put("gold", "100");
+    assertEquals(expected, store.getAttributes("carol", "thief"));
+    try {
+      store.setAttributes("carol", "nobody", attr);
+      fail();
+    } catch (IllegalStateException e) {
+    }
+  }
+
+  /**
+   * Ensures calls that fail within a transaction don't undo the other calls
+   * of the transaction, as the batch resource relies on.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void failedCallsInTransaction() throws Exception {
+    store.createUser("erin", "secret", false, 0);
+    store.createEntity("erin", "old", 0);
+    store.inTransaction(new Transaction<Void>() {
+      @Override
+      public Void run() throws SQLException {
+        store.createEntity("erin", "hero", 0);
+        try {
+          store.createEntity("erin", "hero", 0);
+          fail();
+        } catch (IllegalStateException e) {
+        }
+        try {
+          store.deleteEntity("erin", "nobody");
+          fail();
+        } catch (SQLException e) {
+        }
+        store.updateEntity("erin", "hero", null, 7);
+        store.deleteEntity("erin", "old");
+        return null;
+      }
+    });
+    assertEquals(1, store.listEntities("erin").size());
+    assertEquals(7, store.getEntity("erin", "hero").getFlags());
+  }
+
+  /**
+   * Ensures the accounts are listed page by page in the order of the names,
+   * and are imported with their hashes, entities and attributes, skipping
+   * existing users.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void listAndImportAccounts() throws Exception {
+    store.createUser("bob", "secret", true, 1);
+    store.createUser("alice", "secret", false, 2);
+    store.createUser("carol", "secret", false, 3);
+    store.createEntity("bob", "hero", 4);
+    store.setAttributes("bob", "hero", Collections.singletonMap("level", "9"));
+    List<Account> page = store.listAccounts(null, 2);
+    assertEquals(2, page.size());
+    assertEquals("alice", page.get(0).getUser().getName());
+    Account bob = page.get(1);
+    assertEquals("bob", bob.getUser().getName());
+    assertEquals(1, bob.getEntities().size());
+    assertEquals("9", bob.getAttributes("hero").get("level"));
+    List<Account> accounts = new ArrayList<Account>(page);
+    page = store.listAccounts("bob", 2);
+    assertEquals(1, page.size());
+    accounts.addAll(page);
+    assertTrue(store.listAccounts("carol", 2).isEmpty());
+    store.truncate();
+    store.createUser("carol", "other", false, 0);
+    assertEquals(Arrays.asList("alice", "bob"), store.importAccounts(accounts));
+    assertTrue(Crypto.validatePassword("secret", store.getPassword("bob")));
+    assertTrue(store.isAdmin("bob"));
+    assertEquals(4, store.getEntity("bob", "hero").getFlags());
+    assertEquals("9", store.getAttributes("bob", "hero").get("level"));
+    assertTrue(Crypto.validatePassword("other", store.getPassword("carol")));
+    assertTrue(store.importAccounts(accounts).isEmpty());
+  }
+}
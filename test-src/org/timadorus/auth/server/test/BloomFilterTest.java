@@ -0,0 +1,48 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.timadorus.auth.server.BloomFilter;
+
+/**
+ * Contains unit-tests for the BloomFilter class.
+ *
+ * @author agent
+ */
+public class BloomFilterTest {
+  /**
+   * Ensures added strings are always reported and the false positive rate
+   * stays in the configured range.
+   */
+  @Test
+  public void noFalseNegatives() {
+    BloomFilter filter = new BloomFilter(10000, 0.01);
+    for (int i = 0; i < 10000; i++) {
+      filter.put("user" + i);
+    }
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(filter.mightContain("user" + i));
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (filter.mightContain("nobody" + i)) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < 300);
+  }
+
+  /**
+   * Ensures a cleared filter no longer reports previously added strings.
+   */
+  @Test
+  public void clear() {
+    BloomFilter filter = new BloomFilter(100, 0.01);
+    filter.put("admin");
+    assertTrue(filter.mightContain("admin"));
+    filter.clear();
+    assertFalse(filter.mightContain("admin"));
+  }
+}
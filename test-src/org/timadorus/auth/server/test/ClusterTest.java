@@ -0,0 +1,272 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.timadorus.auth.server.Cluster;
+
+/**
+ * Contains unit-tests for the Cluster class, with the nodes running on
+ * localhost.
+ *
+ * @author agent
+ */
+public class ClusterTest {
+  /**
+   * The secret shared by the nodes.
+   */
+  private static final byte[] SECRET = {1, 2, 3, 4};
+
+  /**
+   * The time to wait for a datagram, in milliseconds.
+   */
+  private static final long TIMEOUT = 5000;
+
+  /**
+   * The time to wait for a datagram that should not arrive, in milliseconds.
+   */
+  private static final long SILENCE = 200;
+
+  /**
+   * The loopback address.
+   */
+  private InetAddress localhost;
+
+  /**
+   * The nodes created by a test.
+   */
+  private List<Cluster> nodes = new ArrayList<Cluster>();
+
+  /**
+   * Looks up the loopback address.
+   *
+   * @throws Exception
+   *  The address could not be looked up.
+   */
+  @Before
+  public void setUp() throws Exception {
+    localhost = InetAddress.getByName("127.0.0.1");
+  }
+
+  /**
+   * Closes the nodes.
+   */
+  @After
+  public void tearDown() {
+    for (Cluster node : nodes) {
+      node.close();
+    }
+  }
+
+  /**
+   * Ensures the changes made on one node reach the other nodes.
+   *
+   * @throws Exception
+   *  An unexpected error occurred.
+   */
+  @Test
+  public void broadcast() throws Exception {
+    RecordingListener a = new RecordingListener();
+    RecordingListener b = new RecordingListener();
+    RecordingListener c = new RecordingListener();
+    Cluster nodeA = node(SECRET, a);
+    Cluster nodeB = node(SECRET, b);
+    Cluster nodeC = node(SECRET, c);
+    nodeA.addPeer(new InetSocketAddress(localhost, nodeB.getPort()));
+    nodeA.addPeer(new InetSocketAddress(localhost, nodeC.getPort()));
+    nodeA.usersChanged(Arrays.asList("bob"));
+    assertEquals("changed [bob]", b.take());
+    assertEquals("changed [bob]", c.take());
+    nodeA.usersDeleted(Arrays.asList("alice"));
+    nodeA.cleared();
+    assertEquals("deleted [alice]", b.take());
+    assertEquals("cleared", b.take());
+    assertNull(a.poll());
+  }
+
+  /**
+   * Ensures many names are split into several datagrams.
+   *
+   * @throws Exception
+   *  An unexpected error occurred.
+   */
+  @Test
+  public void largeBatch() throws Exception {
+    RecordingListener b = new RecordingListener();
+    Cluster nodeA = node(SECRET, new RecordingListener());
+    Cluster nodeB = node(SECRET, b);
+    nodeA.addPeer(new InetSocketAddress(localhost, nodeB.getPort()));
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++) {
+      names.add("player" + i);
+    }
+    nodeA.usersCreated(names);
+    int received = 0;
+    while (received < names.size()) {
+      assertNotNull(b.names.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+      received++;
+    }
+    assertEquals(names.size(), received);
+  }
+
+  /**
+   * Ensures datagrams signed with another secret are ignored.
+   *
+   * @throws Exception
+   *  An unexpected error occurred.
+   */
+  @Test
+  public void wrongSecret() throws Exception {
+    RecordingListener b = new RecordingListener();
+    Cluster nodeA = node(new byte[] {9, 9, 9}, new RecordingListener());
+    Cluster nodeB = node(SECRET, b);
+    nodeA.addPeer(new InetSocketAddress(localhost, nodeB.getPort()));
+    nodeA.usersChanged(Arrays.asList("bob"));
+    assertNull(b.poll());
+  }
+
+  /**
+   * Ensures a replayed datagram is applied only once, while datagrams that
+   * arrive out of order are still applied.
+   *
+   * @throws Exception
+   *  An unexpected error occurred.
+   */
+  @Test
+  public void replayAndReordering() throws Exception {
+    RecordingListener b = new RecordingListener();
+    Cluster nodeA = node(SECRET, new RecordingListener());
+    Cluster nodeB = node(SECRET, b);
+    DatagramSocket relay = new DatagramSocket(0, localhost);
+    try {
+      relay.setSoTimeout((int) TIMEOUT);
+      nodeA.addPeer(new InetSocketAddress(localhost, relay.getLocalPort()));
+      nodeA.usersChanged(Arrays.asList("first"));
+      nodeA.usersChanged(Arrays.asList("second"));
+      DatagramPacket first = receive(relay);
+      DatagramPacket second = receive(relay);
+      InetSocketAddress target = new InetSocketAddress(localhost, nodeB.getPort());
+      second.setSocketAddress(target);
+      first.setSocketAddress(target);
+      relay.send(second);
+      assertEquals("changed [second]", b.take());
+      relay.send(first);
+      assertEquals("changed [first]", b.take());
+      relay.send(first);
+      relay.send(second);
+      assertNull(b.poll());
+    } finally {
+      relay.close();
+    }
+  }
+
+  /**
+   * Creates a node bound to a free port on localhost.
+   *
+   * @param secret
+   *  The secret of the node.
+   * @param listener
+   *  The listener of the node.
+   * @return
+   *  The node.
+   * @throws Exception
+   *  The node could not be created.
+   */
+  private Cluster node(byte[] secret, Cluster.Listener listener) throws Exception {
+    Cluster node = new Cluster(localhost, 0, secret, listener);
+    nodes.add(node);
+    return node;
+  }
+
+  /**
+   * Receives a datagram into a new buffer.
+   *
+   * @param socket
+   *  The socket to receive from.
+   * @return
+   *  The datagram.
+   * @throws Exception
+   *  No datagram was received.
+   */
+  private static DatagramPacket receive(DatagramSocket socket) throws Exception {
+    DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+    socket.receive(packet);
+    return packet;
+  }
+
+  /**
+   * Records the calls of a node's listener.
+   */
+  private static final class RecordingListener implements Cluster.Listener {
+    /**
+     * The calls, in the order in which they were made.
+     */
+    private final BlockingQueue<String> calls = new LinkedBlockingQueue<String>();
+
+    /**
+     * The names of all created users.
+     */
+    private final BlockingQueue<String> names = new LinkedBlockingQueue<String>();
+
+    @Override
+    public void usersChanged(List<String> list) {
+      calls.add("changed " + list);
+    }
+
+    @Override
+    public void usersCreated(List<String> list) {
+      names.addAll(list);
+    }
+
+    @Override
+    public void usersDeleted(List<String> list) {
+      calls.add("deleted " + list);
+    }
+
+    @Override
+    public void cleared() {
+      calls.add("cleared");
+    }
+
+    /**
+     * Waits for the next call.
+     *
+     * @return
+     *  The next call.
+     * @throws InterruptedException
+     *  The thread was interrupted.
+     */
+    private String take() throws InterruptedException {
+      String call = calls.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+      assertNotNull(call);
+      return call;
+    }
+
+    /**
+     * Waits briefly for a call that should not be made.
+     *
+     * @return
+     *  The call, or null.
+     * @throws InterruptedException
+     *  The thread was interrupted.
+     */
+    private String poll() throws InterruptedException {
+      return calls.poll(SILENCE, TimeUnit.MILLISECONDS);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+import org.timadorus.auth.server.CompressionFilter;
+
+/**
+ * Contains unit-tests for the CompressionFilter class.
+ *
+ * @author agent
+ */
+public class CompressionFilterTest {
+  /**
+   * Ensures gzip is preferred, and codings refused with a quality of zero
+   * or not listed are not chosen.
+   */
+  @Test
+  public void negotiateEncoding() {
+    assertNull(CompressionFilter.negotiate(null));
+    assertNull(CompressionFilter.negotiate("identity"));
+    assertEquals("gzip", CompressionFilter.negotiate("gzip, deflate"));
+    assertEquals("gzip", CompressionFilter.negotiate("deflate, GZIP;q=0.5"));
+    assertEquals("deflate", CompressionFilter.negotiate("gzip;q=0, deflate"));
+    assertEquals("gzip", CompressionFilter.negotiate("*"));
+    assertEquals("deflate", CompressionFilter.negotiate("gzip;q=0, *"));
+    assertNull(CompressionFilter.negotiate("gzip;q=0, deflate;q=0.000"));
+  }
+
+  /**
+   * Ensures data compressed with either encoding can be decompressed by the
+   * corresponding JDK streams, as the Authenticator does.
+   *
+   * @throws Exception
+   *  The data could not be compressed or decompressed.
+   */
+  @Test
+  public void encodeAndDecode() throws Exception {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < 500; i++) {
+      json.append("\"player").append(i).append("\",");
+    }
+    byte[] data = json.append("\"gm\"]").toString().getBytes("UTF-8");
+    byte[] gzip = CompressionFilter.encode(data, "gzip", 9);
+    assertTrue(gzip.length < data.length / 2);
+    assertArrayEquals(data, readFully(new GZIPInputStream(new ByteArrayInputStream(gzip))));
+    byte[] deflate = CompressionFilter.encode(data, "deflate", 1);
+    assertTrue(deflate.length < data.length / 2);
+    assertArrayEquals(data,
+        readFully(new InflaterInputStream(new ByteArrayInputStream(deflate))));
+  }
+
+  /**
+   * Ensures invalid settings are rejected.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectInvalidLevel() {
+    CompressionFilter.configure(CompressionFilter.DEFAULT_THRESHOLD, 10);
+  }
+
+  /**
+   * Reads the specified stream to its end.
+   *
+   * @param in
+   *  The stream to read.
+   * @return
+   *  The bytes read.
+   * @throws IOException
+   *  The stream could not be read.
+   */
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      out.write(buffer, 0, n);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,130 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.timadorus.auth.server.CredentialCache;
+import org.timadorus.auth.server.User;
+import org.timadorus.auth.util.Crypto;
+
+/**
+ * Contains unit-tests for the CredentialCache class.
+ *
+ * @author agent
+ */
+public class CredentialCacheTest {
+  /**
+   * The password hash of the test users.
+   */
+  private static final String HASH = Crypto.createHash("secret");
+
+  /**
+   * Ensures cached credentials are returned until they are removed, and
+   * verify against the password they were created from.
+   */
+  @Test
+  public void putGetRemove() {
+    CredentialCache cache = new CredentialCache(10, 60000);
+    CredentialCache.Credentials c = new CredentialCache.Credentials();
+    assertFalse(cache.get("bob", c));
+    cache.put(new User(7, "bob", HASH, true, null, 3), cache.getVersion());
+    assertTrue(cache.get("bob", c));
+    assertEquals(7, c.getId());
+    assertEquals(3, c.getFlags());
+    assertTrue(c.isAdmin());
+    assertTrue(Crypto.validatePassword("secret".toCharArray(), c.getSalt(),
+        c.getIterations(), c.getHash()));
+    assertFalse(Crypto.validatePassword("wrong".toCharArray(), c.getSalt(),
+        c.getIterations(), c.getHash()));
+    assertFalse(cache.get("bo", c));
+    cache.remove("bob");
+    assertFalse(cache.get("bob", c));
+    cache.put(new User(7, "bob", HASH, true, null, 3), cache.getVersion());
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertFalse(cache.get("bob", c));
+  }
+
+  /**
+   * Ensures entries expire after their lifetime.
+   *
+   * @throws InterruptedException
+   *  The thread was interrupted.
+   */
+  @Test
+  public void expiry() throws InterruptedException {
+    CredentialCache cache = new CredentialCache(10, 1);
+    cache.put(new User(1, "bob", HASH, false, null, 0), cache.getVersion());
+    Thread.sleep(5);
+    assertFalse(cache.get("bob", new CredentialCache.Credentials()));
+  }
+
+  /**
+   * Ensures credentials loaded before a concurrent removal are not cached.
+   */
+  @Test
+  public void staleLoadIsDiscarded() {
+    CredentialCache cache = new CredentialCache(10, 60000);
+    long version = cache.getVersion();
+    cache.remove("bob");
+    cache.put(new User(1, "bob", HASH, false, null, 0), version);
+    assertFalse(cache.get("bob", new CredentialCache.Credentials()));
+  }
+
+  /**
+   * Ensures the number of entries is bounded, entries are replaced in place
+   * and users that don't fit into a slot are not cached.
+   */
+  @Test
+  public void capacity() {
+    CredentialCache cache = new CredentialCache(1600, 60000);
+    for (int i = 0; i < 10000; i++) {
+      cache.put(new User(i, "user" + i, HASH, false, null, 0), cache.getVersion());
+      cache.put(new User(i, "user" + i, HASH, false, null, 1), cache.getVersion());
+    }
+    assertTrue(cache.size() <= 1600);
+    CredentialCache.Credentials c = new CredentialCache.Credentials();
+    assertTrue(cache.get("user0", c));
+    assertEquals(1, c.getFlags());
+    String longName = new String(new char[CredentialCache.MAX_NAME_LENGTH + 1]).replace('\0', 'x');
+    cache.put(new User(1, longName, HASH, false, null, 0), cache.getVersion());
+    assertFalse(cache.get(longName, c));
+  }
+
+  /**
+   * Ensures readers never see the credentials of one user mixed with those
+   * of another while the entry is being replaced.
+   *
+   * @throws InterruptedException
+   *  The thread was interrupted.
+   */
+  @Test
+  public void concurrentReadsAreConsistent() throws InterruptedException {
+    final CredentialCache cache = new CredentialCache(100, 60000);
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicInteger torn = new AtomicInteger();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        CredentialCache.Credentials c = new CredentialCache.Credentials();
+        while (!done.get()) {
+          if (cache.get("bob", c) && c.getId() != c.getFlags()) {
+            torn.incrementAndGet();
+          }
+        }
+      }
+    };
+    reader.start();
+    for (int i = 0; i < 200000; i++) {
+      cache.put(new User(i, "bob", HASH, false, null, i), cache.getVersion());
+    }
+    done.set(true);
+    reader.join();
+    assertEquals(0, torn.get());
+  }
+}
@@ -0,0 +1,140 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.timadorus.auth.server.Database;
+import org.timadorus.auth.server.H2Dialect;
+import org.timadorus.auth.server.JdbcAuthStore;
+import org.timadorus.auth.server.Transaction;
+import org.timadorus.auth.server.UnknownUserCache;
+import org.timadorus.auth.server.UserCache;
+
+/**
+ * Contains unit-tests for the caches of the Database class in the presence
+ * of transactions.
+ *
+ * @author agent
+ */
+public class DatabaseTest {
+  /**
+   * The store the Database class delegates to.
+   */
+  private JdbcAuthStore store;
+
+  /**
+   * Creates the tables, a user and the caches.
+   *
+   * @throws Exception
+   *  The database could not be created.
+   */
+  @Before
+  public void setUp() throws Exception {
+    store = new JdbcAuthStore("org.h2.Driver", "jdbc:h2:mem:database;DB_CLOSE_DELAY=-1",
+        null, new H2Dialect());
+    if (!store.tablesExist()) {
+      store.createTables();
+    }
+    store.truncate();
+    Database.setStore(store);
+    Database.createUser("bob", "secret", false, 0);
+    Database.enableUserCache(new UserCache(100, 60000));
+    Database.enableUnknownUserCache(new UnknownUserCache(100, 60000, 100));
+  }
+
+  /**
+   * Disables the caches and releases the store.
+   *
+   * @throws Exception
+   *  The store could not be closed.
+   */
+  @After
+  public void tearDown() throws Exception {
+    Database.enableUserCache(null);
+    Database.enableUnknownUserCache(null);
+    store.close();
+  }
+
+  /**
+   * Ensures a user read by another thread while an update of the user is
+   * not yet committed doesn't stay cached once the update is committed.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void readDuringUncommittedUpdate() throws Exception {
+    final CountDownLatch updated = new CountDownLatch(1);
+    final CountDownLatch read = new CountDownLatch(1);
+    final AtomicReference<Exception> error = new AtomicReference<Exception>();
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Database.inTransaction(new Transaction<Void>() {
+            @Override
+            public Void run() throws SQLException {
+              Database.updateUser("bob", null, true, null);
+              updated.countDown();
+              try {
+                read.await(10, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+              }
+              return null;
+            }
+          });
+        } catch (Exception e) {
+          error.set(e);
+        } finally {
+          updated.countDown();
+        }
+      }
+    };
+    writer.start();
+    assertTrue(updated.await(10, TimeUnit.SECONDS));
+    // Reads the committed row, which the update is about to replace.
+    assertFalse(Database.getUser("bob").isAdmin());
+    read.countDown();
+    writer.join();
+    if (error.get() != null) {
+      throw error.get();
+    }
+    assertTrue(Database.getUser("bob").isAdmin());
+  }
+
+  /**
+   * Ensures a user deleted by a transaction that is rolled back is not
+   * reported as unknown.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void rolledBackDelete() throws Exception {
+    try {
+      Database.inTransaction(new Transaction<Void>() {
+        @Override
+        public Void run() throws SQLException {
+          Database.deleteUser("bob");
+          throw new IllegalStateException("rollback");
+        }
+      });
+      fail();
+    } catch (IllegalStateException e) {
+      // The deletion is rolled back.
+    }
+    assertFalse(Database.isUnknownUser("bob"));
+    assertNotNull(Database.getUser("bob"));
+  }
+}
@@ -0,0 +1,48 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.timadorus.auth.server.IntObjectMap;
+
+/**
+ * Contains unit-tests for the IntObjectMap class.
+ *
+ * @author agent
+ */
+public class IntObjectMapTest {
+  /**
+   * Ensures the map behaves like a HashMap under a random mix of puts and
+   * removes, including the rebuilds of its table.
+   */
+  @Test
+  public void matchesHashMap() {
+    IntObjectMap<String> map = new IntObjectMap<String>();
+    Map<Integer, String> expected = new HashMap<Integer, String>();
+    Random random = new Random(42);
+    for (int i = 0; i < 100000; i++) {
+      int key = 1 + random.nextInt(5000);
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key), map.remove(key));
+      } else {
+        String value = "v" + i;
+        assertEquals(expected.put(key, value), map.put(key, value));
+      }
+    }
+    assertEquals(expected.size(), map.size());
+    assertEquals(expected.size(), map.values().size());
+    for (int key = 1; key <= 5000; key++) {
+      assertEquals(expected.get(key), map.get(key));
+    }
+    assertNull(map.get(0));
+    assertNull(map.get(-1));
+    map.clear();
+    assertEquals(0, map.size());
+    assertNull(map.get(1));
+  }
+}
@@ -0,0 +1,171 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.timadorus.auth.server.H2Dialect;
+import org.timadorus.auth.server.JdbcAuthStore;
+import org.timadorus.auth.server.Transaction;
+
+/**
+ * Contains unit-tests for the read/write split and the transactions of the
+ * JdbcAuthStore class. The read replica is simulated by a second database
+ * that never receives the writes, so the tests can tell where each read
+ * went.
+ *
+ * @author agent
+ */
+public class JdbcAuthStoreTest {
+  /**
+   * The replica lag of the store under test, in milliseconds.
+   */
+  private static final long LAG = 200;
+
+  /**
+   * The store under test.
+   */
+  private JdbcAuthStore store;
+
+  /**
+   * A store on the simulated replica.
+   */
+  private JdbcAuthStore replica;
+
+  /**
+   * Creates the primary and the replica.
+   *
+   * @throws Exception
+   *  The databases could not be created.
+   */
+  @Before
+  public void setUp() throws Exception {
+    String primaryUrl = "jdbc:h2:mem:primary;DB_CLOSE_DELAY=-1";
+    String replicaUrl = "jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1";
+    replica = new JdbcAuthStore("org.h2.Driver", replicaUrl, null, new H2Dialect());
+    store = new JdbcAuthStore(JdbcAuthStore.createDataSource("org.h2.Driver", primaryUrl, 2),
+        JdbcAuthStore.createDataSource("org.h2.Driver", replicaUrl, 2), LAG, null,
+        new H2Dialect());
+    for (JdbcAuthStore s : new JdbcAuthStore[] {store, replica}) {
+      if (!s.tablesExist()) {
+        s.createTables();
+        s.migrateSchema();
+      }
+      s.truncate();
+    }
+    // Let the truncation become visible on the replica.
+    Thread.sleep(LAG + 50);
+  }
+
+  /**
+   * Releases the stores.
+   *
+   * @throws Exception
+   *  The stores could not be closed.
+   */
+  @After
+  public void tearDown() throws Exception {
+    store.close();
+    replica.close();
+  }
+
+  /**
+   * Ensures a user's reads see the user's own writes until the writes are
+   * visible on the replica, and go to the replica afterwards.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void readYourWrites() throws Exception {
+    store.createUser("bob", "secret", false, 0);
+    store.createEntity("bob", "hero", 0);
+    assertNotNull(store.getUser("bob"));
+    assertEquals(1, store.listEntities("bob").size());
+    assertEquals(1, store.listUsers(null).size());
+    Thread.sleep(LAG + 50);
+    // The simulated replica never received the writes.
+    assertNull(store.getUser("bob"));
+    assertFalse(store.userExists("bob"));
+    assertTrue(store.listUsers(null).isEmpty());
+  }
+
+  /**
+   * Ensures writes of one user don't send the reads of other users to the
+   * primary.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void otherUsersReadFromReplica() throws Exception {
+    replica.createUser("alice", "secret", false, 0);
+    store.createUser("bob", "secret", false, 0);
+    assertNotNull(store.getUser("alice"));
+    assertNotNull(store.getUser("bob"));
+  }
+
+  /**
+   * Ensures the calls of a transaction see each other's writes, even after
+   * the replica lag, and are committed together.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void transactionCommits() throws Exception {
+    int entities = store.inTransaction(new Transaction<Integer>() {
+      @Override
+      public Integer run() throws SQLException {
+        store.createUser("bob", "secret", false, 0);
+        store.createEntity("bob", "hero", 0);
+        store.setAttributes("bob", "hero", Collections.singletonMap("level", "1"));
+        try {
+          Thread.sleep(LAG + 50);
+        } catch (InterruptedException e) {
+          throw new SQLException(e);
+        }
+        assertNotNull(store.getUser("bob"));
+        return store.listEntities("bob").size();
+      }
+    });
+    assertEquals(1, entities);
+    assertEquals("1", store.getAttributes("bob", "hero").get("level"));
+  }
+
+  /**
+   * Ensures the calls of a transaction are rolled back if the work throws.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void transactionRollsBack() throws Exception {
+    try {
+      store.inTransaction(new Transaction<Void>() {
+        @Override
+        public Void run() throws SQLException {
+          store.createUser("bob", "secret", false, 0);
+          store.createEntity("bob", "hero", 0);
+          store.createEntity("bob", "hero", 0);
+          return null;
+        }
+      });
+      fail();
+    } catch (IllegalStateException e) {
+    }
+    assertFalse(store.userExists("bob"));
+    // The store remains usable.
+    store.createUser("bob", "secret", false, 0);
+    assertTrue(store.userExists("bob"));
+  }
+}
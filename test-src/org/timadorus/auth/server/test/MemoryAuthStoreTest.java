@@ -0,0 +1,180 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.timadorus.auth.server.MemoryAuthStore;
+import org.timadorus.auth.server.Transaction;
+import org.timadorus.auth.util.Crypto;
+
+/**
+ * Contains unit-tests for the persistence of the MemoryAuthStore class.
+ *
+ * @author agent
+ */
+public class MemoryAuthStoreTest {
+  /**
+   * The directory holding the snapshot and journal files.
+   */
+  private File dir;
+
+  /**
+   * Creates an empty directory for the store.
+   *
+   * @throws Exception
+   *  The directory could not be created.
+   */
+  @Before
+  public void setUp() throws Exception {
+    dir = File.createTempFile("memory-store", "");
+    dir.delete();
+  }
+
+  /**
+   * Deletes the directory of the store.
+   */
+  @After
+  public void tearDown() {
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  /**
+   * Ensures mutations are recovered from the journal if the store was not
+   * closed, and an incomplete record at the end of the journal is ignored.
+   *
+   * @throws Exception
+   *  The store could not be read or written.
+   */
+  @Test
+  public void recoverFromJournal() throws Exception {
+    MemoryAuthStore store = new MemoryAuthStore(dir, false, 1 << 20);
+    assertFalse(store.tablesExist());
+    store.createTables();
+    populate(store);
+    // Simulate a crash while a record was being appended.
+    FileOutputStream out = new FileOutputStream(new File(dir, "journal"), true);
+    out.write(new byte[] {0, 0, 0, 42, 1, 2});
+    out.close();
+    verify(new MemoryAuthStore(dir, false, 1 << 20));
+  }
+
+  /**
+   * Ensures mutations are recovered from a snapshot followed by further
+   * journal records.
+   *
+   * @throws Exception
+   *  The store could not be read or written.
+   */
+  @Test
+  public void recoverFromSnapshot() throws Exception {
+    MemoryAuthStore store = new MemoryAuthStore(dir, true, 1 << 20);
+    store.createTables();
+    store.createUser("bob", "secret", false, 0);
+    store.createEntity("bob", "hero", 0);
+    store.checkpoint();
+    store.deleteUser("bob");
+    populate(store);
+    store.close();
+    store = new MemoryAuthStore(dir, true, 1 << 20);
+    assertTrue(store.tablesExist());
+    assertFalse(store.userExists("bob"));
+    verify(store);
+    // Ids of deleted users are not handed out again.
+    store.createUser("bob", "secret", false, 0);
+    assertEquals(4, store.getUser("bob").getId());
+  }
+
+  /**
+   * Ensures the changes of a transaction that throws are undone, also when
+   * the store is recovered from the journal.
+   *
+   * @throws Exception
+   *  The store could not be read or written.
+   */
+  @Test
+  public void rollbackTransaction() throws Exception {
+    final MemoryAuthStore store = new MemoryAuthStore(dir, false, 1 << 20);
+    store.createTables();
+    populate(store);
+    try {
+      store.inTransaction(new Transaction<Void>() {
+        @Override
+        public Void run() throws SQLException {
+          store.createUser("dave", "secret", false, 0);
+          store.createEntity("dave", "hero", 0);
+          store.updateUser("alice", "other", false, 0);
+          store.updateEntity("alice", "wizard", "sorcerer", 5);
+          store.setAttributes("alice", "sorcerer", Collections.singletonMap("level", "4"));
+          store.deleteEntity("alice", "thief");
+          store.deleteUser("carol");
+          store.createUser("carol", "secret", true, 0);
+          throw new IllegalStateException("rollback");
+        }
+      });
+      fail();
+    } catch (IllegalStateException e) {
+      // The transaction is rolled back.
+    }
+    verify(store);
+    assertFalse(store.userExists("dave"));
+    assertFalse(store.isAdmin("carol"));
+    verify(new MemoryAuthStore(dir, false, 1 << 20));
+  }
+
+  /**
+   * Creates two users with entities and attributes.
+   *
+   * @param store
+   *  The store to populate.
+   * @throws Exception
+   *  The store could not be written.
+   */
+  private static void populate(MemoryAuthStore store) throws Exception {
+    store.createUser("alice", "secret", true, 7);
+    store.createUser("carol", "secret", false, 0);
+    store.createEntity("alice", "mage", 1);
+    store.createEntity("alice", "thief", 2);
+    store.createEntity("carol", "gone", 0);
+    store.updateEntity("alice", "mage", "wizard", null);
+    store.updateUser("alice", "changed", null, null);
+    Map<String, String> attr = new HashMap<String, String>();
+    attr.put("level", "3");
+    store.setAttributes("alice", "wizard", attr);
+    store.deleteEntity("carol", "gone");
+  }
+
+  /**
+   * Verifies the store contains the data created by the populate method.
+   *
+   * @param store
+   *  The store to verify.
+   * @throws Exception
+   *  The store could not be read.
+   */
+  private static void verify(MemoryAuthStore store) throws Exception {
+    assertEquals(7, store.getUser("alice").getFlags());
+    assertTrue(store.isAdmin("alice"));
+    assertTrue(Crypto.validatePassword("changed", store.getPassword("alice")));
+    assertEquals(2, store.listEntities("alice").size());
+    assertEquals(1, store.getEntity("alice", "wizard").getFlags());
+    assertNull(store.getEntity("alice", "mage"));
+    assertEquals("3", store.getAttributes("alice", "wizard").get("level"));
+    assertTrue(store.listEntities("carol").isEmpty());
+  }
+}
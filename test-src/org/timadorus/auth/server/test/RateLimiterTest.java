@@ -0,0 +1,92 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.timadorus.auth.server.RateLimiter;
+
+/**
+ * Contains unit-tests for the RateLimiter class.
+ *
+ * @author agent
+ */
+public class RateLimiterTest {
+  /**
+   * One second in nanoseconds.
+   */
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  /**
+   * Ensures a key may fail a burst of times and is then limited to the
+   * configured rate, while successes consume no tokens.
+   */
+  @Test
+  public void burstThenRate() {
+    RateLimiter limiter = new RateLimiter(1, 3, 10, 100, 0, 0);
+    long now = System.nanoTime();
+    for (int i = 0; i < 100; i++) {
+      assertEquals(0, limiter.check("key", now));
+    }
+    assertEquals(0, limiter.size());
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, limiter.check("key", now));
+      limiter.recordFailure("key", now);
+    }
+    assertTrue(limiter.check("key", now) > 0);
+    // Other keys are not affected.
+    assertEquals(0, limiter.check("other", now));
+    // One token is refilled after a second.
+    assertEquals(0, limiter.check("key", now + SECOND));
+    limiter.recordFailure("key", now + SECOND);
+    assertTrue(limiter.check("key", now + SECOND) > 0);
+  }
+
+  /**
+   * Ensures repeated failures block a key for an exponentially growing
+   * amount of time and a success lifts the block.
+   */
+  @Test
+  public void exponentialBackoff() {
+    RateLimiter limiter = new RateLimiter(1000, 1000, 10, 1, 1000, 4000);
+    long now = System.nanoTime();
+    limiter.recordFailure("key", now);
+    assertEquals(0, limiter.check("key", now));
+    limiter.recordFailure("key", now);
+    assertEquals(SECOND, limiter.check("key", now));
+    limiter.recordFailure("key", now);
+    assertEquals(2 * SECOND, limiter.check("key", now));
+    limiter.recordFailure("key", now);
+    limiter.recordFailure("key", now);
+    assertEquals(4 * SECOND, limiter.check("key", now));
+    limiter.recordSuccess("key");
+    assertEquals(0, limiter.check("key", System.nanoTime()));
+  }
+
+  /**
+   * Ensures the number of tracked keys is bounded, idle keys are swept, and
+   * keys that can't be tracked are limited in their rate but never blocked,
+   * so that filling the table doesn't lock out other clients.
+   */
+  @Test
+  public void boundedEntries() {
+    RateLimiter limiter = new RateLimiter(1, 2, 2, 0, 1000, 300000);
+    long now = System.nanoTime();
+    limiter.recordFailure("a", now);
+    limiter.recordFailure("b", now);
+    assertEquals(2, limiter.size());
+    assertTrue(limiter.check("a", now) > 0);
+    // An attacker fails with made-up keys while the table is full. Had these
+    // failures blocked the keys, other clients would wait for 300 seconds.
+    for (int i = 0; i < 10; i++) {
+      limiter.recordFailure("made-up" + i, now);
+    }
+    assertEquals(2, limiter.size());
+    assertTrue(limiter.check("legitimate", now) < 10 * SECOND);
+    assertEquals(0, limiter.check("legitimate", now + 10 * SECOND));
+    limiter.sweep(now + 301 * SECOND);
+    assertEquals(0, limiter.size());
+  }
+}
@@ -0,0 +1,76 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.timadorus.auth.server.Cluster;
+import org.timadorus.auth.server.Router;
+import org.timadorus.auth.util.HashRing;
+
+/**
+ * Contains unit-tests for the Router class.
+ *
+ * @author agent
+ */
+public class RouterTest {
+  /**
+   * The nodes of the ring.
+   */
+  private static final List<String> NODES = Arrays.asList("a:1", "b:1", "c:1");
+
+  /**
+   * Ensures users are routed to their owner, and served by the node that
+   * owns them.
+   */
+  @Test
+  public void routeToOwner() {
+    HashRing ring = new HashRing(NODES, 50);
+    List<String> order = ring.getNodes("bob", 3);
+    assertNull(new Router(ring, order.get(0), null, 0).route("bob"));
+    assertEquals(order.get(0), new Router(ring, order.get(1), null, 0).route("bob"));
+    assertEquals(order.get(0), new Router(ring, order.get(2), null, 0).route("bob"));
+  }
+
+  /**
+   * Ensures users of nodes that are down are served by the next node on the
+   * ring.
+   *
+   * @throws Exception
+   *  The cluster could not be created.
+   */
+  @Test
+  public void skipNodesThatAreDown() throws Exception {
+    HashRing ring = new HashRing(NODES, 50);
+    List<String> order = ring.getNodes("bob", 3);
+    // No heartbeats have been received, so all other nodes are down.
+    Cluster cluster = new Cluster(InetAddress.getByName("127.0.0.1"), 0, new byte[] {1},
+        new Cluster.Listener() {
+          @Override
+          public void usersChanged(List<String> names) {
+          }
+
+          @Override
+          public void usersCreated(List<String> names) {
+          }
+
+          @Override
+          public void usersDeleted(List<String> names) {
+          }
+
+          @Override
+          public void cleared() {
+          }
+        });
+    try {
+      assertNull(new Router(ring, order.get(1), cluster, 1000).route("bob"));
+      assertNull(new Router(ring, order.get(2), cluster, 1000).route("bob"));
+    } finally {
+      cluster.close();
+    }
+  }
+}
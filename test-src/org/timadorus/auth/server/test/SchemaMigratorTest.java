@@ -0,0 +1,117 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.timadorus.auth.server.H2Dialect;
+import org.timadorus.auth.server.JdbcAuthStore;
+import org.timadorus.auth.server.SchemaMigrator;
+
+/**
+ * Contains unit-tests for the SchemaMigrator class.
+ *
+ * @author agent
+ */
+public class SchemaMigratorTest {
+  /**
+   * The URL of the database, which waits at most 100ms for a lock.
+   */
+  private static final String URL = "jdbc:h2:mem:migrator;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=100";
+
+  /**
+   * The store which creates the tables.
+   */
+  private JdbcAuthStore store;
+
+  /**
+   * Creates the tables.
+   *
+   * @throws Exception
+   *  The database could not be created.
+   */
+  @Before
+  public void setUp() throws Exception {
+    store = new JdbcAuthStore("org.h2.Driver", URL, null, new H2Dialect());
+    store.createTables();
+  }
+
+  /**
+   * Drops the tables and releases the store.
+   *
+   * @throws Exception
+   *  The database could not be dropped.
+   */
+  @After
+  public void tearDown() throws Exception {
+    store.close();
+    Connection con = DriverManager.getConnection(URL);
+    try {
+      con.createStatement().execute("DROP ALL OBJECTS");
+    } finally {
+      con.close();
+    }
+  }
+
+  /**
+   * Ensures all migrations are applied once.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void migrateOnce() throws Exception {
+    SchemaMigrator migrator = new SchemaMigrator("", new H2Dialect());
+    Connection con = DriverManager.getConnection(URL);
+    try {
+      migrator.migrate(con);
+      assertEquals(SchemaMigrator.getLatestVersion(), migrator.getVersion(con));
+      assertEquals(0, migrator.migrate(con));
+    } finally {
+      con.close();
+    }
+  }
+
+  /**
+   * Ensures the lock on the schema_version table excludes other
+   * auth-servers even before the first migration has been applied, when
+   * H2 has no migration rows to lock.
+   *
+   * @throws Exception
+   *  A database error occurred.
+   */
+  @Test
+  public void lockBeforeFirstMigration() throws Exception {
+    H2Dialect dialect = new H2Dialect();
+    SchemaMigrator migrator = new SchemaMigrator("", dialect);
+    Connection first = DriverManager.getConnection(URL);
+    Connection second = DriverManager.getConnection(URL);
+    try {
+      migrator.migrate(first);
+      Statement statement = first.createStatement();
+      // As on a database that has just been created.
+      statement.execute("DELETE FROM schema_version WHERE version > 0");
+      statement.close();
+      assertEquals(0, migrator.getVersion(first));
+      first.setAutoCommit(false);
+      first.createStatement().execute(dialect.getLockTableStatement("schema_version"));
+      try {
+        second.createStatement().execute(dialect.getLockTableStatement("schema_version"));
+        fail();
+      } catch (SQLException e) {
+        // The lock is held by the first connection.
+      }
+      first.rollback();
+    } finally {
+      first.close();
+      second.close();
+    }
+  }
+}
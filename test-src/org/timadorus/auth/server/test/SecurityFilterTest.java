@@ -0,0 +1,171 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.security.Principal;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.SecurityContext;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Before;
+import org.junit.Test;
+import org.timadorus.auth.server.AuthPrincipal;
+import org.timadorus.auth.server.Database;
+import org.timadorus.auth.server.MemoryAuthStore;
+import org.timadorus.auth.server.RateLimiter;
+import org.timadorus.auth.server.SecurityFilter;
+
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.WebApplicationFactory;
+
+/**
+ * Contains unit-tests for the SecurityFilter class, which authenticates
+ * requests and attaches the principal that resources check for the
+ * administrator role.
+ *
+ * @author agent
+ */
+public class SecurityFilterTest {
+  /**
+   * The status of a request with invalid credentials.
+   */
+  private static final int HTTP_NOT_AUTHORIZED = 401;
+
+  /**
+   * The filter under test.
+   */
+  private SecurityFilter filter;
+
+  /**
+   * Creates an administrator and a normal user, and a filter for requests
+   * from a fixed remote address.
+   *
+   * @throws Exception
+   *  The users could not be created.
+   */
+  @Before
+  public void setUp() throws Exception {
+    MemoryAuthStore store = new MemoryAuthStore();
+    store.createTables();
+    Database.setStore(store);
+    Database.createUser("root", "secret", true, 0);
+    Database.createUser("bob", "secret", false, 0);
+    SecurityFilter.setRateLimiters(new RateLimiter(1000, 1000, 100, 100, 1, 1),
+        new RateLimiter(1000, 1000, 100, 100, 1, 1));
+    filter = new SecurityFilter();
+    // The servlet request is injected by Jersey.
+    Field field = SecurityFilter.class.getDeclaredField("httpServletRequest");
+    field.setAccessible(true);
+    field.set(filter, Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return "getRemoteAddr".equals(method.getName()) ? "127.0.0.1" : null;
+          }
+        }));
+  }
+
+  /**
+   * Ensures an administrator is attached as a principal in the admin role.
+   */
+  @Test
+  public void adminPrincipal() {
+    SecurityContext security = filter.filter(request("root", "secret")).getSecurityContext();
+    assertEquals("root", security.getUserPrincipal().getName());
+    assertTrue(security.isUserInRole(AuthPrincipal.ROLE_ADMIN));
+    assertTrue(((AuthPrincipal) security.getUserPrincipal()).isAdmin());
+  }
+
+  /**
+   * Ensures a normal user is attached as a principal outside the admin role.
+   */
+  @Test
+  public void userPrincipal() {
+    SecurityContext security = filter.filter(request("bob", "secret")).getSecurityContext();
+    assertEquals("bob", security.getUserPrincipal().getName());
+    assertFalse(security.isUserInRole(AuthPrincipal.ROLE_ADMIN));
+  }
+
+  /**
+   * Ensures requests with a wrong password, for an unknown user or without
+   * credentials are rejected.
+   */
+  @Test
+  public void badCredentials() {
+    assertRejected(request("root", "wrong"));
+    assertRejected(request("nobody", "secret"));
+    assertRejected(request(null, null));
+  }
+
+  /**
+   * Asserts that the filter rejects the specified request as unauthorized.
+   *
+   * @param request
+   *  The request.
+   */
+  private void assertRejected(ContainerRequest request) {
+    try {
+      filter.filter(request);
+      fail();
+    } catch (WebApplicationException e) {
+      assertEquals(HTTP_NOT_AUTHORIZED, e.getResponse().getStatus());
+    }
+  }
+
+  /**
+   * Creates a request for a user's resource with the specified credentials.
+   *
+   * @param username
+   *  The username, or null to send no credentials.
+   * @param password
+   *  The password.
+   * @return
+   *  The request, as it is passed to the filter.
+   */
+  private static ContainerRequest request(String username, String password) {
+    InBoundHeaders headers = new InBoundHeaders();
+    if (username != null) {
+      headers.add(ContainerRequest.AUTHORIZATION, "Basic "
+          + Base64.encodeBase64String((username + ":" + password).getBytes()));
+    }
+    ContainerRequest request = new ContainerRequest(
+        WebApplicationFactory.createWebApplication(), "GET",
+        URI.create("https://localhost/"), URI.create("https://localhost/users/bob"),
+        headers, new ByteArrayInputStream(new byte[0]));
+    // The container attaches an unauthenticated context before filtering.
+    request.setSecurityContext(new SecurityContext() {
+      @Override
+      public Principal getUserPrincipal() {
+        return null;
+      }
+
+      @Override
+      public boolean isUserInRole(String role) {
+        return false;
+      }
+
+      @Override
+      public boolean isSecure() {
+        return true;
+      }
+
+      @Override
+      public String getAuthenticationScheme() {
+        return null;
+      }
+    });
+    return request;
+  }
+}
@@ -0,0 +1,108 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+
+import org.junit.Test;
+import org.timadorus.auth.server.Database;
+import org.timadorus.auth.server.MemoryAuthStore;
+import org.timadorus.auth.server.UnknownUserCache;
+import org.timadorus.auth.server.User;
+
+/**
+ * Contains unit-tests for the UnknownUserCache class.
+ *
+ * @author agent
+ */
+public class UnknownUserCacheTest {
+  /**
+   * A store that runs an action after the next lookup of a user, before
+   * returning the result of the lookup, as if the action had run on another
+   * thread while the lookup was in progress.
+   */
+  private static class InterleavingStore extends MemoryAuthStore {
+    /**
+     * The action to run after the next lookup, or null.
+     */
+    private Runnable afterLookup;
+
+    @Override
+    public User getUser(String username) {
+      User user = super.getUser(username);
+      Runnable action = afterLookup;
+      afterLookup = null;
+      if (action != null) {
+        action.run();
+      }
+      return user;
+    }
+  }
+
+  /**
+   * Ensures unknown and deleted users are reported as unknown, and created
+   * users are not.
+   */
+  @Test
+  public void addAndRemove() {
+    UnknownUserCache cache = new UnknownUserCache(100, 60000, 100);
+    assertTrue(cache.isUnknown("bob"));
+    cache.addUser("bob");
+    assertFalse(cache.isUnknown("bob"));
+    cache.removeUser("bob");
+    assertTrue(cache.isUnknown("bob"));
+    cache.addUser("bob");
+    assertFalse(cache.isUnknown("bob"));
+  }
+
+  /**
+   * Ensures a miss is dropped if the user was added while the lookup that
+   * found no such user was in progress.
+   */
+  @Test
+  public void missAfterAddIsDropped() {
+    UnknownUserCache cache = new UnknownUserCache(100, 60000, 100);
+    cache.addUser("bob");
+    long version = cache.getVersion();
+    cache.recordMiss("bob", version);
+    assertTrue(cache.isUnknown("bob"));
+    cache.addUser("bob");
+    // A lookup that began before the add.
+    cache.recordMiss("bob", version);
+    assertFalse(cache.isUnknown("bob"));
+  }
+
+  /**
+   * Ensures a user created while a lookup of the same name misses in the
+   * database is not rejected as unknown afterwards.
+   *
+   * @throws Exception
+   *  The database could not be accessed.
+   */
+  @Test
+  public void createDuringLookup() throws Exception {
+    InterleavingStore store = new InterleavingStore();
+    store.createTables();
+    Database.setStore(store);
+    Database.createUser("bob", "secret", false, 0);
+    Database.enableUnknownUserCache(new UnknownUserCache(100, 60000, 100));
+    // Remove the row behind the cache's back, so the name passes the Bloom
+    // filter but the lookup misses, as with a false positive.
+    store.deleteUser("bob");
+    store.afterLookup = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Database.createUser("bob", "secret", false, 0);
+        } catch (SQLException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    assertNull(Database.getUser("bob"));
+    assertNotNull(Database.getUser("bob"));
+  }
+}
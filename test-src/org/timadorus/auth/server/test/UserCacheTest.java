@@ -0,0 +1,94 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.timadorus.auth.server.User;
+import org.timadorus.auth.server.UserCache;
+
+/**
+ * Contains unit-tests for the UserCache class.
+ *
+ * @author agent
+ */
+public class UserCacheTest {
+  /**
+   * Ensures cached users are returned until they are removed.
+   */
+  @Test
+  public void putGetRemove() {
+    UserCache cache = new UserCache(10, 60000);
+    User bob = new User("bob", "hash", false, 0);
+    assertNull(cache.get("bob"));
+    cache.put(bob, cache.getVersion());
+    assertSame(bob, cache.get("bob"));
+    cache.remove("bob");
+    assertNull(cache.get("bob"));
+    cache.put(bob, cache.getVersion());
+    cache.clear();
+    assertEquals(0, cache.size());
+  }
+
+  /**
+   * Ensures entries expire after their lifetime.
+   *
+   * @throws InterruptedException
+   *  The thread was interrupted.
+   */
+  @Test
+  public void expiry() throws InterruptedException {
+    UserCache cache = new UserCache(10, 1);
+    cache.put(new User("bob", "hash", false, 0), cache.getVersion());
+    Thread.sleep(5);
+    assertNull(cache.get("bob"));
+  }
+
+  /**
+   * Ensures a user loaded before a concurrent removal is not cached, so
+   * that stale data can't outlive an update.
+   */
+  @Test
+  public void staleLoadIsDiscarded() {
+    UserCache cache = new UserCache(10, 60000);
+    long version = cache.getVersion();
+    // The user is updated while the old data is being loaded.
+    cache.remove("bob");
+    cache.put(new User("bob", "old", false, 0), version);
+    assertNull(cache.get("bob"));
+  }
+
+  /**
+   * Ensures the number of entries is bounded.
+   */
+  @Test
+  public void capacity() {
+    UserCache cache = new UserCache(2, 60000);
+    cache.put(new User("a", "hash", false, 0), cache.getVersion());
+    cache.put(new User("b", "hash", false, 0), cache.getVersion());
+    cache.put(new User("c", "hash", false, 0), cache.getVersion());
+    assertEquals(2, cache.size());
+    assertNull(cache.get("c"));
+  }
+
+  /**
+   * Ensures the names of the cached users are ordered by their last use.
+   *
+   * @throws InterruptedException
+   *  The thread was interrupted.
+   */
+  @Test
+  public void recentNames() throws InterruptedException {
+    UserCache cache = new UserCache(10, 60000);
+    for (String name : new String[] {"a", "b", "c"}) {
+      cache.put(new User(name, "hash", false, 0), cache.getVersion());
+      Thread.sleep(2);
+    }
+    cache.get("a");
+    assertEquals(Arrays.asList("a", "c", "b"), cache.getRecentNames(10));
+    assertEquals(Arrays.asList("a", "c"), cache.getRecentNames(2));
+  }
+}
@@ -0,0 +1,211 @@
+package org.timadorus.auth.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collections;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.timadorus.auth.server.AuthPrincipal;
+import org.timadorus.auth.server.CompressionFilter;
+import org.timadorus.auth.server.Database;
+import org.timadorus.auth.server.MemoryAuthStore;
+import org.timadorus.auth.server.UsersResource;
+
+import com.sun.jersey.core.header.InBoundHeaders;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.WebApplicationFactory;
+
+/**
+ * Contains unit-tests for the conditional GET requests of the UsersResource
+ * class.
+ *
+ * @author agent
+ */
+public class UsersResourceTest {
+  /**
+   * The status of a response to a GET request.
+   */
+  private static final int HTTP_OK = 200;
+
+  /**
+   * The status of a response whose entity-tag matches the request's.
+   */
+  private static final int HTTP_NOT_MODIFIED = 304;
+
+  /**
+   * Creates an administrator with an entity that has stats.
+   *
+   * @throws Exception
+   *  The user could not be created.
+   */
+  @Before
+  public void setUp() throws Exception {
+    MemoryAuthStore store = new MemoryAuthStore();
+    store.createTables();
+    Database.setStore(store);
+    Database.createUser("root", "secret", true, 0);
+    Database.createEntity("root", "hero", 0);
+    Database.setAttributes("root", "hero", Collections.singletonMap("level", "1"));
+  }
+
+  /**
+   * Ensures the stats of an entity are only sent again once they have
+   * changed.
+   *
+   * @throws Exception
+   *  The stats could not be retrieved.
+   */
+  @Test
+  public void statsNotModified() throws Exception {
+    Response response = resource(get(null)).getStats("root", "hero");
+    assertEquals(HTTP_OK, response.getStatus());
+    EntityTag tag = getTag(response);
+    assertEquals(HTTP_NOT_MODIFIED, resource(get(tag)).getStats("root", "hero").getStatus());
+    Database.setAttributes("root", "hero", Collections.singletonMap("level", "2"));
+    response = resource(get(tag)).getStats("root", "hero");
+    assertEquals(HTTP_OK, response.getStatus());
+    assertFalse(tag.equals(getTag(response)));
+    assertEquals(HTTP_NOT_MODIFIED,
+        resource(get(getTag(response))).getStats("root", "hero").getStatus());
+  }
+
+  /**
+   * Ensures a user is only sent again once the user has changed.
+   *
+   * @throws Exception
+   *  The user could not be retrieved.
+   */
+  @Test
+  public void userNotModified() throws Exception {
+    Response response = resource(get(null)).getUser("root", false);
+    assertEquals(HTTP_OK, response.getStatus());
+    EntityTag tag = getTag(response);
+    assertEquals(HTTP_NOT_MODIFIED, resource(get(tag)).getUser("root", false).getStatus());
+    Database.updateUser("root", null, null, 1);
+    response = resource(get(tag)).getUser("root", false);
+    assertEquals(HTTP_OK, response.getStatus());
+    assertFalse(tag.equals(getTag(response)));
+  }
+
+  /**
+   * Ensures the weak entity-tag of a compressed response still matches
+   * when the client revalidates its copy.
+   *
+   * @throws Exception
+   *  The user could not be retrieved.
+   */
+  @Test
+  public void compressedNotModified() throws Exception {
+    CompressionFilter.configure(0, -1);
+    ContainerRequest request = get(null);
+    request.getRequestHeaders().add("Accept-Encoding", "gzip");
+    ContainerResponse response = new ContainerResponse(
+        WebApplicationFactory.createWebApplication(), request, null);
+    response.setResponse(resource(request).getUser("root", false));
+    response = new CompressionFilter().filter(request, response);
+    assertEquals("gzip", response.getHttpHeaders().getFirst("Content-Encoding"));
+    EntityTag tag = (EntityTag) response.getHttpHeaders().getFirst("ETag");
+    assertTrue(tag.isWeak());
+    assertEquals(HTTP_NOT_MODIFIED, resource(get(tag)).getUser("root", false).getStatus());
+  }
+
+  /**
+   * Gets the entity-tag of the specified response.
+   *
+   * @param response
+   *  The response.
+   * @return
+   *  The entity-tag.
+   */
+  private static EntityTag getTag(Response response) {
+    return (EntityTag) response.getMetadata().getFirst("ETag");
+  }
+
+  /**
+   * Creates a resource for the specified request by the administrator, as
+   * Jersey does.
+   *
+   * @param request
+   *  The request.
+   * @return
+   *  The resource.
+   * @throws Exception
+   *  The context could not be injected.
+   */
+  private static UsersResource resource(ContainerRequest request) throws Exception {
+    UsersResource resource = new UsersResource();
+    inject(resource, "request", request);
+    inject(resource, "security", new SecurityContext() {
+      @Override
+      public Principal getUserPrincipal() {
+        return new AuthPrincipal(1, "root", true, 0, true);
+      }
+
+      @Override
+      public boolean isUserInRole(String role) {
+        return AuthPrincipal.ROLE_ADMIN.equals(role);
+      }
+
+      @Override
+      public boolean isSecure() {
+        return true;
+      }
+
+      @Override
+      public String getAuthenticationScheme() {
+        return SecurityContext.BASIC_AUTH;
+      }
+    });
+    return resource;
+  }
+
+  /**
+   * Sets a field that is injected by Jersey.
+   *
+   * @param resource
+   *  The resource.
+   * @param name
+   *  The name of the field.
+   * @param value
+   *  The value to set.
+   * @throws Exception
+   *  The field could not be set.
+   */
+  private static void inject(UsersResource resource, String name, Object value)
+      throws Exception {
+    Field field = UsersResource.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(resource, value);
+  }
+
+  /**
+   * Creates a GET request, as it is passed to the resource.
+   *
+   * @param ifNoneMatch
+   *  The entity-tag of the 'If-None-Match' header, or null to send an
+   *  unconditional request.
+   * @return
+   *  The request.
+   */
+  private static ContainerRequest get(EntityTag ifNoneMatch) {
+    InBoundHeaders headers = new InBoundHeaders();
+    if (ifNoneMatch != null) {
+      headers.add("If-None-Match", ifNoneMatch.toString());
+    }
+    return new ContainerRequest(WebApplicationFactory.createWebApplication(), "GET",
+        URI.create("https://localhost/"), URI.create("https://localhost/users/root"),
+        headers, new ByteArrayInputStream(new byte[0]));
+  }
+}
@@ -0,0 +1,140 @@
+package org.timadorus.auth.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.Test;
+import org.timadorus.auth.util.AsyncHandler;
+
+/**
+ * Contains unit-tests for the AsyncHandler class.
+ *
+ * @author agent
+ */
+public class AsyncHandlerTest {
+  /**
+   * Ensures records are published to the target in order and flushed once
+   * the handler is closed.
+   */
+  @Test
+  public void publishInOrder() {
+    RecordingHandler target = new RecordingHandler(null);
+    AsyncHandler handler = new AsyncHandler(Collections.<Handler>singletonList(target),
+        16, 4, true, Level.SEVERE, false);
+    for (int i = 0; i < 100; i++) {
+      LogRecord r = new LogRecord(Level.INFO, "message {0}");
+      r.setParameters(new Object[] {i});
+      r.setLoggerName("test");
+      handler.publish(r);
+    }
+    handler.close();
+    assertEquals(100, target.records.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, target.records.get(i).getParameters()[0]);
+      assertEquals("test", target.records.get(i).getSourceClassName());
+    }
+    assertTrue(target.flushes > 0);
+    assertTrue(target.closed);
+    assertEquals(0, handler.getDropped());
+  }
+
+  /**
+   * Ensures records are dropped and counted while the target is stalled,
+   * except for records at or above the keep level.
+   *
+   * @throws Exception
+   *  The test was interrupted.
+   */
+  @Test
+  public void dropWhenFull() throws Exception {
+    CountDownLatch stall = new CountDownLatch(1);
+    RecordingHandler target = new RecordingHandler(stall);
+    AsyncHandler handler = new AsyncHandler(Collections.<Handler>singletonList(target),
+        4, 4, false, Level.SEVERE, false);
+    for (int i = 0; i < 20; i++) {
+      handler.publish(new LogRecord(Level.WARNING, "warning"));
+    }
+    // The writer holds at most one batch, the queue at most four records.
+    long dropped = handler.getDropped();
+    assertTrue(dropped >= 20 - 4 - 4);
+    assertTrue(AsyncHandler.getTotalDropped() >= dropped);
+    stall.countDown();
+    handler.publish(new LogRecord(Level.SEVERE, "severe"));
+    handler.close();
+    assertEquals(dropped, handler.getDropped());
+    // The delivered records, the severe record and the report of the drops.
+    assertEquals(20 - dropped + 2, target.records.size());
+    int reports = 0;
+    for (LogRecord r : target.records) {
+      if (r.getMessage().startsWith("Dropped " + dropped + " ")) {
+        reports++;
+      }
+    }
+    assertEquals(1, reports);
+  }
+
+  /**
+   * A handler that records the published records.
+   */
+  private static class RecordingHandler extends Handler {
+    /**
+     * The published records.
+     */
+    private final List<LogRecord> records = new ArrayList<LogRecord>();
+
+    /**
+     * The latch to wait for before a record is recorded, or null.
+     */
+    private final CountDownLatch stall;
+
+    /**
+     * The number of times the handler has been flushed.
+     */
+    private int flushes;
+
+    /**
+     * Set when the handler has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Initializes a new instance of the RecordingHandler class.
+     *
+     * @param stall
+     *  The latch to wait for before a record is recorded, or null.
+     */
+    RecordingHandler(CountDownLatch stall) {
+      this.stall = stall;
+    }
+
+    @Override
+    public synchronized void publish(LogRecord record) {
+      if (stall != null) {
+        try {
+          stall.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      records.add(record);
+    }
+
+    @Override
+    public synchronized void flush() {
+      flushes++;
+    }
+
+    @Override
+    public synchronized void close() {
+      closed = true;
+    }
+  }
+}
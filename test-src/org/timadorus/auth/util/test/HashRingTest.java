@@ -0,0 +1,82 @@
+package org.timadorus.auth.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.timadorus.auth.util.HashRing;
+
+/**
+ * Contains unit-tests for the HashRing class.
+ *
+ * @author agent
+ */
+public class HashRingTest {
+  /**
+   * The number of keys distributed by the tests.
+   */
+  private static final int KEYS = 10000;
+
+  /**
+   * Ensures the keys are spread evenly and the order of the nodes does not
+   * matter.
+   */
+  @Test
+  public void balanced() {
+    HashRing ring = new HashRing(Arrays.asList("a:1", "b:1", "c:1", "d:1"),
+        HashRing.DEFAULT_VIRTUAL_NODES);
+    HashRing reversed = new HashRing(Arrays.asList("d:1", "c:1", "b:1", "a:1"),
+        HashRing.DEFAULT_VIRTUAL_NODES);
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    for (int i = 0; i < KEYS; i++) {
+      String node = ring.getNode("user" + i);
+      assertEquals(node, reversed.getNode("user" + i));
+      Integer n = counts.get(node);
+      counts.put(node, n == null ? 1 : n + 1);
+    }
+    assertEquals(4, counts.size());
+    for (int n : counts.values()) {
+      assertTrue("unbalanced: " + counts, n > KEYS / 4 * 0.7 && n < KEYS / 4 * 1.3);
+    }
+  }
+
+  /**
+   * Ensures adding a node only moves keys to the new node.
+   */
+  @Test
+  public void minimalMovement() {
+    HashRing before = new HashRing(Arrays.asList("a:1", "b:1", "c:1"), 100);
+    HashRing after = new HashRing(Arrays.asList("a:1", "b:1", "c:1", "d:1"), 100);
+    int moved = 0;
+    for (int i = 0; i < KEYS; i++) {
+      String old = before.getNode("user" + i);
+      String now = after.getNode("user" + i);
+      if (!old.equals(now)) {
+        assertEquals("d:1", now);
+        moved++;
+      }
+    }
+    assertTrue(moved > KEYS / 8 && moved < KEYS / 2);
+  }
+
+  /**
+   * Ensures the preference list starts with the owner and contains each
+   * node once.
+   */
+  @Test
+  public void preferenceList() {
+    HashRing ring = new HashRing(Arrays.asList("a:1", "b:1", "c:1"), 50);
+    assertEquals(3, ring.size());
+    List<String> nodes = ring.getNodes("bob", 10);
+    assertEquals(3, nodes.size());
+    assertEquals(3, new HashSet<String>(nodes).size());
+    assertEquals(ring.getNode("bob"), nodes.get(0));
+    assertEquals(nodes.subList(0, 2), ring.getNodes("bob", 2));
+  }
+}
@@ -0,0 +1,87 @@
+package org.timadorus.auth.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.timadorus.auth.util.Histogram;
+import org.timadorus.auth.util.Metrics;
+
+/**
+ * Contains unit-tests for the Histogram and Metrics classes.
+ *
+ * @author agent
+ */
+public class MetricsTest {
+  /**
+   * Ensures the quantiles of a histogram are within the relative error of
+   * the buckets.
+   */
+  @Test
+  public void histogramQuantiles() {
+    Histogram h = new Histogram();
+    assertEquals(0, h.getQuantile(0.5));
+    for (long i = 1; i <= 100000; i++) {
+      h.record(i * 1000);
+    }
+    assertEquals(100000, h.getCount());
+    assertEquals(100000000L, h.getMax());
+    long[] expected = {50000000L, 90000000L, 99000000L};
+    double[] quantiles = {0.5, 0.9, 0.99};
+    for (int i = 0; i < quantiles.length; i++) {
+      long q = h.getQuantile(quantiles[i]);
+      assertTrue(q >= expected[i]);
+      assertTrue(q <= expected[i] + expected[i] / 16);
+    }
+    assertEquals(h.getMax(), h.getQuantile(1));
+    // Small values are recorded exactly.
+    Histogram small = new Histogram();
+    small.record(3);
+    small.record(-5);
+    assertEquals(0, small.getQuantile(0.5));
+    assertEquals(3, small.getQuantile(1));
+  }
+
+  /**
+   * Ensures metrics are registered once per name and labels and written in
+   * the Prometheus text format.
+   */
+  @Test
+  public void prometheusFormat() {
+    assertSame(Metrics.counter("test_events_total", "Events.", "kind", "a"),
+        Metrics.counter("test_events_total", "Events.", "kind", "a"));
+    Metrics.counter("test_events_total", "Events.", "kind", "a").addAndGet(3);
+    Metrics.histogram("test_call_seconds", "Calls.").record(2000000000L);
+    Metrics.gauge("test_level", "Level.", new Metrics.Gauge() {
+      @Override
+      public double getValue() {
+        return 7;
+      }
+    });
+    StringBuilder b = new StringBuilder();
+    Metrics.writePrometheus(b);
+    String text = b.toString();
+    assertTrue(text.contains("# TYPE test_events_total counter\n"));
+    assertTrue(text.contains("test_events_total{kind=\"a\"} 3\n"));
+    assertTrue(text.contains("# TYPE test_call_seconds summary\n"));
+    assertTrue(text.contains("test_call_seconds{quantile=\"0.5\"} 2.0\n"));
+    assertTrue(text.contains("test_call_seconds_count 1\n"));
+    assertTrue(text.contains("test_level 7.0\n"));
+
+    Map<String, Number> values = Metrics.getValues();
+    assertEquals(3L, values.get("test_events_total{kind=\"a\"}"));
+    assertEquals(1L, values.get("test_call_seconds.count"));
+  }
+
+  /**
+   * Ensures a name can't be registered with two types.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void typeMismatch() {
+    Metrics.counter("test_mismatch", "Mismatch.");
+    Metrics.histogram("test_mismatch", "Mismatch.");
+  }
+}
@@ -0,0 +1,141 @@
+package org.timadorus.auth.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.timadorus.auth.util.Tracer;
+
+/**
+ * Contains unit-tests for the Tracer class.
+ *
+ * @author agent
+ */
+public class TracerTest {
+  /**
+   * The logger traces are written to.
+   */
+  private final Logger logger = Logger.getLogger("org.timadorus.auth.trace");
+
+  /**
+   * The messages written to the trace logger.
+   */
+  private final List<String> messages = new ArrayList<String>();
+
+  /**
+   * Collects the messages written to the trace logger.
+   */
+  private final Handler handler = new Handler() {
+    @Override
+    public void publish(LogRecord record) {
+      messages.add(record.getMessage());
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  };
+
+  /**
+   * Attaches the collecting handler to the trace logger.
+   */
+  @Before
+  public void setUp() {
+    logger.addHandler(handler);
+    logger.setUseParentHandlers(false);
+  }
+
+  /**
+   * Detaches the collecting handler and disables tracing.
+   */
+  @After
+  public void tearDown() {
+    logger.removeHandler(handler);
+    logger.setUseParentHandlers(true);
+    Tracer.configure(0, 0);
+  }
+
+  /**
+   * Ensures nothing is recorded while tracing is disabled.
+   */
+  @Test
+  public void disabled() {
+    Tracer.configure(0, 0);
+    Tracer.begin();
+    assertEquals(-1, Tracer.start("phase"));
+    Tracer.end(-1);
+    Tracer.finish("GET /", 200);
+    assertTrue(messages.isEmpty());
+  }
+
+  /**
+   * Ensures sampled traces contain their nested spans in order.
+   */
+  @Test
+  public void nestedSpans() {
+    Tracer.configure(1, 0);
+    // Spans outside of a request are not recorded.
+    assertEquals(-1, Tracer.start("outside"));
+    Tracer.begin();
+    int filter = Tracer.start("filter");
+    int store = Tracer.start("store.getUser");
+    Tracer.end(store);
+    int crypto = Tracer.start("crypto.validate");
+    Tracer.end(crypto);
+    Tracer.end(filter);
+    int resource = Tracer.start("resource.getEntity");
+    Tracer.finish("GET /users/bob/hero", 200);
+    assertEquals(1, messages.size());
+    String m = messages.get(0);
+    assertTrue(m.startsWith("GET /users/bob/hero 200 sampled total="));
+    assertTrue(m.contains(" filter="));
+    assertTrue(m.indexOf(" >store.getUser=") > m.indexOf(" filter="));
+    assertTrue(m.indexOf(" >crypto.validate=") > m.indexOf(" >store.getUser="));
+    assertTrue(m.contains(" resource.getEntity=?@"));
+    // The trace is finished, so further spans are not recorded.
+    assertEquals(-1, Tracer.start("late"));
+    Tracer.end(resource);
+  }
+
+  /**
+   * Ensures requests above the slow threshold are written even if they
+   * are not sampled.
+   *
+   * @throws Exception
+   *  The test was interrupted.
+   */
+  @Test
+  public void slowRequests() throws Exception {
+    Tracer.configure(0, 20);
+    Tracer.begin();
+    Tracer.finish("GET /fast", 200);
+    assertTrue(messages.isEmpty());
+    Tracer.begin();
+    int span = Tracer.start("sleep");
+    Thread.sleep(30);
+    Tracer.end(span);
+    Tracer.finish("GET /slow", 200);
+    assertEquals(1, messages.size());
+    assertTrue(messages.get(0).startsWith("GET /slow 200 slow total="));
+  }
+
+  /**
+   * Ensures invalid settings are rejected.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidRate() {
+    Tracer.configure(1.5, 0);
+  }
+}